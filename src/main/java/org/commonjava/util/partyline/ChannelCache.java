@@ -0,0 +1,435 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache of read-only {@link FileChannel}s, keyed by path. Read-only {@link JoinableFile}s lease their channel
+ * from here instead of opening (and later closing) a new {@link RandomAccessFile} each time, which saves the
+ * open / fstat / close cycle for files that are read over and over.
+ * <br/>
+ * The budget is strict: the channels held by this cache (leased and idle), plus those {@link #reserve(String) reserved}
+ * for writing, never exceed the configured maximum. When it's used up and no idle channel can be evicted to make room,
+ * {@link #acquire(File)} and {@link #reserve(String)} fail with {@link BudgetExhaustedException}; {@link FileTree}
+ * backs out and retries until its timeout expires, like it does when another process holds the file. Idle channels
+ * are closed after the idle timeout (see {@link #evictIdle()}), and {@link FileTree} invalidates channels whenever a
+ * write or delete lock is granted on a path (or its ancestor).
+ * <br/>
+ * Getters are public to allow reporting of cache statistics.
+ *
+ * @see JoinableFileManager#enableChannelCache(int, long)
+ */
+public final class ChannelCache
+{
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final int maxOpen;
+
+    private final long idleTimeout;
+
+    private final LinkedHashMap<String, CachedChannel> entries = new LinkedHashMap<>( 16, 0.75f, true );
+
+    // sorted view of the keys in entries, so invalidating a directory doesn't require a scan of the whole cache.
+    private final NavigableSet<String> paths = new TreeSet<>();
+
+    // every channel opened by this cache and not yet closed, including those invalidated while still leased.
+    private final Map<FileChannel, CachedChannel> open = new IdentityHashMap<>();
+
+    // descriptors held outside the cache (by writers); guarded by lock
+    private int reserved;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    ChannelCache( final int maxOpen, final long idleTimeout )
+    {
+        this.maxOpen = maxOpen;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Lease a read-only channel to the given file, opening it if necessary. Every successful call must be matched by
+     * a call to {@link #release(FileChannel)}.
+     *
+     * @return The channel
+     * @throws BudgetExhaustedException if the open-file budget is used up by leased channels and writers
+     */
+    FileChannel acquire( final File file )
+            throws IOException
+    {
+        String path = file.getAbsolutePath();
+        List<CachedChannel> evicted = new ArrayList<>();
+        try
+        {
+            lock.lock();
+            try
+            {
+                CachedChannel cached = entries.get( path );
+                if ( cached != null && cached.channel.isOpen() )
+                {
+                    hits.incrementAndGet();
+                    cached.refs++;
+                    return cached.channel;
+                }
+                else if ( cached != null )
+                {
+                    retire( path, evicted );
+                }
+
+                misses.incrementAndGet();
+
+                if ( !makeRoom( evicted ) )
+                {
+                    logger.trace( "Channel budget of {} exhausted; cannot open: {}", maxOpen, path );
+                    throw new BudgetExhaustedException( maxOpen, path );
+                }
+
+                // NOTE: Opening under the lock keeps the budget strict; this only happens on a cache miss.
+                cached = new CachedChannel( path, new RandomAccessFile( file, "r" ) );
+                cached.refs++;
+                entries.put( path, cached );
+                paths.add( path );
+                open.put( cached.channel, cached );
+
+                return cached.channel;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        finally
+        {
+            evicted.forEach( CachedChannel::close );
+        }
+    }
+
+    /**
+     * Count a descriptor the caller opens itself (to write the given path) against the budget, evicting an idle channel
+     * if necessary. Every successful call must be matched by a call to {@link #unreserve()} once it's closed.
+     *
+     * @throws BudgetExhaustedException if the open-file budget is used up by leased channels and writers
+     */
+    void reserve( final String path )
+            throws BudgetExhaustedException
+    {
+        List<CachedChannel> evicted = new ArrayList<>();
+        try
+        {
+            lock.lock();
+            try
+            {
+                if ( !makeRoom( evicted ) )
+                {
+                    logger.trace( "Channel budget of {} exhausted; cannot open: {}", maxOpen, path );
+                    throw new BudgetExhaustedException( maxOpen, path );
+                }
+
+                reserved++;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        finally
+        {
+            evicted.forEach( CachedChannel::close );
+        }
+    }
+
+    /**
+     * Give back a descriptor counted by {@link #reserve(String)}.
+     */
+    void unreserve()
+    {
+        lock.lock();
+        try
+        {
+            reserved--;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return a channel leased via {@link #acquire(File)}. If the channel was invalidated in the meantime and this was
+     * the last lease, it is closed.
+     */
+    void release( final FileChannel channel )
+    {
+        CachedChannel retired = null;
+        lock.lock();
+        try
+        {
+            CachedChannel cached = open.get( channel );
+            if ( cached == null )
+            {
+                logger.warn( "Released channel is not managed by this cache: {}", channel );
+                return;
+            }
+
+            cached.refs--;
+            cached.lastUsed = System.currentTimeMillis();
+            if ( cached.retired && cached.refs < 1 )
+            {
+                open.remove( channel );
+                retired = cached;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if ( retired != null )
+        {
+            retired.close();
+        }
+    }
+
+    /**
+     * Close the channel cached for the given path and any path below it (if it's a directory). Channels that are still
+     * leased are closed when they're released.
+     */
+    void invalidate( final String path )
+    {
+        List<CachedChannel> closing = new ArrayList<>();
+        lock.lock();
+        try
+        {
+            retire( path, closing );
+
+            String prefix = path + File.separator;
+            NavigableSet<String> children = paths.subSet( prefix, true, prefix + Character.MAX_VALUE, false );
+            while ( !children.isEmpty() )
+            {
+                retire( children.first(), closing );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        closing.forEach( CachedChannel::close );
+    }
+
+    /**
+     * Close channels that haven't been leased within the idle timeout.
+     */
+    void evictIdle()
+    {
+        List<CachedChannel> closing = new ArrayList<>();
+        lock.lock();
+        try
+        {
+            long cutoff = System.currentTimeMillis() - idleTimeout;
+            Iterator<CachedChannel> it = entries.values().iterator();
+            while ( it.hasNext() )
+            {
+                CachedChannel cached = it.next();
+                if ( cached.refs < 1 && cached.lastUsed < cutoff )
+                {
+                    it.remove();
+                    paths.remove( cached.path );
+                    open.remove( cached.channel );
+                    closing.add( cached );
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        closing.forEach( CachedChannel::close );
+    }
+
+    /**
+     * Close all idle channels. Leased channels are closed when they're released.
+     */
+    void clear()
+    {
+        List<CachedChannel> closing = new ArrayList<>();
+        lock.lock();
+        try
+        {
+            new ArrayList<>( paths ).forEach( ( path ) -> retire( path, closing ) );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        closing.forEach( CachedChannel::close );
+    }
+
+    /**
+     * Evict idle channels, least recently used first, until there's room for one more descriptor. Call with the lock
+     * held; the evicted channels are added to the given list, to be closed after the lock is released.
+     *
+     * @return false if there's no room, even with all idle channels evicted
+     */
+    private boolean makeRoom( final List<CachedChannel> evicted )
+    {
+        Iterator<CachedChannel> it = entries.values().iterator();
+        while ( open.size() + reserved >= maxOpen && it.hasNext() )
+        {
+            CachedChannel eldest = it.next();
+            if ( eldest.refs < 1 )
+            {
+                it.remove();
+                paths.remove( eldest.path );
+                open.remove( eldest.channel );
+                evicted.add( eldest );
+                evictions.incrementAndGet();
+            }
+        }
+
+        return open.size() + reserved < maxOpen;
+    }
+
+    private void retire( final String path, final List<CachedChannel> closing )
+    {
+        CachedChannel cached = entries.remove( path );
+        if ( cached != null )
+        {
+            paths.remove( path );
+            if ( cached.refs > 0 )
+            {
+                // still leased; close it when the last lease is released.
+                cached.retired = true;
+            }
+            else
+            {
+                open.remove( cached.channel );
+                closing.add( cached );
+            }
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * @return The number of channels currently open on behalf of this cache, whether leased or idle, plus those
+     * reserved by writers.
+     */
+    public int getOpenCount()
+    {
+        lock.lock();
+        try
+        {
+            return open.size() + reserved;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "ChannelCache [open: %d/%d, hits: %d, misses: %d, evictions: %d]", getOpenCount(),
+                              maxOpen, getHits(), getMisses(), getEvictions() );
+    }
+
+    /**
+     * Thrown when the open-file budget is used up. {@link FileTree} catches this, backs out its own lock and retries
+     * until the timeout expires.
+     */
+    static final class BudgetExhaustedException
+            extends IOException
+    {
+        BudgetExhaustedException( final int maxOpen, final String path )
+        {
+            super( "Open-file budget of " + maxOpen + " is used up; cannot open: " + path );
+        }
+    }
+
+    private static final class CachedChannel
+    {
+        private final String path;
+
+        private final RandomAccessFile randomAccessFile;
+
+        private final FileChannel channel;
+
+        private int refs;
+
+        private boolean retired;
+
+        private long lastUsed = System.currentTimeMillis();
+
+        CachedChannel( final String path, final RandomAccessFile randomAccessFile )
+        {
+            this.path = path;
+            this.randomAccessFile = randomAccessFile;
+            this.channel = randomAccessFile.getChannel();
+        }
+
+        void close()
+        {
+            try
+            {
+                randomAccessFile.close();
+            }
+            catch ( IOException e )
+            {
+                LoggerFactory.getLogger( ChannelCache.class ).debug( "Failed to close cached channel for: " + path, e );
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of one of the most contended paths tracked by a {@link ContentionProfiler}: how many lock attempts on the
+ * path had to wait, for how long in total, and which {@link LockLevel} was most often in the way.
+ * <br/>
+ * Counts recorded before the path made it into the top paths are estimates (they can only be too high).
+ */
+public final class ContendedPath
+{
+    private final String path;
+
+    private final long waits;
+
+    private final long waitNanos;
+
+    private final LockLevel blockingLevel;
+
+    ContendedPath( final String path, final long waits, final long waitNanos, final LockLevel blockingLevel )
+    {
+        this.path = path;
+        this.waits = waits;
+        this.waitNanos = waitNanos;
+        this.blockingLevel = blockingLevel;
+    }
+
+    public String getPath()
+    {
+        return path;
+    }
+
+    public long getWaits()
+    {
+        return waits;
+    }
+
+    public long getWaitMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( waitNanos );
+    }
+
+    /**
+     * @return the level of the lock that most often blocked attempts on the path, or null if that was a lock held by
+     * another node (see {@link LockCoordinator})
+     */
+    public LockLevel getBlockingLevel()
+    {
+        return blockingLevel;
+    }
+
+    @Override
+    public String toString()
+    {
+        return path + ": waits=" + waits + ", wait=" + getWaitMillis() + "ms, blocked by: "
+                + ( blockingLevel == null ? "other node" : blockingLevel );
+    }
+}
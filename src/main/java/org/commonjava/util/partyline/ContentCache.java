@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded, in-memory cache of the content of small files, used to serve read requests for very hot files (metadata,
+ * checksums, indexes) without opening and mapping the file on every access. Entries are evicted in least-recently-used
+ * order once the configured byte budget is exceeded. {@link FileTree} invalidates entries whenever a write or delete
+ * lock is granted on a path, or on one of its ancestor directories.
+ * <br/>
+ * Getters are public to allow reporting of cache statistics.
+ *
+ * @see JoinableFileManager#enableContentCache(int, long)
+ */
+public final class ContentCache
+{
+    private final int maxFileSize;
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>( 16, 0.75f, true );
+
+    // sorted view of the keys in entries, so invalidating a directory doesn't require a scan of the whole cache.
+    private final NavigableSet<String> paths = new TreeSet<>();
+
+    private long bytes = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    ContentCache( final int maxFileSize, final long maxBytes )
+    {
+        this.maxFileSize = maxFileSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return true if a file of the given length could be stored in this cache.
+     */
+    boolean isCacheable( final long length )
+    {
+        return length <= maxFileSize && length <= maxBytes;
+    }
+
+    byte[] get( final String path )
+    {
+        lock.lock();
+        try
+        {
+            byte[] content = entries.get( path );
+            if ( content == null )
+            {
+                misses.incrementAndGet();
+            }
+            else
+            {
+                hits.incrementAndGet();
+            }
+
+            return content;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    void put( final String path, final byte[] content )
+    {
+        lock.lock();
+        try
+        {
+            if ( !isCacheable( content.length ) )
+            {
+                return;
+            }
+
+            byte[] old = entries.put( path, content );
+            if ( old != null )
+            {
+                bytes -= old.length;
+            }
+
+            paths.add( path );
+            bytes += content.length;
+
+            Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+            while ( bytes > maxBytes && it.hasNext() )
+            {
+                Map.Entry<String, byte[]> eldest = it.next();
+                it.remove();
+                paths.remove( eldest.getKey() );
+                bytes -= eldest.getValue().length;
+                evictions.incrementAndGet();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the content cached for the given path, and for any path below it (if it's a directory).
+     */
+    void invalidate( final String path )
+    {
+        lock.lock();
+        try
+        {
+            remove( path );
+
+            String prefix = path + File.separator;
+            NavigableSet<String> children = paths.subSet( prefix, true, prefix + Character.MAX_VALUE, false );
+            while ( !children.isEmpty() )
+            {
+                remove( children.first() );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void remove( final String path )
+    {
+        byte[] old = entries.remove( path );
+        if ( old != null )
+        {
+            paths.remove( path );
+            bytes -= old.length;
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public int getSize()
+    {
+        lock.lock();
+        try
+        {
+            return entries.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long getBytes()
+    {
+        lock.lock();
+        try
+        {
+            return bytes;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "ContentCache [entries: %d, bytes: %d/%d, hits: %d, misses: %d, evictions: %d]",
+                              getSize(), getBytes(), maxBytes, getHits(), getMisses(), getEvictions() );
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks which paths lock attempts wait for the most, without keeping state for every path ever locked. Each wait is
+ * added to a count-min sketch (a fixed-size table of counters, which can only over-estimate a path's totals); the
+ * paths with the most total wait time are also tracked exactly, in a top list of fixed size. A path whose estimated
+ * wait time exceeds the smallest in the list replaces it.
+ * <br/>
+ * Only attempts that actually wait are recorded, so uncontended locking isn't slowed down.
+ * <br/>
+ * Getters are public to allow reporting.
+ *
+ * @see JoinableFileManager#enableContentionProfiler(int)
+ */
+public final class ContentionProfiler
+{
+    private static final int DEPTH = 4;
+
+    private static final int WIDTH = 1024;
+
+    // one slot per lock level, plus one for locks held by other nodes
+    private static final int LEVELS = LockLevel.values().length + 1;
+
+    private final int topK;
+
+    private final AtomicLongArray waitCounts = new AtomicLongArray( DEPTH * WIDTH );
+
+    private final AtomicLongArray waitNanos = new AtomicLongArray( DEPTH * WIDTH );
+
+    // guarded by topLock; not a monitor, so virtual threads recording their waits don't pin their carriers
+    private final Map<String, Slot> top = new HashMap<>();
+
+    private final ReentrantLock topLock = new ReentrantLock();
+
+    ContentionProfiler( final int topK )
+    {
+        if ( topK < 1 )
+        {
+            throw new IllegalArgumentException( "Need to track at least one path." );
+        }
+
+        this.topK = topK;
+    }
+
+    /**
+     * Record that an attempt to lock the given path waited, blocked by a lock of the given level (null for a lock held
+     * by another node).
+     */
+    void record( final String path, final LockLevel blocking, final long nanos )
+    {
+        int hash = path.hashCode();
+        int step = Integer.reverse( hash ) | 1;
+        long count = Long.MAX_VALUE;
+        long total = Long.MAX_VALUE;
+        for ( int row = 0; row < DEPTH; row++ )
+        {
+            int idx = row * WIDTH + ( ( hash + row * step ) & ( WIDTH - 1 ) );
+            count = Math.min( count, waitCounts.incrementAndGet( idx ) );
+            total = Math.min( total, waitNanos.addAndGet( idx, nanos ) );
+        }
+
+        int level = blocking == null ? LEVELS - 1 : blocking.ordinal();
+        topLock.lock();
+        try
+        {
+            Slot slot = top.get( path );
+            if ( slot == null )
+            {
+                if ( top.size() >= topK )
+                {
+                    Slot least = null;
+                    for ( Slot s : top.values() )
+                    {
+                        if ( least == null || s.nanos < least.nanos )
+                        {
+                            least = s;
+                        }
+                    }
+
+                    if ( least.nanos >= total )
+                    {
+                        return;
+                    }
+
+                    top.remove( least.path );
+                }
+
+                // start from the sketch's estimate, which includes this wait
+                slot = new Slot( path, count - 1, total - nanos );
+                top.put( path, slot );
+            }
+
+            slot.waits++;
+            slot.nanos += nanos;
+            slot.levels[level]++;
+        }
+        finally
+        {
+            topLock.unlock();
+        }
+    }
+
+    /**
+     * @return the most contended paths, by total wait time (most first)
+     */
+    public List<ContendedPath> getTopContended()
+    {
+        List<ContendedPath> result = new ArrayList<>();
+        topLock.lock();
+        try
+        {
+            top.values()
+               .stream()
+               .sorted( Comparator.comparingLong( ( Slot s ) -> s.nanos ).reversed() )
+               .forEach( s -> result.add( s.snapshot() ) );
+        }
+        finally
+        {
+            topLock.unlock();
+        }
+
+        return result;
+    }
+
+    public int getTopK()
+    {
+        return topK;
+    }
+
+    private static final class Slot
+    {
+        private final String path;
+
+        private long waits;
+
+        private long nanos;
+
+        private final long[] levels = new long[LEVELS];
+
+        Slot( final String path, final long waits, final long nanos )
+        {
+            this.path = path;
+            this.waits = waits;
+            this.nanos = nanos;
+        }
+
+        ContendedPath snapshot()
+        {
+            int most = 0;
+            for ( int i = 1; i < LEVELS; i++ )
+            {
+                if ( levels[i] > levels[most] )
+                {
+                    most = i;
+                }
+            }
+
+            return new ContendedPath( path, waits, nanos, most == LEVELS - 1 ? null : LockLevel.values()[most] );
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+/**
+ * Determines how a recursive directory delete treats files and directories inside the tree that are locked by other
+ * operations when the delete reaches them.
+ *
+ * @see JoinableFileManager#tryDeleteTree(java.io.File, DeletePolicy, long, org.commonjava.util.partyline.callback.DeleteCallbacks)
+ */
+public enum DeletePolicy
+{
+    /**
+     * Leave locked files (and locked directories, with their content) in place, along with their parent directories.
+     */
+    skip,
+
+    /**
+     * Wait (up to the delete timeout) for each locked file or directory to be unlocked, then delete it.
+     */
+    await;
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the digests computed while files were written (see {@link JoinableFile#getDigests()}). When it's
+ * full, the digests cached longest ago are evicted first. Entries are removed as soon as a write or delete lock is
+ * granted on the path or one of its ancestor directories.
+ */
+final class DigestCache
+{
+    private final int maxEntries;
+
+    // sorted by path, so invalidating a directory doesn't require a scan of the whole cache.
+    private final ConcurrentNavigableMap<String, Digests> entries = new ConcurrentSkipListMap<>();
+
+    // paths in the order they were cached, for eviction
+    private final ConcurrentNavigableMap<Long, String> order = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    DigestCache( final int maxEntries )
+    {
+        if ( maxEntries < 1 )
+        {
+            throw new IllegalArgumentException( "Need room for at least one file's digests." );
+        }
+
+        this.maxEntries = maxEntries;
+    }
+
+    Map<String, String> get( final String path )
+    {
+        Digests digests = entries.get( path );
+        return digests == null ? null : digests.values;
+    }
+
+    void put( final String path, final Map<String, String> values )
+    {
+        Digests digests = new Digests( values, sequence.incrementAndGet() );
+        order.put( digests.seq, path );
+
+        Digests old = entries.put( path, digests );
+        if ( old != null )
+        {
+            order.remove( old.seq );
+        }
+        else if ( size.incrementAndGet() > maxEntries )
+        {
+            while ( size.get() > maxEntries )
+            {
+                Map.Entry<Long, String> oldest = order.pollFirstEntry();
+                if ( oldest == null )
+                {
+                    break;
+                }
+
+                // only if it wasn't re-cached since
+                Digests evicted = entries.get( oldest.getValue() );
+                if ( evicted != null && evicted.seq == oldest.getKey() && entries.remove( oldest.getValue(),
+                                                                                           evicted ) )
+                {
+                    size.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget about the given path and any path below it (if it's a directory).
+     */
+    void invalidate( final String path )
+    {
+        remove( path );
+
+        String prefix = path + File.separator;
+        entries.subMap( prefix, prefix + Character.MAX_VALUE ).keySet().forEach( this::remove );
+    }
+
+    int getSize()
+    {
+        return size.get();
+    }
+
+    private void remove( final String path )
+    {
+        Digests removed = entries.remove( path );
+        if ( removed != null )
+        {
+            order.remove( removed.seq );
+            size.decrementAndGet();
+        }
+    }
+
+    private static final class Digests
+    {
+        private final Map<String, String> values;
+
+        private final long seq;
+
+        private Digests( final Map<String, String> values, final long seq )
+        {
+            this.values = values;
+            this.seq = seq;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.commonjava.util.partyline.FileTree.FileEntry;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the {@link FileEntry} instances of a {@link FileTree}, partitioned into shards by path prefix. The first
+ * prefixDepth path elements (for instance, the repository root) select the shard, so lookups for files under
+ * different prefixes don't contend for the same lock. Paths shorter than the prefix (directories spanning several
+ * shards) live in a separate spanning shard, which is only consulted when it holds something, and locking one of
+ * them checks the children in every shard.
+ * <br/>
+ * With a single shard, this behaves like one map with one lookup lock.
+ */
+final class FileEntryShards
+{
+    private final Shard[] shards;
+
+    private final Shard spanning;
+
+    private final int prefixDepth;
+
+    FileEntryShards()
+    {
+        this( 1, 0 );
+    }
+
+    FileEntryShards( int shardCount, int prefixDepth )
+    {
+        if ( shardCount < 1 || prefixDepth < 0 || ( shardCount > 1 && prefixDepth < 1 ) )
+        {
+            throw new IllegalArgumentException(
+                    "Invalid sharding: " + shardCount + " shards with prefix depth: " + prefixDepth );
+        }
+
+        this.shards = new Shard[shardCount];
+        for ( int i = 0; i < shardCount; i++ )
+        {
+            shards[i] = new Shard();
+        }
+
+        this.spanning = shardCount > 1 ? new Shard() : shards[0];
+        this.prefixDepth = prefixDepth;
+    }
+
+    int getShardCount()
+    {
+        return shards.length;
+    }
+
+    int getPrefixDepth()
+    {
+        return prefixDepth;
+    }
+
+    FileEntry get( String path )
+    {
+        return shardFor( path ).entries.get( path );
+    }
+
+    void put( String path, FileEntry entry )
+    {
+        shardFor( path ).entries.put( path, entry );
+    }
+
+    FileEntry remove( String path )
+    {
+        return shardFor( path ).entries.remove( path );
+    }
+
+    boolean containsKey( String path )
+    {
+        return shardFor( path ).entries.containsKey( path );
+    }
+
+    boolean isEmpty()
+    {
+        if ( !spanning.entries.isEmpty() )
+        {
+            return false;
+        }
+
+        for ( Shard shard : shards )
+        {
+            if ( !shard.entries.isEmpty() )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return a sorted copy of all entries
+     */
+    TreeMap<String, FileEntry> snapshot()
+    {
+        TreeMap<String, FileEntry> sorted = new TreeMap<>();
+        if ( spanning != shards[0] )
+        {
+            sorted.putAll( spanning.entries );
+        }
+
+        for ( Shard shard : shards )
+        {
+            sorted.putAll( shard.entries );
+        }
+
+        return sorted;
+    }
+
+    /**
+     * Find the entry for the given file or its nearest locked ancestor; failing that, if it's a directory, the entry
+     * of a locked child. See {@link FileTree} for how this is used.
+     */
+    FileEntry findLockingEntry( File file )
+    {
+        String path = file.getAbsolutePath();
+        Shard shard = shardFor( path );
+
+        shard.lookupLock.lock();
+        try
+        {
+            // search self and ancestors...ancestors shorter than the prefix are in the spanning shard.
+            int depth = shards.length > 1 ? Paths.get( path ).getNameCount() : 0;
+            File f = file;
+            do
+            {
+                Shard s = depth < prefixDepth ? spanning : shard;
+                if ( s != shard && s.entries.isEmpty() )
+                {
+                    break;
+                }
+
+                FileEntry entry = s.entries.get( f.getAbsolutePath() );
+                if ( entry != null )
+                {
+                    return entry;
+                }
+
+                f = f.getParentFile();
+                depth--;
+            }
+            while ( f != null );
+
+            // search for children...
+            if ( file.isDirectory() )
+            {
+                FileEntry child = findChild( shard, path );
+                if ( child != null || shard != spanning )
+                {
+                    return child;
+                }
+            }
+            else
+            {
+                return null;
+            }
+        }
+        finally
+        {
+            shard.lookupLock.unlock();
+        }
+
+        // a directory spanning shards; its children may be in any of them.
+        for ( Shard s : shards )
+        {
+            if ( s == spanning )
+            {
+                continue;
+            }
+
+            s.lookupLock.lock();
+            try
+            {
+                FileEntry child = findChild( s, path );
+                if ( child != null )
+                {
+                    return child;
+                }
+            }
+            finally
+            {
+                s.lookupLock.unlock();
+            }
+        }
+
+        return null;
+    }
+
+    private FileEntry findChild( Shard shard, String path )
+    {
+        Optional<String> result =
+                shard.entries.keySet().stream().filter( ( name ) -> name.startsWith( path ) ).findFirst();
+
+        return result.map( shard.entries::get ).orElse( null );
+    }
+
+    private Shard shardFor( String path )
+    {
+        if ( shards.length == 1 )
+        {
+            return shards[0];
+        }
+
+        Path p = Paths.get( path );
+        if ( p.getNameCount() < prefixDepth )
+        {
+            return spanning;
+        }
+
+        String prefix = p.subpath( 0, prefixDepth ).toString();
+        return shards[spread( prefix.hashCode() )];
+    }
+
+    private int spread( int hash )
+    {
+        int h = hash ^ ( hash >>> 16 );
+        return ( h & 0x7fffffff ) % shards.length;
+    }
+
+    private static final class Shard
+    {
+        private final Map<String, FileEntry> entries = new ConcurrentHashMap<>();
+
+        // serializes lookups of locking entries in this shard; a ReentrantLock rather than a monitor, so it doesn't
+        // pin virtual threads.
+        private final ReentrantLock lookupLock = new ReentrantLock();
+    }
+}
@@ -94,6 +94,30 @@ final class FileOperationLock
         }
     }
 
+    /**
+     * Wake the threads waiting on this lock (see {@link #await(long)}) from a thread that may not hold it, if it can
+     * be taken without blocking. If it can't, its holder will signal it on unlock anyway.
+     *
+     * @return true if the waiters were signalled
+     */
+    public boolean trySignalAll()
+    {
+        if ( lock.tryLock() )
+        {
+            try
+            {
+                changed.signalAll();
+                return true;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        return false;
+    }
+
     public String getLocker()
     {
         return locker;
@@ -17,17 +17,42 @@ package org.commonjava.util.partyline;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.commonjava.util.partyline.callback.ContentStreamCallbacks;
+import org.commonjava.util.partyline.callback.DeleteCallbacks;
+import org.commonjava.util.partyline.callback.DigestCallbacks;
 import org.commonjava.util.partyline.callback.StreamCallbacks;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
@@ -47,12 +72,545 @@ final class FileTree
 
     private static final long WAIT_TIMEOUT = 100;
 
+    static final int DEFAULT_DIGEST_CACHE_SIZE = 10000;
+
+    private static final byte[] NOT_CACHED = new byte[0];
+
+    private static final long DELETE_PROGRESS_INTERVAL = 10000;
+
+    // beyond this many paths, read counts decay (see countRead())
+    private static final int MAX_READ_COUNTS = 10000;
+
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
-    private final Map<String, FileEntry> entryMap = new ConcurrentHashMap<>();
+    // replaced only while nothing is locked; see setSharding()
+    private volatile FileEntryShards entryMap = new FileEntryShards();
 
     private final Map<String, FileOperationLock> operationLocks = new ConcurrentHashMap<>();
 
+    // directories being emptied by deleteTree(); nothing new may be created in them until they're released.
+    private final Map<String, Integer> emptyingDirectories = new ConcurrentHashMap<>();
+
+    private volatile DigestCache digestCache = new DigestCache( DEFAULT_DIGEST_CACHE_SIZE );
+
+    private volatile Collection<String> digestAlgorithms = Collections.emptySet();
+
+    private volatile DigestCallbacks digestCallbacks;
+
+    private volatile ContentCache contentCache;
+
+    private volatile ChannelCache channelCache;
+
+    private volatile MissingFileCache missingFileCache;
+
+    private volatile boolean processLocks;
+
+    private volatile boolean progressFiles;
+
+    private volatile boolean preallocation;
+
+    private final LockCoordinator coordinator;
+
+    private volatile Executor flushExecutor;
+
+    private volatile int maxInFlightBuffers;
+
+    private volatile FlushPolicy flushPolicy;
+
+    private volatile ScheduledExecutorService flushScheduler;
+
+    private final TimeToFirstByte timeToFirstByte = new TimeToFirstByte();
+
+    private volatile WriteMirror mirror;
+
+    private volatile StorageTiers tiers;
+
+    private volatile WriteAdmission admission;
+
+    private volatile TenantScheduler tenantScheduler;
+
+    private volatile ContentionProfiler contentionProfiler;
+
+    private volatile WaitForGraph waitForGraph;
+
+    // bandwidth limits by path; the nearest ancestor's limit applies
+    private final Map<String, RateLimit> rateLimits = new ConcurrentHashMap<>();
+
+    // read opens per path, while storage tiers need them; null otherwise.
+    private volatile Map<String, AtomicLong> readCounts;
+
+    private final ReentrantLock readCountsDecay = new ReentrantLock();
+
+    FileTree()
+    {
+        this( new LocalLockCoordinator() );
+    }
+
+    FileTree( LockCoordinator coordinator )
+    {
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * Set the {@link java.security.MessageDigest} algorithms to compute while files are written. An empty collection
+     * turns digest computation off.
+     */
+    void setDigestAlgorithms( Collection<String> digestAlgorithms )
+    {
+        this.digestAlgorithms = digestAlgorithms;
+    }
+
+    /**
+     * Keep the digests of (at most) the given number of most recently written files. Digests already cached are
+     * dropped.
+     */
+    void setDigestCacheSize( int maxEntries )
+    {
+        this.digestCache = new DigestCache( maxEntries );
+    }
+
+    void setDigestCallbacks( DigestCallbacks digestCallbacks )
+    {
+        this.digestCallbacks = digestCallbacks;
+    }
+
+    /**
+     * Retrieve the digests computed the last time the given file was written through partyline, or null if they're
+     * not available (not computed, or the file has since been locked for writing / deletion).
+     */
+    Map<String, String> getDigests( File file )
+    {
+        return digestCache.get( file.getAbsolutePath() );
+    }
+
+    void setContentCache( ContentCache contentCache )
+    {
+        this.contentCache = contentCache;
+    }
+
+    ContentCache getContentCache()
+    {
+        return contentCache;
+    }
+
+    void setChannelCache( ChannelCache channelCache )
+    {
+        this.channelCache = channelCache;
+    }
+
+    ChannelCache getChannelCache()
+    {
+        return channelCache;
+    }
+
+    void setMissingFileCache( MissingFileCache missingFileCache )
+    {
+        this.missingFileCache = missingFileCache;
+    }
+
+    MissingFileCache getMissingFileCache()
+    {
+        return missingFileCache;
+    }
+
+    /**
+     * Enable / disable OS-level file locks, to coordinate with other processes using the same files.
+     *
+     * @see ProcessLocks
+     */
+    void setProcessLocks( boolean processLocks )
+    {
+        this.processLocks = processLocks;
+    }
+
+    boolean isProcessLocks()
+    {
+        return processLocks;
+    }
+
+    /**
+     * Flush written content on the given executor (or in the writing thread, if null). See
+     * {@link JoinableFile#flushInBackground(Executor, int)}.
+     */
+    void setBackgroundFlush( Executor flushExecutor, int maxInFlightBuffers )
+    {
+        this.maxInFlightBuffers = maxInFlightBuffers;
+        this.flushExecutor = flushExecutor;
+    }
+
+    /**
+     * Partition the lock state into the given number of shards, by the first prefixDepth elements of each path (see
+     * {@link FileEntryShards}). This is only allowed while nothing is locked.
+     *
+     * @throws IllegalStateException if any file is locked
+     */
+    void setSharding( int shards, int prefixDepth )
+    {
+        FileEntryShards sharded = new FileEntryShards( shards, prefixDepth );
+        if ( !entryMap.isEmpty() )
+        {
+            throw new IllegalStateException( "Cannot change lock sharding while files are locked" );
+        }
+
+        entryMap = sharded;
+    }
+
+    int getShardCount()
+    {
+        return entryMap.getShardCount();
+    }
+
+    /**
+     * Flush written content according to the given policy (or only when the buffer is full, if null), using the given
+     * scheduler. See {@link JoinableFile#setFlushPolicy(FlushPolicy, ScheduledExecutorService)}.
+     */
+    void setFlushPolicy( FlushPolicy flushPolicy, ScheduledExecutorService flushScheduler )
+    {
+        this.flushScheduler = flushScheduler;
+        this.flushPolicy = flushPolicy;
+    }
+
+    TimeToFirstByte getTimeToFirstByte()
+    {
+        return timeToFirstByte;
+    }
+
+    /**
+     * Queue the content of files subsequently opened for writing under the mirror's primary root for the given mirror
+     * (or stop, if null). See {@link WriteMirror}.
+     */
+    void setMirror( WriteMirror mirror )
+    {
+        this.mirror = mirror;
+    }
+
+    /**
+     * Hold files subsequently opened for writing to the given admission limits (or none, if null). See
+     * {@link WriteAdmission}.
+     */
+    void setWriteAdmission( WriteAdmission admission )
+    {
+        this.admission = admission;
+    }
+
+    /**
+     * Schedule lock attempts, and the flushes of files subsequently opened for writing, fairly between tenants with
+     * the given scheduler (or not, if null). See {@link TenantScheduler}.
+     */
+    void setTenantScheduler( TenantScheduler tenantScheduler )
+    {
+        this.tenantScheduler = tenantScheduler;
+    }
+
+    /**
+     * Record the waits of lock attempts in the given profiler (or stop, if null). See {@link ContentionProfiler}.
+     */
+    void setContentionProfiler( ContentionProfiler contentionProfiler )
+    {
+        this.contentionProfiler = contentionProfiler;
+    }
+
+    ContentionProfiler getContentionProfiler()
+    {
+        return contentionProfiler;
+    }
+
+    /**
+     * Track lock waits in the given graph, failing the youngest waiter of any deadlock (or stop, if null). See
+     * {@link WaitForGraph}.
+     */
+    void setWaitForGraph( WaitForGraph waitForGraph )
+    {
+        this.waitForGraph = waitForGraph;
+    }
+
+    WaitForGraph getWaitForGraph()
+    {
+        return waitForGraph;
+    }
+
+    /**
+     * Hold the flushes and reads of files subsequently opened under the given path to the given limit, shared between
+     * them all (or remove the limit, if null).
+     */
+    void setRateLimit( File path, RateLimit limit )
+    {
+        if ( limit == null )
+        {
+            rateLimits.remove( path.getAbsolutePath() );
+        }
+        else
+        {
+            rateLimits.put( path.getAbsolutePath(), limit );
+        }
+    }
+
+    Map<String, RateLimit> getRateLimits()
+    {
+        return Collections.unmodifiableMap( rateLimits );
+    }
+
+    private RateLimit getRateLimit( File file )
+    {
+        if ( rateLimits.isEmpty() )
+        {
+            return null;
+        }
+
+        for ( File f = file.getAbsoluteFile(); f != null; f = f.getParentFile() )
+        {
+            RateLimit limit = rateLimits.get( f.getPath() );
+            if ( limit != null )
+            {
+                return limit;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Count read opens per file, and report the files subsequently written under the fastest tier to the given
+     * storage tiers (or stop, if null). See {@link StorageTiers}.
+     */
+    void setStorageTiers( StorageTiers tiers )
+    {
+        this.tiers = tiers;
+        this.readCounts = tiers == null ? null : new ConcurrentHashMap<>();
+    }
+
+    /**
+     * The number of times the file was opened for reading since read counting started (or the count was reset).
+     */
+    long getReadCount( File file )
+    {
+        Map<String, AtomicLong> counts = readCounts;
+        AtomicLong count = counts == null ? null : counts.get( file.getAbsolutePath() );
+        return count == null ? 0 : count.get();
+    }
+
+    void resetReadCount( File file )
+    {
+        Map<String, AtomicLong> counts = readCounts;
+        if ( counts != null )
+        {
+            counts.remove( file.getAbsolutePath() );
+        }
+    }
+
+    /**
+     * Count a read open of the file. Once more than {@link #MAX_READ_COUNTS} paths are counted, all counts are halved,
+     * and the paths read only once since the last decay are dropped, so the counts favor recent reads and don't grow
+     * without bound.
+     */
+    private void countRead( File file )
+    {
+        Map<String, AtomicLong> counts = readCounts;
+        if ( counts == null )
+        {
+            return;
+        }
+
+        counts.computeIfAbsent( file.getAbsolutePath(), ( k ) -> new AtomicLong() ).incrementAndGet();
+
+        if ( counts.size() > MAX_READ_COUNTS && readCountsDecay.tryLock() )
+        {
+            try
+            {
+                while ( counts.size() > MAX_READ_COUNTS / 2 )
+                {
+                    counts.values().removeIf( ( count ) -> count.updateAndGet( ( c ) -> c / 2 ) < 1 );
+                }
+            }
+            finally
+            {
+                readCountsDecay.unlock();
+            }
+        }
+    }
+
+    /**
+     * Enable / disable {@link ProgressFile}s, which let readers in other processes join writes in progress.
+     */
+    void setProgressFiles( boolean progressFiles )
+    {
+        this.progressFiles = progressFiles;
+    }
+
+    boolean isProgressFiles()
+    {
+        return progressFiles;
+    }
+
+    /**
+     * Enable / disable preallocation of the expected length of writes (see {@link JoinableFile#preallocate()}).
+     */
+    void setPreallocation( boolean preallocation )
+    {
+        this.preallocation = preallocation;
+    }
+
+    boolean isPreallocation()
+    {
+        return preallocation;
+    }
+
+    /**
+     * Drop any cached state derived from the content of the given path, or (in case of a directory) its descendants.
+     * This is called whenever a write or delete lock is granted on the path.
+     */
+    private void invalidate( String path )
+    {
+        digestCache.invalidate( path );
+
+        ContentCache cache = contentCache;
+        if ( cache != null )
+        {
+            cache.invalidate( path );
+        }
+
+        ChannelCache channels = channelCache;
+        if ( channels != null )
+        {
+            channels.invalidate( path );
+        }
+
+        MissingFileCache missing = missingFileCache;
+        if ( missing != null )
+        {
+            missing.invalidate( path );
+        }
+    }
+
+    /**
+     * Return true if the {@link MissingFileCache} is enabled and knows the given path to be missing.
+     */
+    private boolean isKnownMissing( String path )
+    {
+        MissingFileCache missing = missingFileCache;
+        return missing != null && missing.isMissing( path );
+    }
+
+    /**
+     * If a {@link ContentCache} is enabled and the given file is small enough to be cached, return a stream over its
+     * cached content. On a cache miss, read-lock the file just long enough to load its content into the cache, then
+     * release the lock again. Files that are already open (maybe being written) are left for the caller to join.
+     *
+     * @param f The file to read
+     * @param timeout The period to wait in attempting to acquire the read lock on a cache miss
+     * @param unit The time unit for the timeout period
+     * @return A stream over the cached content, or null if the file should be opened normally
+     * @throws IOException If the file doesn't exist, or can't be locked in the given timeout
+     * @throws InterruptedException
+     */
+    InputStream openCachedInputStream( File f, long timeout, TimeUnit unit )
+            throws IOException, InterruptedException
+    {
+        ContentCache cache = contentCache;
+        if ( cache == null )
+        {
+            return null;
+        }
+
+        String name = f.getAbsolutePath();
+        byte[] content = cache.get( name );
+        if ( content == null )
+        {
+            if ( isKnownMissing( name ) || !cache.isCacheable( f.length() ) )
+            {
+                return null;
+            }
+
+            String label = "CACHE " + JoinableFile.labelFor( false, Thread.currentThread().getName() );
+            content = tryLock( f, label, read, timeout, unit, ( opLock ) -> {
+                FileEntry entry = entryMap.get( name );
+                try
+                {
+                    if ( entry.file != null || f.isDirectory() )
+                    {
+                        return NOT_CACHED;
+                    }
+
+                    byte[] data = readForCache( f );
+                    if ( data == null )
+                    {
+                        return NOT_CACHED;
+                    }
+
+                    cache.put( name, data );
+                    return data;
+                }
+                finally
+                {
+                    // undo the lock we just placed on this entry; we're done with the file.
+                    undoLock( entry, label );
+                    opLock.signal();
+                }
+            } );
+
+            if ( content == null )
+            {
+                throw new IOException( "Could not open input stream to: " + f + " in " + timeout + "ms." );
+            }
+            else if ( content == NOT_CACHED )
+            {
+                return null;
+            }
+        }
+
+        logger.trace( "Serving: {} from content cache", f );
+        countRead( f );
+        return new ByteArrayInputStream( content );
+    }
+
+    /**
+     * Read the whole content of a file for the {@link ContentCache}. With process locks enabled, the content is read
+     * through the channel holding a shared OS-level lock on the file, so it can't be read while another process writes
+     * it. The caller must hold a read lock on the file, and the file must not be open (no {@link JoinableFile}): on
+     * POSIX systems, closing this channel releases every OS-level lock this JVM holds on the file, including those of
+     * other channels.
+     *
+     * @return The content, or null if another process has the file locked (so it should be opened normally)
+     */
+    private byte[] readForCache( File f )
+            throws IOException
+    {
+        if ( !processLocks )
+        {
+            return Files.readAllBytes( f.toPath() );
+        }
+
+        String path = f.getPath();
+        try (FileChannel channel = FileChannel.open( f.toPath(), StandardOpenOption.READ ))
+        {
+            FileLock fileLock;
+            try
+            {
+                fileLock = ProcessLocks.tryLock( channel, true, path );
+            }
+            catch ( ProcessLocks.LockedByProcessException e )
+            {
+                logger.trace( "{} Not caching.", e.getMessage() );
+                return null;
+            }
+
+            try
+            {
+                ByteBuffer buf = ByteBuffer.allocate( (int) channel.size() );
+                while ( buf.hasRemaining() && channel.read( buf ) > -1 )
+                {
+                    // until the buffer is full, or the file turns out to be shorter
+                }
+
+                return buf.hasRemaining() ? Arrays.copyOf( buf.array(), buf.position() ) : buf.array();
+            }
+            finally
+            {
+                ProcessLocks.release( fileLock, path );
+            }
+        }
+    }
+
     /**
      * Iterate all {@link FileEntry instances} to extract information about active locks.
      *
@@ -71,7 +629,7 @@ final class FileTree
      */
     void forAll( Predicate<? super FileEntry> predicate, Consumer<FileEntry> fileConsumer )
     {
-        TreeMap<String, FileEntry> sorted = new TreeMap<>( entryMap );
+        TreeMap<String, FileEntry> sorted = entryMap.snapshot();
         sorted.forEach( ( key, entry ) -> {
             if ( entry != null && predicate.test( entry ) )
             {
@@ -86,7 +644,7 @@ final class FileTree
     String renderTree()
     {
         StringBuilder sb = new StringBuilder();
-        TreeMap<String, FileEntry> sorted = new TreeMap<>( entryMap );
+        TreeMap<String, FileEntry> sorted = entryMap.snapshot();
         sorted.forEach( ( key, entry ) -> {
             sb.append( "+- " );
             Stream.of( key.split( "/" ) ).forEach( ( part ) -> sb.append( "  " ) );
@@ -169,7 +727,11 @@ final class FileTree
                     {
                         logger.trace( "Unlocked; clearing resources associated with lock" );
 
-                        closeEntryFile( entry, ownerName );
+                        // other owners may still be reading the open file; it closes itself when they're done.
+                        if ( !entry.lock.isLocked() )
+                        {
+                            closeEntryFile( entry, ownerName );
+                        }
 
                         if ( !unlockAssociatedEntries( entry, label ) )
                         {
@@ -178,7 +740,7 @@ final class FileTree
 
                         if ( !entry.lock.isLocked() )
                         {
-                            entryMap.remove( entry.name );
+                            removeEntry( entry.name );
                         }
 
                         opLock.signal();
@@ -214,6 +776,154 @@ final class FileTree
         return false;
     }
 
+    /**
+     * Upgrade the current thread's read lock on a file to a write lock, without unlocking in between. Wait for the
+     * other readers to unlock the file, up to the timeout; no new readers are let in meanwhile.
+     *
+     * @param f The file to upgrade
+     * @param timeout The timeout period before giving up on the upgrade (the read lock is kept)
+     * @param unit The time units for the timeout period
+     * @return true if the file is write-locked by the current thread; false if it doesn't hold a read lock, or the
+     * timeout expired
+     * @throws LockUpgradeDeadlockException if another thread is already waiting to upgrade its read lock on the file
+     * @throws LockDeadlockException if deadlock detection is on, and the upgrade is the youngest wait in a deadlock
+     */
+    boolean upgrade( File f, long timeout, TimeUnit unit )
+            throws IOException, InterruptedException
+    {
+        return withOpLock( f, ( opLock ) -> {
+            String name = f.getAbsolutePath();
+            FileEntry entry = entryMap.get( name );
+            if ( entry == null || entry.lock.getContextLockLevel() != read )
+            {
+                logger.debug( "{} is not read-locked by {}; cannot upgrade", f, getLockReservationName() );
+                return false;
+            }
+
+            long end = timeout < 1 ? -1 : System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert( timeout, unit );
+            WaitForGraph graph = waitForGraph;
+            WaitForGraph.Waiter waiter = null;
+            try
+            {
+                while ( end < 1 || System.currentTimeMillis() < end )
+                {
+                    if ( entry.lock.upgrade() )
+                    {
+                        if ( coordinator.tryAcquire( name, LockLevel.write ) )
+                        {
+                            invalidate( name );
+                            return true;
+                        }
+
+                        logger.trace( "{} is locked by another node.", name );
+                        entry.lock.downgrade();
+                    }
+                    else if ( graph != null )
+                    {
+                        // waiting for the other readers
+                        waiter = graph.await( waiter, name, LockLevel.write, entry.lock, opLock );
+                    }
+
+                    opLock.await( WAIT_TIMEOUT );
+                }
+
+                logger.trace( "{}: Upgrade failed", name );
+                return false;
+            }
+            finally
+            {
+                if ( graph != null )
+                {
+                    graph.done( waiter );
+                }
+
+                entry.lock.cancelUpgrade();
+            }
+        } );
+    }
+
+    /**
+     * Downgrade the current thread's write lock on a file to a read lock, letting other readers in without unlocking
+     * in between. Output streams the thread has open on the file have to be closed first.
+     *
+     * @return true if the file is now read-locked by the current thread; false if it wasn't write-locked by it, or an
+     * output stream is open
+     */
+    boolean downgrade( File f )
+    {
+        try
+        {
+            return withOpLock( f, ( opLock ) -> {
+                String name = f.getAbsolutePath();
+                FileEntry entry = entryMap.get( name );
+                if ( entry == null )
+                {
+                    logger.debug( "{} is not locked; cannot downgrade", f );
+                    return false;
+                }
+
+                if ( entry.file != null && entry.file.isWriting() )
+                {
+                    logger.debug( "{} is still open for writing; cannot downgrade", f );
+                    return false;
+                }
+
+                if ( !entry.lock.downgrade() )
+                {
+                    return false;
+                }
+
+                try
+                {
+                    coordinator.tryAcquire( name, read );
+                }
+                catch ( IOException e )
+                {
+                    // we still hold the stronger lock in the coordinator, which is safe.
+                    logger.warn( "Failed to downgrade lock on: " + f + " in the lock coordinator", e );
+                }
+
+                opLock.signal();
+                return true;
+            } );
+        }
+        catch ( IOException e )
+        {
+            logger.error( "SHOULD NEVER HAPPEN: IOException trying to downgrade: " + f, e );
+        }
+        catch ( InterruptedException e )
+        {
+            logger.warn( "Interrupted while trying to downgrade: " + f );
+        }
+
+        return false;
+    }
+
+    /**
+     * Reverse a lock just placed on the given entry from within a {@link LockedFileOperation}, dropping the entry if
+     * nothing else holds a lock on it.
+     */
+    private void undoLock( final FileEntry entry, final String label )
+    {
+        entry.lock.unlock( label );
+        unlockAssociatedEntries( entry, label );
+        if ( !entry.lock.isLocked() )
+        {
+            removeEntry( entry.name );
+        }
+    }
+
+    /**
+     * Drop the entry for the given path, and release the path in the {@link LockCoordinator}.
+     */
+    private void removeEntry( final String name )
+    {
+        if ( entryMap.remove( name ) != null )
+        {
+            coordinator.release( name );
+        }
+    }
+
     private boolean unlockAssociatedEntries( final FileEntry entry, final String label )
     {
         // the 'alsoLocked' entry field constitutes a linked list of locked entries.
@@ -237,7 +947,7 @@ final class FileTree
 
             if ( !alsoLocked.lock.isLocked() )
             {
-                entryMap.remove( alsoLocked.name );
+                removeEntry( alsoLocked.name );
             }
 
             alsoLocked = alsoLocked.alsoLocked;
@@ -251,7 +961,6 @@ final class FileTree
      * remaining locks and releases the file from the active-locked mapping. The cases where this is important:
      *
      * <ul>
-     *     <li>When the entire {@link JoinableFile} instance (which manages read and write operations) is closing</li>
      *     <li>When the completing operation locked a file for deletion</li>
      *     <li>When we've just established the first lock on a file, then the operation acquiring this lock fails.</li>
      * </ul>
@@ -274,7 +983,7 @@ final class FileTree
 
                     unlockAssociatedEntries( entry, label );
 
-                    entryMap.remove( entry.name );
+                    removeEntry( entry.name );
 
                     opLock.signal();
                     logger.trace( "Unlock succeeded." );
@@ -298,6 +1007,48 @@ final class FileTree
         }
     }
 
+    /**
+     * When the entire {@link JoinableFile} instance (which manages read and write operations) is closing, clear the
+     * locks of its streams, including those closed without unlocking. Manual locks that other owners took while the
+     * file was open are kept (readers can join a manual write lock); the file is released from the active-locked
+     * mapping when the last of those is unlocked.
+     *
+     * @param f The file whose stream locks should be cleared
+     */
+    private void releaseStreamLocks( final File f, final String label )
+    {
+        try
+        {
+            withOpLock( f, ( opLock ) -> {
+                FileEntry entry = entryMap.get( f.getAbsolutePath() );
+                if ( entry != null && entry.lock.clearStreamLocks() )
+                {
+                    logger.trace( "Unlocked {}; clearing resources associated with lock", f );
+                    closeEntryFile( entry, "" );
+
+                    unlockAssociatedEntries( entry, label );
+
+                    removeEntry( entry.name );
+                }
+                else if ( entry != null )
+                {
+                    logger.trace( "{} still locked:\n\n{}", f, entry.lock.getLockInfo() );
+                }
+
+                opLock.signal();
+                return null;
+            } );
+        }
+        catch ( IOException e )
+        {
+            logger.error( "SHOULD NEVER HAPPEN: IOException trying to unlock: " + f, e );
+        }
+        catch ( InterruptedException e )
+        {
+            logger.warn( "Interrupted while trying to unlock: " + f );
+        }
+    }
+
     private void closeEntryFile( FileEntry entry, String extraTraceMsg )
     {
         if ( entry.file != null )
@@ -317,7 +1068,8 @@ final class FileTree
      * @param lockLevel The type of lock to acquire (read, write, delete)
      * @param timeout The timeout period before giving up on the lock acquisition
      * @param unit The time units for the timeout period (milliseconds, etc)
-     * @return true if the file was locked as specified, otherwise false
+     * @return true if the file was locked as specified, otherwise false (including when deadlock detection fails
+     * this wait)
      * @throws InterruptedException
      *
      * @see JoinableFileManager#lock(File, long, LockLevel, String)
@@ -328,7 +1080,14 @@ final class FileTree
     {
         try
         {
-            return tryLock( file, label, lockLevel, timeout, unit, ( opLock ) -> true );
+            // null when the timeout expires
+            Boolean result = tryLock( file, label, lockLevel, timeout, unit, ( opLock ) -> true );
+            return result != null && result;
+        }
+        catch ( LockDeadlockException e )
+        {
+            // fail as if the timeout had expired
+            logger.warn( e.getMessage() );
         }
         catch ( IOException e )
         {
@@ -364,6 +1123,37 @@ final class FileTree
                            LockedFileOperation<T> operation )
             throws InterruptedException, IOException
     {
+        return tryLock( f, label, lockLevel, false, false, timeout, unit, operation );
+    }
+
+    /**
+     * Same as {@link #tryLock(File, String, LockLevel, long, TimeUnit, LockedFileOperation)}, but if produceMissing
+     * is set and a read lock is requested on a file that doesn't exist (and isn't locked), write-lock it instead of
+     * failing, so the caller can produce it. If stream is set, the lock is taken for a stream of a
+     * {@link JoinableFile}, and is cleared with the other stream locks when the file closes (see
+     * {@link LockOwner#clearStreamLocks()}).
+     */
+    private <T> T tryLock( File f, String label, LockLevel lockLevel, boolean produceMissing, boolean stream,
+                           long timeout, TimeUnit unit, LockedFileOperation<T> operation )
+            throws InterruptedException, IOException
+    {
+        MissingFileCache missing = missingFileCache;
+        if ( read == lockLevel && !produceMissing && isKnownMissing( f.getAbsolutePath() ) )
+        {
+            throw new IOException( f + " does not exist (cached). Cannot read-lock missing file!" );
+        }
+
+        return tryLock( f, label, lockLevel, produceMissing, stream, timeout, unit, operation, missing,
+                        tenantScheduler );
+    }
+
+    private <T> T tryLock( File f, String label, LockLevel lockLevel, boolean produceMissing, boolean stream,
+                           long timeout, TimeUnit unit, LockedFileOperation<T> operation, MissingFileCache missing,
+                           TenantScheduler scheduler )
+            throws InterruptedException, IOException
+    {
+        Object event = PartylineEvents.beginLock();
+        WaitForGraph graph = waitForGraph;
         return withOpLock( f, ( opLock ) -> {
             long end = timeout < 1 ? -1 : System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert( timeout, unit );
 
@@ -371,11 +1161,24 @@ final class FileTree
 
             String name = f.getAbsolutePath();
             FileEntry entry = null;
+
+            // for the contention profiler: when we started waiting, and for what
+            long waitStart = 0;
+            LockLevel blocking = null;
+            WaitForGraph.Waiter waiter = null;
+
+            // a turn per attempt, given back before waiting or running the operation (see TenantScheduler)
+            TenantScheduler.Turn turn = TenantScheduler.NO_TURN;
             try
             {
-                while ( end < 1 || System.currentTimeMillis() < end )
+                // however short the timeout, make one attempt (e.g. to lock only if nobody else holds the file)
+                boolean attempted = false;
+                while ( !attempted || end < 1 || System.currentTimeMillis() < end )
                 {
+                    attempted = true;
+                    turn = scheduler == null ? TenantScheduler.NO_TURN : scheduler.awaitLockTurn( name );
                     entry = getLockingEntry( f );
+                    boolean remote = false;
 
                     /*
                     There are three basic states we need to capture here:
@@ -388,15 +1191,30 @@ final class FileTree
                     3. Neither the target file nor its ancestry is locked. Set a flag to tell the system to lock the
                        target file and proceed.
                      */
-                    boolean doFileLock = (entry == null);
+                    // the level of a new lock entry
+                    LockLevel level = read == lockLevel && produceMissing && !f.exists() ? LockLevel.write : lockLevel;
+
+                    // don't create anything in a directory that deleteTree() is emptying; wait until it's done there.
+                    boolean emptying = level == LockLevel.write && isBeingEmptied( f );
+
+                    boolean doFileLock = entry == null && !emptying;
+                    boolean coordinated = false;
 
-                    if ( !doFileLock )
+                    if ( !doFileLock && !emptying )
                     {
                         if ( entry.name.equals( name ) )
                         {
-                            if ( entry.lock.lock( label, lockLevel ) )
+                            if ( entry.lock.lock( label, lockLevel, stream ) )
                             {
                                 logger.trace( "Added lock to existing entry: {}", entry.name );
+                                if ( lockLevel != read )
+                                {
+                                    invalidate( name );
+                                }
+
+                                recordWait( name, waitStart, blocking );
+                                PartylineEvents.endLock( event, name, lockLevel, "locked" );
+                                turn.done();
                                 try
                                 {
                                     return operation.execute( opLock );
@@ -415,34 +1233,73 @@ final class FileTree
                         }
                         else if ( name.startsWith( entry.name ) )
                         {
-                            logger.trace( "Re-locking the locking entry: {}.", entry.name );
-                            entry.lock.lock( label, lockLevel );
+                            if ( coordinator.tryAcquire( name, level ) )
+                            {
+                                coordinated = true;
+
+                                logger.trace( "Re-locking the locking entry: {}.", entry.name );
+                                entry.lock.lock( label, level, stream );
+
+                                FileEntry alsoLocked = entry.alsoLocked;
+                                while ( alsoLocked != null )
+                                {
+                                    logger.trace( "ALSO re-locking: {}", alsoLocked.name );
+                                    alsoLocked.lock.lock( label, read, stream );
+                                    alsoLocked = alsoLocked.alsoLocked;
+                                }
+
+                                doFileLock = true;
+                            }
+                            else
+                            {
+                                logger.trace( "{} is locked by another node.", name );
+                                remote = true;
+                            }
+                        }
+                    }
+
+                    /*
+                    If we've been cleared to proceed above, create a new FileEntry instance, lock it, and proceed.
+                     */
+                    if ( doFileLock && read == level && !f.exists() )
+                    {
+                        if ( coordinated )
+                        {
+                            coordinator.release( name );
+                        }
+
+                        if ( missing != null )
+                        {
+                            missing.markMissing( name );
+                        }
 
-                            FileEntry alsoLocked = entry.alsoLocked;
-                            while ( alsoLocked != null )
-                            {
-                                logger.trace( "ALSO re-locking: {}", alsoLocked.name );
-                                alsoLocked.lock.lock( label, read );
-                                alsoLocked = alsoLocked.alsoLocked;
-                            }
+                        PartylineEvents.endLock( event, name, level, "missing" );
+                        throw new IOException( f + " does not exist. Cannot read-lock missing file!" );
+                    }
 
-                            doFileLock = true;
+                    if ( doFileLock && !coordinated )
+                    {
+                        doFileLock = coordinator.tryAcquire( name, level );
+                        if ( !doFileLock )
+                        {
+                            logger.trace( "{} is locked by another node.", name );
+                            remote = true;
                         }
                     }
 
-                    /*
-                    If we've been cleared to proceed above, create a new FileEntry instance, lock it, and proceed.
-                     */
                     if ( doFileLock )
                     {
-                        if ( read == lockLevel && !f.exists() )
+                        entry = new FileEntry( name, label, level, stream, entry );
+                        logger.trace( "No lock on {}; locking as: {} from: {} with also-locked: {}", name, level, label, entry.name );
+                        entryMap.put( name, entry );
+                        if ( level != read )
                         {
-                            throw new IOException( f + " does not exist. Cannot read-lock missing file!" );
+                            invalidate( name );
                         }
 
-                        entry = new FileEntry( name, label, lockLevel, entry );
-                        logger.trace( "No lock on {}; locking as: {} from: {} with also-locked: {}", name, lockLevel, label, entry.name );
-                        entryMap.put( name, entry );
+                        recordWait( name, waitStart, blocking );
+                        PartylineEvents.endLock( event, name, level, "locked" );
+                        turn.done();
                         try
                         {
                             return operation.execute( opLock );
@@ -461,12 +1318,44 @@ final class FileTree
                     else
                     {
                         logger.trace( "Waiting for lock to clear; locking as: {} from: {}", lockLevel, label );
+                        if ( waitStart == 0 )
+                        {
+                            waitStart = System.nanoTime();
+                            blocking = emptying ?
+                                    LockLevel.delete :
+                                    remote || entry == null ? null : entry.lock.getLockLevel();
+                        }
+
+                        if ( graph != null )
+                        {
+                            try
+                            {
+                                waiter = graph.await( waiter, name, lockLevel,
+                                                      emptying || remote || entry == null ? null : entry.lock,
+                                                      opLock );
+                            }
+                            catch ( LockDeadlockException e )
+                            {
+                                recordWait( name, waitStart, blocking );
+                                PartylineEvents.endLock( event, name, lockLevel, "deadlock" );
+                                throw e;
+                            }
+                        }
+
+                        // let other tenants' attempts go ahead while we wait.
+                        turn.done();
                         opLock.await( WAIT_TIMEOUT );
                     }
                 }
             }
             finally
             {
+                turn.done();
+                if ( graph != null )
+                {
+                    graph.done( waiter );
+                }
+
                 // no matter what else happens, do NOT allow a delete lock to remain
                 if ( entry != null && entry.lock.getLockLevel() == LockLevel.delete && entry.lock.isLocked() )
                 {
@@ -475,11 +1364,22 @@ final class FileTree
                 }
             }
 
+            recordWait( name, waitStart, blocking );
+            PartylineEvents.endLock( event, name, lockLevel, "timeout" );
             logger.trace( "{}: {}: Lock failed", System.currentTimeMillis(), name );
             return null;
         } );
     }
 
+    private void recordWait( String name, long waitStart, LockLevel blocking )
+    {
+        ContentionProfiler profiler = contentionProfiler;
+        if ( profiler != null && waitStart != 0 )
+        {
+            profiler.record( name, blocking, System.nanoTime() - waitStart );
+        }
+    }
+
     /**
      * Establish a Stream (input or output) associated with a given file. This method will acquire the appropriate lock
      * for the file (using {@link #tryLock(File, String, LockLevel, long, TimeUnit, LockedFileOperation)}) and
@@ -504,16 +1404,144 @@ final class FileTree
     <T> T setOrJoinFile( File realFile, StreamCallbacks callbacks, boolean doOutput, long timeout,
                                 TimeUnit unit, JoinFileOperation<T> function )
             throws IOException, InterruptedException
+    {
+        WriteAdmission adm = doOutput ? admission : null;
+        if ( adm == null )
+        {
+            return setOrJoinFile( realFile, callbacks, doOutput, null, timeout, unit, function, admission );
+        }
+
+        // wait for a writer's slot before locking, so queued writers don't hold up anyone else.
+        adm.admitWriter( realFile.getPath() );
+        AtomicBoolean admitted = new AtomicBoolean( true );
+        try
+        {
+            return setOrJoinFile( realFile, callbacks, true, null, timeout, unit, ( result ) -> {
+                if ( result != null )
+                {
+                    // the file gives the slot back once it's really closed.
+                    result.setAdmission( adm, admitted.getAndSet( false ) );
+                }
+
+                return function.execute( result );
+            }, adm );
+        }
+        finally
+        {
+            if ( admitted.get() )
+            {
+                adm.releaseWriter();
+            }
+        }
+    }
+
+    /**
+     * Open the given file for writing a copy made by partyline itself (by the {@link WriteMirror} or
+     * {@link StorageTiers}), like {@link #setOrJoinFile(File, StreamCallbacks, boolean, long, TimeUnit,
+     * JoinFileOperation)}. The copy isn't held to the {@link WriteAdmission} limits, so the single workers that make
+     * these copies never wait for a writer's slot or for in-flight bytes.
+     */
+    <T> T writeCopy( File realFile, long timeout, TimeUnit unit, JoinFileOperation<T> function )
+            throws IOException, InterruptedException
+    {
+        return setOrJoinFile( realFile, null, true, null, timeout, unit, function, null );
+    }
+
+    /**
+     * Join the given file for reading, like {@link #setOrJoinFile(File, StreamCallbacks, boolean, long, TimeUnit,
+     * JoinFileOperation)}. But if it doesn't exist and nobody is writing it, open it for writing instead, and pass it to
+     * the produce operation. Deciding this under the file's operation lock means only one of several concurrent callers
+     * produces the file; the others join its write. A producer is a writer like any other, and waits for a writer's
+     * slot if they're limited (see {@link WriteAdmission}).
+     *
+     * @param produce The function that establishes the stream(s) used to produce a missing file
+     * @param join The function that establishes the stream to read an existing file, or join its write
+     */
+    <T> T joinOrProduceFile( File realFile, StreamCallbacks callbacks, long timeout, TimeUnit unit,
+                             JoinFileOperation<T> produce, JoinFileOperation<T> join )
+            throws IOException, InterruptedException
+    {
+        return setOrJoinFile( realFile, callbacks, false, produce, timeout, unit, join, admission );
+    }
+
+    /**
+     * @param adm The admission limits to hold a written file to, or null to exempt it
+     */
+    private <T> T setOrJoinFile( File realFile, StreamCallbacks callbacks, boolean doOutput,
+                                 JoinFileOperation<T> produce, long timeout, TimeUnit unit,
+                                 JoinFileOperation<T> function, WriteAdmission adm )
+            throws IOException, InterruptedException
+    {
+        // a writer's slot for producing the file, taken while the file was unlocked; and whether we need to wait for one
+        AtomicBoolean slot = new AtomicBoolean();
+        AtomicBoolean awaitSlot = new AtomicBoolean();
+        try
+        {
+            return setOrJoinFile( realFile, callbacks, doOutput, produce, timeout, unit, function, adm, slot,
+                                  awaitSlot );
+        }
+        finally
+        {
+            if ( slot.get() )
+            {
+                adm.releaseWriter();
+            }
+        }
+    }
+
+    private <T> T setOrJoinFile( File realFile, StreamCallbacks callbacks, boolean doOutput,
+                                 JoinFileOperation<T> produce, long timeout, TimeUnit unit,
+                                 JoinFileOperation<T> function, WriteAdmission adm, AtomicBoolean slot,
+                                 AtomicBoolean awaitSlot )
+            throws IOException, InterruptedException
     {
         long end = timeout < 1 ? -1 : System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert( timeout, unit );
 
         String label = JoinableFile.labelFor( doOutput, Thread.currentThread().getName() );
-        while ( end < 1 || System.currentTimeMillis() < end )
+        if ( !doOutput )
+        {
+            countRead( realFile );
+        }
+
+        // as in tryLock(), make one attempt however short the timeout
+        boolean attempted = false;
+        while ( !attempted || end < 1 || System.currentTimeMillis() < end )
         {
-            T result = tryLock( realFile, label,
-                                           doOutput ? LockLevel.write : read, timeout, unit, ( opLock ) -> {
+            attempted = true;
+            T result = tryLock( realFile, label, doOutput ? LockLevel.write : read, produce != null, true, timeout,
+                                unit, ( opLock ) -> {
                         FileEntry entry = entryMap.get( realFile.getAbsolutePath() );
                         boolean proceed = false;
+
+                        // produce the file only if we were the ones to lock it for writing because it was missing.
+                        boolean producing = produce != null && entry.file == null && !realFile.exists();
+                        if ( producing && entry.lock.getContextLockLevel() != LockLevel.write )
+                        {
+                            logger.trace( "{} is missing, but locked by another thread. Will wait...", realFile );
+                            undoLock( entry, label );
+
+                            opLock.signal();
+                            opLock.await( WAIT_TIMEOUT );
+                            return null;
+                        }
+
+                        if ( producing && adm != null && !slot.get() )
+                        {
+                            if ( !adm.tryAdmitWriter() )
+                            {
+                                // don't wait for a slot under the operation lock; wait unlocked, then try again.
+                                logger.trace( "{} is missing, but no writer's slot is free. Will wait...", realFile );
+                                undoLock( entry, label );
+                                awaitSlot.set( true );
+
+                                opLock.signal();
+                                return null;
+                            }
+
+                            slot.set( true );
+                        }
+
+                        final boolean output = doOutput || producing;
                         if ( entry.file != null )
                         {
                             if ( doOutput )
@@ -535,73 +1563,387 @@ final class FileTree
                                 logger.trace( "Waiting for file to close at: {}", System.currentTimeMillis() );
                                 opLock.await( WAIT_TIMEOUT );
 
-                                logger.trace( "Proceeding with lock attempt at: {} under opLock: {}", System.currentTimeMillis(), opLock );
-                            }
-                            else
-                            {
-                                logger.trace( "Got joinable file" );
-                                proceed = true;
-                            }
-                        }
-                        else
-                        {
-                            logger.trace( "No pre-existing open file; opening new JoinableFile under opLock: {}", opLock );
-                            entry.file = new JoinableFile( realFile, entry.lock,
-                                                           new FileTreeCallbacks( callbacks, entry,
-                                                                                  realFile, label ),
-                                                           doOutput, opLock );
+                                logger.trace( "Proceeding with lock attempt at: {} under opLock: {}", System.currentTimeMillis(), opLock );
+                            }
+                            else
+                            {
+                                logger.trace( "Got joinable file" );
+                                proceed = true;
+                            }
+                        }
+                        else
+                        {
+                            logger.trace( "No pre-existing open file; opening new JoinableFile under opLock: {}", opLock );
+                            WriteMirror m = mirror;
+                            StreamCallbacks cb = output && m != null ? m.tee( realFile, callbacks ) : callbacks;
+                            StorageTiers t = tiers;
+                            cb = output && t != null ? t.track( realFile, cb ) : cb;
+                            try
+                            {
+                                entry.file = new JoinableFile( realFile, entry.lock,
+                                                               new FileTreeCallbacks( cb, entry, realFile, label ),
+                                                               output, opLock,
+                                                               output ? digestAlgorithms : Collections.emptySet(),
+                                                               channelCache, processLocks,
+                                                               progressFiles );
+                                if ( output )
+                                {
+                                    entry.file.flushInBackground( flushExecutor, maxInFlightBuffers );
+                                    entry.file.setFlushPolicy( flushPolicy, flushScheduler );
+                                    entry.file.setTimeToFirstByte( timeToFirstByte );
+                                    // the file gives a producer's slot back once it's really closed.
+                                    entry.file.setAdmission( adm, producing && slot.getAndSet( false ) );
+                                    entry.file.setTenantScheduler( tenantScheduler );
+                                }
+
+                                entry.file.setRateLimit( getRateLimit( realFile ) );
+                                proceed = true;
+                            }
+                            catch ( ProcessLocks.LockedByProcessException | ChannelCache.BudgetExhaustedException e )
+                            {
+                                logger.trace( "{} Will wait...", e.getMessage() );
+
+                                // undo the lock we just placed on this entry, so we don't hold out other threads while
+                                // another process has the file (or others use up the open-file budget).
+                                undoLock( entry, label );
+
+                                opLock.signal();
+                                opLock.await( WAIT_TIMEOUT );
+                            }
+                        }
+
+                        if ( proceed )
+                        {
+                            return producing ? produce.execute( entry.file ) : function.execute( entry.file );
+                        }
+
+                        return null;
+                    } );
+
+            if ( result != null )
+            {
+                return result;
+            }
+
+            if ( awaitSlot.getAndSet( false ) )
+            {
+                adm.admitWriter( realFile.getPath() );
+                slot.set( true );
+            }
+        }
+
+        logger.trace( "Failed to lock file for {}", doOutput ? "writing" : "reading" );
+        return function.execute( null );
+    }
+
+    /**
+     * Attempt to establish a delete lock on the given file, then delete it. Timeout if the specified period expires
+     * without delete lock acquisition.
+     *
+     * @param file The file to lock
+     * @param timeout The period to wait for a delete lock
+     * @param unit The time unit for the timeout period
+     * @return true if the delete lock was successful and the file was force-deleted; false otherwise
+     * @throws InterruptedException
+     * @throws IOException
+     *
+     * @see #tryLock(File, String, LockLevel, long, TimeUnit, LockedFileOperation)
+     */
+    boolean delete( File file, long timeout, TimeUnit unit )
+            throws InterruptedException, IOException
+    {
+        long end = timeout < 1 ? -1 : System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert( timeout, unit );
+        boolean directory = file.isDirectory();
+
+        boolean deleted = tryLock( file, "Delete File", LockLevel.delete, timeout, unit, ( opLock ) -> {
+            String name = file.getAbsolutePath();
+            FileEntry entry = entryMap.remove( name );
+            //            synchronized ( this )
+            //            {
+            opLock.signal();
+            //            }
+
+            try
+            {
+                // the delete lock means the file isn't open in this JVM, but don't rely on it: opening and closing
+                // another channel to an open file would drop its OS-level lock (see deleteWithProcessLock()).
+                if ( processLocks && file.isFile() && ( entry == null || entry.file == null ) )
+                {
+                    return deleteWithProcessLock( file, end, opLock );
+                }
+
+                if ( file.exists() )
+                {
+                    FileUtils.forceDelete( file );
+                }
+
+                return true;
+            }
+            finally
+            {
+                // hold the coordinated lock until the file is gone
+                if ( entry != null )
+                {
+                    coordinator.release( name );
+                }
+            }
+        } ) == Boolean.TRUE;
+
+        WriteMirror m = mirror;
+        if ( deleted && m != null )
+        {
+            m.deleted( file, directory );
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Delete a file the current owner holds the only lock on, at write level (e.g. after upgrading its read lock to
+     * delete a file it has copied elsewhere), then release that lock. This happens under the file's operation lock,
+     * so nobody can join the lock or open the file in between.
+     *
+     * @param file The file to delete
+     * @param label The label of the current owner's lock
+     * @param timeout The period to wait for other processes to release the file (see {@link #setProcessLocks(boolean)})
+     * @param unit The time unit for the timeout period
+     * @return true if the file was deleted; false, keeping the lock, if the current owner doesn't hold the only lock
+     * at write level, or the file is open
+     */
+    boolean deleteWriteLocked( File file, String label, long timeout, TimeUnit unit )
+            throws IOException, InterruptedException
+    {
+        long end = timeout < 1 ? -1 : System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert( timeout, unit );
+        boolean deleted = withOpLock( file, ( opLock ) -> {
+            FileEntry entry = entryMap.get( file.getAbsolutePath() );
+            if ( entry == null || entry.file != null || entry.lock.getContextLockLevel() != LockLevel.write
+                    || entry.lock.getOwners().size() > 1 )
+            {
+                logger.debug( "{} is not write-locked by {} alone; not deleting", file, getLockReservationName() );
+                return false;
+            }
+
+            boolean result = true;
+            if ( processLocks && file.isFile() )
+            {
+                result = deleteWithProcessLock( file, end, opLock );
+            }
+            else if ( file.exists() )
+            {
+                FileUtils.forceDelete( file );
+            }
+
+            if ( result )
+            {
+                undoLock( entry, label );
+            }
+
+            opLock.signal();
+            return result;
+        } );
+
+        WriteMirror m = mirror;
+        if ( deleted && m != null )
+        {
+            m.deleted( file, false );
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Delete a file while holding an exclusive OS-level lock on it, waiting until the given end time for any other
+     * process to release the file. The lock is taken on a channel opened just for the delete, so this must only be
+     * called for files that aren't open in this JVM: on POSIX systems, closing the channel releases every OS-level
+     * lock the JVM holds on the file, including those held through the channels of open {@link JoinableFile}s.
+     */
+    private boolean deleteWithProcessLock( File file, long end, FileOperationLock opLock )
+            throws IOException, InterruptedException
+    {
+        String path = file.getPath();
+        FileChannel open;
+        try
+        {
+            open = FileChannel.open( file.toPath(), StandardOpenOption.WRITE );
+        }
+        catch ( NoSuchFileException e )
+        {
+            // deleted by another process in the meantime
+            return true;
+        }
+        catch ( IOException e )
+        {
+            logger.debug( "Cannot open: {} to lock it; deleting without a process lock. Reason: {}", path,
+                          e.getMessage() );
+            FileUtils.forceDelete( file );
+            return true;
+        }
+
+        try (FileChannel channel = open)
+        {
+            while ( true )
+            {
+                try
+                {
+                    FileLock fileLock = ProcessLocks.tryLock( channel, false, path );
+                    try
+                    {
+                        FileUtils.forceDelete( file );
+                        return true;
+                    }
+                    finally
+                    {
+                        ProcessLocks.release( fileLock, path );
+                    }
+                }
+                catch ( ProcessLocks.LockedByProcessException e )
+                {
+                    if ( end > 0 && System.currentTimeMillis() >= end )
+                    {
+                        logger.debug( "{} Cannot delete.", e.getMessage() );
+                        return false;
+                    }
+
+                    opLock.await( WAIT_TIMEOUT );
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete a directory tree, deleting subtrees in parallel on the given {@link ForkJoinPool}. Unlike
+     * {@link #delete(File, long, TimeUnit)}, this never holds a lock on the whole tree. Each file is delete-locked
+     * only while it is being deleted, and each directory only once everything below it is gone, so operations on
+     * other files in the tree can continue until their own turn comes.
+     * <br/>
+     * While a directory is being emptied, write locks on files in it (including new files) wait, so nothing can be
+     * created behind the delete. Each directory is released in turn as soon as it's deleted (or left in place), not
+     * when the whole tree is done. Waits for locks are run as {@link ForkJoinPool.ManagedBlocker}s, so the pool can
+     * keep other subtrees going meanwhile.
+     *
+     * @param dir The directory to delete (if this isn't a directory, it's simply deleted)
+     * @param policy How to treat files / directories in the tree that are locked when the delete reaches them
+     * @param timeout The period to wait for each individual delete lock
+     * @param unit The time unit for the timeout period
+     * @param callbacks Optional callbacks to notify of each deleted / skipped file
+     * @param pool The pool used to delete subtrees in parallel
+     * @return true if the whole tree was deleted; false if anything was skipped
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    boolean deleteTree( File dir, DeletePolicy policy, long timeout, TimeUnit unit, DeleteCallbacks callbacks,
+                        ForkJoinPool pool )
+            throws InterruptedException, IOException
+    {
+        DeleteTreeProgress progress = new DeleteTreeProgress( dir, policy, timeout, unit, callbacks );
+        if ( !dir.isDirectory() )
+        {
+            return progress.deleteEntry( dir, false );
+        }
+
+        ForkJoinTask<Boolean> task = pool.submit( new DeleteTreeTask( dir, progress ) );
+        try
+        {
+            return task.get();
+        }
+        catch ( InterruptedException e )
+        {
+            progress.cancelled = true;
+            throw e;
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IOException( "Failed to delete: " + dir, cause );
+        }
+        finally
+        {
+            logger.debug( "Deleted {} files / directories under: {} ({} skipped)", progress.deleted, dir,
+                          progress.skipped );
+        }
+    }
 
-                            proceed = true;
-                        }
+    /**
+     * Return true if the given file is (or would be created) in a directory that {@link #deleteTree(File,
+     * DeletePolicy, long, TimeUnit, DeleteCallbacks, ForkJoinPool)} is currently emptying. A file that doesn't exist
+     * yet is checked against its nearest existing ancestor, since creating it would create its missing parents there.
+     */
+    private boolean isBeingEmptied( File file )
+    {
+        if ( emptyingDirectories.isEmpty() )
+        {
+            return false;
+        }
 
-                        if ( proceed )
-                        {
-                            return function.execute( entry.file );
-                        }
+        if ( emptyingDirectories.containsKey( file.getAbsolutePath() ) )
+        {
+            return true;
+        }
 
-                        return null;
-                    } );
+        File dir = file.getAbsoluteFile().getParentFile();
+        while ( dir != null )
+        {
+            if ( emptyingDirectories.containsKey( dir.getPath() ) )
+            {
+                return true;
+            }
 
-            if ( result != null )
+            if ( dir.exists() )
             {
-                return result;
+                return false;
             }
+
+            dir = dir.getParentFile();
         }
 
-        logger.trace( "Failed to lock file for {}", doOutput ? "writing" : "reading" );
-        return function.execute( null );
+        return false;
     }
 
     /**
-     * Attempt to establish a delete lock on the given file, then delete it. Timeout if the specified period expires
-     * without delete lock acquisition.
-     *
-     * @param file The file to lock
-     * @param timeout The period to wait for a delete lock
-     * @param unit The time unit for the timeout period
-     * @return true if the delete lock was successful and the file was force-deleted; false otherwise
-     * @throws InterruptedException
-     * @throws IOException
+     * Attempt to establish a delete lock on the given directory, then delete it if it's empty.
      *
-     * @see #tryLock(File, String, LockLevel, long, TimeUnit, LockedFileOperation)
+     * @return true if the directory was deleted; false if it couldn't be locked or isn't empty
      */
-    boolean delete( File file, long timeout, TimeUnit unit )
+    private boolean deleteEmptyDirectory( File dir, long timeout, TimeUnit unit )
             throws InterruptedException, IOException
     {
-        return tryLock( file, "Delete File", LockLevel.delete, timeout, unit, ( opLock ) -> {
-            FileEntry entry = entryMap.remove( file.getAbsolutePath() );
-            //            synchronized ( this )
-            //            {
+        boolean deleted = tryLock( dir, "Delete Directory", LockLevel.delete, timeout, unit, ( opLock ) -> {
+            String name = dir.getAbsolutePath();
+            FileEntry entry = entryMap.remove( name );
             opLock.signal();
-            //            }
 
-            if ( file.exists() )
+            try
             {
-                FileUtils.forceDelete( file );
+                Files.deleteIfExists( dir.toPath() );
+            }
+            catch ( DirectoryNotEmptyException e )
+            {
+                logger.debug( "Directory: {} is not empty; new content must have been added.", dir );
+                return false;
+            }
+            finally
+            {
+                if ( entry != null )
+                {
+                    coordinator.release( name );
+                }
             }
 
             return true;
         } ) == Boolean.TRUE;
+
+        WriteMirror m = mirror;
+        if ( deleted && m != null )
+        {
+            m.deleted( dir, false );
+        }
+
+        return deleted;
     }
 
     /**
@@ -617,56 +1959,33 @@ final class FileTree
      * @param file The file whose context directories / files should be checked for locks
      * @return The nearest {@link FileEntry}, corresponding to a locked file. Parent directories returned before children.
      */
-    private synchronized FileEntry getLockingEntry( File file )
+    private FileEntry getLockingEntry( File file )
     {
-        FileEntry entry;
-
-        // search self and ancestors...
-        File f = file;
-        do
+        FileEntry entry = entryMap.findLockingEntry( file );
+        if ( entry != null )
         {
-            entry = entryMap.get( f.getAbsolutePath() );
-            if ( entry != null )
-            {
-                logger.trace( "Locked by: {}", entry.lock.getLockInfo() );
-                return entry;
-            }
-            else
-            {
-                logger.trace( "No lock found for: {}", f );
-            }
-
-            f = f.getParentFile();
+            logger.trace( "{} locked by: {}", file, entry.lock.getLockInfo() );
         }
-        while ( f != null );
-
-        // search for children...
-        if ( file.isDirectory() )
+        else
         {
-            String fp = file.getAbsolutePath();
-            Optional<String> result =
-                    entryMap.keySet().stream().filter( ( path ) -> path.startsWith( fp ) ).findFirst();
-            if ( result.isPresent() )
-            {
-                logger.trace( "Child: {} is locked; returning child as locking entry", result.get() );
-                return entryMap.get( result.get() );
-            }
+            logger.trace( "No lock found for: {}", file );
         }
 
-        return null;
+        return entry;
     }
 
     /**
      * Use a {@link java.util.concurrent.locks.ReentrantLock} keyed to the absolute path of the specified file to ensure
      * only one operation at a time manipulates the accounting information associated with the file ({@link FileEntry}).
      *
-     * This method synchronizes on the operationLocks map in order to retrieve / create the ReentrantLock lazily. Once
-     * created, this ReentrantLock also gets propagated into the {@link JoinableFile} instance created for the file.
+     * This method relies on the atomic computeIfAbsent() of the (concurrent) operationLocks map in order to retrieve /
+     * create the ReentrantLock lazily. Once created, this ReentrantLock also gets propagated into the
+     * {@link JoinableFile} instance created for the file.
      *
      * Using ReentrantLock per path avoids the need to hold a lock on the whole tree every time we need to initialize
-     * the {@link FileEntry} for a new file. Instead, we take a short lock on operationLocks to get the ReentrantLock,
-     * then use the ReentrantLock for the longer operations required to initialize a file, open a stream, delete a file,
-     * close a file, etc.
+     * the {@link FileEntry} for a new file. Instead, we look up the ReentrantLock in operationLocks, then use the
+     * ReentrantLock for the longer operations required to initialize a file, open a stream, delete a file, close a
+     * file, etc.
      *
      * @param f The file that is the subject of the operation we want to execute
      * @param op The operation to execute, once we've locked the ReentrantLock associated with the file
@@ -683,19 +2002,15 @@ final class FileTree
 
         try
         {
-            synchronized ( operationLocks )
+            opLock = operationLocks.computeIfAbsent( path, k ->
             {
-                opLock = operationLocks.computeIfAbsent( path, k ->
-                {
-                    FileOperationLock lock = new FileOperationLock();
+                FileOperationLock lock = new FileOperationLock();
 
-                    logger.trace( "Initializing new FileOperationLock: {} for path: {}", lock, path );
-                    return lock;
-                } );
-
-                logger.trace( "Using FileOperationLock: {} for path: {}", opLock, path );
+                logger.trace( "Initializing new FileOperationLock: {} for path: {}", lock, path );
+                return lock;
+            } );
 
-            }
+            logger.trace( "Using FileOperationLock: {} for path: {}", opLock, path );
 
             if ( !opLock.lock() )
             {
@@ -745,11 +2060,286 @@ final class FileTree
 
         private JoinableFile file;
 
-        FileEntry( String name, String lockingLabel, LockLevel lockLevel, final FileEntry alsoLocked )
+        FileEntry( String name, String lockingLabel, LockLevel lockLevel, boolean stream, final FileEntry alsoLocked )
         {
             this.name = name;
             this.alsoLocked = alsoLocked;
-            this.lock = new LockOwner( name, lockingLabel, lockLevel );
+            this.lock = new LockOwner( name, lockingLabel, lockLevel, stream );
+        }
+    }
+
+    /**
+     * State shared by all the {@link DeleteTreeTask}s of a single {@link #deleteTree(File, DeletePolicy, long,
+     * TimeUnit, DeleteCallbacks, ForkJoinPool)} call.
+     */
+    private final class DeleteTreeProgress
+    {
+        private final File root;
+
+        private final DeletePolicy policy;
+
+        private final long timeout;
+
+        private final TimeUnit unit;
+
+        private final DeleteCallbacks callbacks;
+
+        private final AtomicLong deleted = new AtomicLong();
+
+        private final AtomicLong skipped = new AtomicLong();
+
+        private volatile boolean cancelled;
+
+        DeleteTreeProgress( File root, DeletePolicy policy, long timeout, TimeUnit unit, DeleteCallbacks callbacks )
+        {
+            this.root = root;
+            this.policy = policy;
+            this.timeout = timeout;
+            this.unit = unit;
+            this.callbacks = callbacks;
+        }
+
+        /**
+         * Return true if the given file / directory should be left in place because it's locked.
+         */
+        boolean skipLocked( File file )
+        {
+            return policy == DeletePolicy.skip && entryMap.containsKey( file.getAbsolutePath() );
+        }
+
+        /**
+         * Delete a single file, or an (emptied) directory, under its own delete lock. If the file is locked, the wait
+         * for the delete lock is managed by the pool (see {@link DeleteBlocker}).
+         */
+        boolean deleteEntry( File file, boolean directory )
+        {
+            boolean result = false;
+            if ( !cancelled && !skipLocked( file ) )
+            {
+                try
+                {
+                    DeleteBlocker blocker = new DeleteBlocker( file, directory, this );
+                    ForkJoinPool.managedBlock( blocker );
+                    result = blocker.getResult();
+                }
+                catch ( IOException e )
+                {
+                    logger.warn( "Failed to delete: " + file, e );
+                }
+                catch ( InterruptedException e )
+                {
+                    logger.warn( "Interrupted while deleting: {}", file );
+                    cancelled = true;
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if ( result )
+            {
+                deleted( file );
+            }
+            else
+            {
+                skipped( file );
+            }
+
+            return result;
+        }
+
+        void deleted( File file )
+        {
+            long count = deleted.incrementAndGet();
+            if ( count % DELETE_PROGRESS_INTERVAL == 0 )
+            {
+                logger.info( "Deleted {} files / directories under: {} ({} skipped so far)", count, root, skipped );
+            }
+
+            if ( callbacks != null )
+            {
+                callbacks.deleted( file );
+            }
+        }
+
+        void skipped( File file )
+        {
+            skipped.incrementAndGet();
+            if ( callbacks != null )
+            {
+                callbacks.skipped( file );
+            }
+        }
+    }
+
+    /**
+     * Deletes one file or (emptied) directory for {@link DeleteTreeProgress#deleteEntry(File, boolean)}. If nothing
+     * holds a lock on the file, it's deleted right away in {@link #isReleasable()}. Otherwise the delete (and its wait
+     * for the lock) happens in {@link #block()}, after the {@link ForkJoinPool} has had the chance to activate a spare
+     * thread, so a tree full of locked files doesn't stall the deletes of the rest of it.
+     */
+    private final class DeleteBlocker
+            implements ForkJoinPool.ManagedBlocker
+    {
+        private final File file;
+
+        private final boolean directory;
+
+        private final DeleteTreeProgress progress;
+
+        private boolean done;
+
+        private boolean result;
+
+        private IOException error;
+
+        DeleteBlocker( File file, boolean directory, DeleteTreeProgress progress )
+        {
+            this.file = file;
+            this.directory = directory;
+            this.progress = progress;
+        }
+
+        @Override
+        public boolean isReleasable()
+        {
+            if ( !done && getLockingEntry( file ) == null )
+            {
+                try
+                {
+                    delete();
+                }
+                catch ( InterruptedException e )
+                {
+                    // picked up again by block(), which can throw it.
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            return done;
+        }
+
+        @Override
+        public boolean block()
+                throws InterruptedException
+        {
+            if ( !done )
+            {
+                delete();
+            }
+
+            return true;
+        }
+
+        private void delete()
+                throws InterruptedException
+        {
+            try
+            {
+                result = directory ?
+                        deleteEmptyDirectory( file, progress.timeout, progress.unit ) :
+                        FileTree.this.delete( file, progress.timeout, progress.unit );
+            }
+            catch ( IOException e )
+            {
+                error = e;
+            }
+
+            done = true;
+        }
+
+        boolean getResult()
+                throws IOException
+        {
+            if ( error != null )
+            {
+                throw error;
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Deletes the files in one directory, while forking sub-tasks for its subdirectories. Once all of those are
+     * finished, the directory itself is deleted, unless anything below it was left in place.
+     */
+    private final class DeleteTreeTask
+            extends RecursiveTask<Boolean>
+    {
+        private final File dir;
+
+        private final DeleteTreeProgress progress;
+
+        DeleteTreeTask( File dir, DeleteTreeProgress progress )
+        {
+            this.dir = dir;
+            this.progress = progress;
+        }
+
+        @Override
+        protected Boolean compute()
+        {
+            if ( progress.cancelled || progress.skipLocked( dir ) )
+            {
+                progress.skipped( dir );
+                return false;
+            }
+
+            String path = dir.getAbsolutePath();
+            emptyingDirectories.merge( path, 1, Integer::sum );
+            try
+            {
+                return deleteContentAndDirectory();
+            }
+            finally
+            {
+                emptyingDirectories.computeIfPresent( path, ( k, count ) -> count > 1 ? count - 1 : null );
+            }
+        }
+
+        private boolean deleteContentAndDirectory()
+        {
+            File[] children = dir.listFiles();
+            if ( children == null )
+            {
+                // gone, or not readable. Let the directory delete sort it out.
+                children = new File[0];
+            }
+
+            List<DeleteTreeTask> subtasks = new ArrayList<>();
+            List<File> files = new ArrayList<>();
+            for ( File child : children )
+            {
+                if ( child.isDirectory() && !Files.isSymbolicLink( child.toPath() ) )
+                {
+                    DeleteTreeTask task = new DeleteTreeTask( child, progress );
+                    task.fork();
+                    subtasks.add( task );
+                }
+                else
+                {
+                    files.add( child );
+                }
+            }
+
+            boolean complete = true;
+            for ( File file : files )
+            {
+                complete = progress.deleteEntry( file, false ) && complete;
+            }
+
+            for ( DeleteTreeTask task : subtasks )
+            {
+                complete = task.join() && complete;
+            }
+
+            if ( !complete )
+            {
+                progress.skipped( dir );
+                return false;
+            }
+
+            return progress.deleteEntry( dir, true );
         }
     }
 
@@ -758,7 +2348,7 @@ final class FileTree
      * and which takes care of clearing all locks on a file when the {@link JoinableFile} is finally closed.
      */
     private final class FileTreeCallbacks
-            implements StreamCallbacks
+            implements ContentStreamCallbacks
     {
         private StreamCallbacks callbacks;
 
@@ -785,6 +2375,15 @@ final class FileTree
             }
         }
 
+        @Override
+        public void flushed( final long offset, final ByteBuffer content )
+        {
+            if ( callbacks instanceof ContentStreamCallbacks )
+            {
+                ( (ContentStreamCallbacks) callbacks ).flushed( offset, content );
+            }
+        }
+
         @Override
         public void beforeClose()
         {
@@ -805,10 +2404,29 @@ final class FileTree
             logger.trace( "unlocking: {}", file );
 
             // already inside lock from JoinableFile.reallyClose().
+            Map<String, String> digests = entry.file == null ? null : entry.file.getDigests();
+            if ( digests != null )
+            {
+                digestCache.put( file.getAbsolutePath(), digests );
+
+                DigestCallbacks dc = digestCallbacks;
+                if ( dc != null )
+                {
+                    try
+                    {
+                        dc.digested( file, digests );
+                    }
+                    catch ( RuntimeException e )
+                    {
+                        logger.error( "Digest callback failed for: " + file, e );
+                    }
+                }
+            }
+
             entry.file = null;
 
-            // the whole JoinableFile is closing. Clear remaining locks.
-            clearLocks( file, label );
+            // the whole JoinableFile is closing. Clear remaining locks of its streams.
+            releaseStreamLocks( file, label );
         }
     }
 
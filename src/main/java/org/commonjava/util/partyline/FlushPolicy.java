@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+/**
+ * Controls when content written to a {@link JoinableFile} is flushed to disk, and so becomes visible to joined
+ * readers. By default, content is only flushed when the 1mb write buffer is full (or the writer flushes / closes),
+ * which can keep readers of a slowly-written file waiting a long time for their first byte.
+ * <br/>
+ * Delayed flushes and flushes on behalf of waiting readers run on a single scheduler thread shared by all files.
+ *
+ * @see JoinableFileManager#setFlushPolicy(FlushPolicy)
+ */
+public final class FlushPolicy
+{
+    private final int maxBytes;
+
+    private final long maxDelay;
+
+    private final boolean flushWhenReadersWait;
+
+    /**
+     * @param maxBytes Flush once this many bytes are buffered (at most 1mb; 0 or less means 1mb)
+     * @param maxDelay in milliseconds, flush once the oldest buffered byte has waited this long (0 or less to
+     *                 disable)
+     * @param flushWhenReadersWait Flush right away when a joined reader has caught up with the flushed content and
+     *                             has to wait for more
+     */
+    public FlushPolicy( final int maxBytes, final long maxDelay, final boolean flushWhenReadersWait )
+    {
+        this.maxBytes = maxBytes;
+        this.maxDelay = maxDelay;
+        this.flushWhenReadersWait = flushWhenReadersWait;
+    }
+
+    public int getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public long getMaxDelay()
+    {
+        return maxDelay;
+    }
+
+    public boolean isFlushWhenReadersWait()
+    {
+        return flushWhenReadersWait;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FlushPolicy{maxBytes=" + maxBytes + ", maxDelay=" + maxDelay + ", flushWhenReadersWait="
+                + flushWhenReadersWait + '}';
+    }
+}
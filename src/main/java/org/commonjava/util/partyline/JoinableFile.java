@@ -15,6 +15,8 @@
  */
 package org.commonjava.util.partyline;
 
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.partyline.callback.ContentStreamCallbacks;
 import org.commonjava.util.partyline.callback.StreamCallbacks;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +25,7 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
@@ -30,11 +33,28 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
-import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Manages concurrent read/write access to a file, via {@link RandomAccessFile}, {@link FileChannel}, and careful
@@ -54,18 +74,34 @@ import java.util.concurrent.atomic.AtomicLong;
  * <b>NOTE 2:</b> If the file is a directory, this {@link JoinableFile} is instantiated as a dummy that doesn't allow
  * anything to read / write.
  * <br/>
- * <b>NOTE 3:</b> This implementation uses NIO {@link FileLock} to try to lock the underlying filesystem.
+ * <b>NOTE 3:</b> If process locks are enabled, this implementation uses NIO {@link FileLock} to lock the underlying
+ * filesystem (shared for reading, exclusive for writing) while it's open. See {@link ProcessLocks}.
  *
  * @author jdcasey
  */
 public final class JoinableFile
         implements AutoCloseable, Closeable
 {
-    private static final int CHUNK_SIZE = 1024 * 1024; // 1mb
+    static final int CHUNK_SIZE = 1024 * 1024; // 1mb
+
+    // single-byte reads / writes are charged to bandwidth limits in batches of this many bytes
+    private static final int THROTTLE_BATCH = 64 * 1024;
+
+    // how long a scheduled flush waits before trying again, when the writer holds the buffer (ms)
+    private static final long BUSY_BUFFER_RETRY = 10;
+
+    // set while a thread flushes on behalf of a writer (see isSharedFlushThread())
+    private static final ThreadLocal<Boolean> SHARED_FLUSH_THREAD = new ThreadLocal<>();
 
     private final FileChannel channel;
 
-//    private final FileLock fileLock;
+    private FileLock fileLock;
+
+    // the channel preallocate() wrote through, kept open while this file holds a process lock (see preallocate())
+    private volatile FileChannel preallocChannel;
+
+    // writer: publishes progress to other processes; reader: follows the progress of a writer in another process.
+    private ProgressFile progress;
 
     private final JoinableOutputStream output;
 
@@ -73,6 +109,12 @@ public final class JoinableFile
 
     private AtomicLong flushed = new AtomicLong( 0 );
 
+    // guards waiting for the flushed count to move (or the file to close) in JoinInputStream.read(). This is a
+    // ReentrantLock rather than a monitor so waiting readers don't pin carrier threads when run on virtual threads.
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final Condition flushChanged = flushLock.newCondition();
+
     private final String path;
 
     private final RandomAccessFile randomAccessFile;
@@ -87,6 +129,34 @@ public final class JoinableFile
 
     private final FileOperationLock opLock;
 
+    private final Map<String, MessageDigest> digesters = new LinkedHashMap<>();
+
+    private volatile Map<String, String> digests;
+
+    private final ChannelCache channelCache;
+
+    private long expectedLength = -1;
+
+    // set when the write is abandoned; joined readers throw it instead of reaching a (truncated) EOF.
+    private volatile IOException writeFailure;
+
+    private volatile TimeToFirstByte timeToFirstByte;
+
+    private volatile WriteAdmission admission;
+
+    // whether this file holds one of the admission's writer slots, until it's really closed.
+    private final AtomicBoolean admittedWriter = new AtomicBoolean();
+
+    // bytes admitted into the write buffer(s) and not yet flushed.
+    private final AtomicLong admittedBytes = new AtomicLong();
+
+    private volatile TenantScheduler tenantScheduler;
+
+    // shared by all streams under a path; see setRateLimit()
+    private volatile RateLimit pathLimit;
+
+    private volatile RateLimit outputLimit;
+
     /**
      * Create any parent directories if necessary, then open the {@link RandomAccessFile} that will receive content on this stream. From that, init
      * the {@link FileChannel} that will be used to write content and map sections of the written file for reading in associated {@link JoinInputStream}
@@ -115,49 +185,178 @@ public final class JoinableFile
      */
     JoinableFile( final File target, final LockOwner owner, final StreamCallbacks callbacks, boolean doOutput, FileOperationLock opLock )
             throws IOException
+    {
+        this( target, owner, callbacks, doOutput, opLock, Collections.emptySet(), null, false, false );
+    }
+
+    /**
+     * Same as {@link #JoinableFile(File, LockOwner, StreamCallbacks, boolean, FileOperationLock)}, but if writable, also
+     * compute the given {@link MessageDigest} algorithms over the content as it is flushed to the channel. The final
+     * digests are available from {@link #getDigests()} once this file is really closed.
+     * <br/>
+     * If read-only and a {@link ChannelCache} is given, lease the channel from the cache instead of opening a new
+     * {@link RandomAccessFile}, and return it to the cache (rather than closing it) when this file is really closed. If
+     * writable, reserve the descriptor in the cache's open-file budget until then. Either fails with
+     * {@link ChannelCache.BudgetExhaustedException} if the budget is used up.
+     * <br/>
+     * If processLocks is true, also hold an OS-level {@link FileLock} on the file until it's really closed. If another
+     * process holds a conflicting lock, fail with {@link ProcessLocks.LockedByProcessException}.
+     * <br/>
+     * If progressFiles is true and writable, publish the flushed count in a {@link ProgressFile} for readers in other
+     * processes. If read-only and another process is writing the file, follow the progress it publishes instead,
+     * the same way readers join a write in this process.
+     */
+    JoinableFile( final File target, final LockOwner owner, final StreamCallbacks callbacks, boolean doOutput,
+                  FileOperationLock opLock, Collection<String> digestAlgorithms, ChannelCache channelCache,
+                  boolean processLocks, boolean progressFiles )
+            throws IOException
     {
         this.owner = owner;
         this.path = target.getPath();
         this.callbacks = callbacks;
         this.opLock = opLock;
+        this.channelCache = channelCache;
 
         target.getParentFile().mkdirs();
 
         Logger logger = LoggerFactory.getLogger( getClass() );
         logger.trace( "Trying to initialize JoinableFile to: {} using operation lock:\n\n{}", target, opLock );
-        try
+        if ( target.isDirectory() )
+        {
+            logger.trace( "INIT: locking directory WITHOUT lock in underlying filesystem!" );
+            output = null;
+            randomAccessFile = null;
+            channel = null;
+            joinable = false;
+        }
+        else if ( doOutput )
         {
-            if ( target.isDirectory() )
+            logger.trace( "INIT: read-write JoinableFile: {}", target );
+            for ( String algorithm : digestAlgorithms )
             {
-                logger.trace( "INIT: locking directory WITHOUT lock in underlying filesystem!" );
-                output = null;
-                randomAccessFile = null;
-                channel = null;
-//                fileLock = null;
-                joinable = false;
+                try
+                {
+                    digesters.put( algorithm, MessageDigest.getInstance( algorithm ) );
+                }
+                catch ( NoSuchAlgorithmException e )
+                {
+                    throw new IOException( "Cannot digest: " + target + ". Reason: " + e.getMessage(), e );
+                }
+            }
+
+            output = new JoinableOutputStream();
+            if ( channelCache != null )
+            {
+                channelCache.reserve( path );
             }
-            else if ( doOutput )
+
+            try
             {
-                logger.trace( "INIT: read-write JoinableFile: {}", target );
-                output = new JoinableOutputStream();
                 randomAccessFile = new RandomAccessFile( target, "rws" );
-                channel = randomAccessFile.getChannel();
-//                fileLock = channel.lock( 0L, Long.MAX_VALUE, false );
+            }
+            catch ( IOException e )
+            {
+                if ( channelCache != null )
+                {
+                    channelCache.unreserve();
+                }
+                throw e;
+            }
+
+            channel = randomAccessFile.getChannel();
+            try
+            {
+                if ( processLocks )
+                {
+                    fileLock = ProcessLocks.tryLock( channel, false, path );
+                }
+
+                if ( progressFiles )
+                {
+                    progress = ProgressFile.create( target );
+                }
+            }
+            catch ( IOException e )
+            {
+                ProcessLocks.release( fileLock, path );
+                randomAccessFile.close();
+                if ( channelCache != null )
+                {
+                    channelCache.unreserve();
+                }
+                throw e;
+            }
+        }
+        else
+        {
+            logger.trace( "INIT: read-only JoinableFile: {}", target );
+            output = null;
+            if ( channelCache != null )
+            {
+                logger.trace( "INIT: using cached channel" );
+                randomAccessFile = null;
+                channel = channelCache.acquire( target );
             }
             else
             {
-                logger.trace( "INIT: read-only JoinableFile: {}", target );
-                output = null;
-                logger.trace( "INIT: set flushed length to: {}", target.length() );
-                flushed.set( target.length() );
                 randomAccessFile = new RandomAccessFile( target, "r" );
                 channel = randomAccessFile.getChannel();
-//                fileLock = channel.lock( 0L, Long.MAX_VALUE, true );
+            }
+
+            try
+            {
+                if ( progressFiles )
+                {
+                    progress = ProgressFile.openIfWriting( target );
+                }
+
+                long length;
+                if ( progress != null )
+                {
+                    // the file is being written by another process, which holds its lock; follow its progress.
+                    length = progress.getFlushed();
+                    logger.trace( "INIT: following write in another process via: {}", progress );
+                }
+                else
+                {
+                    length = channel.size();
+                    if ( processLocks )
+                    {
+                        fileLock = ProcessLocks.tryLock( channel, true, path );
+                    }
+                }
+
+                logger.trace( "INIT: set flushed length to: {}", length );
+                flushed.set( length );
+            }
+            catch ( IOException e )
+            {
+                closeProgress();
+                if ( randomAccessFile == null )
+                {
+                    channelCache.release( channel );
+                }
+                else
+                {
+                    randomAccessFile.close();
+                }
+                throw e;
             }
         }
-        catch ( OverlappingFileLockException e )
+    }
+
+    private void closeProgress()
+    {
+        if ( progress != null )
         {
-            throw new IOException( "Cannot lock file: " + target + ". Reason: " + e.getMessage() + "\nLocked by: " + owner.getLockInfo(), e );
+            try
+            {
+                progress.close();
+            }
+            catch ( IOException e )
+            {
+                LoggerFactory.getLogger( getClass() ).debug( "Failed to close: " + progress, e );
+            }
         }
     }
 
@@ -166,411 +365,1506 @@ public final class JoinableFile
         return owner;
     }
 
-    // only public for testing purposes...
-    public OutputStream getOutputStream()
+    /**
+     * Abandon the write in progress: readers that have joined it fail with an {@link IOException} (once they've read
+     * what was flushed) instead of seeing a truncated EOF, and the incomplete file is deleted when this file is really
+     * closed.
+     */
+    void abort( Throwable cause )
+            throws IOException
     {
-        return output;
-    }
+        if ( output == null )
+        {
+            return;
+        }
 
-    boolean isJoinable()
-    {
-        return joinable;
+        writeFailure = new IOException( "Write of: " + path + " failed: " + cause.getMessage() + ". Content is incomplete!",
+                                        cause );
+
+        // the buffered content is of no use now; don't let close() flush it.
+        output.closed = true;
+        if ( output.flusher != null )
+        {
+            try
+            {
+                output.flusher.awaitDrained();
+            }
+            catch ( IOException e )
+            {
+                LoggerFactory.getLogger( getClass() ).debug( "Background flush of abandoned: " + path + " failed", e );
+            }
+        }
+
+        signalReaders();
+        close();
     }
 
-    boolean isDirectory()
+    // only public for testing purposes...
+    public OutputStream getOutputStream()
     {
-        return channel == null;
+        return output;
     }
 
     /**
-     * Return an {@link InputStream} instance that reads from the same {@link RandomAccessFile} that backs this output stream, and is tuned to listen
-     * for notification that this stream is closed before signaling that it is out of content. The returned stream is of type {@link JoinInputStream}.
+     * Note the expected length of the content (from a Content-Length header, for example). When this file is really
+     * closed, it's trimmed to the length actually written (as always), and a mismatch with the expected length is
+     * reported.
      */
-    InputStream joinStream()
-            throws IOException, InterruptedException
+    void expectLength( long expectedLength )
     {
-        return lockAnd( (lock)->{
-            if ( !joinable )
-            {
-                // if the channel is null, this is a directory lock.
-                throw new IOException( "JoinableFile is not accepting join() operations. (" +
-                                               ( channel == null ?
-                                                       "It's a locked directory" :
-                                                       "It's in the process of closing." ) + ")" );
-            }
-
-            JoinInputStream result = new JoinInputStream( inputs.size() );
-            inputs.put( result.hashCode(), result );
-
-            Logger logger = LoggerFactory.getLogger( getClass() );
-            logger.debug( "JOIN: {} (new joint count: {})", Thread.currentThread().getName(), inputs.size() );
-
-            return result;
-        });
+        if ( output != null && expectedLength > 0 )
+        {
+            this.expectedLength = expectedLength;
+        }
     }
 
     /**
-     * Lock the {@link java.util.concurrent.locks.ReentrantLock} instance embedded in this {@link JoinableFile}, then
-     * execute the given operation. This prevents more than one thread from executing operations against state associated
-     * with the file this {@link JoinableFile} manages.
-     *
-     * @param op The operation to execute, once the operation lock is acquired
-     * @param <T> The result type of the given operation
-     * @return The result of operation execution
-     * @throws IOException
-     * @throws InterruptedException
-     *
-     * @see FileTree#withOpLock(File, LockedFileOperation) for associated logic
+     * Allocate space for the expected length (see {@link #expectLength(long)}) up front, so the filesystem can lay the
+     * file out in one go instead of growing it a buffer at a time. Java has no portable way to reserve space without
+     * writing it (extending the file with {@link RandomAccessFile#setLength(long)} only makes it sparse), so this
+     * writes zero-filled blocks from the current end of the file to the expected length. That doubles the I/O for the
+     * allocated range, so it's only worth it where fragmentation costs more. If the space can't be written, writing
+     * proceeds without preallocation.
+     * <br/>
+     * The zeros go through a channel of their own rather than the synchronous one content is written through, and are
+     * forced to the device once at the end. Call this outside the file's operation lock (before the output stream is
+     * handed to the writer), so joiners aren't held up by the fill. Readers joining this file are bounded by the
+     * flushed byte count, so they never see the preallocated space.
      */
-    private <T> T lockAnd(LockedFileOperation<T> op)
-            throws IOException, InterruptedException
+    void preallocate()
     {
-        boolean locked = false;
+        if ( output == null || expectedLength < 1 )
+        {
+            return;
+        }
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        FileChannel zeroChannel = null;
         try
         {
-            locked = opLock.lock();
-            return op.execute( opLock );
+            long pos = randomAccessFile.length();
+            if ( pos < expectedLength )
+            {
+                logger.trace( "Preallocating {} bytes for: {}", expectedLength - pos, path );
+                zeroChannel = FileChannel.open( Paths.get( path ), StandardOpenOption.WRITE );
+                ByteBuffer zeros = ByteBuffer.allocate( (int) Math.min( CHUNK_SIZE, expectedLength - pos ) );
+                while ( pos < expectedLength )
+                {
+                    zeros.clear();
+                    zeros.limit( (int) Math.min( zeros.capacity(), expectedLength - pos ) );
+                    pos += zeroChannel.write( zeros, pos );
+                }
+
+                zeroChannel.force( true );
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Cannot preallocate {} bytes for: {}; writing without preallocation. Reason: {}",
+                         expectedLength, path, e.getMessage() );
         }
         finally
         {
-            if ( locked )
+            // on some systems, closing any channel to the file releases this process' lock on it, so while we hold
+            // one, the channel stays open until the file is closed.
+            if ( zeroChannel != null && fileLock != null && zeroChannel.isOpen() )
             {
-                opLock.unlock();
+                preallocChannel = zeroChannel;
+            }
+            else
+            {
+                IOUtils.closeQuietly( zeroChannel );
             }
         }
     }
 
     /**
-     * Write locks happen when either a directory is locked, or the file was locked with doOutput == true.
+     * Return true if the calling thread is flushing content on a thread shared with the writes of other files (a
+     * background flush, or a flush triggered by a {@link FlushPolicy}) rather than in the writing thread.
+     * {@link StreamCallbacks} must not block on such a thread, since that would hold up the flushes of other files.
      */
-    boolean isWriteLocked()
+    static boolean isSharedFlushThread()
     {
-        // if the channel is null, this is a directory lock.
-        return channel == null || output != null;
+        return SHARED_FLUSH_THREAD.get() == Boolean.TRUE;
     }
 
     /**
-     * Mark this stream as closed. Don't close the underlying channel if
-     * there are still open input streams...allow their close methods to trigger that if the ref count drops 
-     * to 0.
+     * Write full buffers to the channel on the given executor, while the caller fills the next buffer, instead of
+     * stopping the writing thread for each flush. At most maxInFlight buffers may be waiting to be written; beyond
+     * that, the writer waits. If writing a buffer fails, the error is thrown from the next write / flush / close.
+     * <br/>
+     * Buffers are written in order, one at a time. Flushed-byte counts, digests, progress files, reader notifications
+     * and {@link StreamCallbacks#flushed()} are all updated on the executor thread as each buffer is written.
      */
-    @Override
-    public void close()
-            throws IOException
+    void flushInBackground( Executor executor, int maxInFlight )
     {
-        try
+        if ( output != null && executor != null && maxInFlight > 0 )
         {
-            lockAnd( (lock)->{
-                Logger logger = LoggerFactory.getLogger( getClass() );
-                if ( closed )
-                {
-                    logger.trace( "close() called, but is already closed." );
-                    return null;
-                }
-                logger.trace( "close() called, marking as closed." );
-
-                closed = true;
+            output.flusher = new BackgroundFlusher( executor, maxInFlight );
+        }
+    }
 
-                if ( output != null && !output.isClosed() )
-                {
-                    logger.trace( "Closing output" );
-                    output.close();
-                }
+    /**
+     * Flush written content according to the given {@link FlushPolicy}, using the given scheduler for delayed flushes
+     * and flushes on behalf of waiting readers, instead of only when the buffer is full.
+     */
+    void setFlushPolicy( FlushPolicy policy, ScheduledExecutorService scheduler )
+    {
+        if ( output != null && policy != null && scheduler != null )
+        {
+            output.scheduler = scheduler;
+            output.flushAt = policy.getMaxBytes() > 0 ? Math.min( policy.getMaxBytes(), CHUNK_SIZE ) : CHUNK_SIZE;
+            output.policy = policy;
+        }
+    }
 
-                logger.trace( "joint count is: {}.", inputs.size() );
-                if ( channel == null || inputs.isEmpty() )
-                {
-                    logger.trace( "Joints closed, and output is closed...really closing." );
-                    reallyClose();
-                    owner.clearLocks();
-                }
+    /**
+     * Record the time to first byte of readers joining this file while it's written.
+     */
+    void setTimeToFirstByte( TimeToFirstByte timeToFirstByte )
+    {
+        this.timeToFirstByte = timeToFirstByte;
+    }
 
-                return null;
-            } );
+    /**
+     * Hold written content and fsyncs to the given admission limits. If writer is true, this file holds one of its
+     * writer slots, which is released once it's really closed.
+     */
+    void setAdmission( WriteAdmission admission, boolean writer )
+    {
+        if ( output != null && admission != null )
+        {
+            this.admission = admission;
+            admittedWriter.set( writer );
         }
-        catch ( InterruptedException e )
+    }
+
+    /**
+     * Take turns with other tenants' files (by weight) for flushing written content. See {@link TenantScheduler}.
+     */
+    void setTenantScheduler( TenantScheduler tenantScheduler )
+    {
+        if ( output != null )
         {
-            Logger logger = LoggerFactory.getLogger( getClass() );
-            logger.warn( "Interrupted while closing: {}", getPath() );
+            this.tenantScheduler = tenantScheduler;
         }
     }
 
     /**
-     * After all associated {@link JoinInputStream}s are done, close down this stream's backing storage.
+     * Hold the flushes and reads of this file (along with those of other files under the same path) to the given
+     * limit.
      */
-    private void reallyClose()
-            throws IOException
+    void setRateLimit( RateLimit limit )
     {
-        Logger logger = LoggerFactory.getLogger( getClass() );
-        logger.trace( "Really closing JoinableFile: {}", path );
+        this.pathLimit = limit;
+    }
 
-        try
+    /**
+     * Hold the flushes of this file's output stream to the given limit, in addition to any limit for its path.
+     */
+    void limitOutput( RateLimit limit )
+    {
+        this.outputLimit = limit;
+    }
+
+    /**
+     * The limits given to the streams open on this file when they were opened (not the limit for its path).
+     */
+    List<RateLimit> getStreamRateLimits()
+    {
+        List<RateLimit> limits = new ArrayList<>();
+        RateLimit ol = outputLimit;
+        if ( ol != null && isWriting() )
         {
-            lockAnd((lock)->{
-                if ( channel != null )
-                {
-                    channel.force( true );
-                }
+            limits.add( ol );
+        }
 
-                if ( callbacks != null )
-                {
-                    logger.trace( "calling beforeClose() on callbacks: {}", callbacks );
-                    callbacks.beforeClose();
-                }
+        inputs.values().stream().filter( ( in ) -> in.limit != null ).forEach( ( in ) -> limits.add( in.limit ) );
+        return limits;
+    }
 
-                joinable = false;
+    private static void throttle( RateLimit limit, long count, String path )
+            throws InterruptedIOException
+    {
+        if ( limit != null )
+        {
+            limit.acquire( count, path );
+        }
+    }
 
-                if ( output != null )
+    private static void charge( RateLimit limit, long count )
+    {
+        if ( limit != null )
+        {
+            limit.charge( count );
+        }
+    }
+
+    private TenantScheduler.Turn awaitIoTurn( long bytes )
+            throws IOException
+    {
+        TenantScheduler scheduler = tenantScheduler;
+        return scheduler == null ? TenantScheduler.NO_TURN : scheduler.awaitIoTurn( path, bytes );
+    }
+
+    /**
+     * Force written content to disk, waiting for a turn if the number of concurrent fsyncs is limited.
+     */
+    private void force()
+            throws IOException
+    {
+        WriteAdmission a = admission;
+        boolean turn = a != null && a.beginSync( path );
+        try
+        {
+            channel.force( true );
+        }
+        finally
+        {
+            if ( turn )
+            {
+                a.endSync();
+            }
+        }
+    }
+
+    /**
+     * Take a turn to fsync before taking the operation lock to close this file, so other operations on the file
+     * don't wait while the close waits for its turn. Only needed when the close may sync the written content.
+     *
+     * @return true if a turn was taken, to be given back with {@link WriteAdmission#endSync()}
+     */
+    private boolean beginCloseSync()
+            throws IOException
+    {
+        WriteAdmission a = admission;
+        return a != null && output != null && channel != null && a.beginSync( path );
+    }
+
+    private void endCloseSync( boolean turn )
+    {
+        if ( turn )
+        {
+            admission.endSync();
+        }
+    }
+
+    /**
+     * Give back the admitted bytes that will never be flushed, and the writer slot, if any.
+     */
+    private void releaseAdmission()
+    {
+        WriteAdmission a = admission;
+        if ( a != null )
+        {
+            a.releaseBytes( admittedBytes.getAndSet( 0 ) );
+            if ( admittedWriter.compareAndSet( true, false ) )
+            {
+                a.releaseWriter();
+            }
+        }
+    }
+
+    /**
+     * Write the given (flipped) buffer to the {@link FileChannel}. Increment the flushed-byte count, which is used as
+     * the read limit for associated {@link JoinInputStream}s. Notify anyone listening that there is new content via
+     * {@link JoinableFile#signalReaders()}. If digests are being computed, they are updated from the buffer before it
+     * is written, so the content never has to be read back from disk. Likewise, {@link ContentStreamCallbacks} get a
+     * read-only view of the buffer once it's written.
+     */
+    private void drain( ByteBuffer buf )
+            throws IOException
+    {
+        for ( MessageDigest digester : digesters.values() )
+        {
+            digester.update( buf.duplicate() );
+        }
+
+        Object event = PartylineEvents.beginFlush();
+        long writeNanos = 0;
+        long forceNanos = 0;
+
+        int start = buf.position();
+        int count = 0;
+        if ( channel != null )
+        {
+            // bandwidth limits were charged by the writing thread (see JoinableOutputStream.throttle())
+            TenantScheduler.Turn turn = awaitIoTurn( buf.remaining() );
+            try
+            {
+                long writeStart = event == null ? 0 : System.nanoTime();
+                while ( buf.hasRemaining() )
                 {
-                    logger.trace( "Setting length of: {} to written length: {}", path, flushed );
-                    randomAccessFile.setLength( flushed.get() );
-                    /* channel.force() is not enough to force system cached data to be written to underlying
-                         device if the file does not reside on a local device (like NFS) */
-                    randomAccessFile.getFD().sync();
+                    count += channel.write( buf );
                 }
 
-                // if the channel is null, this is a directory lock.
-                if ( channel != null )
+                long forceStart = event == null ? 0 : System.nanoTime();
+                force();
+                if ( event != null )
                 {
-                    logger.trace( "Closing underlying channel / random-access file..." );
-                    try
-                    {
-                        if ( channel.isOpen() )
-                        {
-//                            fileLock.release();
-                            channel.close();
-                        }
-                        else
-                        {
-                            logger.trace( "Channel was not open..." );
-                        }
+                    writeNanos = forceStart - writeStart;
+                    forceNanos = System.nanoTime() - forceStart;
+                }
+            }
+            finally
+            {
+                turn.done();
+            }
+        }
+        else
+        {
+            throw new IllegalStateException(
+                    "File channel is null, is the file descriptor " + path + " a directory?" );
+        }
 
-                        randomAccessFile.close();
-                    }
-                    catch ( ClosedChannelException e )
-                    {
-                        logger.debug( "Lock release failed on closed channel.", e );
-                    }
+        WriteAdmission a = admission;
+        if ( a != null )
+        {
+            admittedBytes.addAndGet( -count );
+            a.releaseBytes( count );
+        }
+
+        long total = flushed.addAndGet( count );
+        if ( progress != null )
+        {
+            progress.published( total );
+        }
+
+        signalReaders();
+        PartylineEvents.endFlush( event, path, count, writeNanos, forceNanos );
+
+        if ( callbacks instanceof ContentStreamCallbacks && count > 0 )
+        {
+            ByteBuffer content = buf.asReadOnlyBuffer();
+            content.position( start );
+            ( (ContentStreamCallbacks) callbacks ).flushed( total - count, content.slice() );
+        }
+
+        if ( callbacks != null )
+        {
+            callbacks.flushed();
+        }
+    }
+
+    /**
+     * Retrieve the hex-encoded digests of the written content, keyed by algorithm. These are only available after the
+     * output stream has been closed and this file is really closed, and only if digest algorithms were given when
+     * it was opened for writing. Otherwise, return null.
+     */
+    Map<String, String> getDigests()
+    {
+        return digests;
+    }
+
+    boolean isJoinable()
+    {
+        return joinable;
+    }
+
+    boolean isDirectory()
+    {
+        return channel == null;
+    }
+
+    /**
+     * Return an {@link InputStream} instance that reads from the same {@link RandomAccessFile} that backs this output stream, and is tuned to listen
+     * for notification that this stream is closed before signaling that it is out of content. The returned stream is of type {@link JoinInputStream}.
+     */
+    InputStream joinStream()
+            throws IOException, InterruptedException
+    {
+        return newJoint( null );
+    }
+
+    /**
+     * Same as {@link #joinStream()}, but hold the returned stream's reads to the given limit (in addition to any limit
+     * for this file's path).
+     */
+    InputStream joinThrottledStream( RateLimit limit )
+            throws IOException, InterruptedException
+    {
+        return limit == null ? joinStream() : newJoint( limit );
+    }
+
+    private InputStream newJoint( RateLimit limit )
+            throws IOException, InterruptedException
+    {
+        Object event = PartylineEvents.beginJoin();
+        return lockAnd( (lock)->{
+            if ( !joinable )
+            {
+                // if the channel is null, this is a directory lock.
+                throw new IOException( "JoinableFile is not accepting join() operations. (" +
+                                               ( channel == null ?
+                                                       "It's a locked directory" :
+                                                       "It's in the process of closing." ) + ")" );
+            }
+
+            JoinInputStream result = new JoinInputStream( inputs.size(), limit );
+            inputs.put( result.hashCode(), result );
+
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.debug( "JOIN: {} (new joint count: {})", Thread.currentThread().getName(), inputs.size() );
+
+            PartylineEvents.endJoin( event, path, inputs.size() );
+            return result;
+        });
+    }
+
+    /**
+     * Lock the {@link java.util.concurrent.locks.ReentrantLock} instance embedded in this {@link JoinableFile}, then
+     * execute the given operation. This prevents more than one thread from executing operations against state associated
+     * with the file this {@link JoinableFile} manages.
+     *
+     * @param op The operation to execute, once the operation lock is acquired
+     * @param <T> The result type of the given operation
+     * @return The result of operation execution
+     * @throws IOException
+     * @throws InterruptedException
+     *
+     * @see FileTree#withOpLock(File, LockedFileOperation) for associated logic
+     */
+    private <T> T lockAnd(LockedFileOperation<T> op)
+            throws IOException, InterruptedException
+    {
+        boolean locked = false;
+        try
+        {
+            locked = opLock.lock();
+            return op.execute( opLock );
+        }
+        finally
+        {
+            if ( locked )
+            {
+                opLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Write locks happen when either a directory is locked, or the file was locked with doOutput == true.
+     */
+    boolean isWriteLocked()
+    {
+        // if the channel is null, this is a directory lock.
+        return channel == null || output != null;
+    }
+
+    /**
+     * Mark this stream as closed. Don't close the underlying channel if
+     * there are still open input streams...allow their close methods to trigger that if the ref count drops 
+     * to 0.
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        boolean syncTurn = !closed && inputs.isEmpty() && beginCloseSync();
+        try
+        {
+            lockAnd( (lock)->{
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                if ( closed )
+                {
+                    logger.trace( "close() called, but is already closed." );
+                    return null;
                 }
-                else
+                logger.trace( "close() called, marking as closed." );
+
+                closed = true;
+
+                if ( output != null && !output.isClosed() )
                 {
-                    logger.trace( "Channel already closed..." );
+                    logger.trace( "Closing output" );
+                    output.close();
                 }
 
-                logger.trace( "JoinableFile for: {} is really closed (by thread: {}).", path,
-                              Thread.currentThread().getName() );
+                signalReaders();
 
-                if ( callbacks != null )
+                logger.trace( "joint count is: {}.", inputs.size() );
+                if ( channel == null || inputs.isEmpty() )
                 {
-                    logger.trace( "calling closed() on callbacks: {}", callbacks );
-                    callbacks.closed();
+                    logger.trace( "Joints closed, and output is closed...really closing." );
+                    reallyClose( syncTurn );
+                    owner.clearStreamLocks();
+                }
+                else if ( output != null )
+                {
+                    // readers are still joined, but the write is done. Release the writer's lock, or the writing thread
+                    // could take the (reentrant) write lock again and truncate the file under the readers.
+                    owner.unlock( output.lockOwnerName, output.lockLabel );
                 }
 
                 return null;
-            });
+            } );
         }
         catch ( InterruptedException e )
         {
-            logger.error( "Interrupted while closing: " + path, e );
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.warn( "Interrupted while closing: {}", getPath() );
+        }
+        finally
+        {
+            endCloseSync( syncTurn );
         }
     }
 
     /**
-     * Callback for use in {@link JoinInputStream} to notify this stream to decrement its count of associated input streams.
-     * @throws IOException
+     * Wake up any {@link JoinInputStream}s waiting for more content to be flushed, or for this file to close.
      */
-    private void jointClosed( JoinInputStream input, String originalThreadName )
-            throws IOException
+    private void signalReaders()
     {
+        flushLock.lock();
         try
         {
-            lockAnd( (lock)->{
-                inputs.remove( input.hashCode() );
+            flushChanged.signalAll();
+        }
+        finally
+        {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * After all associated {@link JoinInputStream}s are done, close down this stream's backing storage.
+     */
+    private void reallyClose( boolean syncTurn )
+            throws IOException
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        logger.trace( "Really closing JoinableFile: {}", path );
+
+        Object event = PartylineEvents.beginClose();
+        try
+        {
+            lockAnd((lock)->{
+                if ( channel != null && output != null )
+                {
+                    TenantScheduler.Turn turn = awaitIoTurn( 0 );
+                    try
+                    {
+                        if ( syncTurn )
+                        {
+                            channel.force( true );
+                        }
+                        else
+                        {
+                            force();
+                        }
+                    }
+                    finally
+                    {
+                        turn.done();
+                    }
+                }
+
+                if ( callbacks != null )
+                {
+                    logger.trace( "calling beforeClose() on callbacks: {}", callbacks );
+                    callbacks.beforeClose();
+                }
+
+                joinable = false;
+
+                if ( output != null )
+                {
+                    logger.trace( "Setting length of: {} to written length: {}", path, flushed );
+                    if ( expectedLength > 0 && expectedLength != flushed.get() )
+                    {
+                        logger.warn( "Expected {} bytes for: {}, but {} bytes were written.", expectedLength, path,
+                                     flushed.get() );
+                    }
+
+                    randomAccessFile.setLength( flushed.get() );
+                    /* channel.force() is not enough to force system cached data to be written to underlying
+                         device if the file does not reside on a local device (like NFS) */
+                    WriteAdmission a = syncTurn ? null : admission;
+                    boolean turn = a != null && a.beginSync( path );
+                    try
+                    {
+                        randomAccessFile.getFD().sync();
+                    }
+                    finally
+                    {
+                        if ( turn )
+                        {
+                            a.endSync();
+                        }
+                    }
+
+                    if ( !digesters.isEmpty() && writeFailure == null )
+                    {
+                        Map<String, String> result = new LinkedHashMap<>();
+                        digesters.forEach( ( algorithm, digester ) -> result.put( algorithm, toHex( digester.digest() ) ) );
+                        digests = Collections.unmodifiableMap( result );
+                        logger.trace( "Digests of: {} are: {}", path, digests );
+                    }
+                }
+
+                if ( progress != null && output != null && writeFailure == null )
+                {
+                    progress.complete();
+                }
+
+                closeProgress();
+                ProcessLocks.release( fileLock, path );
+                if ( preallocChannel != null )
+                {
+                    IOUtils.closeQuietly( preallocChannel );
+                }
+
+                // if the channel is null, this is a directory lock.
+                if ( channel != null && randomAccessFile == null )
+                {
+                    logger.trace( "Returning cached channel..." );
+                    channelCache.release( channel );
+                }
+                else if ( channel != null )
+                {
+                    logger.trace( "Closing underlying channel / random-access file..." );
+                    try
+                    {
+                        if ( channel.isOpen() )
+                        {
+                            channel.close();
+                        }
+                        else
+                        {
+                            logger.trace( "Channel was not open..." );
+                        }
+
+                        randomAccessFile.close();
+                    }
+                    catch ( ClosedChannelException e )
+                    {
+                        logger.debug( "Lock release failed on closed channel.", e );
+                    }
+                    finally
+                    {
+                        if ( channelCache != null )
+                        {
+                            // the writer's reserved descriptor
+                            channelCache.unreserve();
+                        }
+                    }
+                }
+                else
+                {
+                    logger.trace( "Channel already closed..." );
+                }
+
+                if ( output != null && writeFailure != null )
+                {
+                    logger.debug( "Deleting incomplete: {}", path );
+                    Files.deleteIfExists( Paths.get( path ) );
+                }
+
+                logger.trace( "JoinableFile for: {} is really closed (by thread: {}).", path,
+                              Thread.currentThread().getName() );
+
+                if ( callbacks != null )
+                {
+                    logger.trace( "calling closed() on callbacks: {}", callbacks );
+                    callbacks.closed();
+                }
+
+                return null;
+            });
+        }
+        catch ( InterruptedException e )
+        {
+            logger.error( "Interrupted while closing: " + path, e );
+        }
+        finally
+        {
+            PartylineEvents.endClose( event, path, output != null, flushed.get() );
+            if ( output != null )
+            {
+                releaseAdmission();
+            }
+        }
+    }
+
+    /**
+     * Callback for use in {@link JoinInputStream} to notify this stream to decrement its count of associated input streams.
+     * @throws IOException
+     */
+    private void jointClosed( JoinInputStream input, String originalThreadName )
+            throws IOException
+    {
+        // the last reader of a written file syncs it when it really closes the file.
+        boolean syncTurn = inputs.size() == 1 && output != null && output.isClosed() && beginCloseSync();
+        try
+        {
+            lockAnd( (lock)->{
+                inputs.remove( input.hashCode() );
+
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                logger.trace( "jointClosed() called in: {}, current joint count: {}", this, inputs.size() );
+                if ( inputs.isEmpty() )
+                {
+                    if ( output == null || output.isClosed() )
+                    {
+                        logger.trace( "All input joint closed, and output is missing or closed. Really closing." );
+                        closed = true;
+                        reallyClose( syncTurn );
+                    }
+                }
+                else
+                {
+                    owner.unlock( labelFor( false, originalThreadName ) );
+//                    owner.unlock( originalThreadName );
+                }
+
+                return null;
+            } );
+        }
+        catch ( InterruptedException e )
+        {
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.warn( "Interrupted while closing reader joint of: {}", getPath() );
+        }
+        finally
+        {
+            endCloseSync( syncTurn );
+        }
+    }
+
+    /**
+     * Retrieve the path that is managed in this instance.
+     */
+    String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Whether this file has an output stream that hasn't been closed yet.
+     */
+    boolean isWriting()
+    {
+        return output != null && !output.isClosed();
+    }
+
+    boolean isOpen()
+    {
+        return !closed || !inputs.isEmpty();
+    }
+
+    public String reportOwnership()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append( "Path: " ).append( path );
+
+        sb.append( "\n" )
+          .append( owner.isLocked() ? "LOCKED (" : "UNLOCKED (" )
+          .append( isWriteLocked() ? "write)" : "read)" );
+
+        sb.append( "\nStreams:" );
+        if ( output != null )
+        {
+            sb.append( "\n\t- " ).append( output.reportWithOwner() );
+        }
+
+        /*
+         * [JAVADOC] Iterators for ConcurrentHashMap return elements reflecting the state of the hash table at some point
+         * or since the creation of the iterator/enumeration. They do not throw ConcurrentModificationException.
+         * However, iterators are designed to be used by only one thread at a time.
+         */
+        inputs.forEach( (hashCode, instance)-> sb.append( "\n\t- " ).append( instance.reportWithOwner() ) );
+
+        return sb.toString();
+    }
+
+    public static String labelFor( final boolean doOutput, String threadName )
+    {
+        return (doOutput ? "WRITE via " : "READ via ") + threadName;
+    }
+
+    private static String toHex( final byte[] data )
+    {
+        StringBuilder sb = new StringBuilder( data.length * 2 );
+        for ( byte b : data )
+        {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+
+        return sb.toString();
+    }
+
+    private final class JoinableOutputStream
+            extends OutputStream
+    {
+        private volatile boolean closed;
+
+        private ByteBuffer buf = ByteBuffer.allocateDirect( CHUNK_SIZE );
+
+        private volatile BackgroundFlusher flusher;
+
+        private volatile FlushPolicy policy;
+
+        private ScheduledExecutorService scheduler;
+
+        private int flushAt = CHUNK_SIZE;
+
+        // bytes admitted (see admit()) but not written into the buffer yet; counted in admittedBytes.
+        private long reserved;
+
+        // single bytes written but not charged to the bandwidth limits yet; only used by the writing thread.
+        private int unthrottled;
+
+        private final ReentrantLock bufLock = new ReentrantLock();
+
+        // whether the buffer holds content; set by the writer, read by joined readers.
+        private volatile boolean dirty;
+
+        // guarded by bufLock
+        private long firstBuffered;
+
+        // guarded by bufLock
+        private boolean delayPending;
+
+        private final AtomicBoolean flushRequested = new AtomicBoolean( false );
+
+        private volatile IOException scheduledFailure;
+
+        private String originalThreadName = Thread.currentThread().getName();
+
+        // the owner and label of the write lock taken when this stream was opened (see FileTree); it may be closed
+        // by another thread.
+        private final String lockOwnerName = LockOwner.getLockReservationName();
+
+        private final String lockLabel = labelFor( true, originalThreadName );
+
+        public String reportWithOwner()
+        {
+            return String.format( "output (%s)", originalThreadName );
+        }
+
+        /**
+         * If the stream is marked as closed, throw {@link IOException}. If the INTERNAL buffer is full, call {@link #flush()}. Then, write the byte to
+         * the buffer and increment the written-byte count.
+         */
+        @Override
+        public void write( final int b )
+                throws IOException
+        {
+            if ( ++unthrottled >= THROTTLE_BATCH )
+            {
+                throttle( unthrottled );
+                unthrottled = 0;
+            }
+
+            boolean locked = lockBuffer();
+            try
+            {
+                checkWritable();
+                if ( buf.position() >= flushAt )
+                {
+                    flushFull();
+                }
+
+                admit( 1 );
+                if ( locked && buf.position() == 0 )
+                {
+                    bufferStarted();
+                }
+
+                buf.put( (byte) ( b & 0xff ) );
+            }
+            finally
+            {
+                if ( locked )
+                {
+                    bufLock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Same as {@link #write(int)}, but copy the bytes into the buffer in bulk. With a bandwidth limit, go a buffer
+         * at a time, waiting for the bandwidth before each.
+         */
+        @Override
+        public void write( final byte[] b, int off, int len )
+                throws IOException
+        {
+            if ( off < 0 || len < 0 || off + len > b.length )
+            {
+                throw new IndexOutOfBoundsException();
+            }
+
+            while ( len > 0 )
+            {
+                int count = outputLimit == null && pathLimit == null ? len : Math.min( len, CHUNK_SIZE );
+                throttle( count );
+                put( b, off, count );
+                off += count;
+                len -= count;
+            }
+        }
+
+        private void put( final byte[] b, int off, int len )
+                throws IOException
+        {
+            boolean locked = lockBuffer();
+            try
+            {
+                checkWritable();
+                while ( len > 0 )
+                {
+                    if ( buf.position() >= flushAt )
+                    {
+                        flushFull();
+                    }
+
+                    int count = Math.min( len, flushAt - buf.position() );
+                    admit( count );
+                    if ( locked && buf.position() == 0 )
+                    {
+                        bufferStarted();
+                    }
+
+                    buf.put( b, off, count );
+                    off += count;
+                    len -= count;
+                }
+            }
+            finally
+            {
+                if ( locked )
+                {
+                    bufLock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Empty the current buffer into the {@link FileChannel} (see {@link JoinableFile#drain(ByteBuffer)}) and
+         * reinitialize it for filling. If flushing in the background, hand the buffer to the {@link BackgroundFlusher}
+         * and wait until everything written so far has been flushed, rethrowing any error the flusher ran into.
+         */
+        @Override
+        public void flush()
+                throws IOException
+        {
+            boolean locked = lockBuffer();
+            try
+            {
+                checkWritable();
+
+                buf.flip();
+                if ( flusher != null )
+                {
+                    if ( buf.hasRemaining() )
+                    {
+                        buf = flusher.submit( buf );
+                    }
+                    else
+                    {
+                        buf.clear();
+                    }
+
+                    flusher.awaitDrained();
+                }
+                else
+                {
+                    drain( buf );
+                    buf.clear();
+                }
+
+                dirty = false;
+                super.flush();
+            }
+            finally
+            {
+                if ( locked )
+                {
+                    bufLock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Flush anything in the current buffer. Mark this stream as closed. Don't close the underlying channel if
+         * there are still open input streams...allow their close methods to trigger that if the ref count drops
+         * to 0.
+         */
+        @Override
+        public void close()
+                throws IOException
+        {
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.trace( "OUT ({}):: close() called", originalThreadName );
+
+            // the bytes have already been written; don't sleep here, or an interrupt would leave the file locked.
+            if ( !closed && unthrottled > 0 )
+            {
+                charge( outputLimit, unthrottled );
+                charge( pathLimit, unthrottled );
+                unthrottled = 0;
+            }
+
+            boolean locked = lockBuffer();
+            try
+            {
+                if ( closed )
+                {
+                    logger.trace( "OUT ({}):: already closed", originalThreadName );
+                    return;
+                }
+
+                flush();
+                closed = true;
+            }
+            finally
+            {
+                if ( locked )
+                {
+                    bufLock.unlock();
+                }
+            }
+
+            super.close();
+
+            JoinableFile.this.close();
+        }
+
+        /**
+         * Charge written bytes to the bandwidth limits, sleeping if they're used up. This happens in the writing thread,
+         * before the bytes are buffered and outside the buffer lock, so neither the threads that flush buffers in the
+         * background nor those waiting for the buffer sleep off a writer's throttling.
+         */
+        private void throttle( final long count )
+                throws InterruptedIOException
+        {
+            JoinableFile.throttle( outputLimit, count, path );
+            JoinableFile.throttle( pathLimit, count, path );
+        }
+
+        /**
+         * With a {@link FlushPolicy}, the buffer may also be flushed by the scheduler, so it has to be locked while
+         * it's used. Without one, only the writing thread uses it.
+         *
+         * @return true if the buffer was locked
+         */
+        private boolean lockBuffer()
+        {
+            if ( policy == null )
+            {
+                return false;
+            }
+
+            bufLock.lock();
+            return true;
+        }
+
+        private void checkWritable()
+                throws IOException
+        {
+            if ( closed )
+            {
+                throw new IOException( "Cannot write to closed stream!" );
+            }
+            else if ( scheduledFailure != null )
+            {
+                throw new IOException( "Scheduled flush of: " + path + " failed: " + scheduledFailure.getMessage(),
+                                       scheduledFailure );
+            }
+        }
+
+        /**
+         * Admit the given number of bytes into the buffer, if in-flight bytes are limited. Bytes are admitted for the
+         * rest of the buffer at once, so small writes don't go to the admission one by one; they're given back as the
+         * buffer is flushed, or when the file closes. If they don't fit, flush what this stream holds and give back
+         * what it reserved first (it may be what others are waiting for), then wait. The buffer stays locked while
+         * waiting; scheduled flushes try again later rather than wait for it (see {@link #delayElapsed()}).
+         */
+        private void admit( final int count )
+                throws IOException
+        {
+            WriteAdmission a = admission;
+            if ( a == null )
+            {
+                return;
+            }
+
+            if ( reserved >= count )
+            {
+                reserved -= count;
+                return;
+            }
+
+            int want = Math.max( count, flushAt - buf.position() ) - (int) reserved;
+            if ( !a.tryAdmitBytes( want ) )
+            {
+                if ( reserved > 0 )
+                {
+                    admittedBytes.addAndGet( -reserved );
+                    a.releaseBytes( reserved );
+                    reserved = 0;
+                }
+
+                if ( admittedBytes.get() > 0 )
+                {
+                    flush();
+                }
+
+                want = count;
+                a.admitBytes( path, want );
+            }
+
+            admittedBytes.addAndGet( want );
+            reserved += want - count;
+        }
+
+        private void flushFull()
+                throws IOException
+        {
+            if ( flusher != null )
+            {
+                buf.flip();
+                buf = flusher.submit( buf );
+                dirty = false;
+            }
+            else
+            {
+                flush();
+            }
+        }
+
+        /**
+         * Called (with the buffer locked) when the first byte goes into an empty buffer. Start the clock for the
+         * policy's max delay.
+         */
+        private void bufferStarted()
+        {
+            firstBuffered = System.nanoTime();
+            dirty = true;
+
+            long maxDelay = policy.getMaxDelay();
+            if ( maxDelay > 0 && !delayPending )
+            {
+                delayPending = schedule( this::delayElapsed, maxDelay );
+            }
+        }
+
+        /**
+         * Scheduled: flush if the oldest buffered byte has waited for the policy's max delay. Otherwise, check again
+         * when it will have. If the writer holds the buffer (it may be waiting for admission), try again shortly
+         * rather than holding up the scheduler, and the flushes of other files with it.
+         */
+        private void delayElapsed()
+        {
+            if ( !bufLock.tryLock() )
+            {
+                // if the scheduler has shut down, the writer flushes when the buffer is full.
+                schedule( this::delayElapsed, BUSY_BUFFER_RETRY );
+                return;
+            }
+
+            try
+            {
+                delayPending = false;
+                if ( closed || !dirty )
+                {
+                    return;
+                }
+
+                long remaining = policy.getMaxDelay() - TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - firstBuffered );
+                if ( remaining > 0 )
+                {
+                    delayPending = schedule( this::delayElapsed, remaining );
+                }
+                else
+                {
+                    scheduledFlush();
+                }
+            }
+            finally
+            {
+                bufLock.unlock();
+            }
+        }
+
+        /**
+         * Called by joined readers that have read everything flushed so far. If the policy says so, and there's
+         * buffered content, ask the scheduler to flush it.
+         */
+        void readerWaiting()
+        {
+            FlushPolicy p = policy;
+            if ( p != null && p.isFlushWhenReadersWait() && dirty && !closed && flushRequested.compareAndSet( false,
+                                                                                                         true ) )
+            {
+                if ( !schedule( this::readerFlush, 0 ) )
+                {
+                    flushRequested.set( false );
+                }
+            }
+        }
 
-                Logger logger = LoggerFactory.getLogger( getClass() );
-                logger.trace( "jointClosed() called in: {}, current joint count: {}", this, inputs.size() );
-                if ( inputs.isEmpty() )
+        private void readerFlush()
+        {
+            // as in delayElapsed(), don't wait for the writer
+            if ( !bufLock.tryLock() )
+            {
+                if ( !schedule( this::readerFlush, BUSY_BUFFER_RETRY ) )
                 {
-                    if ( output == null || output.isClosed() )
-                    {
-                        logger.trace( "All input joint closed, and output is missing or closed. Really closing." );
-                        closed = true;
-                        reallyClose();
-                    }
+                    flushRequested.set( false );
                 }
-                else
+
+                return;
+            }
+
+            try
+            {
+                flushRequested.set( false );
+                if ( !closed && dirty )
                 {
-                    owner.unlock( labelFor( false, originalThreadName ) );
-//                    owner.unlock( originalThreadName );
+                    scheduledFlush();
                 }
+            }
+            finally
+            {
+                bufLock.unlock();
+            }
+        }
 
-                return null;
-            } );
+        // must be called with the buffer locked
+        private void scheduledFlush()
+        {
+            SHARED_FLUSH_THREAD.set( Boolean.TRUE );
+            try
+            {
+                flush();
+            }
+            catch ( IOException e )
+            {
+                LoggerFactory.getLogger( getClass() ).error( "Scheduled flush of: " + path + " failed", e );
+                scheduledFailure = e;
+            }
+            finally
+            {
+                SHARED_FLUSH_THREAD.remove();
+            }
         }
-        catch ( InterruptedException e )
+
+        private boolean schedule( Runnable task, long delay )
         {
-            Logger logger = LoggerFactory.getLogger( getClass() );
-            logger.warn( "Interrupted while closing reader joint of: {}", getPath() );
+            try
+            {
+                scheduler.schedule( task, delay, TimeUnit.MILLISECONDS );
+                return true;
+            }
+            catch ( RejectedExecutionException e )
+            {
+                // scheduler shut down (flush policy was turned off); the writer flushes when the buffer is full.
+                return false;
+            }
+        }
+
+        boolean isClosed() {
+            return closed;
         }
     }
 
     /**
-     * Retrieve the path that is managed in this instance.
+     * Writes buffers handed over by {@link JoinableOutputStream} to the channel on an executor, in order. Buffers are
+     * recycled once written, so a writer uses at most maxInFlight queued buffers plus the one it's filling.
      */
-    String getPath()
-    {
-        return path;
-    }
-
-    boolean isOpen()
-    {
-        return !closed || !inputs.isEmpty();
-    }
-
-    public String reportOwnership()
+    private final class BackgroundFlusher
+            implements Runnable
     {
-        StringBuilder sb = new StringBuilder();
-        sb.append( "Path: " ).append( path );
-
-        sb.append( "\n" )
-          .append( owner.isLocked() ? "LOCKED (" : "UNLOCKED (" )
-          .append( isWriteLocked() ? "write)" : "read)" );
+        private final Executor executor;
 
-        sb.append( "\nStreams:" );
-        if ( output != null )
-        {
-            sb.append( "\n\t- " ).append( output.reportWithOwner() );
-        }
+        private final int maxInFlight;
 
-        /*
-         * [JAVADOC] Iterators for ConcurrentHashMap return elements reflecting the state of the hash table at some point
-         * or since the creation of the iterator/enumeration. They do not throw ConcurrentModificationException.
-         * However, iterators are designed to be used by only one thread at a time.
-         */
-        inputs.forEach( (hashCode, instance)-> sb.append( "\n\t- " ).append( instance.reportWithOwner() ) );
+        private final ReentrantLock lock = new ReentrantLock();
 
-        return sb.toString();
-    }
+        private final Condition drained = lock.newCondition();
 
-    public static String labelFor( final boolean doOutput, String threadName )
-    {
-        return (doOutput ? "WRITE via " : "READ via ") + threadName;
-    }
+        private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
 
-    private final class JoinableOutputStream
-            extends OutputStream
-    {
-        private boolean closed;
+        private final ArrayDeque<ByteBuffer> spare = new ArrayDeque<>();
 
-        private ByteBuffer buf = ByteBuffer.allocateDirect( CHUNK_SIZE );
+        private boolean running;
 
-        private String originalThreadName = Thread.currentThread().getName();
+        private Throwable failure;
 
-        public String reportWithOwner()
+        BackgroundFlusher( Executor executor, int maxInFlight )
         {
-            return String.format( "output (%s)", originalThreadName );
+            this.executor = executor;
+            this.maxInFlight = maxInFlight;
         }
 
         /**
-         * If the stream is marked as closed, throw {@link IOException}. If the INTERNAL buffer is full, call {@link #flush()}. Then, write the byte to
-         * the buffer and increment the written-byte count.
+         * Queue a full (flipped) buffer to be written, and return an empty one to fill next, waiting if too many
+         * buffers are already queued.
          */
-        @Override
-        public void write( final int b )
+        ByteBuffer submit( ByteBuffer full )
                 throws IOException
         {
-//            synchronized ( JoinableFile.this )
-//            {
-                if ( closed )
+            boolean runHere = false;
+            lock.lock();
+            try
+            {
+                while ( queue.size() >= maxInFlight )
                 {
-                    throw new IOException( "Cannot write to closed stream!" );
+                    checkFailure();
+                    drained.await();
                 }
 
-                if ( buf.position() == buf.capacity() )
+                checkFailure();
+                queue.add( full );
+                if ( !running )
                 {
-                    flush();
+                    running = true;
+                    try
+                    {
+                        executor.execute( this::runShared );
+                    }
+                    catch ( RejectedExecutionException e )
+                    {
+                        // executor shut down (background flushing was disabled); write it ourselves.
+                        runHere = true;
+                    }
                 }
+            }
+            catch ( InterruptedException e )
+            {
+                throw new InterruptedIOException( "Interrupted while waiting to flush: " + path );
+            }
+            finally
+            {
+                lock.unlock();
+            }
 
-                buf.put( (byte) ( b & 0xff ) );
-//            }
+            if ( runHere )
+            {
+                run();
+            }
+
+            lock.lock();
+            try
+            {
+                checkFailure();
+                ByteBuffer next = spare.poll();
+                return next == null ? ByteBuffer.allocateDirect( CHUNK_SIZE ) : next;
+            }
+            finally
+            {
+                lock.unlock();
+            }
         }
 
         /**
-         * Empty the current buffer into the {@link FileChannel} and reinitialize it for filling. Increment the flushed-byte count, which is used as the
-         * read limit for associated {@link JoinInputStream}s. Notify anyone listening that there is new content via {@link JoinableFile#notifyAll()}.
+         * Wait until all queued buffers have been written.
          */
-        @Override
-        public void flush()
+        void awaitDrained()
                 throws IOException
         {
-            synchronized ( JoinableFile.this )
+            lock.lock();
+            try
             {
-                if ( closed )
+                while ( running )
                 {
-                    throw new IOException( "Cannot write to closed stream!" );
+                    drained.await();
                 }
-            }
 
-            buf.flip();
-            int count = 0;
-            if ( channel != null )
+                checkFailure();
+            }
+            catch ( InterruptedException e )
             {
-                while ( buf.hasRemaining() )
-                {
-                    count += channel.write( buf );
-                }
-                channel.force( true );
+                throw new InterruptedIOException( "Interrupted while waiting to flush: " + path );
             }
-            else
+            finally
             {
-                throw new IllegalStateException(
-                        "File channel is null, is the file descriptor " + path + " a directory?" );
+                lock.unlock();
             }
+        }
 
-            buf.clear();
-
-            super.flush();
-
-            flushed.addAndGet( count );
-
-            synchronized ( JoinableFile.this )
+        // must be called while holding the lock
+        private void checkFailure()
+                throws IOException
+        {
+            if ( failure != null )
             {
-                JoinableFile.this.notifyAll();
+                throw new IOException( "Background flush of: " + path + " failed: " + failure.getMessage(), failure );
             }
+        }
 
-            if ( callbacks != null )
+        private void runShared()
+        {
+            SHARED_FLUSH_THREAD.set( Boolean.TRUE );
+            try
+            {
+                run();
+            }
+            finally
             {
-                callbacks.flushed();
+                SHARED_FLUSH_THREAD.remove();
             }
         }
 
-        /**
-         * Flush anything in the current buffer. Mark this stream as closed. Don't close the underlying channel if
-         * there are still open input streams...allow their close methods to trigger that if the ref count drops
-         * to 0.
-         */
         @Override
-        public void close()
-                throws IOException
+        public void run()
         {
-            Logger logger = LoggerFactory.getLogger( getClass() );
-            logger.trace( "OUT ({}):: close() called", originalThreadName );
-
-            if ( closed )
+            while ( true )
             {
-                logger.trace( "OUT ({}):: already closed", originalThreadName );
-                return;
-            }
-
-            flush();
-            closed = true;
-            super.close();
+                ByteBuffer next;
+                lock.lock();
+                try
+                {
+                    next = queue.peek();
+                    if ( next == null )
+                    {
+                        running = false;
+                        drained.signalAll();
+                        return;
+                    }
+                }
+                finally
+                {
+                    lock.unlock();
+                }
 
-            JoinableFile.this.close();
-        }
+                try
+                {
+                    drain( next );
+                }
+                catch ( IOException | RuntimeException e )
+                {
+                    LoggerFactory.getLogger( getClass() ).error( "Background flush of: " + path + " failed", e );
+                    lock.lock();
+                    try
+                    {
+                        failure = e;
+                        queue.clear();
+                        running = false;
+                        drained.signalAll();
+                        return;
+                    }
+                    finally
+                    {
+                        lock.unlock();
+                    }
+                }
 
-        boolean isClosed() {
-            return closed;
+                lock.lock();
+                try
+                {
+                    queue.poll();
+                    next.clear();
+                    spare.add( next );
+                    drained.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
         }
     }
 
@@ -596,16 +1890,26 @@ public final class JoinableFile
 
         private final long ctorTime;
 
+        // whether this reader joined a write in progress, for time-to-first-byte tracking
+        private final boolean joinedWrite;
+
+        private final RateLimit limit;
+
+        // single bytes read but not charged to the bandwidth limits yet
+        private int unthrottled;
+
         /**
          * Map the content already written to disk for reading. If the flushed count exceeds MAX_BUFFER_SIZE, use the max instead.
          */
-        JoinInputStream( int jointIdx )
+        JoinInputStream( int jointIdx, RateLimit limit )
                 throws IOException
         {
             this.jointIdx = jointIdx;
+            this.limit = limit;
             buf = channel.map( MapMode.READ_ONLY, 0, flushed.get() > MAX_BUFFER_SIZE ? MAX_BUFFER_SIZE : flushed.get() );
             this.originalThreadName = Thread.currentThread().getName();
             this.ctorTime = System.nanoTime();
+            this.joinedWrite = output != null && !output.isClosed();
         }
 
         @Override
@@ -654,34 +1958,148 @@ public final class JoinableFile
         public int read()
                 throws IOException
         {
-            synchronized ( JoinableFile.this )
+            if ( !fill() )
             {
-                if ( closed )
+                return -1;
+            }
+
+            if ( ++unthrottled >= THROTTLE_BATCH )
+            {
+                throttle( unthrottled );
+                unthrottled = 0;
+            }
+
+            final int result = buf.get();
+            read++;
+
+            if ( read == 1 && joinedWrite )
+            {
+                firstByteRead();
+            }
+
+            //            logger.trace( "Joint: {} Read count: {}, returning: {}", jointIdx, read, Integer.toHexString( result ) );
+            // byte is signed in java. Converting to unsigned:
+            return result & 0xff;
+        }
+
+        /**
+         * Same as {@link #read()}, but copy from the mapped buffer in bulk instead of one byte at a time. Like the
+         * single-byte loop this replaces, keep reading until len bytes are copied or the content ends. If a bandwidth
+         * limit applies, copy no more than its burst at once, waiting for the bandwidth before each copy.
+         */
+        @Override
+        public int read( final byte[] b, final int off, final int len )
+                throws IOException
+        {
+            if ( off < 0 || len < 0 || off + len > b.length )
+            {
+                throw new IndexOutOfBoundsException();
+            }
+            else if ( len == 0 )
+            {
+                return 0;
+            }
+
+            int total = 0;
+            while ( total < len && fill() )
+            {
+                RateLimit pl = pathLimit;
+                int count = Math.min( len - total, buf.remaining() );
+                count = (int) Math.min( count, limit == null ? count : limit.getBurst() );
+                count = (int) Math.min( count, pl == null ? count : pl.getBurst() );
+                JoinableFile.throttle( limit, count, path );
+                JoinableFile.throttle( pl, count, path );
+
+                buf.get( b, off + total, count );
+                read += count;
+                total += count;
+
+                if ( read == count && joinedWrite )
                 {
-                    throw new IOException( "Joint: " + jointIdx + "(" + originalThreadName + "): Cannot read from closed stream!" );
+                    firstByteRead();
                 }
+            }
+
+            return total == 0 ? -1 : total;
+        }
+
+        /**
+         * Make sure the mapped buffer has content to read, waiting for (and mapping) more if needed.
+         *
+         * @return false at the end of the content
+         */
+        private boolean fill()
+                throws IOException
+        {
+            if ( closed )
+            {
+                throw new IOException( "Joint: " + jointIdx + "(" + originalThreadName + "): Cannot read from closed stream!" );
+            }
 
-                //                Logger logger = LoggerFactory.getLogger( getClass() );
-                //                logger.trace( "Joint: {} READ: read-bytes count: {}, flushed-bytes count: {}", jointIdx, read, flushed );
-                while ( read == flushed.get() )
+            //                Logger logger = LoggerFactory.getLogger( getClass() );
+            //                logger.trace( "Joint: {} READ: read-bytes count: {}, flushed-bytes count: {}", jointIdx, read, flushed );
+            if ( read == flushed.get() )
+            {
+                // only take the lock when we have to wait; reads behind the flushed frontier don't need it.
+                Object event = PartylineEvents.beginReaderWait();
+                flushLock.lock();
+                try
                 {
-                    if ( output == null || JoinableFile.this.closed )
+                    while ( read == flushed.get() )
                     {
-                        // if the parent stream is closed, return EOF
-                        return -1;
-                    }
+                        if ( writeFailure != null )
+                        {
+                            throw new IOException( writeFailure.getMessage(), writeFailure );
+                        }
+                        else if ( progress != null && output == null )
+                        {
+                            // another process is writing; check the completion state before the flushed count, since
+                            // the writer publishes its final count first.
+                            boolean complete = progress.isComplete();
+                            long published = progress.getFlushed();
+                            if ( published > read )
+                            {
+                                flushed.accumulateAndGet( published, Math::max );
+                                break;
+                            }
+                            else if ( complete )
+                            {
+                                return false;
+                            }
+                            else if ( !progress.isWriterAlive() )
+                            {
+                                throw new IOException( "Writer of: " + path + " died after writing " + read
+                                                               + " bytes. Content is incomplete!" );
+                            }
+                        }
+                        else if ( output == null || JoinableFile.this.closed )
+                        {
+                            // if the parent stream is closed, return EOF
+                            return false;
+                        }
 
-                    try
-                    {
-                        JoinableFile.this.wait( 100 );
-                    }
-                    catch ( final InterruptedException e )
-                    {
-                        // if we're interrupted, return EOF
-                        return -1;
-                    }
+                        if ( output != null )
+                        {
+                            output.readerWaiting();
+                        }
+
+                        try
+                        {
+                            flushChanged.await( 100, TimeUnit.MILLISECONDS );
+                        }
+                        catch ( final InterruptedException e )
+                        {
+                            // if we're interrupted, return EOF
+                            return false;
+                        }
 
-                    //                    logger.trace( "Joint: {} READ2: read-bytes count: {}, flushed-bytes count: {}", jointIdx, read, flushed );
+                        //                    logger.trace( "Joint: {} READ2: read-bytes count: {}, flushed-bytes count: {}", jointIdx, read, flushed );
+                    }
+                }
+                finally
+                {
+                    flushLock.unlock();
+                    PartylineEvents.endReaderWait( event, path, read );
                 }
             }
 
@@ -699,18 +2117,22 @@ public final class JoinableFile
             }
 
             // be extra careful...if the new buffer is empty, return EOF.
-            if ( buf.position() == buf.limit() )
+            //                logger.trace( "Joint: {} READ: New buffer is empty! Return -1", jointIdx );
+            return buf.position() != buf.limit();
+        }
+
+        private void firstByteRead()
+        {
+            long elapsed = System.nanoTime() - ctorTime;
+            TimeToFirstByte ttfb = timeToFirstByte;
+            if ( ttfb != null )
             {
-                //                logger.trace( "Joint: {} READ: New buffer is empty! Return -1", jointIdx );
-                return -1;
+                ttfb.record( elapsed );
             }
 
-            final int result = buf.get();
-            read++;
-
-            //            logger.trace( "Joint: {} Read count: {}, returning: {}", jointIdx, read, Integer.toHexString( result ) );
-            // byte is signed in java. Converting to unsigned:
-            return result & 0xff;
+            LoggerFactory.getLogger( getClass() )
+                         .debug( "Joint: {} ({}): first byte of: {} after {}ms", jointIdx, originalThreadName, path,
+                                 TimeUnit.NANOSECONDS.toMillis( elapsed ) );
         }
 
         /**
@@ -732,9 +2154,24 @@ public final class JoinableFile
             closed = true;
             super.close();
 
+            // the bytes have already been read; don't sleep here, or an interrupt would leave the joint open.
+            if ( unthrottled > 0 )
+            {
+                charge( limit, unthrottled );
+                charge( pathLimit, unthrottled );
+                unthrottled = 0;
+            }
+
             jointClosed( this, originalThreadName );
         }
 
+        private void throttle( final long count )
+                throws InterruptedIOException
+        {
+            JoinableFile.throttle( limit, count, path );
+            JoinableFile.throttle( pathLimit, count, path );
+        }
+
         int getJointIndex()
         {
             return jointIdx;
@@ -15,23 +15,43 @@
  */
 package org.commonjava.util.partyline;
 
+import org.apache.commons.io.IOUtils;
 import org.commonjava.cdi.util.weft.ThreadContext;
+import org.commonjava.util.partyline.callback.ContentStreamCallbacks;
+import org.commonjava.util.partyline.callback.DeleteCallbacks;
+import org.commonjava.util.partyline.callback.DigestCallbacks;
+import org.commonjava.util.partyline.callback.StreamCallbacks;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
@@ -121,76 +141,765 @@ public class JoinableFileManager
 
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
-    private final FileTree locks = new FileTree();
+    private final FileTree locks;
 
     private final Timer timer;
 
     private ReportingTask reporter;
 
+    private ChannelEvictionTask channelEvictor;
+
+    private ExecutorService flushPool;
+
+    private ScheduledThreadPoolExecutor flushScheduler;
+
+    private WriteMirror mirror;
+
+    private volatile StorageTiers tiers;
+
+    private WriteAdmission admission;
+
+    private volatile TenantScheduler tenantScheduler;
+
     public JoinableFileManager()
     {
-        this.timer = new Timer( true );
+        this( new LocalLockCoordinator() );
+    }
+
+    /**
+     * Create a manager that coordinates its file locks with other managers (usually in other processes or on other
+     * machines) sharing the same storage, through the given {@link LockCoordinator}.
+     * <br/>
+     * <b>NOTE:</b> Content, channel and digest caches are only invalidated by writes through this manager, so they
+     * shouldn't be enabled when other managers write the same files.
+     */
+    public JoinableFileManager( final LockCoordinator coordinator )
+    {
+        this.locks = new FileTree( coordinator );
+        this.timer = new Timer( true );
+    }
+
+    FileTree getFileTree()
+    {
+        return locks;
+    }
+
+    /**
+     * This method is used to cleanup after an operation, just to be double sure we don't complete a request and leave
+     * file streams open. This file manager is designed to work in an environment where a stream may be handed off to
+     * a separate thread for reading / writing, while the original thread does something else. However, when all threads
+     * related to a particular call or user request are finished, we need to ensure that request gets cleaned up. This
+     * method enables that.
+     *
+     * @see #FILE_CLEANUP
+     */
+    public void cleanupCurrentThread()
+    {
+        // NOP, now handled by ThreadContext finalizer.
+    }
+
+    /**
+     * Begin periodic reporting (to log output) on active file locks in the system. This is intended to make it easier
+     * to see when things are being left active even after the call that initiated them is complete.
+     */
+    public synchronized void startReporting()
+    {
+        startReporting( 0, 10000 );
+    }
+
+    /**
+     * Begin periodic reporting (to log output) on active file locks in the system. This is intended to make it easier
+     * to see when things are being left active even after the call that initiated them is complete.
+     *
+     * This variant gives the embedding system more control over how often the report happens.
+     * @param delay in milliseconds, the initial delay before reporting
+     * @param period in milliseconds, the periodic delay between reports
+     */
+    public synchronized void startReporting( final long delay, final long period )
+    {
+        if ( reporter == null )
+        {
+            logger.info( "Starting file-lock statistics reporting with initial delay: {}ms and period: {}ms", delay,
+                         period );
+            reporter = new ReportingTask();
+            timer.schedule( reporter, delay, period );
+        }
+    }
+
+    /**
+     * Turn off periodic reporting of active file locks.
+     *
+     * @see #startReporting()
+     */
+    public synchronized void stopReporting()
+    {
+        if ( reporter != null )
+        {
+            logger.info( "Stopping file-lock statistics reporting." );
+            reporter.cancel();
+        }
+    }
+
+    /**
+     * Compute the given {@link MessageDigest} algorithms (MD5, SHA-1, SHA-256, etc.) over content written through
+     * {@link #openOutputStream(File, long)} as it is flushed to disk. This avoids reading each file back to generate
+     * checksums once it's written. Calling this with no algorithms turns digest computation off.
+     *
+     * @param algorithms The digest algorithms to compute for files opened for writing after this call
+     * @throws IllegalArgumentException if any algorithm is not available in this JVM
+     *
+     * @see #getDigests(File)
+     * @see #setDigestCallbacks(DigestCallbacks)
+     */
+    public void setDigestAlgorithms( final String... algorithms )
+    {
+        Set<String> algs = new LinkedHashSet<>( Arrays.asList( algorithms ) );
+        for ( String algorithm : algs )
+        {
+            try
+            {
+                MessageDigest.getInstance( algorithm );
+            }
+            catch ( NoSuchAlgorithmException e )
+            {
+                throw new IllegalArgumentException( "Unsupported digest algorithm: " + algorithm, e );
+            }
+        }
+
+        locks.setDigestAlgorithms( Collections.unmodifiableSet( algs ) );
+    }
+
+    /**
+     * Keep the digests of (at most) the given number of most recently written files available from
+     * {@link #getDigests(File)}, instead of the default 10,000. When more files are written, the digests cached
+     * longest ago are dropped first. Digests already cached are dropped by this call.
+     *
+     * @param maxEntries The number of files whose digests to keep
+     *
+     * @see #setDigestCallbacks(DigestCallbacks)
+     */
+    public void setDigestCacheSize( final int maxEntries )
+    {
+        locks.setDigestCacheSize( maxEntries );
+    }
+
+    /**
+     * Set the callbacks to notify when a written file is closed and its digests are final.
+     *
+     * @see #setDigestAlgorithms(String...)
+     */
+    public void setDigestCallbacks( final DigestCallbacks callbacks )
+    {
+        locks.setDigestCallbacks( callbacks );
+    }
+
+    /**
+     * Retrieve the digests computed when the given file was last written, keyed by algorithm. Digests are dropped as
+     * soon as the file is locked for writing or deletion again, or when the digests of too many other files were
+     * cached since (see {@link #setDigestCacheSize(int)}). Use {@link #setDigestCallbacks(DigestCallbacks)} to store
+     * them durably.
+     *
+     * @return Hex-encoded digests, or null if they aren't available
+     *
+     * @see #setDigestAlgorithms(String...)
+     */
+    public Map<String, String> getDigests( final File file )
+    {
+        return locks.getDigests( file );
+    }
+
+    /**
+     * Keep the content of small files in memory once they've been read, and serve subsequent reads from there instead
+     * of opening (and mapping) the file each time. This is intended for tiny, very frequently read files like metadata
+     * and checksums. Cached content is dropped as soon as the file (or a parent directory) is locked for writing or
+     * deletion, and the least recently used content is evicted when the cache grows beyond its byte budget.
+     *
+     * @param maxFileSize Files larger than this (in bytes) are never cached
+     * @param maxBytes The total content size (in bytes) the cache may hold
+     *
+     * @see #getContentCache()
+     */
+    public void enableContentCache( final int maxFileSize, final long maxBytes )
+    {
+        locks.setContentCache( new ContentCache( maxFileSize, maxBytes ) );
+    }
+
+    /**
+     * Turn off the content cache, discarding any cached content.
+     */
+    public void disableContentCache()
+    {
+        locks.setContentCache( null );
+    }
+
+    /**
+     * Retrieve the content cache (for hit / miss / eviction statistics), or null if it isn't enabled.
+     *
+     * @see #enableContentCache(int, long)
+     */
+    public ContentCache getContentCache()
+    {
+        return locks.getContentCache();
+    }
+
+    /**
+     * Write buffered content to disk on a pool of I/O threads, so the threads writing files can keep filling the next
+     * buffer while the previous one is written, instead of stopping for each write / sync. Joined readers are woken as
+     * each buffer reaches the disk. A writer waits once it has the given number of buffers (1mb each) waiting to be
+     * written. If a buffer can't be written, the error is thrown from the next write, flush or close of the stream.
+     * <br/>
+     * This affects streams opened for writing after the call.
+     *
+     * @param ioThreads The number of I/O threads to write with (shared by all files; each file is written by one
+     *                  thread at a time)
+     * @param maxInFlightBuffers The maximum number of full buffers per file waiting to be written
+     */
+    public synchronized void enableBackgroundFlush( final int ioThreads, final int maxInFlightBuffers )
+    {
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool( ioThreads, ( r ) -> {
+            Thread t = new Thread( r, "partyline-flush-" + count.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        } );
+
+        enableBackgroundFlush( pool, maxInFlightBuffers );
+        flushPool = pool;
+    }
+
+    /**
+     * Same as {@link #enableBackgroundFlush(int, int)}, but use the given executor (managed by the caller) for I/O.
+     */
+    public synchronized void enableBackgroundFlush( final Executor executor, final int maxInFlightBuffers )
+    {
+        disableBackgroundFlush();
+        locks.setBackgroundFlush( executor, maxInFlightBuffers );
+    }
+
+    /**
+     * Write content to disk in the writing threads again, for streams opened after the call. If the I/O pool was
+     * created by {@link #enableBackgroundFlush(int, int)}, it's shut down once its queued buffers are written, and
+     * streams opened before the call write the rest of their content in their own threads.
+     */
+    public synchronized void disableBackgroundFlush()
+    {
+        locks.setBackgroundFlush( null, 0 );
+        if ( flushPool != null )
+        {
+            flushPool.shutdown();
+            flushPool = null;
+        }
+    }
+
+    /**
+     * Partition the lock state into the given number of shards, by the first prefixDepth elements of each file's
+     * absolute path (for instance, 3 for repositories under /var/lib/repos/&lt;name&gt;). Locks on files under different
+     * prefixes then don't contend with each other. Locks on directories shallower than the prefix (which span
+     * shards) are still honored for all the files below them, at the cost of checking every shard when they're taken.
+     * This must be set before any file is locked.
+     *
+     * @param shards The number of shards (1 turns sharding off)
+     * @param prefixDepth The number of leading path elements selecting a shard (at least 1 with several shards)
+     * @throws IllegalStateException if any file is locked
+     */
+    public void setLockShards( final int shards, final int prefixDepth )
+    {
+        locks.setSharding( shards, prefixDepth );
+    }
+
+    public int getLockShardCount()
+    {
+        return locks.getShardCount();
+    }
+
+    /**
+     * Flush written content when the given policy says so, in addition to when the buffer is full: once a number of
+     * bytes is buffered, once the oldest buffered byte has waited for a delay, and / or as soon as a joined reader has
+     * caught up and is waiting for more. This cuts the time joined readers wait for their first bytes of slowly
+     * written (or trickled) content, at the cost of more, smaller writes. Delayed flushes run on a single scheduler
+     * thread shared by all files. Pass null to flush only when the buffer is full again.
+     * <br/>
+     * This affects streams opened for writing after the call. See {@link #getTimeToFirstByte()}.
+     */
+    public synchronized void setFlushPolicy( final FlushPolicy policy )
+    {
+        if ( policy == null )
+        {
+            locks.setFlushPolicy( null, null );
+            if ( flushScheduler != null )
+            {
+                flushScheduler.shutdown();
+                flushScheduler = null;
+            }
+
+            return;
+        }
+
+        if ( flushScheduler == null )
+        {
+            flushScheduler = new ScheduledThreadPoolExecutor( 1, ( r ) -> {
+                Thread t = new Thread( r, "partyline-flush-scheduler" );
+                t.setDaemon( true );
+                return t;
+            } );
+            flushScheduler.setRemoveOnCancelPolicy( true );
+            flushScheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy( false );
+        }
+
+        locks.setFlushPolicy( policy, flushScheduler );
+    }
+
+    /**
+     * Time from opening until reading the first byte, for readers that joined files while they were being written.
+     */
+    public TimeToFirstByte getTimeToFirstByte()
+    {
+        return locks.getTimeToFirstByte();
+    }
+
+    /**
+     * Mirror files written under the primary root to the same relative paths under the mirror root, asynchronously.
+     * Each flushed range of content is queued, and written to the mirror by a background thread, which locks each
+     * mirror file for writing through this manager just like any other write (readers of the mirror join the mirrored
+     * write). Writes that fail on the primary root are aborted on the mirror as well. Any mirror enabled before is
+     * disabled first.
+     * <br/>
+     * This affects streams opened for writing after the call. See {@link WriteMirror} for the replication lag.
+     *
+     * @param primaryRoot The directory whose files are mirrored
+     * @param mirrorRoot The directory to mirror them to (must not overlap the primary root)
+     * @param maxQueuedFlushes The maximum number of flushed ranges (up to 1mb each) waiting to be mirrored
+     * @param overflow Whether writers wait, or files are copied in full once closed, when the queue is full
+     * @param lockTimeout Timeout (milliseconds) for the attempts to lock mirror files (and to read primary files being
+     *                    copied in full)
+     * @return the mirror, for reporting
+     */
+    public synchronized WriteMirror enableMirror( final File primaryRoot, final File mirrorRoot,
+                                                  final int maxQueuedFlushes, final MirrorOverflow overflow,
+                                                  final long lockTimeout )
+            throws InterruptedException
+    {
+        Path primary = primaryRoot.toPath().toAbsolutePath().normalize();
+        Path secondary = mirrorRoot.toPath().toAbsolutePath().normalize();
+        if ( primary.startsWith( secondary ) || secondary.startsWith( primary ) )
+        {
+            throw new IllegalArgumentException( "Mirror root: " + mirrorRoot + " overlaps primary root: " + primaryRoot );
+        }
+
+        if ( maxQueuedFlushes < 1 )
+        {
+            throw new IllegalArgumentException( "Mirror queue must hold at least one flush." );
+        }
+
+        disableMirror();
+
+        mirror = new WriteMirror( this, locks, primaryRoot, mirrorRoot, maxQueuedFlushes, overflow, lockTimeout );
+        locks.setMirror( mirror );
+
+        return mirror;
+    }
+
+    /**
+     * Stop mirroring, and wait until the content queued so far has been written to the mirror. Mirror files whose
+     * primary files are still being written are aborted (they'd be incomplete).
+     */
+    public synchronized void disableMirror()
+            throws InterruptedException
+    {
+        locks.setMirror( null );
+        if ( mirror != null )
+        {
+            mirror.shutdown();
+            mirror = null;
+        }
+    }
+
+    public synchronized WriteMirror getMirror()
+    {
+        return mirror;
+    }
+
+    /**
+     * Limit writes, so a burst of writers (after an upstream outage, say) can't saturate the disk and starve reads:
+     * streams opened for writing at once, bytes written but not yet flushed to disk, and concurrent fsyncs. Writers
+     * over a limit wait in order of arrival, and get an {@link IOException} if they can't be admitted within the
+     * timeout. Files written by {@link #openInputStreamOrProduce(File, Producer, long)} don't take writer slots, but
+     * are held to the other limits.
+     * <br/>
+     * This affects streams opened for writing after the call.
+     *
+     * @param maxWriters The maximum number of streams open for writing at once (0 or less for no limit)
+     * @param maxInFlightBytes The maximum number of written bytes not yet flushed to disk, across all streams (0 or
+     *                         less for no limit; otherwise at least 1mb, the size of a write buffer)
+     * @param maxSyncs The maximum number of fsyncs running at once (0 or less for no limit)
+     * @param timeout Time (milliseconds) a writer waits for admission before giving up (an fsync waits as long for its
+     *                turn, then runs anyway)
+     * @return the admission limits, for reporting queue depths
+     */
+    public synchronized WriteAdmission setWriteAdmission( final int maxWriters, final long maxInFlightBytes,
+                                                          final int maxSyncs, final long timeout )
+    {
+        admission = new WriteAdmission( maxWriters, maxInFlightBytes, maxSyncs, timeout );
+        locks.setWriteAdmission( admission );
+        return admission;
+    }
+
+    /**
+     * Stop limiting writes opened after the call.
+     */
+    public synchronized void clearWriteAdmission()
+    {
+        admission = null;
+        locks.setWriteAdmission( null );
+    }
+
+    public synchronized WriteAdmission getWriteAdmission()
+    {
+        return admission;
+    }
+
+    /**
+     * Share lock grants and disk writes fairly between tenants (repositories sharing this manager, for instance), by
+     * the weights and path prefixes configured in the given scheduler, so one tenant's bulk import can't monopolize
+     * the disk or the lock queues. Pass null to stop scheduling.
+     * <br/>
+     * Lock attempts are scheduled from the call on; flushes, for streams opened for writing after the call.
+     *
+     * @see TenantScheduler#getStats()
+     */
+    public void setTenantScheduler( final TenantScheduler scheduler )
+    {
+        tenantScheduler = scheduler;
+        locks.setTenantScheduler( scheduler );
+    }
+
+    public TenantScheduler getTenantScheduler()
+    {
+        return tenantScheduler;
+    }
+
+    /**
+     * Hold the flushes and reads of all streams subsequently opened to files under the given path (or to the file
+     * itself) to the given bandwidth limit, which they share; for instance, to keep a background job to a fraction of
+     * the disk's throughput. The limit of the nearest path applies. Pass null to remove the limit for the path.
+     * <br/>
+     * Reads served from the content cache don't touch the disk, so they aren't limited.
+     */
+    public void setRateLimit( final File path, final RateLimit limit )
+    {
+        locks.setRateLimit( path, limit );
+    }
+
+    /**
+     * The bandwidth limits set by path, for reporting.
+     */
+    public Map<String, RateLimit> getRateLimits()
+    {
+        return locks.getRateLimits();
+    }
+
+    /**
+     * The bandwidth limits given to streams currently open when they were opened (see
+     * {@link #openInputStream(File, long, RateLimit)} and {@link #openOutputStream(File, long, RateLimit)}), by file,
+     * for reporting.
+     */
+    public Map<File, List<RateLimit>> getStreamRateLimits()
+    {
+        final Map<File, List<RateLimit>> limits = new HashMap<>();
+        locks.forAll( ( jf ) -> {
+            List<RateLimit> l = jf.getStreamRateLimits();
+            if ( !l.isEmpty() )
+            {
+                limits.put( new File( jf.getPath() ), l );
+            }
+        } );
+
+        return limits;
+    }
+
+    /**
+     * Keep the files under the first root in an ordered list of storage roots (fastest first), each holding the same
+     * tree of files. Files are addressed by their paths under the first (hot) root: streams opened for reading resolve
+     * to the first tier that has the file, and files are always written to the hot tier. Files read from slower tiers
+     * often enough are promoted to the hot tier, and while the hot tier holds more than its budget, its least recently
+     * used files are demoted to the second tier. Files are moved in the background, through streams opened by this
+     * manager (so they're locked as usual), and never while they're in use. Any tiers configured before are cleared
+     * first.
+     * <br/>
+     * Deletes and manual locks of paths under the hot root apply to the file's copies in every tier, so a deleted file
+     * doesn't resolve to a stale copy in a slower tier, and a manual lock excludes the readers of any copy.
+     *
+     * @param roots The storage roots, fastest first (at least two)
+     * @param promoteAfterReads The number of reads from a slower tier after which a file is promoted
+     * @param hotBudget The number of bytes the hot tier should hold at most
+     * @param lockTimeout Timeout (milliseconds) for the attempts to lock files being moved
+     * @return the tiers, for reporting
+     */
+    public synchronized StorageTiers setStorageTiers( final List<File> roots, final int promoteAfterReads,
+                                                      final long hotBudget, final long lockTimeout )
+            throws InterruptedException
+    {
+        if ( roots.size() < 2 )
+        {
+            throw new IllegalArgumentException( "Storage tiers need at least two roots: " + roots );
+        }
+
+        clearStorageTiers();
+
+        tiers = new StorageTiers( this, locks, roots, promoteAfterReads, hotBudget, lockTimeout );
+        locks.setStorageTiers( tiers );
+
+        return tiers;
+    }
+
+    /**
+     * Stop resolving files through storage tiers, and moving them between tiers. A move in progress is finished first.
+     */
+    public synchronized void clearStorageTiers()
+            throws InterruptedException
+    {
+        StorageTiers old = tiers;
+        tiers = null;
+        locks.setStorageTiers( null );
+        if ( old != null )
+        {
+            old.shutdown();
+        }
+    }
+
+    public StorageTiers getStorageTiers()
+    {
+        return tiers;
+    }
+
+    /**
+     * Keep read-only file channels open after the last reader of a file closes, and reuse them for subsequent reads
+     * instead of opening the file again. Channels that stay unused for the idle timeout are closed, as are channels to
+     * files (or directories) that get locked for writing or deletion.
+     * <br/>
+     * The given number of open files is a strict budget for the files opened by this manager, readers and writers
+     * alike (idle channels are evicted to make room). When it's used up, opening another file waits for one to close,
+     * and fails like a lock timeout if none does within the timeout.
+     *
+     * @param maxOpenFiles The maximum number of file descriptors readers and writers may hold open
+     * @param idleTimeout in milliseconds, the time an unused channel is kept open
+     *
+     * @see #getChannelCache()
+     */
+    public synchronized void enableChannelCache( final int maxOpenFiles, final long idleTimeout )
+    {
+        disableChannelCache();
+
+        ChannelCache cache = new ChannelCache( maxOpenFiles, idleTimeout );
+        locks.setChannelCache( cache );
+
+        channelEvictor = new ChannelEvictionTask( cache );
+        timer.schedule( channelEvictor, idleTimeout, idleTimeout );
+    }
+
+    /**
+     * Turn off the channel cache, closing all channels that aren't currently in use.
+     */
+    public synchronized void disableChannelCache()
+    {
+        ChannelCache cache = locks.getChannelCache();
+        if ( cache != null )
+        {
+            locks.setChannelCache( null );
+            channelEvictor.cancel();
+            channelEvictor = null;
+            cache.clear();
+        }
+    }
+
+    /**
+     * Retrieve the channel cache (for hit / miss / eviction statistics), or null if it isn't enabled.
+     *
+     * @see #enableChannelCache(int, long)
+     */
+    public ChannelCache getChannelCache()
+    {
+        return locks.getChannelCache();
+    }
+
+    /**
+     * Remember files that were found to be missing when opening them for reading, and fail subsequent attempts to read
+     * them right away, without checking the filesystem or acquiring any locks. A missing file is remembered until the
+     * time-to-live expires, or until the file (or a parent directory) is locked for writing or deletion.
+     *
+     * @param maxEntries The maximum number of missing paths to remember
+     * @param timeToLive in milliseconds, how long a missing path is remembered
+     *
+     * @see #getMissingFileCache()
+     */
+    public void enableMissingFileCache( final int maxEntries, final long timeToLive )
+    {
+        locks.setMissingFileCache( new MissingFileCache( maxEntries, timeToLive ) );
+    }
+
+    /**
+     * Turn off the missing-file cache.
+     */
+    public void disableMissingFileCache()
+    {
+        locks.setMissingFileCache( null );
+    }
+
+    /**
+     * Retrieve the missing-file cache (for hit / eviction statistics), or null if it isn't enabled.
+     *
+     * @see #enableMissingFileCache(int, long)
+     */
+    public MissingFileCache getMissingFileCache()
+    {
+        return locks.getMissingFileCache();
+    }
+
+    /**
+     * Track which paths lock attempts have to wait for: per path, the number of waits, the total time spent waiting,
+     * and the level of lock that was in the way. State is bounded; only the given number of most contended paths
+     * (by total wait time) is kept, with a fixed-size sketch estimating the rest. The top paths are included in the
+     * periodic report (see {@link #startReporting()}).
+     *
+     * @param topK The number of most contended paths to keep (20 is a good start)
+     *
+     * @see #getContentionProfiler()
+     */
+    public void enableContentionProfiler( final int topK )
+    {
+        locks.setContentionProfiler( new ContentionProfiler( topK ) );
+    }
+
+    /**
+     * Stop tracking lock contention, and drop what was tracked.
+     */
+    public void disableContentionProfiler()
+    {
+        locks.setContentionProfiler( null );
+    }
+
+    /**
+     * Retrieve the contention profiler (for the most contended paths), or null if it isn't enabled.
+     *
+     * @see #enableContentionProfiler(int)
+     */
+    public ContentionProfiler getContentionProfiler()
+    {
+        return locks.getContentionProfiler();
+    }
+
+    /**
+     * Detect deadlocks between lock waits: threads in a cycle, each waiting for a lock the next one holds (for
+     * instance, one holding a write lock on a file and waiting to read another, whose writer waits for the first).
+     * Each time a thread waits for a lock, a graph of which lock owners wait for which others is searched for a cycle.
+     * The youngest waiter in a cycle (the one that started waiting last) fails instead of hanging until its timeout:
+     * opening a stream, deleting and {@link #upgrade(File, long)} throw {@link LockDeadlockException}, and
+     * {@link #lock(File, long, LockLevel)} returns false. It should release the locks it holds, and retry.
+     * <br/>
+     * Lock owners are threads (or thread contexts). A stream opened in one thread and closed by another could look
+     * like a deadlock while the other thread is still working, so this is off by default. Only waits for file locks
+     * are tracked, not the short waits for another thread's operation on the same file (see {@link WaitForGraph}).
+     *
+     * @see #getDeadlockCount()
+     */
+    public void enableDeadlockDetection()
+    {
+        locks.setWaitForGraph( new WaitForGraph() );
+    }
+
+    /**
+     * Stop detecting deadlocks between lock waits.
+     */
+    public void disableDeadlockDetection()
+    {
+        locks.setWaitForGraph( null );
+    }
+
+    /**
+     * Retrieve the number of deadlocks broken since deadlock detection was enabled (0 if it isn't enabled).
+     *
+     * @see #enableDeadlockDetection()
+     */
+    public long getDeadlockCount()
+    {
+        WaitForGraph graph = locks.getWaitForGraph();
+        return graph == null ? 0 : graph.getDeadlockCount();
+    }
+
+    /**
+     * Also lock files in the filesystem while they're open, using shared OS-level locks for reading and exclusive ones
+     * for writing / deletion. This allows several processes (each with its own manager) to safely use the same files.
+     * Threads in this process are still coordinated by the in-memory locks, and opening a file that another process
+     * holds waits (up to the given timeout) for it to be released.
+     * <br/>
+     * If the filesystem doesn't support locking, a warning is logged and files are used without OS-level locks.
+     * <br/>
+     * <b>NOTE:</b> Only files opened through streams (or deleted) take OS-level locks; {@link #lock(File, long, LockLevel, String)}
+     * and directory locks are only visible within this process.
+     */
+    public void enableProcessLocks()
+    {
+        locks.setProcessLocks( true );
+    }
+
+    /**
+     * Turn off OS-level file locks. Files opened before this call keep their locks until they're closed.
+     */
+    public void disableProcessLocks()
+    {
+        locks.setProcessLocks( false );
+    }
+
+    public boolean isProcessLocksEnabled()
+    {
+        return locks.isProcessLocks();
+    }
+
+    /**
+     * Publish the progress of each write in a small memory-mapped sidecar file next to the file being written
+     * (<code>.&lt;name&gt;.progress</code>, removed when the write completes), and use the sidecars published by
+     * other processes to join their writes in progress. Readers then see content as soon as the writing process flushes
+     * it and reach EOF when the write completes, as they would for a write in this process. If the writing process
+     * dies before completing the write, its readers fail with an {@link IOException} instead of returning a partial
+     * file.
+     * <br/>
+     * All processes sharing the files must enable this, and should also enable {@link #enableProcessLocks()}.
+     */
+    public void enableProgressFiles()
+    {
+        locks.setProgressFiles( true );
     }
 
-    FileTree getFileTree()
+    public void disableProgressFiles()
     {
-        return locks;
+        locks.setProgressFiles( false );
     }
 
-    /**
-     * This method is used to cleanup after an operation, just to be double sure we don't complete a request and leave
-     * file streams open. This file manager is designed to work in an environment where a stream may be handed off to
-     * a separate thread for reading / writing, while the original thread does something else. However, when all threads
-     * related to a particular call or user request are finished, we need to ensure that request gets cleaned up. This
-     * method enables that.
-     *
-     * @see #FILE_CLEANUP
-     */
-    public void cleanupCurrentThread()
+    public boolean isProgressFilesEnabled()
     {
-        // NOP, now handled by ThreadContext finalizer.
+        return locks.isProgressFiles();
     }
 
     /**
-     * Begin periodic reporting (to log output) on active file locks in the system. This is intended to make it easier
-     * to see when things are being left active even after the call that initiated them is complete.
+     * Allocate space for the expected length of writes opened with {@link #openOutputStream(File, long, long)} up
+     * front, so large files aren't fragmented by concurrent writes. Java can't reserve space without writing it, so
+     * this writes zeros over the expected length before the content is written: it doubles the I/O of those writes, in
+     * return for contiguous files. Without this, the expected length is only used to report writes that come up short
+     * (or long).
      */
-    public synchronized void startReporting()
+    public void enablePreallocation()
     {
-        startReporting( 0, 10000 );
+        locks.setPreallocation( true );
     }
 
-    /**
-     * Begin periodic reporting (to log output) on active file locks in the system. This is intended to make it easier
-     * to see when things are being left active even after the call that initiated them is complete.
-     *
-     * This variant gives the embedding system more control over how often the report happens.
-     * @param delay in milliseconds, the initial delay before reporting
-     * @param period in milliseconds, the periodic delay between reports
-     */
-    public synchronized void startReporting( final long delay, final long period )
+    public void disablePreallocation()
     {
-        if ( reporter == null )
-        {
-            logger.info( "Starting file-lock statistics reporting with initial delay: {}ms and period: {}ms", delay,
-                         period );
-            reporter = new ReportingTask();
-            timer.schedule( reporter, delay, period );
-        }
+        locks.setPreallocation( false );
     }
 
-    /**
-     * Turn off periodic reporting of active file locks.
-     *
-     * @see #startReporting()
-     */
-    public synchronized void stopReporting()
+    public boolean isPreallocationEnabled()
     {
-        if ( reporter != null )
-        {
-            logger.info( "Stopping file-lock statistics reporting." );
-            reporter.cancel();
-        }
+        return locks.isPreallocation();
     }
 
     /**
@@ -223,6 +932,24 @@ public class JoinableFileManager
      */
     public OutputStream openOutputStream( final File file, final long timeout )
             throws IOException, InterruptedException
+    {
+        return openOutput( file, timeout, null );
+    }
+
+    /**
+     * Same as {@link #openOutputStream(File, long)}, but hold the stream's flushes to the given bandwidth limit (in
+     * addition to any limit set for the file's path with {@link #setRateLimit(File, RateLimit)}).
+     *
+     * @param limit The limit for this stream (may be shared with other streams; null for none)
+     */
+    public OutputStream openOutputStream( final File file, final long timeout, final RateLimit limit )
+            throws IOException, InterruptedException
+    {
+        return openOutput( file, timeout, limit );
+    }
+
+    private OutputStream openOutput( final File file, final long timeout, final RateLimit limit )
+            throws IOException, InterruptedException
     {
         logger.trace( ">>>OPEN OUTPUT: {} with timeout: {}", file, timeout );
 
@@ -232,6 +959,7 @@ public class JoinableFileManager
                 throw new IOException( "Could not open output stream to: " + file + " in " + timeout + "ms." );
             }
 
+            result.limitOutput( limit );
             return result.getOutputStream();
         } );
 
@@ -240,6 +968,58 @@ public class JoinableFileManager
         return stream;
     }
 
+    /**
+     * Same as {@link #openOutputStream(File, long)}, but for content whose length is known in advance (from a
+     * Content-Length header, for example). When the stream is closed, a warning is logged if the length written doesn't
+     * match the expected length. If {@link #enablePreallocation()} is set, space for the expected length is allocated
+     * before the stream is returned, and the file is trimmed to the length actually written when it's closed.
+     *
+     * @param file The file to write
+     * @param expectedLength The expected length of the content in bytes; if less than 1, it's unknown
+     * @param timeout Timeout (milliseconds) for the attempt to lock the file for writing
+     */
+    public OutputStream openOutputStream( final File file, final long expectedLength, final long timeout )
+            throws IOException, InterruptedException
+    {
+        return openOutputStream( file, expectedLength, timeout, null );
+    }
+
+    /**
+     * Same as {@link #openOutputStream(File, long, long)}, but notify the given callbacks as content is flushed and
+     * the file is closed. If they're {@link ContentStreamCallbacks}, they're also given each flushed range of content
+     * (as a read-only view of the write buffer), so it can be streamed elsewhere without reading the file back.
+     *
+     * @param callbacks The callbacks to notify (may be null)
+     */
+    public OutputStream openOutputStream( final File file, final long expectedLength, final long timeout,
+                                          final StreamCallbacks callbacks )
+            throws IOException, InterruptedException
+    {
+        logger.trace( ">>>OPEN OUTPUT: {} with expected length: {} and timeout: {}", file, expectedLength, timeout );
+
+        JoinableFile jf = locks.setOrJoinFile( file, callbacks, true, timeout, TimeUnit.MILLISECONDS, ( result ) -> {
+            if ( result == null )
+            {
+                throw new IOException( "Could not open output stream to: " + file + " in " + timeout + "ms." );
+            }
+
+            result.expectLength( expectedLength );
+            return result;
+        } );
+
+        // outside the file's operation lock, so joiners don't wait for the fill.
+        if ( locks.isPreallocation() )
+        {
+            jf.preallocate();
+        }
+
+        OutputStream stream = jf.getOutputStream();
+
+        addToContext( "OUTPUT@" + System.nanoTime() + ": " + file, stream );
+
+        return stream;
+    }
+
     /**
      * Delete the given file, waiting until the file can be locked for deletion
      */
@@ -259,11 +1039,73 @@ public class JoinableFileManager
             throws IOException, InterruptedException
     {
         logger.trace( ">>>DELETE: {}", file, timeout );
+        StorageTiers t = tiers;
+        if ( t != null )
+        {
+            // slowest tier first, so the path never resolves to a stale copy once a faster one is gone.
+            List<File> copies = t.copies( file );
+            for ( int i = copies.size() - 1; i > 0; i-- )
+            {
+                File copy = copies.get( i );
+                if ( copy.exists() && !locks.delete( copy, timeout, TimeUnit.MILLISECONDS ) )
+                {
+                    logger.trace( "<<<DELETE (Result: false, {} is in use)", copy );
+                    return false;
+                }
+            }
+        }
+
         boolean result = locks.delete( file, timeout, TimeUnit.MILLISECONDS );
         logger.trace( "<<<DELETE (Result: {}, file exists? {})", result, file.exists() );
         return result;
     }
 
+    /**
+     * Delete the given directory tree, deleting subtrees in parallel. In contrast to {@link #tryDelete(File, long)},
+     * this doesn't lock the whole tree for the duration of the delete; each file and directory is only locked while it
+     * is deleted itself. Writes into a directory wait while it's being emptied, so nothing new is created behind the
+     * delete; each directory is released as soon as it's done.
+     *
+     * @param dir The directory to delete
+     * @param policy Whether to skip or wait for files in the tree that are locked by other operations
+     * @param timeout Timeout (milliseconds) for the attempt to lock each file for deletion
+     * @param callbacks Optional callbacks to notify of each file that is deleted or skipped (for progress reporting)
+     * @return true if the whole tree was deleted; false if anything was left in place
+     */
+    public boolean tryDeleteTree( File dir, DeletePolicy policy, long timeout, DeleteCallbacks callbacks )
+            throws IOException, InterruptedException
+    {
+        logger.trace( ">>>DELETE TREE: {} with policy: {}", dir, policy );
+        // a pool per delete, so its threads don't outlive it.
+        ForkJoinPool pool = new ForkJoinPool();
+        try
+        {
+            StorageTiers t = tiers;
+            if ( t != null )
+            {
+                List<File> copies = t.copies( dir );
+                for ( int i = copies.size() - 1; i > 0; i-- )
+                {
+                    File copy = copies.get( i );
+                    if ( copy.exists() && !locks.deleteTree( copy, policy, timeout, TimeUnit.MILLISECONDS, callbacks,
+                                                             pool ) )
+                    {
+                        logger.trace( "<<<DELETE TREE (Result: false, {} was left in place)", copy );
+                        return false;
+                    }
+                }
+            }
+
+            boolean result = locks.deleteTree( dir, policy, timeout, TimeUnit.MILLISECONDS, callbacks, pool );
+            logger.trace( "<<<DELETE TREE (Result: {}, dir exists? {})", result, dir.exists() );
+            return result;
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
     /**
      * If there is an active {@link JoinableFile}, call {@link JoinableFile#joinStream()} and return it to the user.
      * Otherwise, open a new {@link FileInputStream} to the specified file and pass the result back to the user.
@@ -281,26 +1123,131 @@ public class JoinableFileManager
      */
     public InputStream openInputStream( final File file, final long timeout )
             throws IOException, InterruptedException
+    {
+        return openResolved( file, timeout, null );
+    }
+
+    /**
+     * Same as {@link #openInputStream(File, long)}, but hold the stream's reads to the given bandwidth limit (in
+     * addition to any limit set for the file's path with {@link #setRateLimit(File, RateLimit)}). Such streams aren't
+     * served from the content cache.
+     *
+     * @param limit The limit for this stream (may be shared with other streams; null for none)
+     */
+    public InputStream openInputStream( final File file, final long timeout, final RateLimit limit )
+            throws IOException, InterruptedException
+    {
+        return openResolved( file, timeout, limit );
+    }
+
+    private InputStream openResolved( final File file, final long timeout, final RateLimit limit )
+            throws IOException, InterruptedException
+    {
+        StorageTiers t = tiers;
+        if ( t == null )
+        {
+            return openInput( file, timeout, limit );
+        }
+
+        File resolved = t.resolve( file );
+        InputStream stream;
+        try
+        {
+            stream = openInput( resolved, timeout, limit );
+        }
+        catch ( FileNotFoundException e )
+        {
+            // moved to another tier between resolving and opening it?
+            File moved = t.resolve( file );
+            if ( moved.equals( resolved ) )
+            {
+                throw e;
+            }
+
+            resolved = moved;
+            stream = openInput( resolved, timeout, limit );
+        }
+
+        t.read( file, resolved );
+        return stream;
+    }
+
+    private InputStream openInput( final File file, final long timeout, final RateLimit limit )
+            throws IOException, InterruptedException
     {
         logger.trace( ">>>OPEN INPUT: {} with timeout: {}", file, timeout );
+        InputStream cached = limit == null ? locks.openCachedInputStream( file, timeout, TimeUnit.MILLISECONDS ) : null;
+        if ( cached != null )
+        {
+            return cached;
+        }
+
         AtomicReference<InterruptedException> interrupt = new AtomicReference<>();
-        InputStream stream = locks.setOrJoinFile( file, null, false, timeout, TimeUnit.MILLISECONDS, ( result ) -> {
-            if ( result == null )
+        InputStream stream = locks.setOrJoinFile( file, null, false, timeout, TimeUnit.MILLISECONDS,
+                                                  ( result ) -> joinFile( file, result, timeout, interrupt, limit ) );
+
+        InterruptedException ie = interrupt.get();
+        if ( ie != null )
+        {
+            throw ie;
+        }
+
+        addToContext( "INPUT@" + System.nanoTime() + ": " + file, stream );
+
+        return stream;
+    }
+
+    /**
+     * Open an input stream to the specified file, like {@link #openInputStream(File, long)}. If the file is missing,
+     * produce it instead: exactly one of the concurrent callers for a missing file gets to run its {@link Producer},
+     * writing the file in its own thread, while the other callers immediately join the write as readers (and don't
+     * run their producers). This coalesces concurrent cache misses for the same file into a single fetch.
+     * <br/>
+     * If the producer fails, it's thrown from here to its caller, the incomplete file is deleted, and the readers that
+     * joined the write get an {@link IOException} once they've read the content written so far, rather than a
+     * truncated EOF.
+     *
+     * @param file The file to read
+     * @param producer Writes the file's content, if the file is missing
+     * @param timeout Timeout (milliseconds) to wait for the file's lock; the producer's run time isn't limited
+     * @return a stream over the file's (produced) content
+     */
+    public InputStream openInputStreamOrProduce( final File file, final Producer producer, final long timeout )
+            throws IOException, InterruptedException
+    {
+        logger.trace( ">>>OPEN INPUT OR PRODUCE: {} with timeout: {}", file, timeout );
+        StorageTiers t = tiers;
+        if ( t != null && !t.resolve( file ).equals( file ) )
+        {
+            // it's in a slower tier.
+            return openInputStream( file, timeout );
+        }
+
+        if ( file.exists() )
+        {
+            InputStream cached = locks.openCachedInputStream( file, timeout, TimeUnit.MILLISECONDS );
+            if ( cached != null )
             {
-                throw new IOException( "Could not open input stream to: " + file + " in " + timeout + "ms." );
+                return cached;
             }
+        }
 
-            try
+        AtomicReference<InterruptedException> interrupt = new AtomicReference<>();
+        AtomicReference<JoinableFile> produced = new AtomicReference<>();
+        InputStream stream = locks.joinOrProduceFile( file, null, timeout, TimeUnit.MILLISECONDS, ( result ) -> {
+            // read along with our own write, so the content is there to return when the producer is done.
+            InputStream in = joinFile( file, result, timeout, interrupt, null );
+            if ( in == null )
             {
-                return result.joinStream();
+                result.abort( interrupt.get() );
             }
-            catch ( InterruptedException e )
+            else
             {
-                interrupt.set( e );
+                produced.set( result );
             }
 
-            return null;
-        } );
+            return in;
+        }, ( result ) -> joinFile( file, result, timeout, interrupt, null ) );
 
         InterruptedException ie = interrupt.get();
         if ( ie != null )
@@ -308,11 +1255,59 @@ public class JoinableFileManager
             throw ie;
         }
 
+        JoinableFile target = produced.get();
+        if ( target != null )
+        {
+            logger.trace( "Producing: {}", file );
+            OutputStream out = target.getOutputStream();
+            try
+            {
+                producer.produce( out );
+                out.close();
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                logger.debug( "Failed to produce: " + file, e );
+                try
+                {
+                    target.abort( e );
+                }
+                catch ( IOException abortError )
+                {
+                    e.addSuppressed( abortError );
+                }
+
+                IOUtils.closeQuietly( stream );
+                throw e;
+            }
+        }
+
         addToContext( "INPUT@" + System.nanoTime() + ": " + file, stream );
 
         return stream;
     }
 
+    private InputStream joinFile( final File file, final JoinableFile result, final long timeout,
+                                  final AtomicReference<InterruptedException> interrupt, final RateLimit limit )
+            throws IOException
+    {
+        if ( result == null )
+        {
+            throw new IOException( "Could not open input stream to: " + file + " in " + timeout + "ms." );
+        }
+
+        try
+        {
+            return result.joinThrottledStream( limit );
+        }
+        catch ( InterruptedException e )
+        {
+            interrupt.set( e );
+        }
+
+        return null;
+    }
+
     /**
      * Add the specified file path (and stream/closeable) to the map attached to the current {@link ThreadContext}
      * instance. This will enable {@link #cleanupCurrentThread()} later.
@@ -362,12 +1357,42 @@ public class JoinableFileManager
             throws InterruptedException
     {
         logger.trace( ">>>MANUAL LOCK: {}", file );
+        StorageTiers t = tiers;
+        if ( t != null )
+        {
+            return lockCopies( t.copies( file ), timeout, lockLevel );
+        }
+
         boolean result = locks.tryLock( file, MANUAL_LOCK_LABEL, lockLevel, timeout, TimeUnit.MILLISECONDS );
         logger.trace( "<<<MANUAL LOCK (result: {})", result );
 
         return result;
     }
 
+    // lock the copies of a file in every storage tier, hottest first, or none of them.
+    private boolean lockCopies( final List<File> copies, final long timeout, final LockLevel lockLevel )
+            throws InterruptedException
+    {
+        long end = timeout < 1 ? -1 : System.currentTimeMillis() + timeout;
+        for ( int i = 0; i < copies.size(); i++ )
+        {
+            long remaining = end < 0 ? timeout : Math.max( 1, end - System.currentTimeMillis() );
+            if ( !locks.tryLock( copies.get( i ), MANUAL_LOCK_LABEL, lockLevel, remaining, TimeUnit.MILLISECONDS ) )
+            {
+                for ( int j = i - 1; j >= 0; j-- )
+                {
+                    locks.unlock( copies.get( j ), MANUAL_LOCK_LABEL );
+                }
+
+                logger.trace( "<<<MANUAL LOCK (result: false, {} is in use)", copies.get( i ) );
+                return false;
+            }
+        }
+
+        logger.trace( "<<<MANUAL LOCK (result: true)" );
+        return true;
+    }
+
     /**
      * If the specified file was manually locked, unlock it and return the state of locks remaining on the file.
      * Return true if the file is unlocked, false if locks remain.
@@ -384,7 +1409,18 @@ public class JoinableFileManager
     public boolean unlock( final File file )
     {
         logger.trace( ">>>MANUAL UNLOCK: {} by: {}", file, getLockReservationName() );
-        boolean result = locks.unlock( file, MANUAL_LOCK_LABEL );
+        StorageTiers t = tiers;
+        boolean result = true;
+        if ( t != null )
+        {
+            List<File> copies = t.copies( file );
+            for ( int i = copies.size() - 1; i > 0; i-- )
+            {
+                result = locks.unlock( copies.get( i ), MANUAL_LOCK_LABEL ) && result;
+            }
+        }
+
+        result = locks.unlock( file, MANUAL_LOCK_LABEL ) && result;
 
         if ( result )
         {
@@ -398,6 +1434,52 @@ public class JoinableFileManager
         return result;
     }
 
+    /**
+     * Upgrade the read lock held by the current thread on the specified file to a write lock, without unlocking in
+     * between (so no other thread can write first). This waits for any other readers to unlock the file; new readers
+     * are turned away meanwhile. The read lock may come from {@link #lock(File, long, LockLevel)} or from an open input
+     * stream. If two threads holding read locks try to upgrade at the same time, neither could ever proceed, so the
+     * second one fails with {@link LockUpgradeDeadlockException}; it should unlock the file and start over.
+     *
+     * @param file The file to upgrade
+     * @param timeout Timeout (milliseconds) to wait for other readers; the read lock is kept if this expires
+     * @return true if the current thread now holds a write lock on the file, false if it didn't hold a read lock or
+     * the timeout expired
+     * @throws LockUpgradeDeadlockException if another thread is already waiting to upgrade its read lock on the file
+     * @throws LockDeadlockException if the wait for other readers is failed to break a deadlock (see
+     * {@link #enableDeadlockDetection()})
+     *
+     * @see #downgrade(File)
+     */
+    public boolean upgrade( final File file, final long timeout )
+            throws IOException, InterruptedException
+    {
+        logger.trace( ">>>UPGRADE: {} by: {}", file, getLockReservationName() );
+        boolean result = locks.upgrade( file, timeout, TimeUnit.MILLISECONDS );
+        logger.trace( "<<<UPGRADE (result: {})", result );
+
+        return result;
+    }
+
+    /**
+     * Downgrade the write lock held by the current thread on the specified file to a read lock, so it can hand straight
+     * over to reading (along with other readers) without letting another writer in first. Any output stream the
+     * current thread has open on the file must be closed first.
+     *
+     * @return true if the current thread now holds a read lock on the file, false if it didn't hold a write lock or
+     * still has an output stream open
+     *
+     * @see #upgrade(File, long)
+     */
+    public boolean downgrade( final File file )
+    {
+        logger.trace( ">>>DOWNGRADE: {} by: {}", file, getLockReservationName() );
+        boolean result = locks.downgrade( file );
+        logger.trace( "<<<DOWNGRADE (result: {})", result );
+
+        return result;
+    }
+
     public boolean isLockedByCurrentThread( File file )
     {
         return locks.isLockedByCurrentThread( file );
@@ -472,10 +1554,7 @@ public class JoinableFileManager
                 break;
             }
 
-            synchronized ( locks )
-            {
-                locks.wait( 100 );
-            }
+            TimeUnit.MILLISECONDS.sleep( 100 );
 
             lockLevel = locks.getLockLevel( file );
             if ( lockLevel == null )
@@ -514,10 +1593,7 @@ public class JoinableFileManager
                 break;
             }
 
-            synchronized ( locks )
-            {
-                locks.wait( 100 );
-            }
+            TimeUnit.MILLISECONDS.sleep( 100 );
 
             lockLevel = locks.getLockLevel( file );
             if ( lockLevel != LockLevel.delete )
@@ -545,7 +1621,29 @@ public class JoinableFileManager
     }
 
     /**
-     * {@link TimerTask} implementation that handles reporting active file locks to the logging output.
+     * {@link TimerTask} implementation that closes channels which have been idle in the {@link ChannelCache} for longer
+     * than its idle timeout.
+     */
+    private static final class ChannelEvictionTask
+            extends TimerTask
+    {
+        private final ChannelCache cache;
+
+        ChannelEvictionTask( final ChannelCache cache )
+        {
+            this.cache = cache;
+        }
+
+        @Override
+        public void run()
+        {
+            cache.evictIdle();
+        }
+    }
+
+    /**
+     * {@link TimerTask} implementation that handles reporting the most contended files (if profiled) and active file
+     * locks to the logging output.
      */
     private final class ReportingTask
             extends TimerTask
@@ -553,6 +1651,32 @@ public class JoinableFileManager
         @Override
         public void run()
         {
+            ContentionProfiler profiler = getContentionProfiler();
+            List<ContendedPath> contended = profiler == null ? Collections.emptyList() : profiler.getTopContended();
+            if ( !contended.isEmpty() )
+            {
+                final StringBuilder sb = new StringBuilder();
+                sb.append( "\n\nThe most contended files are:" );
+                contended.forEach( c -> sb.append( "\n" ).append( c ) );
+
+                logger.info( sb.append( "\n" ).toString() );
+            }
+
+            final Map<String, RateLimit> pathLimits = getRateLimits();
+            final Map<File, List<RateLimit>> streamLimits = getStreamRateLimits();
+            if ( !pathLimits.isEmpty() || !streamLimits.isEmpty() )
+            {
+                final StringBuilder sb = new StringBuilder();
+                sb.append( "\n\nBandwidth limits:" );
+                pathLimits.forEach( ( path, limit ) -> sb.append( "\n" ).append( path ).append( ": " ).append( limit ) );
+                streamLimits.forEach( ( file, limits ) -> sb.append( "\n" )
+                                                            .append( file )
+                                                            .append( " (streams): " )
+                                                            .append( limits ) );
+
+                logger.info( sb.append( "\n" ).toString() );
+            }
+
             final Map<File, CharSequence> activeLocks = getActiveLocks();
             if ( activeLocks.isEmpty() )
             {
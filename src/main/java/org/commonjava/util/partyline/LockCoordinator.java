@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.IOException;
+
+/**
+ * Coordinates file locks between several partyline instances (nodes) sharing the same storage. {@link FileTree} still
+ * manages the locks of the threads within a node; it asks the coordinator for a lock on a path when the node starts
+ * using the path (the first lock on it), and releases it when the node's last lock on the path is released.
+ * <br/>
+ * Between nodes, read locks are shared, while write and delete locks are exclusive. A lock on a directory covers
+ * the files beneath it: implementations must deny a lock if another node holds a conflicting lock on the path, on any
+ * of its ancestors, or on any of its descendants, since {@link FileTree} only asks for the path it's locking.
+ * <br/>
+ * {@link FileTree} calls {@link #tryAcquire(String, LockLevel)} while holding the lock for the path within the node,
+ * and retries periodically until its timeout expires, so implementations should answer right away rather than wait.
+ *
+ * @see LocalLockCoordinator
+ * @see JoinableFileManager#JoinableFileManager(LockCoordinator)
+ */
+public interface LockCoordinator
+{
+    /**
+     * Try to lock the given path for this node.
+     *
+     * @param path The absolute path to lock
+     * @param level The level of the lock
+     * @return true if this node now holds the lock; false if another node holds a conflicting lock
+     * @throws IOException if the coordination service can't be reached
+     * @throws InterruptedException if interrupted while waiting for the answer of the coordination service
+     */
+    boolean tryAcquire( String path, LockLevel level )
+            throws IOException, InterruptedException;
+
+    /**
+     * Release this node's lock on the given path. Implementations may delay or batch releases, but not
+     * indefinitely.
+     *
+     * @param path The absolute path to unlock
+     */
+    void release( String path );
+}
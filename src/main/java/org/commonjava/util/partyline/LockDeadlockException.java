@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.IOException;
+
+/**
+ * Thrown when waiting for a lock would deadlock: the lock owners in a cycle are each waiting for a lock that the next
+ * one holds, so none of the waits could end before a timeout. The youngest waiter in the cycle (the one that started
+ * waiting last) fails with this exception. The caller should release the locks it holds so the others can go ahead,
+ * then retry from the start.
+ *
+ * @see JoinableFileManager#enableDeadlockDetection()
+ */
+public final class LockDeadlockException
+        extends IOException
+{
+    LockDeadlockException( final String path, final String cycle )
+    {
+        super( "Deadlock waiting to lock: " + path + "; wait-for cycle: " + cycle
+                       + ". Release the locks held here, and retry." );
+    }
+}
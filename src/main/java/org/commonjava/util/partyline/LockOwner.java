@@ -28,6 +28,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 import static org.apache.commons.lang.StringUtils.join;
@@ -49,18 +50,32 @@ final class LockOwner
 
     private final Map<String, LockOwnerInfo> locks = new LinkedHashMap<>();
 
+    // guards the lock state; used instead of a monitor so lock accounting doesn't pin virtual threads.
+    private final ReentrantLock stateLock = new ReentrantLock();
+
     private String path;
 
     private LockLevel dominantLockLevel;
 
     private String dominantOwner;
 
+    // owner waiting to upgrade its read lock, if any
+    private String upgrading;
+
     LockOwner( String path, String label, LockLevel lockLevel )
+    {
+        this( path, label, lockLevel, false );
+    }
+
+    /**
+     * @param stream true if the lock is taken for a stream of a {@link JoinableFile} (see {@link #clearStreamLocks()})
+     */
+    LockOwner( String path, String label, LockLevel lockLevel, boolean stream )
     {
         this.path = path;
         this.dominantLockLevel = lockLevel;
         this.dominantOwner = getLockReservationName();
-        increment( label, lockLevel );
+        increment( label, lockLevel, stream );
     }
 
     boolean isLocked()
@@ -73,129 +88,313 @@ final class LockOwner
         return !locks.isEmpty() && locks.containsKey( getLockReservationName() );
     }
 
-    synchronized boolean lock( String label, LockLevel lockLevel )
+    /**
+     * @return The names of the owners currently holding this lock (see {@link #getLockReservationName()})
+     */
+    Set<String> getOwners()
     {
-        String lockOwner = getLockReservationName();
-        if ( locks.isEmpty() )
+        stateLock.lock();
+        try
         {
-            logger.trace( "Not locked; locking: {}", lockOwner );
-            this.dominantLockLevel = lockLevel;
-            this.dominantOwner = lockOwner;
-            increment( label, lockLevel );
-            return true;
+            return new HashSet<>( locks.keySet() );
         }
-
-        LockOwnerInfo ownerInfo = locks.get( lockOwner );
-        if ( ownerInfo != null && ownerInfo.level == lockLevel )
+        finally
         {
-            increment(label, lockLevel);
-            return true;
+            stateLock.unlock();
         }
+    }
 
-        switch ( lockLevel )
+    boolean lock( String label, LockLevel lockLevel )
+    {
+        return lock( label, lockLevel, false );
+    }
+
+    /**
+     * Same as {@link #lock(String, LockLevel)}, but if stream is set the lock is recorded as taken for a stream of a
+     * {@link JoinableFile}, and will be cleared with the other stream locks when the file closes (see
+     * {@link #clearStreamLocks()}).
+     */
+    boolean lock( String label, LockLevel lockLevel, boolean stream )
+    {
+        stateLock.lock();
+        try
         {
-            case delete:
-            case write:
+            String lockOwner = getLockReservationName();
+            if ( locks.isEmpty() )
             {
-                logger.trace( "[ABORT] Trying to lock at level: {} from owner: {}. Existing lock is: {}", lockLevel,
-                              lockOwner, this.dominantLockLevel );
-                return false;
+                logger.trace( "Not locked; locking: {}", lockOwner );
+                this.dominantLockLevel = lockLevel;
+                this.dominantOwner = lockOwner;
+                increment( label, lockLevel, stream );
+                return true;
             }
-            case read:
+
+            LockOwnerInfo ownerInfo = locks.get( lockOwner );
+            if ( ownerInfo != null && ownerInfo.level == lockLevel )
             {
-                if ( this.dominantLockLevel == LockLevel.delete )
+                increment( label, lockLevel, stream );
+                return true;
+            }
+
+            switch ( lockLevel )
+            {
+                case delete:
+                case write:
                 {
-                    logger.trace( "Already locked at delete level. Ignoring: {}", label );
+                    logger.trace( "[ABORT] Trying to lock at level: {} from owner: {}. Existing lock is: {}", lockLevel,
+                                  lockOwner, this.dominantLockLevel );
                     return false;
                 }
+                case read:
+                {
+                    if ( this.dominantLockLevel == LockLevel.delete )
+                    {
+                        logger.trace( "Already locked at delete level. Ignoring: {}", label );
+                        return false;
+                    }
+
+                    if ( upgrading != null && ownerInfo == null )
+                    {
+                        // don't keep a waiting upgrade from ever seeing the last reader leave
+                        logger.trace( "{} is waiting to upgrade. Not adding reader: {}", upgrading, label );
+                        return false;
+                    }
+
+                    increment( label, lockLevel, stream );
+                    return true;
+                }
+                default:
+                    return false;
+            }
+        }
+        finally
+        {
+            stateLock.unlock();
+        }
+    }
 
-                increment( label, lockLevel );
-                return true;
+    /**
+     * Upgrade the current owner's read lock to a write lock, if no other owner holds a lock. Otherwise, note that the
+     * current owner is waiting to upgrade (so no new readers are let in meanwhile) and return false; the caller should
+     * wait for the other owners to unlock, then try again, or call {@link #cancelUpgrade()}.
+     *
+     * @return true if the lock was upgraded
+     * @throws LockUpgradeDeadlockException if another owner is already waiting to upgrade
+     */
+    boolean upgrade()
+            throws LockUpgradeDeadlockException
+    {
+        stateLock.lock();
+        try
+        {
+            String lockOwner = getLockReservationName();
+            LockOwnerInfo ownerInfo = locks.get( lockOwner );
+            if ( ownerInfo == null || ownerInfo.level != LockLevel.read )
+            {
+                throw new IllegalStateException( lockOwner + " has no read lock to upgrade on: " + path );
             }
-            default:
+
+            if ( upgrading != null && !upgrading.equals( lockOwner ) )
+            {
+                throw new LockUpgradeDeadlockException( path, upgrading );
+            }
+
+            if ( locks.size() > 1 )
+            {
+                logger.trace( "{} waiting for other readers before upgrading: {}", lockOwner, locks.keySet() );
+                upgrading = lockOwner;
                 return false;
+            }
+
+            upgrading = null;
+            ownerInfo.level = LockLevel.write;
+            this.dominantLockLevel = LockLevel.write;
+            this.dominantOwner = lockOwner;
+            logger.trace( "{} upgraded to write lock", lockOwner );
+            return true;
+        }
+        finally
+        {
+            stateLock.unlock();
         }
     }
 
-    @Override
-    public String toString()
+    /**
+     * Stop waiting to upgrade (for the current owner), letting new readers in again.
+     */
+    void cancelUpgrade()
     {
-        return String.format( "LockOwner [%s] of: %s", super.hashCode(), path );
+        stateLock.lock();
+        try
+        {
+            if ( getLockReservationName().equals( upgrading ) )
+            {
+                upgrading = null;
+            }
+        }
+        finally
+        {
+            stateLock.unlock();
+        }
     }
 
-    synchronized CharSequence getLockInfo()
+    /**
+     * Downgrade the current owner's write lock to a read lock, letting other readers in.
+     *
+     * @return false if the current owner doesn't hold a write lock
+     */
+    boolean downgrade()
     {
-        StringBuilder sb = new StringBuilder().append( "Lock level: " )
-                                  .append( dominantLockLevel )
-                                  .append( "\nLocks: " );
-        locks.values().forEach( ( v ) -> {
-            sb.append(v.ownerName).append(":\n  ");
-            v.locks.forEach( ( label ) -> sb.append( label ).append( '\n' ) );
-        } );
+        stateLock.lock();
+        try
+        {
+            String lockOwner = getLockReservationName();
+            LockOwnerInfo ownerInfo = locks.get( lockOwner );
+            if ( ownerInfo == null || ownerInfo.level != LockLevel.write )
+            {
+                logger.trace( "{} has no write lock to downgrade", lockOwner );
+                return false;
+            }
 
-        return sb;
+            ownerInfo.level = LockLevel.read;
+            if ( lockOwner.equals( dominantOwner ) )
+            {
+                this.dominantLockLevel = LockLevel.read;
+            }
+
+            logger.trace( "{} downgraded to read lock", lockOwner );
+            return true;
+        }
+        finally
+        {
+            stateLock.unlock();
+        }
     }
 
-    private synchronized int increment( String label, LockLevel level )
+    /**
+     * @return the level of the current owner's lock, or null if it holds none
+     */
+    LockLevel getContextLockLevel()
     {
-        String ownerName = getLockReservationName();
-        LockOwnerInfo lockOwnerInfo = locks.computeIfAbsent( ownerName, o->new LockOwnerInfo( level ) );
+        stateLock.lock();
+        try
+        {
+            LockOwnerInfo ownerInfo = locks.get( getLockReservationName() );
+            return ownerInfo == null ? null : ownerInfo.level;
+        }
+        finally
+        {
+            stateLock.unlock();
+        }
+    }
 
-        lockOwnerInfo.locks.add( label );
-        int lockCount = lockOwnerInfo.locks.size();
+    @Override
+    public String toString()
+    {
+        return String.format( "LockOwner [%s] of: %s", super.hashCode(), path );
+    }
 
-        logger.trace( "\n\n\n{}\n  Incremented lock count.\n  New count is: {} \n  Owner: {}\n  Ref: {}\n\n\n", path, lockCount, ownerName, label );
-        return lockCount;
+    CharSequence getLockInfo()
+    {
+        stateLock.lock();
+        try
+        {
+            StringBuilder sb = new StringBuilder().append( "Lock level: " )
+                                      .append( dominantLockLevel )
+                                      .append( "\nLocks: " );
+            locks.values().forEach( ( v ) -> {
+                sb.append(v.ownerName).append(":\n  ");
+                v.locks.forEach( ( label ) -> sb.append( label ).append( '\n' ) );
+            } );
+
+            return sb;
+        }
+        finally
+        {
+            stateLock.unlock();
+        }
     }
 
-    synchronized boolean unlock( final String label )
+    private int increment( String label, LockLevel level, boolean stream )
     {
-        String ownerName = getLockReservationName();
-        LockOwnerInfo lockOwnerInfo = locks.get( ownerName );
-        if ( lockOwnerInfo == null )
+        stateLock.lock();
+        try
         {
-            logger.trace( "Not locked by: {}. Returning false.", ownerName );
-            return false;
+            String ownerName = getLockReservationName();
+            LockOwnerInfo lockOwnerInfo = locks.computeIfAbsent( ownerName, o->new LockOwnerInfo( level ) );
+
+            lockOwnerInfo.locks.add( label );
+            if ( stream )
+            {
+                lockOwnerInfo.streamLocks.add( label );
+            }
+
+            int lockCount = lockOwnerInfo.locks.size();
+
+            logger.trace( "\n\n\n{}\n  Incremented lock count.\n  New count is: {} \n  Owner: {}\n  Ref: {}\n\n\n", path, lockCount, ownerName, label );
+            return lockCount;
+        }
+        finally
+        {
+            stateLock.unlock();
         }
+    }
 
-        lockOwnerInfo.locks.remove( label );
-        int count = lockOwnerInfo.locks.size();
-        logger.trace( "Decremented lock count.\n  Path: {}\n  for owner: {}\n  New count is: {}\nLock Info:\n{}", this.path, ownerName, count, getLockInfo() );
+    boolean unlock( final String label )
+    {
+        return unlock( getLockReservationName(), label );
+    }
 
-        if ( count < 1 )
+    /**
+     * Same as {@link #unlock(String)}, for a lock taken by the given owner (see {@link #getLockReservationName()})
+     * rather than the current one; for streams that may be closed by a thread other than the one that opened them.
+     */
+    boolean unlock( final String ownerName, final String label )
+    {
+        stateLock.lock();
+        try
         {
-            locks.remove( ownerName );
-            if ( dominantOwner.equals( ownerName ) )
+            LockOwnerInfo lockOwnerInfo = locks.get( ownerName );
+            if ( lockOwnerInfo == null )
             {
-                logger.trace( "Unlocked owner is removed, but was dominant lock holder. Calculating new dominant lock holder." );
+                logger.trace( "Not locked by: {}. Returning false.", ownerName );
+                return false;
+            }
 
-                Optional<LockOwnerInfo> first = locks.values()
-                                                     .stream()
-                                                     .sorted( ( o1, o2 ) -> new Integer( o2.level.ordinal() ).compareTo(
-                                                             o1.level.ordinal() ) )
-                                                     .findFirst();
+            lockOwnerInfo.locks.remove( label );
+            if ( Collections.frequency( lockOwnerInfo.streamLocks, label ) > Collections.frequency(
+                    lockOwnerInfo.locks, label ) )
+            {
+                lockOwnerInfo.streamLocks.remove( label );
+            }
 
-                if ( first.isPresent() )
+            int count = lockOwnerInfo.locks.size();
+            logger.trace( "Decremented lock count.\n  Path: {}\n  for owner: {}\n  New count is: {}\nLock Info:\n{}", this.path, ownerName, count, getLockInfo() );
+
+            if ( count < 1 )
+            {
+                locks.remove( ownerName );
+                if ( ownerName.equals( upgrading ) )
                 {
-                    LockOwnerInfo newDom = first.get();
-                    this.dominantOwner = newDom.ownerName;
-                    this.dominantLockLevel = newDom.level;
-                    logger.trace( "New dominant holder is: {} with level: {}", this.dominantOwner,
-                                  this.dominantLockLevel );
+                    upgrading = null;
                 }
-                else
+
+                if ( dominantOwner.equals( ownerName ) )
                 {
-                    logger.trace( "Locks seems to be empty; Unlocking" );
-                    this.dominantOwner = null;
-                    this.dominantLockLevel = null;
+                    logger.trace( "Unlocked owner is removed, but was dominant lock holder. Calculating new dominant lock holder." );
+                    electDominant();
                 }
+
+                return true;
             }
 
-            return true;
+            logger.trace( "Unlock operation did not free final lock from file" );
+            return false;
+        }
+        finally
+        {
+            stateLock.unlock();
         }
-
-        logger.trace( "Unlock operation did not free final lock from file" );
-        return false;
     }
 
     LockLevel getLockLevel()
@@ -203,19 +402,96 @@ final class LockOwner
         return dominantLockLevel;
     }
 
-    synchronized int getContextLockCount()
+    int getContextLockCount()
+    {
+        stateLock.lock();
+        try
+        {
+            String ownerName = getLockReservationName();
+            LockOwnerInfo lockOwnerInfo = locks.get( ownerName );
+
+            return lockOwnerInfo == null ? 0 : lockOwnerInfo.locks.size();
+        }
+        finally
+        {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Clear the locks taken by the streams of a file that is closing (see {@link #lock(String, LockLevel, boolean)}),
+     * including those of streams that were closed without unlocking. Locks taken directly (manual locks) are kept,
+     * whatever their labels; their owners still count on them.
+     *
+     * @return true if no locks remain
+     */
+    boolean clearStreamLocks()
+    {
+        stateLock.lock();
+        try
+        {
+            locks.values().removeIf( info -> {
+                info.streamLocks.forEach( info.locks::remove );
+                info.streamLocks.clear();
+                return info.locks.isEmpty();
+            } );
+
+            if ( upgrading != null && !locks.containsKey( upgrading ) )
+            {
+                upgrading = null;
+            }
+
+            if ( dominantOwner != null && !locks.containsKey( dominantOwner ) )
+            {
+                electDominant();
+            }
+
+            return locks.isEmpty();
+        }
+        finally
+        {
+            stateLock.unlock();
+        }
+    }
+
+    private void electDominant()
     {
-        String ownerName = getLockReservationName();
-        LockOwnerInfo lockOwnerInfo = locks.get( ownerName );
+        Optional<LockOwnerInfo> first = locks.values()
+                                             .stream()
+                                             .sorted( ( o1, o2 ) -> new Integer( o2.level.ordinal() ).compareTo(
+                                                     o1.level.ordinal() ) )
+                                             .findFirst();
 
-        return lockOwnerInfo == null ? 0 : lockOwnerInfo.locks.size();
+        if ( first.isPresent() )
+        {
+            LockOwnerInfo newDom = first.get();
+            this.dominantOwner = newDom.ownerName;
+            this.dominantLockLevel = newDom.level;
+            logger.trace( "New dominant holder is: {} with level: {}", this.dominantOwner,
+                          this.dominantLockLevel );
+        }
+        else
+        {
+            logger.trace( "Locks seems to be empty; Unlocking" );
+            this.dominantOwner = null;
+            this.dominantLockLevel = null;
+        }
     }
 
-    synchronized void clearLocks()
+    void clearLocks()
     {
-        locks.clear();
-        this.dominantLockLevel = null;
-        this.dominantOwner = null;
+        stateLock.lock();
+        try
+        {
+            locks.clear();
+            this.dominantLockLevel = null;
+            this.dominantOwner = null;
+            this.upgrading = null;
+        }
+        finally
+        {
+            stateLock.unlock();
+        }
     }
 
     public static String getLockReservationName()
@@ -224,7 +500,10 @@ final class LockOwner
         String ownerName = (String) ctx.get( PARTYLINE_LOCK_OWNER );
         if ( ownerName == null )
         {
-            ownerName = "Context of: " + Thread.currentThread().getName();
+            // virtual threads are unnamed by default; don't let them all share the same lock ownership.
+            Thread thread = Thread.currentThread();
+            String threadName = thread.getName().isEmpty() ? "#" + thread.getId() : thread.getName();
+            ownerName = "Context of: " + threadName;
             ctx.put( PARTYLINE_LOCK_OWNER, ownerName );
         }
 
@@ -236,6 +515,10 @@ final class LockOwner
         private String ownerName = getLockReservationName();
 
         private List<String> locks = Collections.synchronizedList( new ArrayList<>() );
+
+        // the labels in locks that were taken for streams (guarded by stateLock)
+        private List<String> streamLocks = new ArrayList<>();
+
         private LockLevel level;
 
         LockOwnerInfo( LockLevel level )
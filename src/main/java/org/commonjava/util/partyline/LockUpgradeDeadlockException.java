@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Thrown when upgrading a read lock to a write lock while another thread is already waiting to upgrade its own read
+ * lock on the same file. Neither upgrade could complete until the other thread released its read lock, so the later
+ * one fails. The caller should unlock the file (releasing its read lock) and retry from the start.
+ *
+ * @see JoinableFileManager#upgrade(File, long)
+ */
+public final class LockUpgradeDeadlockException
+        extends IOException
+{
+    LockUpgradeDeadlockException( final String path, final String upgrading )
+    {
+        super( "Cannot upgrade read lock on: " + path + "; " + upgrading
+                       + " is already waiting to upgrade, and needs this read lock released." );
+    }
+}
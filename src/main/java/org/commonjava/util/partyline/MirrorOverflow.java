@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+/**
+ * Determines what a {@link WriteMirror} does when writers flush content faster than it can be copied to the mirror,
+ * and its queue of flushed content is full.
+ *
+ * @see JoinableFileManager#enableMirror(java.io.File, java.io.File, int, MirrorOverflow, long)
+ */
+public enum MirrorOverflow
+{
+    /**
+     * Make the writer wait for room in the queue (backpressure), so the primary write goes no faster than the mirror.
+     */
+    block,
+
+    /**
+     * Let the writer go on, and stop queueing content for the file whose flush didn't fit. Once that file is closed,
+     * the mirror copies it in full from the primary root instead.
+     */
+    resync;
+}
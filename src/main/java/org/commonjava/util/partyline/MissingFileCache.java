@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of paths that were recently found to be missing when someone tried to read-lock them. This lets
+ * {@link FileTree} reject repeated read attempts on missing files without touching the filesystem or acquiring any
+ * locks. Entries expire after a short time-to-live (to pick up files created outside of partyline), and are removed as
+ * soon as a write or delete lock is granted on the path or one of its ancestor directories.
+ * <br/>
+ * Getters are public to allow reporting of cache statistics.
+ *
+ * @see JoinableFileManager#enableMissingFileCache(int, long)
+ */
+public final class MissingFileCache
+{
+    private final int maxEntries;
+
+    private final long timeToLive;
+
+    // sorted by path, so invalidating a directory doesn't require a scan of the whole cache.
+    private final ConcurrentNavigableMap<String, Missing> entries = new ConcurrentSkipListMap<>();
+
+    // paths in the order they were found missing, for eviction of the oldest (which also expire first)
+    private final ConcurrentNavigableMap<Long, String> order = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    MissingFileCache( final int maxEntries, final long timeToLive )
+    {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Return true if the given path was recently found to be missing, and hasn't been written since.
+     */
+    boolean isMissing( final String path )
+    {
+        Missing missing = entries.get( path );
+        if ( missing == null )
+        {
+            return false;
+        }
+        else if ( missing.expires < System.currentTimeMillis() )
+        {
+            remove( path );
+            return false;
+        }
+
+        hits.incrementAndGet();
+        return true;
+    }
+
+    void markMissing( final String path )
+    {
+        long now = System.currentTimeMillis();
+        Missing missing = new Missing( now + timeToLive, sequence.incrementAndGet() );
+        order.put( missing.seq, path );
+
+        Missing old = entries.put( path, missing );
+        if ( old != null )
+        {
+            order.remove( old.seq );
+        }
+        else if ( size.incrementAndGet() > maxEntries )
+        {
+            // the oldest entries expire first; drop those, then evict the oldest of the rest if still too full.
+            while ( size.get() > maxEntries )
+            {
+                Map.Entry<Long, String> oldest = order.pollFirstEntry();
+                if ( oldest == null )
+                {
+                    break;
+                }
+
+                // only if it wasn't marked again since
+                Missing evicted = entries.get( oldest.getValue() );
+                if ( evicted != null && evicted.seq == oldest.getKey() && entries.remove( oldest.getValue(),
+                                                                                           evicted ) )
+                {
+                    size.decrementAndGet();
+                    if ( evicted.expires >= now )
+                    {
+                        evictions.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget about the given path and any path below it (if it's a directory).
+     */
+    void invalidate( final String path )
+    {
+        remove( path );
+
+        String prefix = path + File.separator;
+        entries.subMap( prefix, prefix + Character.MAX_VALUE ).keySet().forEach( this::remove );
+    }
+
+    private void remove( final String path )
+    {
+        Missing removed = entries.remove( path );
+        if ( removed != null )
+        {
+            order.remove( removed.seq );
+            size.decrementAndGet();
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public int getSize()
+    {
+        return size.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "MissingFileCache [entries: %d/%d, hits: %d, evictions: %d]", getSize(), maxEntries,
+                              getHits(), getEvictions() );
+    }
+
+    private static final class Missing
+    {
+        private final long expires;
+
+        private final long seq;
+
+        private Missing( final long expires, final long seq )
+        {
+            this.expires = expires;
+            this.seq = seq;
+        }
+    }
+}
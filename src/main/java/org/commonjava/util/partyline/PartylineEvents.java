@@ -0,0 +1,331 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for partyline's slow paths: acquiring a lock, joining a file, flushing written content
+ * to disk, really closing a file, and readers waiting for a writer to flush more content. Each has a threshold (in the
+ * recording settings, defaulting to 10ms, 20ms for flushes), so only slow operations are recorded.
+ * <br/>
+ * Callers only ever see events as {@link Object}s (null when not recording), so this works on JVMs without JFR,
+ * where the events are never created. Nor are they before a recording has been started, so a JVM that never records
+ * doesn't load them. When JFR isn't recording an event, it costs a check and a null test.
+ */
+final class PartylineEvents
+{
+    private static final boolean AVAILABLE = checkAvailable();
+
+    private PartylineEvents()
+    {
+    }
+
+    static boolean isAvailable()
+    {
+        return AVAILABLE;
+    }
+
+    static Object beginLock()
+    {
+        if ( !isRecording() )
+        {
+            return null;
+        }
+
+        LockEvent event = new LockEvent();
+        if ( !event.isEnabled() )
+        {
+            return null;
+        }
+
+        event.begin();
+        return event;
+    }
+
+    static void endLock( final Object event, final String path, final LockLevel level, final String outcome )
+    {
+        if ( event != null )
+        {
+            LockEvent e = (LockEvent) event;
+            e.end();
+            if ( e.shouldCommit() )
+            {
+                e.path = path;
+                e.level = String.valueOf( level );
+                e.outcome = outcome;
+                e.commit();
+            }
+        }
+    }
+
+    static Object beginJoin()
+    {
+        if ( !isRecording() )
+        {
+            return null;
+        }
+
+        JoinEvent event = new JoinEvent();
+        if ( !event.isEnabled() )
+        {
+            return null;
+        }
+
+        event.begin();
+        return event;
+    }
+
+    static void endJoin( final Object event, final String path, final int joints )
+    {
+        if ( event != null )
+        {
+            JoinEvent e = (JoinEvent) event;
+            e.end();
+            if ( e.shouldCommit() )
+            {
+                e.path = path;
+                e.joints = joints;
+                e.commit();
+            }
+        }
+    }
+
+    static Object beginFlush()
+    {
+        if ( !isRecording() )
+        {
+            return null;
+        }
+
+        FlushEvent event = new FlushEvent();
+        if ( !event.isEnabled() )
+        {
+            return null;
+        }
+
+        event.begin();
+        return event;
+    }
+
+    static void endFlush( final Object event, final String path, final long bytes, final long writeNanos,
+                          final long forceNanos )
+    {
+        if ( event != null )
+        {
+            FlushEvent e = (FlushEvent) event;
+            e.end();
+            if ( e.shouldCommit() )
+            {
+                e.path = path;
+                e.bytes = bytes;
+                e.writeDuration = writeNanos;
+                e.forceDuration = forceNanos;
+                e.commit();
+            }
+        }
+    }
+
+    static Object beginClose()
+    {
+        if ( !isRecording() )
+        {
+            return null;
+        }
+
+        CloseEvent event = new CloseEvent();
+        if ( !event.isEnabled() )
+        {
+            return null;
+        }
+
+        event.begin();
+        return event;
+    }
+
+    static void endClose( final Object event, final String path, final boolean output, final long length )
+    {
+        if ( event != null )
+        {
+            CloseEvent e = (CloseEvent) event;
+            e.end();
+            if ( e.shouldCommit() )
+            {
+                e.path = path;
+                e.output = output;
+                e.length = length;
+                e.commit();
+            }
+        }
+    }
+
+    static Object beginReaderWait()
+    {
+        if ( !isRecording() )
+        {
+            return null;
+        }
+
+        ReaderWaitEvent event = new ReaderWaitEvent();
+        if ( !event.isEnabled() )
+        {
+            return null;
+        }
+
+        event.begin();
+        return event;
+    }
+
+    static void endReaderWait( final Object event, final String path, final long position )
+    {
+        if ( event != null )
+        {
+            ReaderWaitEvent e = (ReaderWaitEvent) event;
+            e.end();
+            if ( e.shouldCommit() )
+            {
+                e.path = path;
+                e.position = position;
+                e.commit();
+            }
+        }
+    }
+
+    /**
+     * Until a recording has been started (or the recorder has been looked up), no event can be recorded. Checking this
+     * first avoids loading (and instrumenting) the event classes on the first operations of a JVM that never records.
+     */
+    private static boolean isRecording()
+    {
+        return AVAILABLE && FlightRecorder.isInitialized();
+    }
+
+    private static boolean checkAvailable()
+    {
+        try
+        {
+            Class.forName( "jdk.jfr.Event" );
+            return true;
+        }
+        catch ( ClassNotFoundException | LinkageError e )
+        {
+            return false;
+        }
+    }
+
+    @Name( "org.commonjava.partyline.Lock" )
+    @Label( "Partyline Lock" )
+    @Description( "Acquiring a lock on a file or directory, including the wait for other owners" )
+    @Category( "Partyline" )
+    @Threshold( "10 ms" )
+    static final class LockEvent
+            extends Event
+    {
+        @Label( "Path" )
+        String path;
+
+        @Label( "Lock Level" )
+        String level;
+
+        @Label( "Outcome" )
+        @Description( "locked, timeout, deadlock, or missing (read-locking a missing file)" )
+        String outcome;
+    }
+
+    @Name( "org.commonjava.partyline.Join" )
+    @Label( "Partyline Join" )
+    @Description( "Joining an open file with a new input stream" )
+    @Category( "Partyline" )
+    @Threshold( "10 ms" )
+    static final class JoinEvent
+            extends Event
+    {
+        @Label( "Path" )
+        String path;
+
+        @Label( "Joined Streams" )
+        int joints;
+    }
+
+    @Name( "org.commonjava.partyline.Flush" )
+    @Label( "Partyline Flush" )
+    @Description( "Writing buffered content to disk and forcing it out, including throttling and scheduling waits" )
+    @Category( "Partyline" )
+    @Threshold( "20 ms" )
+    @StackTrace( false )
+    static final class FlushEvent
+            extends Event
+    {
+        @Label( "Path" )
+        String path;
+
+        @Label( "Bytes" )
+        @DataAmount
+        long bytes;
+
+        @Label( "Write Duration" )
+        @Timespan
+        long writeDuration;
+
+        @Label( "Force Duration" )
+        @Timespan
+        long forceDuration;
+    }
+
+    @Name( "org.commonjava.partyline.Close" )
+    @Label( "Partyline Close" )
+    @Description( "Really closing a file once all of its streams are closed (syncing it, if written)" )
+    @Category( "Partyline" )
+    @Threshold( "10 ms" )
+    static final class CloseEvent
+            extends Event
+    {
+        @Label( "Path" )
+        String path;
+
+        @Label( "Written" )
+        boolean output;
+
+        @Label( "Length" )
+        @DataAmount
+        long length;
+    }
+
+    @Name( "org.commonjava.partyline.ReaderWait" )
+    @Label( "Partyline Reader Wait" )
+    @Description( "A reader waiting for the writer of a file to flush more content" )
+    @Category( "Partyline" )
+    @Threshold( "10 ms" )
+    static final class ReaderWaitEvent
+            extends Event
+    {
+        @Label( "Path" )
+        String path;
+
+        @Label( "Position" )
+        @DataAmount
+        long position;
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Helpers for the optional OS-level {@link FileLock}s that coordinate partyline instances running in different JVM
+ * processes over the same storage. Read locks map to shared file locks, write / delete locks to exclusive ones.
+ * <br/>
+ * OS file locks are held on behalf of the whole JVM, so they can't express the sharing {@link FileTree} manages
+ * between threads. Within the JVM, {@link FileTree} stays in charge: if the JVM already holds a lock on the file
+ * ({@link OverlappingFileLockException}), a shared request proceeds on the strength of that lock, while an exclusive
+ * request is treated as conflicting (the other holder is outside this {@link FileTree}) and retried.
+ * <br/>
+ * If the filesystem doesn't support locking, a warning is logged (once) and partyline proceeds without OS locks.
+ * <br/>
+ * On POSIX systems, closing <em>any</em> channel to a file releases all of the JVM's locks on it, not just the locks
+ * taken through that channel. Partyline only opens a second channel to a file while nothing in the JVM has it open:
+ * deletes (under a delete lock) and {@link ContentCache} loads (which leave open files alone) take their own lock on
+ * the channel they use, and every {@link JoinableFile} of a file shares one channel.
+ *
+ * @see JoinableFileManager#enableProcessLocks()
+ */
+final class ProcessLocks
+{
+    private static final AtomicBoolean UNSUPPORTED_WARNED = new AtomicBoolean( false );
+
+    private ProcessLocks()
+    {
+    }
+
+    /**
+     * Try to lock the whole file behind the given channel without blocking.
+     *
+     * @return the lock, or null if the file can't be locked in this filesystem (and should be used unlocked)
+     * @throws LockedByProcessException if another process (or another owner in this JVM) holds a conflicting lock
+     */
+    static FileLock tryLock( final FileChannel channel, final boolean shared, final String path )
+            throws LockedByProcessException
+    {
+        Logger logger = LoggerFactory.getLogger( ProcessLocks.class );
+        FileLock lock;
+        try
+        {
+            lock = channel.tryLock( 0L, Long.MAX_VALUE, shared );
+        }
+        catch ( OverlappingFileLockException e )
+        {
+            if ( shared )
+            {
+                logger.trace( "File lock on: {} is already held in this JVM; relying on FileTree locks.", path );
+                return null;
+            }
+
+            throw new LockedByProcessException( path );
+        }
+        catch ( IOException | UnsupportedOperationException e )
+        {
+            if ( UNSUPPORTED_WARNED.compareAndSet( false, true ) )
+            {
+                logger.warn( "Cannot lock: {} in the filesystem; continuing WITHOUT cross-process locks. Reason: {}",
+                             path, e.getMessage() );
+            }
+            else
+            {
+                logger.debug( "Cannot lock: {} in the filesystem. Reason: {}", path, e.getMessage() );
+            }
+
+            return null;
+        }
+
+        if ( lock == null )
+        {
+            throw new LockedByProcessException( path );
+        }
+
+        logger.trace( "Acquired {} file lock on: {}", shared ? "shared" : "exclusive", path );
+        return lock;
+    }
+
+    static void release( final FileLock lock, final String path )
+    {
+        if ( lock == null || !lock.isValid() )
+        {
+            return;
+        }
+
+        try
+        {
+            lock.release();
+        }
+        catch ( IOException e )
+        {
+            LoggerFactory.getLogger( ProcessLocks.class ).debug( "Failed to release file lock on: " + path, e );
+        }
+    }
+
+    /**
+     * Thrown when a file is locked by another process. {@link FileTree} catches this, backs out its own lock and
+     * retries until the timeout expires.
+     */
+    static final class LockedByProcessException
+            extends IOException
+    {
+        LockedByProcessException( final String path )
+        {
+            super( path + " is locked by another process." );
+        }
+    }
+}
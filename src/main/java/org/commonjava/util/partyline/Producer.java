@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the content of a missing file, for instance by fetching it from an upstream server.
+ *
+ * @see JoinableFileManager#openInputStreamOrProduce(File, Producer, long)
+ */
+@FunctionalInterface
+public interface Producer
+{
+    /**
+     * Write the content to the given stream, which is closed afterward. If this throws, the incomplete file is
+     * removed, and readers that have joined the write fail instead of seeing truncated content.
+     */
+    void produce( OutputStream out )
+            throws IOException;
+}
@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * Memory-mapped sidecar control file that publishes the progress of a write to other processes, so they can join the
+ * write in progress the way threads in the writing process do. The sidecar lives next to the target file as
+ * <code>.&lt;name&gt;.progress</code>, and exists only while the write is in progress.
+ * <br/>
+ * Layout (big-endian):
+ * <pre>
+ *   0: int  magic
+ *   4: int  state (writing / complete)
+ *   8: long flushed byte count
+ *  16: long time of the last update (writer's clock, milliseconds)
+ * </pre>
+ * The writer holds an exclusive {@link FileLock} on a byte past the end of this layout for as long as it's alive, and
+ * the OS releases it if the writer process dies. Readers probe that lock to tell a stalled writer from a dead one. If
+ * the filesystem doesn't support locks, a writer is considered dead once it hasn't updated the file for
+ * {@link #STALE_TIMEOUT} milliseconds.
+ * <br/>
+ * The writer updates the flushed count only after the content is written to the target file, and marks the write
+ * complete only after the final count is published, so readers never read past the real frontier.
+ *
+ * @see JoinableFileManager#enableProgressFiles()
+ */
+final class ProgressFile
+        implements Closeable
+{
+    static final long STALE_TIMEOUT = 30000;
+
+    private static final int MAGIC = 0x504c5047; // "PLPG"
+
+    private static final int WRITING = 1;
+
+    private static final int COMPLETE = 2;
+
+    private static final int STATE_OFFSET = 4;
+
+    private static final int FLUSHED_OFFSET = 8;
+
+    private static final int UPDATED_OFFSET = 16;
+
+    private static final int SIZE = 24;
+
+    private static final long LIVENESS_OFFSET = 1024;
+
+    private final File file;
+
+    private final RandomAccessFile randomAccessFile;
+
+    private final MappedByteBuffer buf;
+
+    private final FileLock liveness;
+
+    private final boolean writer;
+
+    private ProgressFile( File file, RandomAccessFile randomAccessFile, MappedByteBuffer buf, FileLock liveness,
+                          boolean writer )
+    {
+        this.file = file;
+        this.randomAccessFile = randomAccessFile;
+        this.buf = buf;
+        this.liveness = liveness;
+        this.writer = writer;
+    }
+
+    static File sidecarFor( File target )
+    {
+        return new File( target.getParentFile(), "." + target.getName() + ".progress" );
+    }
+
+    /**
+     * Create (or take over a stale) sidecar for a write to the given target that's starting now.
+     *
+     * @throws ProcessLocks.LockedByProcessException if another live writer owns the sidecar
+     */
+    static ProgressFile create( File target )
+            throws IOException
+    {
+        File file = sidecarFor( target );
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            FileLock liveness = null;
+            try
+            {
+                liveness = channel.tryLock( LIVENESS_OFFSET, 1, false );
+                if ( liveness == null )
+                {
+                    // another live writer owns this sidecar
+                    throw new ProcessLocks.LockedByProcessException( target.getPath() );
+                }
+            }
+            catch ( OverlappingFileLockException e )
+            {
+                throw new ProcessLocks.LockedByProcessException( target.getPath() );
+            }
+            catch ( ProcessLocks.LockedByProcessException e )
+            {
+                throw e;
+            }
+            catch ( IOException | UnsupportedOperationException e )
+            {
+                LoggerFactory.getLogger( ProgressFile.class )
+                             .debug( "Cannot lock: {}; readers will judge liveness by update time. Reason: {}", file,
+                                     e.getMessage() );
+            }
+
+            MappedByteBuffer buf = channel.map( MapMode.READ_WRITE, 0, SIZE );
+            buf.putInt( STATE_OFFSET, WRITING );
+            buf.putLong( FLUSHED_OFFSET, 0 );
+            buf.putLong( UPDATED_OFFSET, System.currentTimeMillis() );
+            buf.putInt( 0, MAGIC );
+
+            return new ProgressFile( file, raf, buf, liveness, true );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open the sidecar of the given target for reading, if another writer is actively writing it.
+     *
+     * @return the sidecar, or null if there's no write in progress (no sidecar, or one left by a finished or dead
+     * writer)
+     */
+    static ProgressFile openIfWriting( File target )
+            throws IOException
+    {
+        File file = sidecarFor( target );
+        if ( !file.exists() )
+        {
+            return null;
+        }
+
+        RandomAccessFile raf;
+        try
+        {
+            raf = new RandomAccessFile( file, "r" );
+        }
+        catch ( IOException e )
+        {
+            // removed by the writer in the meantime
+            return null;
+        }
+
+        ProgressFile progress = null;
+        try
+        {
+            if ( raf.length() >= SIZE )
+            {
+                MappedByteBuffer buf = raf.getChannel().map( MapMode.READ_ONLY, 0, SIZE );
+                if ( buf.getInt( 0 ) == MAGIC )
+                {
+                    progress = new ProgressFile( file, raf, buf, null, false );
+                }
+            }
+
+            if ( progress == null || progress.isComplete() || !progress.isWriterAlive() )
+            {
+                Logger logger = LoggerFactory.getLogger( ProgressFile.class );
+                logger.trace( "No write in progress according to: {}", file );
+                raf.close();
+                return null;
+            }
+
+            return progress;
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writer: publish the number of bytes now readable from the target file.
+     */
+    void published( long flushed )
+    {
+        buf.putLong( FLUSHED_OFFSET, flushed );
+        buf.putLong( UPDATED_OFFSET, System.currentTimeMillis() );
+    }
+
+    /**
+     * Writer: mark the write complete. The flushed count must already be final.
+     */
+    void complete()
+    {
+        buf.putLong( UPDATED_OFFSET, System.currentTimeMillis() );
+        buf.putInt( STATE_OFFSET, COMPLETE );
+        buf.force();
+    }
+
+    long getFlushed()
+    {
+        return buf.getLong( FLUSHED_OFFSET );
+    }
+
+    boolean isComplete()
+    {
+        return buf.getInt( STATE_OFFSET ) == COMPLETE;
+    }
+
+    /**
+     * Reader: check whether the writer still holds its liveness lock (or, without lock support, has updated the file
+     * recently).
+     */
+    boolean isWriterAlive()
+    {
+        try
+        {
+            FileLock probe = randomAccessFile.getChannel().tryLock( LIVENESS_OFFSET, 1, true );
+            if ( probe == null )
+            {
+                return true;
+            }
+
+            probe.release();
+            return false;
+        }
+        catch ( OverlappingFileLockException e )
+        {
+            // the writer is in this JVM
+            return true;
+        }
+        catch ( IOException | UnsupportedOperationException e )
+        {
+            return System.currentTimeMillis() - buf.getLong( UPDATED_OFFSET ) < STALE_TIMEOUT;
+        }
+    }
+
+    /**
+     * Close the sidecar. The writer also removes it, so a complete sidecar is never mistaken for a new write; readers
+     * that already have it open still see the final state.
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        try
+        {
+            if ( writer )
+            {
+                file.delete();
+            }
+
+            if ( liveness != null && liveness.isValid() )
+            {
+                liveness.release();
+            }
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ProgressFile{" + file + ( writer ? " (writer)" : "" ) + '}';
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token-bucket bandwidth limit for streams: tokens (bytes) accrue at a fixed rate, up to a burst size, and each read
+ * or write takes as many tokens as it moves bytes (single-byte reads and writes are charged in batches). When the
+ * bucket runs dry, the stream sleeps until its bytes would have accrued (it doesn't spin), so background jobs like
+ * reindexing can be held to a fraction of disk throughput. Writes are charged in the writing thread, before they're
+ * buffered, so threads flushing buffers in the background never sleep.
+ * <br/>
+ * A limit can be given to a single stream when it's opened, or set for all streams under a path; in the latter case,
+ * all of those streams share the bandwidth. Getters are public to allow reporting (see
+ * {@link JoinableFileManager#getRateLimits()} and {@link JoinableFileManager#getStreamRateLimits()}).
+ *
+ * @see JoinableFileManager#setRateLimit(java.io.File, RateLimit)
+ * @see JoinableFileManager#openInputStream(java.io.File, long, RateLimit)
+ * @see JoinableFileManager#openOutputStream(java.io.File, long, RateLimit)
+ */
+public final class RateLimit
+{
+    private final long bytesPerSecond;
+
+    private final long burst;
+
+    // guarded by this; may go negative, when bytes were taken ahead of their time.
+    private double tokens;
+
+    private long refilled = System.nanoTime();
+
+    private final LongAdder bytes = new LongAdder();
+
+    private final LongAdder throttled = new LongAdder();
+
+    private final LongAdder throttledNanos = new LongAdder();
+
+    /**
+     * @param bytesPerSecond The sustained rate
+     * @param burst The most bytes that can go through at once after an idle period (at least 1)
+     */
+    public RateLimit( final long bytesPerSecond, final long burst )
+    {
+        if ( bytesPerSecond < 1 || burst < 1 )
+        {
+            throw new IllegalArgumentException( "Rate and burst must be positive." );
+        }
+
+        this.bytesPerSecond = bytesPerSecond;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    public long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    public long getBurst()
+    {
+        return burst;
+    }
+
+    public long getBytes()
+    {
+        return bytes.sum();
+    }
+
+    /**
+     * The number of reads / writes that had to wait for bandwidth.
+     */
+    public long getThrottledCount()
+    {
+        return throttled.sum();
+    }
+
+    /**
+     * The total time streams have slept waiting for bandwidth, in milliseconds.
+     */
+    public long getThrottledMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( throttledNanos.sum() );
+    }
+
+    /**
+     * Take the given number of bytes from the bucket, sleeping until they've accrued if it doesn't hold enough.
+     */
+    void acquire( final long count, final String path )
+            throws InterruptedIOException
+    {
+        if ( count < 1 )
+        {
+            return;
+        }
+
+        long waitNanos = take( count );
+        if ( waitNanos > 0 )
+        {
+            throttled.increment();
+            throttledNanos.add( waitNanos );
+            try
+            {
+                TimeUnit.NANOSECONDS.sleep( waitNanos );
+            }
+            catch ( InterruptedException e )
+            {
+                throw new InterruptedIOException( "Interrupted while throttled on: " + path );
+            }
+        }
+    }
+
+    /**
+     * Take the given number of bytes from the bucket without waiting, for bytes that have already moved (e.g. the
+     * last batch of single-byte reads, charged when a stream closes). Any debt is paid by the next stream to acquire.
+     */
+    void charge( final long count )
+    {
+        if ( count > 0 )
+        {
+            take( count );
+        }
+    }
+
+    /**
+     * @return How long to wait for the bytes to accrue, in nanoseconds
+     */
+    private long take( final long count )
+    {
+        long waitNanos;
+        synchronized ( this )
+        {
+            long now = System.nanoTime();
+            tokens = Math.min( burst, tokens + ( now - refilled ) * bytesPerSecond / 1e9 );
+            refilled = now;
+
+            tokens -= count;
+            waitNanos = tokens < 0 ? (long) ( -tokens * 1e9 / bytesPerSecond ) : 0;
+        }
+
+        bytes.add( count );
+        return waitNanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RateLimit{" + bytesPerSecond + "b/s, burst=" + burst + ", bytes=" + getBytes() + ", throttled="
+                + getThrottledCount() + " times, " + getThrottledMillis() + "ms}";
+    }
+}
@@ -0,0 +1,682 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.commonjava.util.partyline.callback.ContentStreamCallbacks;
+import org.commonjava.util.partyline.callback.StreamCallbacks;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An ordered list of storage roots, fastest first, holding the same tree of files. Files are addressed by their paths
+ * under the fastest (hot) root; reads of files missing there resolve to the first slower tier that has them, and
+ * writes always go to the hot tier.
+ * <br/>
+ * Files in slower tiers that are read often enough (by the read counts in {@link FileTree}) are promoted to the hot
+ * tier, and when the hot tier holds more than its byte budget, its least recently used files are demoted to the next
+ * tier. Both run on a single background thread, and copy through {@link JoinableFileManager} streams, so the target
+ * is write-locked while it's copied (readers arriving meanwhile join the copy). Files in use are never moved: once a
+ * copy is complete, the source is only deleted if nobody has it open, otherwise it's left in place (a copy in a slower
+ * tier is shadowed by the one in the hot tier). Deletes and manual locks through the manager apply to every tier's
+ * copy, so a shadowed copy never resurfaces once the hot copy is deleted.
+ * <br/>
+ * Getters are public to allow reporting.
+ *
+ * @see JoinableFileManager#setStorageTiers(List, int, long, long)
+ */
+public final class StorageTiers
+{
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024; // 1mb
+
+    // how long to wait for a lock to delete the source of a move; files in use are left in place.
+    private static final long DELETE_TIMEOUT = 10;
+
+    private static final String MOVE_LABEL = "Storage tier move";
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final JoinableFileManager manager;
+
+    private final FileTree tree;
+
+    private final List<Path> roots;
+
+    private final int promoteAfterReads;
+
+    private final long hotBudget;
+
+    private final long lockTimeout;
+
+    private final ExecutorService worker;
+
+    // files in the hot tier and their sizes, least recently used first; guarded by hotLock.
+    private final LinkedHashMap<String, Long> hot = new LinkedHashMap<>( 16, 0.75f, true );
+
+    private final ReentrantLock hotLock = new ReentrantLock();
+
+    private long hotBytes;
+
+    private final Set<String> promoting = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean demoting = new AtomicBoolean();
+
+    private final LongAdder promotions = new LongAdder();
+
+    private final LongAdder demotions = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    StorageTiers( final JoinableFileManager manager, final FileTree tree, final List<File> roots,
+                  final int promoteAfterReads, final long hotBudget, final long lockTimeout )
+    {
+        this.manager = manager;
+        this.tree = tree;
+        this.roots = roots.stream().map( ( r ) -> r.toPath().toAbsolutePath().normalize() ).collect(
+                Collectors.toList() );
+        this.promoteAfterReads = promoteAfterReads;
+        this.hotBudget = hotBudget;
+        this.lockTimeout = lockTimeout;
+
+        worker = Executors.newSingleThreadExecutor( ( r ) -> {
+            Thread t = new Thread( r, "partyline-tiering" );
+            t.setDaemon( true );
+            return t;
+        } );
+
+        worker.execute( this::scanHotTier );
+    }
+
+    public List<File> getRoots()
+    {
+        return roots.stream().map( Path::toFile ).collect( Collectors.toList() );
+    }
+
+    /**
+     * The bytes held by files in the hot tier, as far as they've been seen by this instance.
+     */
+    public long getHotBytes()
+    {
+        hotLock.lock();
+        try
+        {
+            return hotBytes;
+        }
+        finally
+        {
+            hotLock.unlock();
+        }
+    }
+
+    public long getHotBudget()
+    {
+        return hotBudget;
+    }
+
+    public long getPromotionCount()
+    {
+        return promotions.sum();
+    }
+
+    public long getDemotionCount()
+    {
+        return demotions.sum();
+    }
+
+    public long getFailureCount()
+    {
+        return failures.sum();
+    }
+
+    /**
+     * Return the file to read for the given path under the hot root: the path itself if it exists (or isn't under the
+     * hot root), otherwise the same relative path in the first slower tier that has it. If no tier has it, return the
+     * path itself.
+     */
+    File resolve( final File file )
+    {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        Path rel = relativeToHot( path );
+        if ( rel == null || file.exists() )
+        {
+            return file;
+        }
+
+        for ( int i = 1; i < roots.size(); i++ )
+        {
+            File candidate = roots.get( i ).resolve( rel ).toFile();
+            if ( candidate.exists() )
+            {
+                logger.trace( "Resolved: {} to tier {}: {}", file, i, candidate );
+                return candidate;
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * Return the given path under the hot root, followed by the same relative path in each slower tier (whether it exists
+     * or not). If the path isn't under the hot root, return just the path.
+     */
+    List<File> copies( final File file )
+    {
+        Path rel = relativeToHot( file.toPath().toAbsolutePath().normalize() );
+        if ( rel == null )
+        {
+            return Collections.singletonList( file );
+        }
+
+        List<File> copies = new ArrayList<>( roots.size() );
+        copies.add( file );
+        for ( int i = 1; i < roots.size(); i++ )
+        {
+            copies.add( roots.get( i ).resolve( rel ).toFile() );
+        }
+
+        return copies;
+    }
+
+    /**
+     * Note that the given path under the hot root was opened for reading from the resolved file, promoting that file if
+     * it's in a slower tier and has been read often enough.
+     */
+    void read( final File file, final File resolved )
+    {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        if ( relativeToHot( path ) == null )
+        {
+            return;
+        }
+
+        if ( resolved.equals( file ) )
+        {
+            touch( path.toString(), file );
+            return;
+        }
+
+        if ( tree.getReadCount( resolved ) >= promoteAfterReads && promoting.add( path.toString() ) )
+        {
+            logger.debug( "Promoting: {} from: {}", file, resolved );
+            submit( () -> promote( path.toFile(), resolved ) );
+        }
+    }
+
+    /**
+     * Wrap the callbacks of a file opened for writing, so its size is accounted to the hot tier once it's closed. If
+     * the file isn't under the hot root, return the callbacks as they are.
+     */
+    StreamCallbacks track( final File file, final StreamCallbacks callbacks )
+    {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        if ( relativeToHot( path ) == null )
+        {
+            return callbacks;
+        }
+
+        return new HotFileCallbacks( callbacks, path.toFile() );
+    }
+
+    /**
+     * Stop promoting and demoting files, waiting for the move in progress (if any) to finish.
+     */
+    void shutdown()
+            throws InterruptedException
+    {
+        worker.shutdownNow();
+        worker.awaitTermination( 1, TimeUnit.MINUTES );
+    }
+
+    private Path relativeToHot( final Path path )
+    {
+        Path hotRoot = roots.get( 0 );
+        if ( roots.size() < 2 || path.equals( hotRoot ) || !path.startsWith( hotRoot ) )
+        {
+            return null;
+        }
+
+        return hotRoot.relativize( path );
+    }
+
+    private void touch( final String key, final File file )
+    {
+        boolean over;
+        hotLock.lock();
+        try
+        {
+            if ( hot.get( key ) != null )
+            {
+                return;
+            }
+
+            // not seen yet (written before this started, or by someone else).
+            over = account( key, file.length() );
+        }
+        finally
+        {
+            hotLock.unlock();
+        }
+
+        if ( over )
+        {
+            demoteLater();
+        }
+    }
+
+    // call with hotLock held.
+    private boolean account( final String key, final long size )
+    {
+        Long old = hot.put( key, size );
+        hotBytes += size - ( old == null ? 0 : old );
+        return hotBytes > hotBudget;
+    }
+
+    private void forget( final String key )
+    {
+        hotLock.lock();
+        try
+        {
+            Long old = hot.remove( key );
+            if ( old != null )
+            {
+                hotBytes -= old;
+            }
+        }
+        finally
+        {
+            hotLock.unlock();
+        }
+    }
+
+    private void written( final File file )
+    {
+        boolean over;
+        hotLock.lock();
+        try
+        {
+            // an aborted write leaves no file behind.
+            if ( !file.exists() )
+            {
+                Long old = hot.remove( file.getPath() );
+                hotBytes -= old == null ? 0 : old;
+                return;
+            }
+
+            over = account( file.getPath(), file.length() );
+        }
+        finally
+        {
+            hotLock.unlock();
+        }
+
+        if ( over )
+        {
+            demoteLater();
+        }
+    }
+
+    private void demoteLater()
+    {
+        if ( demoting.compareAndSet( false, true ) )
+        {
+            submit( () -> {
+                demoting.set( false );
+                demote();
+            } );
+        }
+    }
+
+    private void submit( final Runnable task )
+    {
+        try
+        {
+            worker.execute( task );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            logger.debug( "Storage tiers are shut down; not moving any more files." );
+        }
+    }
+
+    private void scanHotTier()
+    {
+        List<File> files;
+        try (Stream<Path> walk = Files.walk( roots.get( 0 ) ))
+        {
+            files = walk.map( Path::toFile )
+                        .filter( ( f ) -> f.isFile() && !f.getName().startsWith( "." ) )
+                        .sorted( Comparator.comparingLong( File::lastModified ) )
+                        .collect( Collectors.toList() );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            logger.error( "Failed to scan hot tier: " + roots.get( 0 ), e );
+            return;
+        }
+
+        boolean over = false;
+        hotLock.lock();
+        try
+        {
+            // the scanned files go first (oldest first), then the ones used while we scanned.
+            Map<String, Long> seen = new LinkedHashMap<>( hot );
+            hot.clear();
+            hotBytes = 0;
+            for ( File f : files )
+            {
+                if ( !seen.containsKey( f.getPath() ) )
+                {
+                    over = account( f.getPath(), f.length() );
+                }
+            }
+
+            for ( Map.Entry<String, Long> e : seen.entrySet() )
+            {
+                over = account( e.getKey(), e.getValue() );
+            }
+        }
+        finally
+        {
+            hotLock.unlock();
+        }
+
+        if ( over )
+        {
+            demote();
+        }
+    }
+
+    private void promote( final File file, final File source )
+    {
+        try
+        {
+            // check for the hot file under its lock, so one written in the meantime isn't overwritten.
+            if ( !tree.tryLock( file, MOVE_LABEL, LockLevel.write, lockTimeout, TimeUnit.MILLISECONDS ) )
+            {
+                throw new IOException( "Could not lock: " + file + " in " + lockTimeout + "ms." );
+            }
+
+            try
+            {
+                if ( file.exists() )
+                {
+                    return;
+                }
+
+                move( source, file );
+            }
+            finally
+            {
+                tree.unlock( file, MOVE_LABEL );
+            }
+
+            promotions.increment();
+            tree.resetReadCount( source );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            logger.error( "Failed to promote: " + source + " to: " + file, e );
+            failures.increment();
+        }
+        catch ( InterruptedException e )
+        {
+            logger.debug( "Interrupted while promoting: {}", source );
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            promoting.remove( file.getPath() );
+        }
+    }
+
+    private void demote()
+    {
+        List<Map.Entry<String, Long>> candidates;
+        hotLock.lock();
+        try
+        {
+            if ( hotBytes <= hotBudget )
+            {
+                return;
+            }
+
+            candidates = new ArrayList<>( hot.entrySet() );
+        }
+        finally
+        {
+            hotLock.unlock();
+        }
+
+        Path hotRoot = roots.get( 0 );
+        for ( Map.Entry<String, Long> candidate : candidates )
+        {
+            if ( getHotBytes() <= hotBudget || Thread.currentThread().isInterrupted() )
+            {
+                return;
+            }
+
+            File file = new File( candidate.getKey() );
+            if ( !file.exists() )
+            {
+                forget( candidate.getKey() );
+                continue;
+            }
+
+            if ( tree.getLockLevel( file ) != null )
+            {
+                logger.trace( "Not demoting: {}; it's in use.", file );
+                continue;
+            }
+
+            File target = roots.get( 1 ).resolve( hotRoot.relativize( file.toPath() ) ).toFile();
+            try
+            {
+                logger.debug( "Demoting: {} to: {}", file, target );
+                if ( move( file, target ) )
+                {
+                    forget( candidate.getKey() );
+                    demotions.increment();
+                }
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                logger.error( "Failed to demote: " + file + " to: " + target, e );
+                failures.increment();
+            }
+            catch ( InterruptedException e )
+            {
+                logger.debug( "Interrupted while demoting: {}", file );
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copy the source file to the target, then delete the source unless it's in use. Both are locked from before the
+     * copy until after the delete (the one in the hot tier first), so a write to either in between can't be lost: the
+     * source is read-locked, then upgraded to delete it.
+     *
+     * @return true if the source was deleted
+     */
+    private boolean move( final File source, final File target )
+            throws IOException, InterruptedException
+    {
+        boolean sourceIsHot = relativeToHot( source.toPath().toAbsolutePath().normalize() ) != null;
+        File first = sourceIsHot ? source : target;
+        File second = sourceIsHot ? target : source;
+
+        lockForMove( first, first == source );
+        try
+        {
+            lockForMove( second, second == source );
+            try
+            {
+                copy( source, target );
+
+                if ( tree.upgrade( source, DELETE_TIMEOUT, TimeUnit.MILLISECONDS ) && tree.deleteWriteLocked(
+                        source, MOVE_LABEL, DELETE_TIMEOUT, TimeUnit.MILLISECONDS ) )
+                {
+                    return true;
+                }
+            }
+            catch ( LockUpgradeDeadlockException e )
+            {
+                logger.debug( "Another thread is waiting to write: {}", source );
+            }
+            finally
+            {
+                tree.unlock( second, MOVE_LABEL );
+            }
+        }
+        finally
+        {
+            tree.unlock( first, MOVE_LABEL );
+        }
+
+        logger.debug( "{} is in use; leaving it in place.", source );
+        return false;
+    }
+
+    private void lockForMove( final File file, final boolean source )
+            throws IOException, InterruptedException
+    {
+        if ( !tree.tryLock( file, MOVE_LABEL, source ? LockLevel.read : LockLevel.write, lockTimeout,
+                            TimeUnit.MILLISECONDS ) )
+        {
+            throw new IOException( "Could not lock: " + file + " in " + lockTimeout + "ms." );
+        }
+    }
+
+    private void copy( final File source, final File target )
+            throws IOException, InterruptedException
+    {
+        JoinableFile copy = tree.writeCopy( target, lockTimeout, TimeUnit.MILLISECONDS, ( result ) -> result );
+        if ( copy == null )
+        {
+            throw new IOException( "Could not lock: " + target + " in " + lockTimeout + "ms." );
+        }
+
+        try (InputStream in = manager.openInputStream( source, lockTimeout ))
+        {
+            OutputStream out = copy.getOutputStream();
+            byte[] buf = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ( ( read = in.read( buf ) ) > -1 )
+            {
+                out.write( buf, 0, read );
+            }
+
+            out.close();
+        }
+        catch ( IOException | RuntimeException | InterruptedException e )
+        {
+            try
+            {
+                copy.abort( e );
+            }
+            catch ( IOException ae )
+            {
+                e.addSuppressed( ae );
+            }
+
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "StorageTiers{" + roots + ", hot=" + getHotBytes() + "/" + hotBudget + " bytes, promotions="
+                + getPromotionCount() + ", demotions=" + getDemotionCount() + ", failures=" + getFailureCount() + "}";
+    }
+
+    private final class HotFileCallbacks
+            implements ContentStreamCallbacks
+    {
+        private final StreamCallbacks callbacks;
+
+        private final File file;
+
+        HotFileCallbacks( final StreamCallbacks callbacks, final File file )
+        {
+            this.callbacks = callbacks;
+            this.file = file;
+        }
+
+        @Override
+        public void flushed()
+        {
+            if ( callbacks != null )
+            {
+                callbacks.flushed();
+            }
+        }
+
+        @Override
+        public void flushed( final long offset, final ByteBuffer content )
+        {
+            if ( callbacks instanceof ContentStreamCallbacks )
+            {
+                ( (ContentStreamCallbacks) callbacks ).flushed( offset, content );
+            }
+        }
+
+        @Override
+        public void beforeClose()
+        {
+            if ( callbacks != null )
+            {
+                callbacks.beforeClose();
+            }
+        }
+
+        @Override
+        public void closed()
+        {
+            if ( callbacks != null )
+            {
+                callbacks.closed();
+            }
+
+            written( file );
+        }
+    }
+}
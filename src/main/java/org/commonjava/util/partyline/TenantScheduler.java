@@ -0,0 +1,391 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Weighted-fair scheduling of lock grants and disk writes between tenants, each owning one or more path prefixes
+ * (repositories, for instance). Lock attempts and flushes (writes plus fsyncs) take turns through two gates, each
+ * allowing a fixed number of operations at once. While a gate is busy, the waiting operations are granted in
+ * start-time fair queueing order: each tenant's share of the turns (of the bytes written, for flushes) is proportional
+ * to its weight, so a tenant doing a bulk import can't monopolize the disk, while idle capacity is always used.
+ * <br/>
+ * Each attempt to lock a file takes its own turn, once it holds the file's operation lock, and gives it back before
+ * it waits for other owners of the file, or runs the operation it locked the file for; a lock that takes several
+ * attempts takes several turns. Paths that don't belong to any tenant are scheduled as {@link #DEFAULT_TENANT}, with
+ * a weight of 1.
+ *
+ * @see JoinableFileManager#setTenantScheduler(TenantScheduler)
+ */
+public final class TenantScheduler
+{
+    public static final String DEFAULT_TENANT = "default";
+
+    static final Turn NO_TURN = () -> {
+    };
+
+    private final Gate ioGate;
+
+    private final Gate lockGate;
+
+    // longest prefix first
+    private final List<Prefix> prefixes = new CopyOnWriteArrayList<>();
+
+    // guarded by tenantsLock
+    private final Map<String, Tenant> tenants = new LinkedHashMap<>();
+
+    private final ReentrantLock tenantsLock = new ReentrantLock();
+
+    private final Tenant defaultTenant = new Tenant( DEFAULT_TENANT, 1 );
+
+    /**
+     * @param ioSlots The number of flushes (writes plus fsyncs) allowed at once, across all files
+     * @param lockSlots The number of lock attempts allowed at once, across all files
+     */
+    public TenantScheduler( final int ioSlots, final int lockSlots )
+    {
+        if ( ioSlots < 1 || lockSlots < 1 )
+        {
+            throw new IllegalArgumentException( "Scheduler needs at least one I/O and one lock slot." );
+        }
+
+        this.ioGate = new Gate( ioSlots );
+        this.lockGate = new Gate( lockSlots );
+        tenants.put( DEFAULT_TENANT, defaultTenant );
+    }
+
+    /**
+     * Schedule the files under the given roots as the given tenant.
+     *
+     * @param tenant The tenant's name
+     * @param weight The tenant's share, relative to the weights of other tenants (at least 1)
+     * @param roots The directories owned by the tenant
+     * @return this scheduler, to add more tenants
+     */
+    public TenantScheduler addTenant( final String tenant, final int weight, final File... roots )
+    {
+        if ( weight < 1 )
+        {
+            throw new IllegalArgumentException( "Weight of tenant: " + tenant + " must be at least 1." );
+        }
+
+        Tenant t = new Tenant( tenant, weight );
+        tenantsLock.lock();
+        try
+        {
+            if ( tenants.putIfAbsent( tenant, t ) != null )
+            {
+                throw new IllegalArgumentException( "Tenant: " + tenant + " is already scheduled." );
+            }
+        }
+        finally
+        {
+            tenantsLock.unlock();
+        }
+
+        for ( File root : roots )
+        {
+            prefixes.add( new Prefix( root.getAbsolutePath(), t ) );
+        }
+
+        prefixes.sort( Comparator.comparingInt( ( Prefix p ) -> p.path.length() ).reversed() );
+        return this;
+    }
+
+    /**
+     * Statistics per tenant, by tenant name (including {@link #DEFAULT_TENANT}).
+     */
+    public Map<String, TenantStats> getStats()
+    {
+        Map<String, TenantStats> stats = new LinkedHashMap<>();
+        tenantsLock.lock();
+        try
+        {
+            tenants.forEach( ( name, t ) -> stats.put( name, t.stats ) );
+        }
+        finally
+        {
+            tenantsLock.unlock();
+        }
+
+        return stats;
+    }
+
+    public String getTenant( final File file )
+    {
+        return tenantOf( file.getAbsolutePath() ).stats.getTenant();
+    }
+
+    /**
+     * Wait for a turn to attempt a lock on the given path. The turn has to be given back with {@link Turn#done()} as
+     * soon as the attempt succeeds, or has to wait for the file; the next attempt takes a new turn.
+     */
+    Turn awaitLockTurn( final String path )
+            throws InterruptedException
+    {
+        Tenant tenant = tenantOf( path );
+        long start = System.nanoTime();
+        Turn turn = lockGate.await( tenant, 1 );
+        if ( turn != NO_TURN )
+        {
+            tenant.stats.lockGranted( System.nanoTime() - start );
+        }
+
+        return turn;
+    }
+
+    /**
+     * Wait for a turn to write the given number of bytes to the given path (and force them to disk).
+     */
+    Turn awaitIoTurn( final String path, final long bytes )
+            throws InterruptedIOException
+    {
+        Tenant tenant = tenantOf( path );
+        long start = System.nanoTime();
+        try
+        {
+            Turn turn = ioGate.await( tenant, bytes );
+            if ( turn != NO_TURN )
+            {
+                tenant.stats.flushed( bytes, System.nanoTime() - start );
+            }
+
+            return turn;
+        }
+        catch ( InterruptedException e )
+        {
+            throw new InterruptedIOException( "Interrupted while waiting to write: " + path );
+        }
+    }
+
+    private Tenant tenantOf( final String path )
+    {
+        for ( Prefix prefix : prefixes )
+        {
+            if ( path.startsWith( prefix.path ) && ( path.length() == prefix.path.length()
+                    || path.charAt( prefix.path.length() ) == File.separatorChar ) )
+            {
+                return prefix.tenant;
+            }
+        }
+
+        return defaultTenant;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TenantScheduler{" + getStats().values() + "}";
+    }
+
+    /**
+     * A granted turn, to be given back once the operation is done. Giving it back more than once has no effect.
+     */
+    @FunctionalInterface
+    interface Turn
+    {
+        void done();
+    }
+
+    private static final class Tenant
+    {
+        private final int weight;
+
+        private final TenantStats stats;
+
+        Tenant( final String name, final int weight )
+        {
+            this.weight = weight;
+            this.stats = new TenantStats( name, weight );
+        }
+    }
+
+    private static final class Prefix
+    {
+        private final String path;
+
+        private final Tenant tenant;
+
+        Prefix( final String path, final Tenant tenant )
+        {
+            this.path = path;
+            this.tenant = tenant;
+        }
+    }
+
+    /**
+     * Start-time fair queueing over a number of slots. Each request is tagged with a virtual start time: the later of
+     * the gate's virtual time and the virtual finish of the tenant's previous request. Waiting requests are granted in
+     * order of their start tags, and the virtual time advances to the start tag of each request granted. A request
+     * costing c advances its tenant's virtual finish by c / weight, so heavier tenants get proportionally more turns.
+     */
+    private static final class Gate
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final PriorityQueue<Waiter> waiting =
+                new PriorityQueue<>( Comparator.comparingDouble( ( Waiter w ) -> w.start ).thenComparingLong( w -> w.seq ) );
+
+        // guarded by lock
+        private final Map<Tenant, Double> finishTags = new HashMap<>();
+
+        // threads holding a turn may start nested operations (a lock attempt inside a lock attempt, say).
+        private final ThreadLocal<Integer> held = ThreadLocal.withInitial( () -> 0 );
+
+        private int free;
+
+        private double virtualTime;
+
+        private long seq;
+
+        Gate( final int slots )
+        {
+            this.free = slots;
+        }
+
+        Turn await( final Tenant tenant, final long cost )
+                throws InterruptedException
+        {
+            if ( held.get() > 0 )
+            {
+                return NO_TURN;
+            }
+
+            Waiter waiter;
+            lock.lock();
+            try
+            {
+                double start = Math.max( virtualTime, finishTags.getOrDefault( tenant, 0.0 ) );
+                finishTags.put( tenant, start + (double) Math.max( cost, 1 ) / tenant.weight );
+                if ( free > 0 && waiting.isEmpty() )
+                {
+                    free--;
+                    virtualTime = start;
+                    return grant();
+                }
+
+                waiter = new Waiter( start, seq++, lock.newCondition() );
+                waiting.add( waiter );
+                try
+                {
+                    while ( !waiter.granted )
+                    {
+                        waiter.ready.await();
+                    }
+                }
+                catch ( InterruptedException e )
+                {
+                    if ( waiter.granted )
+                    {
+                        // granted as we were interrupted; pass it on.
+                        release();
+                    }
+                    else
+                    {
+                        waiting.remove( waiter );
+                    }
+
+                    throw e;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            return grant();
+        }
+
+        private Turn grant()
+        {
+            held.set( held.get() + 1 );
+            Thread owner = Thread.currentThread();
+            return new Turn()
+            {
+                private boolean done;
+
+                @Override
+                public void done()
+                {
+                    if ( done )
+                    {
+                        return;
+                    }
+
+                    done = true;
+                    if ( Thread.currentThread() == owner )
+                    {
+                        held.set( held.get() - 1 );
+                    }
+
+                    lock.lock();
+                    try
+                    {
+                        release();
+                    }
+                    finally
+                    {
+                        lock.unlock();
+                    }
+                }
+            };
+        }
+
+        // must be called with the lock held
+        private void release()
+        {
+            Waiter next = waiting.poll();
+            if ( next == null )
+            {
+                free++;
+                return;
+            }
+
+            virtualTime = next.start;
+            next.granted = true;
+            next.ready.signal();
+        }
+    }
+
+    private static final class Waiter
+    {
+        private final double start;
+
+        private final long seq;
+
+        private final Condition ready;
+
+        private boolean granted;
+
+        Waiter( final double start, final long seq, final Condition ready )
+        {
+            this.start = start;
+            this.seq = seq;
+            this.ready = ready;
+        }
+    }
+}
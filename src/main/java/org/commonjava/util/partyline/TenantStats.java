@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-tenant statistics of a {@link TenantScheduler}: lock grants, flushes and bytes written, and the time spent
+ * waiting for turns (the latency the scheduler added).
+ * <br/>
+ * Getters are public to allow reporting.
+ */
+public final class TenantStats
+{
+    private final String tenant;
+
+    private final int weight;
+
+    private final long started = System.nanoTime();
+
+    private final LongAdder lockGrants = new LongAdder();
+
+    private final LongAdder flushes = new LongAdder();
+
+    private final LongAdder bytes = new LongAdder();
+
+    private final LongAdder turns = new LongAdder();
+
+    private final LongAdder waitNanos = new LongAdder();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    TenantStats( final String tenant, final int weight )
+    {
+        this.tenant = tenant;
+        this.weight = weight;
+    }
+
+    void lockGranted( final long waited )
+    {
+        lockGrants.increment();
+        waited( waited );
+    }
+
+    void flushed( final long count, final long waited )
+    {
+        flushes.increment();
+        bytes.add( count );
+        waited( waited );
+    }
+
+    private void waited( final long nanos )
+    {
+        turns.increment();
+        waitNanos.add( nanos );
+        maxWaitNanos.accumulateAndGet( nanos, Math::max );
+    }
+
+    public String getTenant()
+    {
+        return tenant;
+    }
+
+    public int getWeight()
+    {
+        return weight;
+    }
+
+    public long getLockGrants()
+    {
+        return lockGrants.sum();
+    }
+
+    public long getFlushes()
+    {
+        return flushes.sum();
+    }
+
+    public long getBytesWritten()
+    {
+        return bytes.sum();
+    }
+
+    /**
+     * Bytes written per second, since the scheduler was set up.
+     */
+    public long getThroughput()
+    {
+        long elapsed = System.nanoTime() - started;
+        return elapsed < 1 ? 0 : (long) ( bytes.sum() * 1e9 / elapsed );
+    }
+
+    public long getAverageWaitMillis()
+    {
+        long n = turns.sum();
+        return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis( waitNanos.sum() / n );
+    }
+
+    public long getMaxWaitMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( maxWaitNanos.get() );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TenantStats{" + tenant + " (weight " + weight + "), locks=" + getLockGrants() + ", flushes="
+                + getFlushes() + ", bytes=" + getBytesWritten() + ", throughput=" + getThroughput()
+                + "b/s, averageWait=" + getAverageWaitMillis() + "ms, maxWait=" + getMaxWaitMillis() + "ms}";
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time-to-first-byte statistics for readers joining files while they're being written: the time from opening the
+ * joined stream until its first byte could be read.
+ * <br/>
+ * Getters are public to allow reporting.
+ *
+ * @see JoinableFileManager#getTimeToFirstByte()
+ */
+public final class TimeToFirstByte
+{
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder totalNanos = new LongAdder();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record( final long nanos )
+    {
+        count.increment();
+        totalNanos.add( nanos );
+        maxNanos.accumulateAndGet( nanos, Math::max );
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public long getAverageMillis()
+    {
+        long n = count.sum();
+        return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis( totalNanos.sum() / n );
+    }
+
+    public long getMaxMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( maxNanos.get() );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TimeToFirstByte{count=" + getCount() + ", average=" + getAverageMillis() + "ms, max=" + getMaxMillis()
+                + "ms}";
+    }
+}
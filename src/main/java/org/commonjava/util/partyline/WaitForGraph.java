@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.commonjava.util.partyline.LockOwner.getLockReservationName;
+
+/**
+ * Tracks which lock owners (see {@link LockOwner#getLockReservationName()}) are waiting for locks held by others, to
+ * find deadlocks: owners in a cycle, each waiting for a lock the next one holds. Each time an owner waits, the graph
+ * is searched for a cycle back to it; if one is found, the youngest waiter in the cycle (the one that started waiting
+ * last) is failed with a {@link LockDeadlockException}, so it releases its locks and lets the others go ahead.
+ * <br/>
+ * Only the waits are tracked; who holds each lock is read from its {@link LockOwner} when the graph is searched, so
+ * the edges are never stale. Waits for locks held by other nodes have no edges here.
+ * <br/>
+ * Neither do waits for a {@link FileOperationLock}: it is only held for the length of a single operation on a file,
+ * and released while waiting for a lock owner, so a thread blocked on one is not waiting for another owner's locks.
+ * A cycle that passes through such a wait is not found here.
+ *
+ * @see JoinableFileManager#enableDeadlockDetection()
+ */
+final class WaitForGraph
+{
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    // by owner name; guarded by graphLock (not a monitor, so waiting virtual threads don't pin their carriers)
+    private final Map<String, Waiter> waiters = new HashMap<>();
+
+    private final ReentrantLock graphLock = new ReentrantLock();
+
+    private final AtomicLong deadlocks = new AtomicLong();
+
+    /**
+     * Record that the current owner is waiting to lock a path, held by the owners of the given lock (null if it's held
+     * by another node), then look for a cycle through it. Call this on every pass of the wait, since what the owner
+     * waits for can change, and finish with {@link #done(Waiter)}. If another owner is failed, its wait is cut short
+     * by signalling its operation lock.
+     *
+     * @param waiter The result of the previous call during this wait, or null at first
+     * @param opLock The operation lock the current owner waits on between passes
+     * @return The waiter to pass to the next call
+     * @throws LockDeadlockException if the current owner is the youngest waiter in a cycle (found now, or by another
+     * owner's wait)
+     */
+    Waiter await( final Waiter waiter, final String path, final LockLevel level, final LockOwner blocker,
+                  final FileOperationLock opLock )
+            throws LockDeadlockException
+    {
+        Waiter w = waiter;
+        FileOperationLock victimLock = null;
+        graphLock.lock();
+        try
+        {
+            if ( w == null )
+            {
+                w = new Waiter( getLockReservationName() );
+                waiters.put( w.owner, w );
+            }
+
+            w.path = path;
+            w.level = level;
+            w.blocker = blocker;
+            w.opLock = opLock;
+
+            if ( w.cycle == null )
+            {
+                Deque<Waiter> cycle = new ArrayDeque<>();
+                if ( search( w, w, cycle, new HashSet<>() ) )
+                {
+                    Waiter youngest = w;
+                    StringBuilder sb = new StringBuilder();
+                    for ( Waiter c : cycle )
+                    {
+                        if ( c.since - youngest.since > 0 )
+                        {
+                            youngest = c;
+                        }
+
+                        sb.append( c ).append( " -> " );
+                    }
+                    sb.append( w.owner );
+
+                    youngest.cycle = sb.toString();
+                    deadlocks.incrementAndGet();
+                    logger.warn( "Deadlock found; failing youngest waiter: {}. Wait-for cycle: {}", youngest.owner,
+                                 youngest.cycle );
+
+                    if ( youngest != w )
+                    {
+                        victimLock = youngest.opLock;
+                    }
+                }
+            }
+
+            if ( w.cycle != null )
+            {
+                waiters.remove( w.owner, w );
+                throw new LockDeadlockException( path, w.cycle );
+            }
+        }
+        finally
+        {
+            graphLock.unlock();
+        }
+
+        // don't leave the failed owner waiting out its poll (it may hold locks the others wait for)
+        if ( victimLock != null )
+        {
+            victimLock.trySignalAll();
+        }
+
+        return w;
+    }
+
+    /**
+     * Stop tracking a wait (which may have ended in a lock, a timeout or an error). Null is ignored.
+     */
+    void done( final Waiter waiter )
+    {
+        if ( waiter != null )
+        {
+            graphLock.lock();
+            try
+            {
+                waiters.remove( waiter.owner, waiter );
+            }
+            finally
+            {
+                graphLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return The number of deadlocks found (and broken) so far
+     */
+    long getDeadlockCount()
+    {
+        return deadlocks.get();
+    }
+
+    /**
+     * Depth-first search from the current waiter through the owners holding the lock it waits for, for a path back to
+     * the start. Waiters already failed (which will release their locks) are skipped. The path is left in the given
+     * deque when a cycle is found.
+     */
+    private boolean search( final Waiter start, final Waiter current, final Deque<Waiter> path,
+                            final Set<String> visited )
+    {
+        if ( current.blocker == null )
+        {
+            return false;
+        }
+
+        path.addLast( current );
+        visited.add( current.owner );
+
+        for ( String holder : current.blocker.getOwners() )
+        {
+            if ( holder.equals( current.owner ) )
+            {
+                // e.g. upgrading its own read lock
+                continue;
+            }
+
+            if ( holder.equals( start.owner ) )
+            {
+                return true;
+            }
+
+            Waiter next = waiters.get( holder );
+            if ( next != null && next.cycle == null && !visited.contains( holder ) && search( start, next, path,
+                                                                                               visited ) )
+            {
+                return true;
+            }
+        }
+
+        path.removeLast();
+        return false;
+    }
+
+    /**
+     * A lock owner's wait, from its first pass on.
+     */
+    static final class Waiter
+    {
+        private final String owner;
+
+        private final long since = System.nanoTime();
+
+        // guarded by the graph
+        private String path;
+
+        private LockLevel level;
+
+        private LockOwner blocker;
+
+        private FileOperationLock opLock;
+
+        // set when this waiter is failed to break a deadlock
+        private String cycle;
+
+        private Waiter( final String owner )
+        {
+            this.owner = owner;
+        }
+
+        @Override
+        public String toString()
+        {
+            return owner + " (waiting to " + level + "-lock: " + path + ")";
+        }
+    }
+}
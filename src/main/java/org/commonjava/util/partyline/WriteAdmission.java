@@ -0,0 +1,389 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission limits for writes, so a burst of writers can't saturate the disk and starve reads: the number of streams
+ * open for writing at once, the number of bytes written to stream buffers but not yet flushed to disk, and the number
+ * of fsyncs (channel forces) running at once. Writers over the limits queue in order of arrival, and give up with an
+ * {@link IOException} after the admission timeout. Fsyncs wait for their turn up to the admission timeout, then run
+ * anyway.
+ * <br/>
+ * Producers of missing files (see {@link JoinableFileManager#openInputStreamOrProduce(java.io.File, Producer, long)})
+ * count as writers. Copies partyline makes itself (mirroring, moves between storage tiers) don't, so the workers making
+ * them never queue.
+ * <br/>
+ * Getters are public to allow reporting of queue depths.
+ *
+ * @see JoinableFileManager#setWriteAdmission(int, long, int, long)
+ */
+public final class WriteAdmission
+{
+    private final int maxWriters;
+
+    private final long maxInFlightBytes;
+
+    private final int maxSyncs;
+
+    private final long timeout;
+
+    private final Semaphore writers;
+
+    private final Semaphore syncs;
+
+    private final ReentrantLock bytesLock = new ReentrantLock( true );
+
+    private final Condition bytesReleased = bytesLock.newCondition();
+
+    // guarded by bytesLock
+    private long inFlightBytes;
+
+    private final AtomicInteger queuedWriters = new AtomicInteger();
+
+    private final AtomicInteger maxQueuedWriters = new AtomicInteger();
+
+    private final AtomicInteger queuedForBytes = new AtomicInteger();
+
+    private final AtomicInteger queuedSyncs = new AtomicInteger();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder overdueSyncs = new LongAdder();
+
+    private final AtomicLong admissionWaitNanos = new AtomicLong();
+
+    /**
+     * @param maxWriters The maximum number of files open for writing at once (0 or less for no limit)
+     * @param maxInFlightBytes The maximum number of bytes written but not yet flushed, across all files (0 or less for
+     *                         no limit; otherwise at least the 1mb a single write buffer holds)
+     * @param maxSyncs The maximum number of fsyncs running at once (0 or less for no limit)
+     * @param timeout Time (milliseconds) a writer waits for admission before giving up
+     */
+    WriteAdmission( final int maxWriters, final long maxInFlightBytes, final int maxSyncs, final long timeout )
+    {
+        if ( maxInFlightBytes > 0 && maxInFlightBytes < JoinableFile.CHUNK_SIZE )
+        {
+            throw new IllegalArgumentException(
+                    "In-flight bytes must be unlimited, or at least one write buffer (" + JoinableFile.CHUNK_SIZE
+                            + " bytes)" );
+        }
+
+        this.maxWriters = maxWriters;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.maxSyncs = maxSyncs;
+        this.timeout = timeout;
+        this.writers = maxWriters > 0 ? new Semaphore( maxWriters, true ) : null;
+        this.syncs = maxSyncs > 0 ? new Semaphore( maxSyncs, true ) : null;
+    }
+
+    public int getMaxWriters()
+    {
+        return maxWriters;
+    }
+
+    public long getMaxInFlightBytes()
+    {
+        return maxInFlightBytes;
+    }
+
+    public int getMaxSyncs()
+    {
+        return maxSyncs;
+    }
+
+    public int getActiveWriters()
+    {
+        return writers == null ? 0 : maxWriters - writers.availablePermits();
+    }
+
+    /**
+     * The number of writers waiting to open their files.
+     */
+    public int getQueuedWriters()
+    {
+        return queuedWriters.get();
+    }
+
+    /**
+     * The most writers that have waited to open their files at once.
+     */
+    public int getMaxQueuedWriters()
+    {
+        return maxQueuedWriters.get();
+    }
+
+    public long getInFlightBytes()
+    {
+        bytesLock.lock();
+        try
+        {
+            return inFlightBytes;
+        }
+        finally
+        {
+            bytesLock.unlock();
+        }
+    }
+
+    /**
+     * The number of writers waiting for in-flight bytes to be flushed before they can buffer more.
+     */
+    public int getQueuedForBytes()
+    {
+        return queuedForBytes.get();
+    }
+
+    public int getActiveSyncs()
+    {
+        return syncs == null ? 0 : maxSyncs - syncs.availablePermits();
+    }
+
+    public int getQueuedSyncs()
+    {
+        return queuedSyncs.get();
+    }
+
+    /**
+     * The number of fsyncs that ran over the limit, because they didn't get a turn within the admission timeout.
+     */
+    public long getOverdueSyncCount()
+    {
+        return overdueSyncs.sum();
+    }
+
+    /**
+     * The number of writers that gave up after waiting for admission for the timeout.
+     */
+    public long getRejectedCount()
+    {
+        return rejected.sum();
+    }
+
+    /**
+     * The total time writers have spent waiting for admission, in milliseconds.
+     */
+    public long getAdmissionWaitMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( admissionWaitNanos.get() );
+    }
+
+    /**
+     * Wait for a writer's slot to open the given file, up to the admission timeout.
+     */
+    void admitWriter( final String path )
+            throws IOException
+    {
+        if ( writers == null || writers.tryAcquire() )
+        {
+            return;
+        }
+
+        int queued = queuedWriters.incrementAndGet();
+        maxQueuedWriters.accumulateAndGet( queued, Math::max );
+        long start = System.nanoTime();
+        try
+        {
+            if ( !writers.tryAcquire( timeout, TimeUnit.MILLISECONDS ) )
+            {
+                rejected.increment();
+                throw new IOException(
+                        "Could not open: " + path + " for writing; " + maxWriters + " writers are active and "
+                                + ( queued - 1 ) + " were waiting before it for " + timeout + "ms." );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            throw new InterruptedIOException( "Interrupted while waiting to write: " + path );
+        }
+        finally
+        {
+            queuedWriters.decrementAndGet();
+            admissionWaitNanos.addAndGet( System.nanoTime() - start );
+        }
+    }
+
+    /**
+     * Take a writer's slot if one is free right away; for callers that can't wait where they are.
+     */
+    boolean tryAdmitWriter()
+    {
+        return writers == null || writers.tryAcquire();
+    }
+
+    void releaseWriter()
+    {
+        if ( writers != null )
+        {
+            writers.release();
+        }
+    }
+
+    /**
+     * Admit the given number of bytes into a write buffer right away, if they fit.
+     */
+    boolean tryAdmitBytes( final int count )
+    {
+        if ( maxInFlightBytes < 1 )
+        {
+            return true;
+        }
+
+        bytesLock.lock();
+        try
+        {
+            if ( queuedForBytes.get() > 0 || inFlightBytes + count > maxInFlightBytes )
+            {
+                return false;
+            }
+
+            inFlightBytes += count;
+            return true;
+        }
+        finally
+        {
+            bytesLock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the given number of bytes fit, up to the admission timeout.
+     */
+    void admitBytes( final String path, final int count )
+            throws IOException
+    {
+        if ( maxInFlightBytes < 1 )
+        {
+            return;
+        }
+
+        queuedForBytes.incrementAndGet();
+        long start = System.nanoTime();
+        bytesLock.lock();
+        try
+        {
+            long remaining = TimeUnit.MILLISECONDS.toNanos( timeout );
+            while ( inFlightBytes + count > maxInFlightBytes )
+            {
+                if ( remaining <= 0 )
+                {
+                    rejected.increment();
+                    throw new IOException( "Could not buffer content for: " + path + "; " + inFlightBytes
+                                                   + " bytes were waiting to be flushed for " + timeout + "ms." );
+                }
+
+                remaining = bytesReleased.awaitNanos( remaining );
+            }
+
+            inFlightBytes += count;
+        }
+        catch ( InterruptedException e )
+        {
+            throw new InterruptedIOException( "Interrupted while waiting to buffer content for: " + path );
+        }
+        finally
+        {
+            queuedForBytes.decrementAndGet();
+            bytesLock.unlock();
+            admissionWaitNanos.addAndGet( System.nanoTime() - start );
+        }
+    }
+
+    void releaseBytes( final long count )
+    {
+        if ( maxInFlightBytes < 1 || count < 1 )
+        {
+            return;
+        }
+
+        bytesLock.lock();
+        try
+        {
+            inFlightBytes -= count;
+            bytesReleased.signalAll();
+        }
+        finally
+        {
+            bytesLock.unlock();
+        }
+    }
+
+    /**
+     * Wait for a turn to fsync, up to the admission timeout. A sync can't be skipped, so if the turn doesn't come in
+     * time, it runs anyway, over the limit.
+     *
+     * @return true if a turn was taken, to be given back with {@link #endSync()}
+     */
+    boolean beginSync( final String path )
+            throws IOException
+    {
+        if ( syncs == null )
+        {
+            return false;
+        }
+
+        if ( syncs.tryAcquire() )
+        {
+            return true;
+        }
+
+        queuedSyncs.incrementAndGet();
+        try
+        {
+            if ( syncs.tryAcquire( timeout, TimeUnit.MILLISECONDS ) )
+            {
+                return true;
+            }
+
+            overdueSyncs.increment();
+            return false;
+        }
+        catch ( InterruptedException e )
+        {
+            throw new InterruptedIOException( "Interrupted while waiting to sync: " + path );
+        }
+        finally
+        {
+            queuedSyncs.decrementAndGet();
+        }
+    }
+
+    void endSync()
+    {
+        if ( syncs != null )
+        {
+            syncs.release();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "WriteAdmission{writers=" + getActiveWriters() + "/" + maxWriters + " (" + getQueuedWriters()
+                + " queued), inFlightBytes=" + getInFlightBytes() + "/" + maxInFlightBytes + " (" + getQueuedForBytes()
+                + " queued), syncs=" + getActiveSyncs() + "/" + maxSyncs + " (" + getQueuedSyncs()
+                + " queued, " + getOverdueSyncCount() + " overdue), rejected=" + getRejectedCount() + "}";
+    }
+}
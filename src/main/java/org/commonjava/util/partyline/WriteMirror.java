@@ -0,0 +1,705 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.commonjava.util.partyline.callback.ContentStreamCallbacks;
+import org.commonjava.util.partyline.callback.StreamCallbacks;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Asynchronous write-through mirror of the files written under a primary root to the same relative paths under a
+ * mirror root. Each flushed range of content is copied into a bounded queue, and written to the mirror by a single
+ * worker thread, so writers don't wait for the mirror's I/O. Mirror files are written through the same
+ * {@link FileTree} as everything else, so they're locked for writing while they're mirrored, readers of the mirror
+ * join the mirrored write, and a write that fails on the primary is aborted (and deleted) on the mirror too.
+ * <br/>
+ * The queue holds at most the configured number of flushed ranges (up to 1mb each). When it's full, the
+ * {@link MirrorOverflow} decides whether the writer waits, or the file is copied in full once it's closed instead.
+ * Flushes that run on threads shared with other files (background flushes, or flushes triggered by a
+ * {@link FlushPolicy}) never wait; if there's no room for their content, the file is copied once it's closed.
+ * <br/>
+ * Files (and empty directories) deleted under the primary root through partyline are deleted from the mirror too, in
+ * order with the writes. The worker never waits for long on a mirror file that's in use (by readers of the mirror,
+ * say): if it can't lock the file right away, it goes on with other files, and tries that file again later, until the
+ * lock timeout has passed. Until then, the mirror is behind for that file (see {@link #getDeferredCount()}).
+ * <br/>
+ * Getters are public to allow reporting of replication lag and statistics.
+ *
+ * @see JoinableFileManager#enableMirror(File, File, int, MirrorOverflow, long)
+ */
+public final class WriteMirror
+{
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024; // 1mb
+
+    private static final long CLOSE = -1;
+
+    private static final long DELETE = -2;
+
+    private static final long DELETE_TREE = -3;
+
+    // how long the worker waits for a lock before trying other files; at most one wait interval in FileTree.
+    private static final long ATTEMPT_TIMEOUT = 1;
+
+    private static final long RETRY_INTERVAL = 100;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final JoinableFileManager manager;
+
+    private final FileTree tree;
+
+    private final Path primaryRoot;
+
+    private final Path mirrorRoot;
+
+    private final int maxQueuedFlushes;
+
+    private final MirrorOverflow overflow;
+
+    private final long lockTimeout;
+
+    // flushed content takes a permit, closes don't, so a close never waits (under its file's lock) for queue room.
+    private final Semaphore permits;
+
+    private final LinkedBlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+
+    private final Thread worker;
+
+    private final Task stop = new Task( null, CLOSE, null );
+
+    // tasks that couldn't lock their file yet, to be retried; only modified by the worker.
+    private final ConcurrentLinkedQueue<Task> deferred = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = true;
+
+    private volatile Task current;
+
+    private final LongAdder mirrored = new LongAdder();
+
+    private final LongAdder resyncs = new LongAdder();
+
+    private final LongAdder overflows = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final LongAdder deletes = new LongAdder();
+
+    private final AtomicLong maxLagNanos = new AtomicLong();
+
+    WriteMirror( final JoinableFileManager manager, final FileTree tree, final File primaryRoot, final File mirrorRoot,
+                 final int maxQueuedFlushes, final MirrorOverflow overflow, final long lockTimeout )
+    {
+        this.manager = manager;
+        this.tree = tree;
+        this.primaryRoot = primaryRoot.toPath().toAbsolutePath().normalize();
+        this.mirrorRoot = mirrorRoot.toPath().toAbsolutePath().normalize();
+        this.maxQueuedFlushes = maxQueuedFlushes;
+        this.overflow = overflow;
+        this.lockTimeout = lockTimeout;
+        this.permits = new Semaphore( maxQueuedFlushes );
+
+        worker = new Thread( this::run, "partyline-mirror" );
+        worker.setDaemon( true );
+        worker.start();
+    }
+
+    public File getPrimaryRoot()
+    {
+        return primaryRoot.toFile();
+    }
+
+    public File getMirrorRoot()
+    {
+        return mirrorRoot.toFile();
+    }
+
+    /**
+     * Replication lag: the age of the oldest flush (or close) that hasn't been applied to the mirror yet, in
+     * milliseconds. 0 when the mirror is up to date.
+     */
+    public long getLagMillis()
+    {
+        Task oldest = current;
+        if ( oldest == null )
+        {
+            oldest = queue.peek();
+        }
+
+        long queued = oldest == null || oldest == stop ? 0 : oldest.queued;
+        for ( Task task : deferred )
+        {
+            if ( queued == 0 || task.queued - queued < 0 )
+            {
+                queued = task.queued;
+            }
+        }
+
+        return queued == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - queued );
+    }
+
+    /**
+     * The longest time so far from closing a file under the primary root until its mirror was complete, in
+     * milliseconds.
+     */
+    public long getMaxLagMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( maxLagNanos.get() );
+    }
+
+    public int getPendingFlushes()
+    {
+        return maxQueuedFlushes - permits.availablePermits();
+    }
+
+    public long getMirroredCount()
+    {
+        return mirrored.sum();
+    }
+
+    public long getResyncCount()
+    {
+        return resyncs.sum();
+    }
+
+    public long getOverflowCount()
+    {
+        return overflows.sum();
+    }
+
+    public long getFailureCount()
+    {
+        return failures.sum();
+    }
+
+    /**
+     * The number of files (and directories) deleted from the mirror because they were deleted under the primary root.
+     */
+    public long getDeleteCount()
+    {
+        return deletes.sum();
+    }
+
+    /**
+     * The number of closes / deletes waiting to be retried because their mirror file was in use.
+     */
+    public int getDeferredCount()
+    {
+        return deferred.size();
+    }
+
+    /**
+     * Wrap the callbacks of a file opened for writing so its flushed content and close are queued for the mirror. If
+     * the file isn't under the primary root, return the callbacks as they are.
+     */
+    StreamCallbacks tee( final File file, final StreamCallbacks callbacks )
+    {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        if ( !running || path.equals( primaryRoot ) || !path.startsWith( primaryRoot ) || path.startsWith( mirrorRoot ) )
+        {
+            return callbacks;
+        }
+
+        File target = mirrorRoot.resolve( primaryRoot.relativize( path ) ).toFile();
+        return new MirrorCallbacks( callbacks, new MirroredFile( path.toFile(), target ) );
+    }
+
+    /**
+     * Queue the delete of the given file or directory on the mirror, if it's under the primary root. Called once it has
+     * been deleted from the primary root.
+     *
+     * @param tree If true, a directory was deleted with everything in it; otherwise, only if it was empty
+     */
+    void deleted( final File file, final boolean tree )
+    {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        if ( !running || path.equals( primaryRoot ) || !path.startsWith( primaryRoot ) || path.startsWith( mirrorRoot ) )
+        {
+            return;
+        }
+
+        File target = mirrorRoot.resolve( primaryRoot.relativize( path ) ).toFile();
+        queue.add( new Task( new MirroredFile( path.toFile(), target ), tree ? DELETE_TREE : DELETE, null ) );
+    }
+
+    /**
+     * Stop mirroring new content, and wait until everything queued so far has been applied to the mirror. Mirror files
+     * whose primary files are still being written are aborted.
+     */
+    void shutdown()
+            throws InterruptedException
+    {
+        running = false;
+        queue.add( stop );
+        worker.join();
+    }
+
+    private void queueContent( final MirroredFile file, final long offset, final ByteBuffer content )
+    {
+        if ( !running || file.resync )
+        {
+            return;
+        }
+
+        if ( overflow == MirrorOverflow.block && !JoinableFile.isSharedFlushThread() )
+        {
+            try
+            {
+                permits.acquire();
+            }
+            catch ( InterruptedException e )
+            {
+                logger.debug( "Interrupted while waiting to mirror: {}. It will be copied once it's closed.",
+                              file.primary );
+                Thread.currentThread().interrupt();
+                file.resync = true;
+                return;
+            }
+        }
+        else if ( !permits.tryAcquire() )
+        {
+            // with MirrorOverflow.block, only the writer's own thread may wait; a shared flush thread falls back.
+            logger.debug( "Mirror queue is full. {} will be copied once it's closed.", file.primary );
+            overflows.increment();
+            file.resync = true;
+            return;
+        }
+
+        byte[] copy = new byte[content.remaining()];
+        content.get( copy );
+        queue.add( new Task( file, offset, copy ) );
+    }
+
+    private void queueClose( final MirroredFile file )
+    {
+        if ( running )
+        {
+            queue.add( new Task( file, CLOSE, null ) );
+        }
+    }
+
+    /**
+     * Take the next task: a deferred one whose retry is due, or else the next one in the queue, waiting at most until
+     * the next retry is due.
+     */
+    private Task next()
+            throws InterruptedException
+    {
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        for ( Task task : deferred )
+        {
+            long due = task.retryAt - now;
+            if ( due <= 0 )
+            {
+                deferred.remove( task );
+                return task;
+            }
+
+            wait = Math.min( wait, due );
+        }
+
+        if ( wait == Long.MAX_VALUE )
+        {
+            return queue.take();
+        }
+
+        Task task = queue.poll( wait, TimeUnit.NANOSECONDS );
+        return task == null ? next() : task;
+    }
+
+    /**
+     * The mirror file of the given task is in use. Try again later, unless it has been in use for the whole lock
+     * timeout already.
+     */
+    private void defer( final Task task, final String what )
+            throws IOException
+    {
+        long now = System.nanoTime();
+        if ( task.firstAttempt == 0 )
+        {
+            task.firstAttempt = now;
+        }
+        else if ( lockTimeout > 0 && now - task.firstAttempt > TimeUnit.MILLISECONDS.toNanos( lockTimeout ) )
+        {
+            throw new IOException( "Could not " + what + " mirror: " + task.file.target + " in " + lockTimeout + "ms." );
+        }
+
+        logger.debug( "Mirror: {} is in use. Will try to {} it again later.", task.file.target, what );
+        task.retryAt = now + TimeUnit.MILLISECONDS.toNanos( RETRY_INTERVAL );
+        deferred.add( task );
+    }
+
+    private void run()
+    {
+        Set<MirroredFile> open = new HashSet<>();
+        boolean stopping = false;
+        while ( !stopping || !deferred.isEmpty() )
+        {
+            Task task;
+            try
+            {
+                task = next();
+            }
+            catch ( InterruptedException e )
+            {
+                logger.warn( "Mirror worker interrupted! Aborting." );
+                break;
+            }
+
+            if ( task == stop )
+            {
+                // finish (or time out) the retries first.
+                stopping = true;
+                continue;
+            }
+
+            current = task;
+            try
+            {
+                if ( task.content != null )
+                {
+                    write( task, open );
+                }
+                else if ( task.offset == DELETE || task.offset == DELETE_TREE )
+                {
+                    delete( task );
+                }
+                else
+                {
+                    complete( task, open );
+                }
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                logger.error( "Failed to mirror: " + task.file.primary + " to: " + task.file.target, e );
+                failures.increment();
+                task.file.failed = true;
+                abort( task.file, e, open );
+            }
+            catch ( InterruptedException e )
+            {
+                logger.warn( "Mirror worker interrupted! Aborting." );
+                task.file.failed = true;
+                abort( task.file, e, open );
+                break;
+            }
+            finally
+            {
+                current = null;
+                if ( task.content != null )
+                {
+                    permits.release();
+                }
+            }
+        }
+
+        for ( MirroredFile file : new HashSet<>( open ) )
+        {
+            failures.increment();
+            abort( file, new IOException( "Mirror shut down before: " + file.primary + " was closed." ), open );
+        }
+    }
+
+    private void write( final Task task, final Set<MirroredFile> open )
+            throws IOException, InterruptedException
+    {
+        MirroredFile file = task.file;
+        if ( file.failed || file.resync )
+        {
+            return;
+        }
+
+        if ( task.offset != file.written )
+        {
+            logger.debug( "Mirror of: {} is missing content at: {}. It will be copied once it's closed.",
+                          file.primary, file.written );
+            file.resync = true;
+            return;
+        }
+
+        if ( file.mirror == null && !open( file, open ) )
+        {
+            // don't hold up the other files while this one is in use; copy it in full once it's closed.
+            logger.debug( "Mirror: {} is in use. It will be copied once {} is closed.", file.target, file.primary );
+            file.resync = true;
+            return;
+        }
+
+        file.mirror.getOutputStream().write( task.content );
+        file.written += task.content.length;
+    }
+
+    private void complete( final Task task, final Set<MirroredFile> open )
+            throws IOException, InterruptedException
+    {
+        MirroredFile file = task.file;
+        if ( file.failed )
+        {
+            return;
+        }
+
+        if ( !file.primary.exists() )
+        {
+            // the write failed and the incomplete primary file was deleted; do the same to the mirror.
+            logger.debug( "Primary: {} is gone. Removing its mirror.", file.primary );
+            if ( file.mirror != null )
+            {
+                abort( file, new IOException( "Write of primary: " + file.primary + " failed." ), open );
+            }
+            else if ( !tree.delete( file.target, ATTEMPT_TIMEOUT, TimeUnit.MILLISECONDS ) )
+            {
+                defer( task, "delete" );
+            }
+
+            return;
+        }
+
+        if ( file.resync )
+        {
+            if ( file.mirror != null )
+            {
+                abort( file, new IOException( "Mirror of: " + file.primary + " is incomplete." ), open );
+            }
+
+            if ( !open( file, open ) )
+            {
+                defer( task, "copy" );
+                return;
+            }
+
+            logger.debug( "Copying: {} to mirror: {}", file.primary, file.target );
+            try (InputStream in = manager.openInputStream( file.primary, lockTimeout ))
+            {
+                OutputStream out = file.mirror.getOutputStream();
+                byte[] buf = new byte[COPY_BUFFER_SIZE];
+                int read;
+                while ( ( read = in.read( buf ) ) > -1 )
+                {
+                    out.write( buf, 0, read );
+                }
+            }
+
+            resyncs.increment();
+        }
+        else if ( file.mirror == null && !open( file, open ) )
+        {
+            // nothing was flushed; mirror an empty file, once the mirror isn't in use.
+            defer( task, "write" );
+            return;
+        }
+
+        file.mirror.getOutputStream().close();
+        file.mirror = null;
+        open.remove( file );
+
+        mirrored.increment();
+        maxLagNanos.accumulateAndGet( System.nanoTime() - task.queued, Math::max );
+    }
+
+    /**
+     * Open the mirror file for writing, if it can be locked right away.
+     *
+     * @return false if the mirror file is in use
+     */
+    private boolean open( final MirroredFile file, final Set<MirroredFile> open )
+            throws IOException, InterruptedException
+    {
+        file.mirror = tree.writeCopy( file.target, ATTEMPT_TIMEOUT, TimeUnit.MILLISECONDS, ( result ) -> result );
+        if ( file.mirror == null )
+        {
+            return false;
+        }
+
+        open.add( file );
+        return true;
+    }
+
+    private void delete( final Task task )
+            throws IOException, InterruptedException
+    {
+        File target = task.file.target;
+        if ( !target.exists() )
+        {
+            return;
+        }
+
+        if ( task.offset == DELETE && target.isDirectory() )
+        {
+            String[] children = target.list();
+            if ( children != null && children.length > 0 )
+            {
+                // the primary directory was empty when it was deleted; the mirror isn't (yet). Leave it.
+                logger.debug( "Mirror directory: {} is not empty. Not deleting it.", target );
+                return;
+            }
+        }
+
+        if ( tree.delete( target, ATTEMPT_TIMEOUT, TimeUnit.MILLISECONDS ) )
+        {
+            deletes.increment();
+        }
+        else
+        {
+            defer( task, "delete" );
+        }
+    }
+
+    private void abort( final MirroredFile file, final Throwable cause, final Set<MirroredFile> open )
+    {
+        open.remove( file );
+        if ( file.mirror == null )
+        {
+            return;
+        }
+
+        try
+        {
+            file.mirror.abort( cause );
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Failed to abort mirror: " + file.target, e );
+        }
+
+        file.mirror = null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "WriteMirror{" + primaryRoot + " -> " + mirrorRoot + ", lag=" + getLagMillis() + "ms, maxLag="
+                + getMaxLagMillis() + "ms, pending=" + getPendingFlushes() + ", mirrored=" + getMirroredCount()
+                + ", resyncs=" + getResyncCount() + ", deletes=" + getDeleteCount() + ", deferred="
+                + getDeferredCount() + ", failures=" + getFailureCount() + "}";
+    }
+
+    private static final class Task
+    {
+        private final MirroredFile file;
+
+        // the offset of the content, or CLOSE / DELETE / DELETE_TREE
+        private final long offset;
+
+        private final byte[] content;
+
+        private final long queued = System.nanoTime();
+
+        // for deferred tasks; only touched by the worker
+        private long firstAttempt;
+
+        private long retryAt;
+
+        Task( final MirroredFile file, final long offset, final byte[] content )
+        {
+            this.file = file;
+            this.offset = offset;
+            this.content = content;
+        }
+    }
+
+    private static final class MirroredFile
+    {
+        private final File primary;
+
+        private final File target;
+
+        // set by writers when content can't be queued; the rest is only touched by the worker.
+        private volatile boolean resync;
+
+        private boolean failed;
+
+        private long written;
+
+        private JoinableFile mirror;
+
+        MirroredFile( final File primary, final File target )
+        {
+            this.primary = primary;
+            this.target = target;
+        }
+    }
+
+    private final class MirrorCallbacks
+            implements ContentStreamCallbacks
+    {
+        private final StreamCallbacks callbacks;
+
+        private final MirroredFile file;
+
+        MirrorCallbacks( final StreamCallbacks callbacks, final MirroredFile file )
+        {
+            this.callbacks = callbacks;
+            this.file = file;
+        }
+
+        @Override
+        public void flushed()
+        {
+            if ( callbacks != null )
+            {
+                callbacks.flushed();
+            }
+        }
+
+        @Override
+        public void flushed( final long offset, final ByteBuffer content )
+        {
+            ByteBuffer mirrored = content.duplicate();
+            if ( callbacks instanceof ContentStreamCallbacks )
+            {
+                ( (ContentStreamCallbacks) callbacks ).flushed( offset, content );
+            }
+
+            queueContent( file, offset, mirrored );
+        }
+
+        @Override
+        public void beforeClose()
+        {
+            if ( callbacks != null )
+            {
+                callbacks.beforeClose();
+            }
+        }
+
+        @Override
+        public void closed()
+        {
+            if ( callbacks != null )
+            {
+                callbacks.closed();
+            }
+
+            queueClose( file );
+        }
+    }
+}
@@ -15,9 +15,10 @@
  */
 package org.commonjava.util.partyline.callback;
 
+import java.nio.ByteBuffer;
 
 public abstract class AbstractStreamCallbacks
-    implements StreamCallbacks
+    implements ContentStreamCallbacks
 {
 
     @Override
@@ -25,6 +26,11 @@ public abstract class AbstractStreamCallbacks
     {
     }
 
+    @Override
+    public void flushed( final long offset, final ByteBuffer content )
+    {
+    }
+
     @Override
     public void closed()
     {
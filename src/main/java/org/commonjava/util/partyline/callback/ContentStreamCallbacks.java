@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.callback;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link StreamCallbacks} that are also given the content as it's flushed to disk, so it can be streamed elsewhere
+ * (replicated, indexed, checksummed...) incrementally, without reading the file back.
+ * <br/>
+ * Callbacks are made in the thread that flushed the content (the writer, or a background flush thread), in file
+ * order, and never while partyline holds the file's operation lock, except when partyline itself closes a stream
+ * that was left open (during cleanup, for instance).
+ *
+ * @see org.commonjava.util.partyline.JoinableFileManager#openOutputStream(java.io.File, long, long, StreamCallbacks)
+ */
+public interface ContentStreamCallbacks
+        extends StreamCallbacks
+{
+
+    /**
+     * Called after content has been flushed to disk (before {@link #flushed()}).
+     *
+     * @param offset The position in the file of the first flushed byte; the range flushed ends at offset +
+     *               content.remaining()
+     * @param content A read-only view of the flushed bytes. This shares the write buffer, so it's only valid during
+     *                the call; copy what's needed afterward.
+     */
+    void flushed( long offset, ByteBuffer content );
+
+}
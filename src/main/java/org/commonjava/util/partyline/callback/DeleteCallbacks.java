@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.callback;
+
+import java.io.File;
+
+/**
+ * Notified about the progress of a recursive directory delete. Since subtrees are deleted in parallel, methods may be
+ * called concurrently from several threads.
+ *
+ * @see org.commonjava.util.partyline.JoinableFileManager#tryDeleteTree(File, org.commonjava.util.partyline.DeletePolicy, long, DeleteCallbacks)
+ */
+public interface DeleteCallbacks
+{
+
+    /**
+     * Called after a file or directory in the tree has been deleted.
+     */
+    void deleted( File file );
+
+    /**
+     * Called when a file or directory in the tree is left in place, because it was locked, a file below it was left
+     * in place, or the delete failed.
+     */
+    void skipped( File file );
+
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.callback;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Notified when a file written through partyline has been completely closed, with the digests that were computed
+ * while its content was being flushed to disk.
+ *
+ * @see org.commonjava.util.partyline.JoinableFileManager#setDigestAlgorithms(String...)
+ */
+public interface DigestCallbacks
+{
+
+    /**
+     * @param file The file that was written
+     * @param digests Hex-encoded digests of the file content, keyed by {@link java.security.MessageDigest} algorithm
+     */
+    void digested( File file, Map<String, String> digests );
+
+}
@@ -0,0 +1,445 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.lockserver;
+
+import org.commonjava.util.partyline.LockLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reference lock server for {@link LockServerCoordinator}, which lets several partyline instances (nodes) share the
+ * same storage. It listens on the loopback interface, and keeps a table of the paths locked by each node. Read locks
+ * are shared between nodes; write and delete locks are exclusive. A lock on a directory covers the files beneath it:
+ * it conflicts with the locks of other nodes on its descendants as well as on the directory itself.
+ * <br/>
+ * Each node holds a lease on its locks, which is renewed by every request it sends (nodes send renewals when idle).
+ * If a node's lease expires, or its connection closes, all of its locks are dropped. Node ids must be unique.
+ * <br/>
+ * This is meant as a stand-in for a real coordination service in tests and single-host deployments, not as a highly
+ * available service.
+ */
+public final class LockServer
+        implements Closeable
+{
+    static final byte ACQUIRE = 1;
+
+    static final byte RELEASE = 2;
+
+    static final byte RENEW = 3;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final ServerSocket serverSocket;
+
+    private final long leaseTime;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // sorted, so the locks beneath a directory can be found
+    private final TreeMap<String, PathLock> locks = new TreeMap<>();
+
+    private final Map<String, Set<String>> nodePaths = new HashMap<>();
+
+    private final Map<String, Long> leases = new HashMap<>();
+
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * Start a lock server on the given port of the loopback interface.
+     *
+     * @param port The port to listen on, or 0 to pick a free one (see {@link #getPort()})
+     * @param leaseTime in milliseconds, how long a node keeps its locks without sending any requests
+     */
+    public LockServer( final int port, final long leaseTime )
+            throws IOException
+    {
+        this.leaseTime = leaseTime;
+        this.serverSocket = new ServerSocket( port, 50, InetAddress.getLoopbackAddress() );
+
+        Thread acceptor = new Thread( this::acceptConnections, "partyline-lock-server" );
+        acceptor.setDaemon( true );
+        acceptor.start();
+    }
+
+    public int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getLeaseTime()
+    {
+        return leaseTime;
+    }
+
+    /**
+     * Number of request batches received (each is one round trip for a node).
+     */
+    public long getBatches()
+    {
+        return batches.get();
+    }
+
+    /**
+     * Number of individual acquire / release / renew requests received.
+     */
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    /**
+     * Number of paths currently locked by any node.
+     */
+    public int getLockedPaths()
+    {
+        lock.lock();
+        try
+        {
+            return locks.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        closed = true;
+        serverSocket.close();
+        for ( Socket socket : connections )
+        {
+            socket.close();
+        }
+    }
+
+    boolean acquire( final String node, final String path, final LockLevel level )
+    {
+        lock.lock();
+        try
+        {
+            expireLeases();
+
+            String conflict = findConflict( node, path, level );
+            if ( conflict != null )
+            {
+                PathLock held = locks.get( conflict );
+                logger.trace( "{}: denied {} lock on: {} (held: {} on: {} by: {})", node, level, path, held.level,
+                              conflict, held.nodes );
+                return false;
+            }
+
+            PathLock pathLock = locks.get( path );
+            if ( pathLock == null )
+            {
+                pathLock = new PathLock( level );
+                locks.put( path, pathLock );
+            }
+            else if ( pathLock.nodes.size() == 1 && pathLock.nodes.contains( node ) )
+            {
+                // this node is the only holder; let it change its own lock.
+                pathLock.level = level;
+            }
+
+            pathLock.nodes.add( node );
+            nodePaths.computeIfAbsent( node, k -> new HashSet<>() ).add( path );
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    void release( final String node, final String path )
+    {
+        lock.lock();
+        try
+        {
+            removeNode( node, path );
+
+            Set<String> paths = nodePaths.get( node );
+            if ( paths != null )
+            {
+                paths.remove( path );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    void renew( final String node )
+    {
+        lock.lock();
+        try
+        {
+            leases.put( node, System.currentTimeMillis() + leaseTime );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop all locks of the given node.
+     */
+    void drop( final String node )
+    {
+        lock.lock();
+        try
+        {
+            leases.remove( node );
+            Set<String> paths = nodePaths.remove( node );
+            if ( paths != null )
+            {
+                logger.debug( "Dropping {} locks of node: {}", paths.size(), node );
+                paths.forEach( path -> removeNode( node, path ) );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Find a path locked by another node in a way that conflicts with the requested lock: the path itself, one of its
+     * ancestors or one of its descendants, unless both locks are read locks. Must be called while holding the lock.
+     *
+     * @return The conflicting path, or null if the lock can be granted
+     */
+    private String findConflict( final String node, final String path, final LockLevel level )
+    {
+        for ( String p = path; p != null; p = parentOf( p ) )
+        {
+            if ( conflicts( node, locks.get( p ), level ) )
+            {
+                return p;
+            }
+        }
+
+        String prefix = path + File.separator;
+        for ( Map.Entry<String, PathLock> entry : locks.subMap( prefix, prefix + Character.MAX_VALUE ).entrySet() )
+        {
+            if ( conflicts( node, entry.getValue(), level ) )
+            {
+                return entry.getKey();
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean conflicts( final String node, final PathLock pathLock, final LockLevel level )
+    {
+        if ( pathLock == null || ( pathLock.nodes.size() == 1 && pathLock.nodes.contains( node ) ) )
+        {
+            return false;
+        }
+
+        return level != LockLevel.read || pathLock.level != LockLevel.read;
+    }
+
+    private static String parentOf( final String path )
+    {
+        int idx = path.lastIndexOf( File.separatorChar );
+        return idx > 0 ? path.substring( 0, idx ) : null;
+    }
+
+    // must be called while holding the lock
+    private void removeNode( final String node, final String path )
+    {
+        PathLock pathLock = locks.get( path );
+        if ( pathLock != null && pathLock.nodes.remove( node ) && pathLock.nodes.isEmpty() )
+        {
+            locks.remove( path );
+        }
+    }
+
+    // must be called while holding the lock
+    private void expireLeases()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Long>> it = leases.entrySet().iterator();
+        while ( it.hasNext() )
+        {
+            Map.Entry<String, Long> lease = it.next();
+            if ( lease.getValue() < now )
+            {
+                it.remove();
+
+                String node = lease.getKey();
+                logger.warn( "Lease of node: {} expired; dropping its locks.", node );
+                Set<String> paths = nodePaths.remove( node );
+                if ( paths != null )
+                {
+                    paths.forEach( path -> removeNode( node, path ) );
+                }
+            }
+        }
+    }
+
+    private void acceptConnections()
+    {
+        while ( !closed )
+        {
+            try
+            {
+                Socket socket = serverSocket.accept();
+                connections.add( socket );
+
+                Thread handler = new Thread( () -> serve( socket ), "partyline-lock-server-" + socket.getPort() );
+                handler.setDaemon( true );
+                handler.start();
+            }
+            catch ( IOException e )
+            {
+                if ( !closed )
+                {
+                    logger.error( "Failed to accept lock-server connection", e );
+                }
+            }
+        }
+    }
+
+    /**
+     * Handle one node's connection. The node sends its id, and gets the lease time. Then it sends batches of requests:
+     * the request count, followed by the requests (op, then level and path for acquire, path for release), and gets
+     * one boolean result per request.
+     */
+    private void serve( final Socket socket )
+    {
+        String node = null;
+        try (DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+             DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) ))
+        {
+            socket.setTcpNoDelay( true );
+
+            node = in.readUTF();
+            logger.debug( "Node: {} connected from port: {}", node, socket.getPort() );
+            renew( node );
+            out.writeLong( leaseTime );
+            out.flush();
+
+            while ( !closed )
+            {
+                int count = in.readInt();
+                boolean[] results = new boolean[count];
+                for ( int i = 0; i < count; i++ )
+                {
+                    byte op = in.readByte();
+                    switch ( op )
+                    {
+                        case ACQUIRE:
+                        {
+                            LockLevel level = LockLevel.values()[in.readByte()];
+                            results[i] = acquire( node, in.readUTF(), level );
+                            break;
+                        }
+                        case RELEASE:
+                        {
+                            release( node, in.readUTF() );
+                            results[i] = true;
+                            break;
+                        }
+                        case RENEW:
+                        {
+                            results[i] = true;
+                            break;
+                        }
+                        default:
+                        {
+                            throw new IOException( "Unknown lock-server request: " + op );
+                        }
+                    }
+                }
+
+                renew( node );
+                batches.incrementAndGet();
+                requests.addAndGet( count );
+
+                for ( boolean result : results )
+                {
+                    out.writeBoolean( result );
+                }
+                out.flush();
+            }
+        }
+        catch ( EOFException e )
+        {
+            logger.debug( "Node: {} disconnected.", node );
+        }
+        catch ( IOException e )
+        {
+            if ( !closed )
+            {
+                logger.warn( "Lock-server connection of node: " + node + " failed", e );
+            }
+        }
+        finally
+        {
+            connections.remove( socket );
+            if ( node != null )
+            {
+                drop( node );
+            }
+        }
+    }
+
+    private static final class PathLock
+    {
+        private LockLevel level;
+
+        private final Set<String> nodes = new HashSet<>();
+
+        PathLock( final LockLevel level )
+        {
+            this.level = level;
+        }
+    }
+}
@@ -0,0 +1,465 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.lockserver;
+
+import org.commonjava.util.partyline.LockCoordinator;
+import org.commonjava.util.partyline.LockLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.commonjava.util.partyline.lockserver.LockServer.ACQUIRE;
+import static org.commonjava.util.partyline.lockserver.LockServer.RELEASE;
+import static org.commonjava.util.partyline.lockserver.LockServer.RENEW;
+
+/**
+ * {@link LockCoordinator} that coordinates with other nodes through a {@link LockServer}. A single sender thread
+ * talks to the server, to keep round trips off the request threads as far as possible:
+ * <ul>
+ *     <li>Lock requests made by different threads while a round trip is in progress are sent together, in one batch.</li>
+ *     <li>Releases are queued and sent with the next batch, or after the release delay.</li>
+ *     <li>If a read lock is requested again before its release is sent, the release is cancelled and the lock is
+ *     granted without asking the server, so hot files can be read over and over without any round trips.</li>
+ *     <li>When there's nothing else to send, the lease is renewed at a third of the lease time.</li>
+ * </ul>
+ * The delayed releases mean that other nodes may have to wait up to the release delay (in addition to the round trip)
+ * before they can write a file this node has read.
+ * <br/>
+ * If the connection to the server fails, all further lock requests fail with {@link IOException}; the server drops
+ * the locks of this node when the connection closes. The server must answer each batch within the request timeout;
+ * if it doesn't, the connection is treated as failed, so lock requests can't hang on a server that stopped responding.
+ */
+public final class LockServerCoordinator
+        implements LockCoordinator, Closeable
+{
+    public static final long DEFAULT_RELEASE_DELAY = 50;
+
+    public static final long DEFAULT_REQUEST_TIMEOUT = 10000;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final String nodeId;
+
+    private final long releaseDelay;
+
+    private final long requestTimeout;
+
+    private final Socket socket;
+
+    private final DataInputStream in;
+
+    private final DataOutputStream out;
+
+    private final long leaseTime;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition pending = lock.newCondition();
+
+    private final Condition answered = lock.newCondition();
+
+    private final List<Acquire> acquires = new ArrayList<>();
+
+    // path -> time the release was requested
+    private final Map<String, Long> releases = new LinkedHashMap<>();
+
+    private final Map<String, LockLevel> held = new HashMap<>();
+
+    private final AtomicLong roundTrips = new AtomicLong();
+
+    private final AtomicLong acquireRequests = new AtomicLong();
+
+    private final Thread sender;
+
+    private long lastSent;
+
+    private IOException failure;
+
+    private boolean closed;
+
+    public LockServerCoordinator( final String host, final int port, final String nodeId )
+            throws IOException
+    {
+        this( host, port, nodeId, DEFAULT_RELEASE_DELAY );
+    }
+
+    /**
+     * Connect to the {@link LockServer} at the given host and port.
+     *
+     * @param nodeId The id of this node, which must be unique among the nodes using the server
+     * @param releaseDelay in milliseconds, how long a release may be held back for batching
+     */
+    public LockServerCoordinator( final String host, final int port, final String nodeId, final long releaseDelay )
+            throws IOException
+    {
+        this( host, port, nodeId, releaseDelay, DEFAULT_REQUEST_TIMEOUT );
+    }
+
+    /**
+     * Connect to the {@link LockServer} at the given host and port.
+     *
+     * @param nodeId The id of this node, which must be unique among the nodes using the server
+     * @param releaseDelay in milliseconds, how long a release may be held back for batching
+     * @param requestTimeout in milliseconds, how long to wait for the server to connect, or to answer a batch of
+     * requests, before giving up on the connection
+     */
+    public LockServerCoordinator( final String host, final int port, final String nodeId, final long releaseDelay,
+                                  final long requestTimeout )
+            throws IOException
+    {
+        this.nodeId = nodeId;
+        this.releaseDelay = releaseDelay;
+        this.requestTimeout = requestTimeout;
+
+        this.socket = new Socket();
+        socket.connect( new InetSocketAddress( host, port ), (int) requestTimeout );
+        socket.setSoTimeout( (int) requestTimeout );
+        socket.setTcpNoDelay( true );
+        this.in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+        this.out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+
+        out.writeUTF( nodeId );
+        out.flush();
+        this.leaseTime = in.readLong();
+        this.lastSent = System.currentTimeMillis();
+
+        logger.debug( "Node: {} connected to lock server at: {}:{} with lease time: {}", nodeId, host, port, leaseTime );
+
+        this.sender = new Thread( this::sendRequests, "partyline-lock-coordinator-" + nodeId );
+        sender.setDaemon( true );
+        sender.start();
+    }
+
+    @Override
+    public boolean tryAcquire( final String path, final LockLevel level )
+            throws IOException, InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            checkFailure();
+
+            if ( level == LockLevel.read && held.get( path ) == LockLevel.read && releases.remove( path ) != null )
+            {
+                logger.trace( "{}: re-using read lock on: {}", nodeId, path );
+                return true;
+            }
+
+            Acquire request = new Acquire( path, level );
+            acquires.add( request );
+            pending.signal();
+
+            // the sender fails the connection if the server doesn't answer a batch in time. This is a backstop; the
+            // request may wait for the batch in flight before its own is sent.
+            long nanos = TimeUnit.MILLISECONDS.toNanos( requestTimeout * 2 );
+            while ( !request.done )
+            {
+                checkFailure();
+                if ( nanos <= 0 )
+                {
+                    if ( !acquires.remove( request ) )
+                    {
+                        // already sent; release it if the server grants it after all.
+                        request.abandoned = true;
+                    }
+
+                    throw new IOException( "No answer from lock server for: " + path + " within: "
+                                                   + ( requestTimeout * 2 ) + "ms." );
+                }
+
+                nanos = answered.awaitNanos( nanos );
+            }
+
+            if ( request.granted )
+            {
+                held.put( path, level );
+            }
+
+            return request.granted;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void release( final String path )
+    {
+        lock.lock();
+        try
+        {
+            if ( failure == null && !closed )
+            {
+                releases.put( path, System.currentTimeMillis() );
+                pending.signal();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public String getNodeId()
+    {
+        return nodeId;
+    }
+
+    /**
+     * Number of request batches sent to the server.
+     */
+    public long getRoundTrips()
+    {
+        return roundTrips.get();
+    }
+
+    /**
+     * Number of lock requests sent to the server (not counting those granted locally).
+     */
+    public long getAcquireRequests()
+    {
+        return acquireRequests.get();
+    }
+
+    /**
+     * Disconnect from the server, which drops all locks held by this node.
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            pending.signal();
+            answered.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        socket.close();
+    }
+
+    // must be called while holding the lock
+    private void checkFailure()
+            throws IOException
+    {
+        if ( failure != null )
+        {
+            throw new IOException( "Connection to lock server failed: " + failure.getMessage(), failure );
+        }
+        else if ( closed )
+        {
+            throw new IOException( "Lock coordinator for node: " + nodeId + " is closed." );
+        }
+    }
+
+    private void sendRequests()
+    {
+        while ( true )
+        {
+            List<Acquire> batchAcquires;
+            List<String> batchReleases;
+            lock.lock();
+            try
+            {
+                while ( !closed && !isDue() )
+                {
+                    pending.await( nextDue(), TimeUnit.MILLISECONDS );
+                }
+
+                if ( closed )
+                {
+                    return;
+                }
+
+                batchAcquires = new ArrayList<>( acquires );
+                acquires.clear();
+
+                batchReleases = new ArrayList<>( releases.keySet() );
+                releases.clear();
+                held.keySet().removeAll( batchReleases );
+            }
+            catch ( InterruptedException e )
+            {
+                logger.debug( "Lock coordinator sender interrupted.", e );
+                return;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            try
+            {
+                boolean[] results = send( batchReleases, batchAcquires );
+
+                lock.lock();
+                try
+                {
+                    for ( int i = 0; i < batchAcquires.size(); i++ )
+                    {
+                        Acquire request = batchAcquires.get( i );
+                        request.granted = results[batchReleases.size() + i];
+                        request.done = true;
+                        if ( request.abandoned && request.granted )
+                        {
+                            releases.put( request.path, System.currentTimeMillis() );
+                        }
+                    }
+
+                    answered.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+            catch ( IOException e )
+            {
+                lock.lock();
+                try
+                {
+                    if ( !closed )
+                    {
+                        logger.error( "Lost connection to lock server for node: " + nodeId, e );
+                    }
+
+                    failure = e;
+                    answered.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+
+                return;
+            }
+        }
+    }
+
+    // must be called while holding the lock
+    private boolean isDue()
+    {
+        return !acquires.isEmpty() || nextDue() <= 0;
+    }
+
+    // must be called while holding the lock
+    private long nextDue()
+    {
+        long now = System.currentTimeMillis();
+        long due = lastSent + leaseTime / 3;
+        if ( !releases.isEmpty() )
+        {
+            due = Math.min( due, releases.values().iterator().next() + releaseDelay );
+        }
+
+        return due - now;
+    }
+
+    /**
+     * Send one batch: releases first (a path may be released and locked again in the same batch), then lock requests.
+     * If there's nothing to send, send a lease renewal.
+     */
+    private boolean[] send( final List<String> batchReleases, final List<Acquire> batchAcquires )
+            throws IOException
+    {
+        int count = batchReleases.size() + batchAcquires.size();
+        out.writeInt( Math.max( count, 1 ) );
+        for ( String path : batchReleases )
+        {
+            out.writeByte( RELEASE );
+            out.writeUTF( path );
+        }
+
+        for ( Acquire request : batchAcquires )
+        {
+            out.writeByte( ACQUIRE );
+            out.writeByte( request.level.ordinal() );
+            out.writeUTF( request.path );
+        }
+
+        if ( count == 0 )
+        {
+            out.writeByte( RENEW );
+        }
+
+        out.flush();
+
+        boolean[] results = new boolean[Math.max( count, 1 )];
+        for ( int i = 0; i < results.length; i++ )
+        {
+            results[i] = in.readBoolean();
+        }
+
+        lock.lock();
+        try
+        {
+            lastSent = System.currentTimeMillis();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        roundTrips.incrementAndGet();
+        acquireRequests.addAndGet( batchAcquires.size() );
+        logger.trace( "{}: sent {} releases and {} lock requests", nodeId, batchReleases.size(),
+                      batchAcquires.size() );
+
+        return results;
+    }
+
+    private static final class Acquire
+    {
+        private final String path;
+
+        private final LockLevel level;
+
+        private boolean done;
+
+        private boolean granted;
+
+        private boolean abandoned;
+
+        Acquire( final String path, final LockLevel level )
+        {
+            this.path = path;
+            this.level = level;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.partyline.callback.AbstractStreamCallbacks;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class BackgroundFlushTest
+        extends AbstractJointedIOTest
+{
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    @Test
+    public void joinedReaderSeesContentFlushedInBackground()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        final int size = 5 * BUFFER_SIZE + 12345;
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableBackgroundFlush( 2, 2 );
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            InputStream in = manager.openInputStream( f );
+            Future<byte[]> read = exec.submit( () -> {
+                try
+                {
+                    return IOUtils.toByteArray( in );
+                }
+                finally
+                {
+                    in.close();
+                }
+            } );
+
+            for ( int i = 0; i < size; i++ )
+            {
+                out.write( i % 251 );
+            }
+
+            out.close();
+
+            byte[] data = read.get( 60, TimeUnit.SECONDS );
+            assertThat( data.length, equalTo( size ) );
+            for ( int i = 0; i < size; i++ )
+            {
+                if ( ( data[i] & 0xff ) != i % 251 )
+                {
+                    fail( "Wrong content at: " + i );
+                }
+            }
+        }
+        finally
+        {
+            exec.shutdownNow();
+            manager.disableBackgroundFlush();
+        }
+
+        assertThat( f.length(), equalTo( (long) size ) );
+    }
+
+    @Test
+    public void writerWaitsWhenTooManyBuffersAreInFlight()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+
+        // nothing is written until the gate opens
+        final CountDownLatch gate = new CountDownLatch( 1 );
+        Executor gated = ( r ) -> new Thread( () -> {
+            try
+            {
+                gate.await();
+                r.run();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        } ).start();
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableBackgroundFlush( gated, 1 );
+
+        final CountDownLatch written = new CountDownLatch( 1 );
+        Thread writer = new Thread( () -> {
+            try (OutputStream out = manager.openOutputStream( f ))
+            {
+                for ( int i = 0; i < 3 * BUFFER_SIZE; i++ )
+                {
+                    out.write( i );
+                }
+            }
+            catch ( IOException | InterruptedException e )
+            {
+                e.printStackTrace();
+                return;
+            }
+
+            written.countDown();
+        } );
+        writer.start();
+
+        assertThat( written.await( 2, TimeUnit.SECONDS ), equalTo( false ) );
+
+        gate.countDown();
+        assertThat( written.await( 60, TimeUnit.SECONDS ), equalTo( true ) );
+        assertThat( f.length(), equalTo( 3L * BUFFER_SIZE ) );
+    }
+
+    @Test
+    public void flushErrorIsThrownFromNextFlush()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        final JoinableFile jf = new JoinableFile( f, new LockOwner( f.getAbsolutePath(), name.getMethodName(),
+                                                                    LockLevel.write ), new AbstractStreamCallbacks()
+        {
+            @Override
+            public void flushed()
+            {
+                throw new IllegalStateException( "disk on fire" );
+            }
+
+            @Override
+            public void beforeClose()
+            {
+            }
+        }, true, new FileOperationLock() );
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try
+        {
+            jf.flushInBackground( exec, 2 );
+
+            OutputStream out = jf.getOutputStream();
+            for ( int i = 0; i <= BUFFER_SIZE; i++ )
+            {
+                out.write( i );
+            }
+
+            try
+            {
+                out.flush();
+                fail( "Flush should fail after a failed background flush" );
+            }
+            catch ( IOException e )
+            {
+                assertThat( e.getMessage(), containsString( "disk on fire" ) );
+            }
+        }
+        finally
+        {
+            exec.shutdownNow();
+        }
+    }
+}
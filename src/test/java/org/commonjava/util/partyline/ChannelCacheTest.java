@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ChannelCacheTest
+        extends AbstractJointedIOTest
+{
+    @Test
+    public void neverExceedOpenFileBudget()
+            throws Exception
+    {
+        File a = temp.newFile( "a.txt" );
+        File b = temp.newFile( "b.txt" );
+        File c = temp.newFile( "c.txt" );
+
+        ChannelCache cache = new ChannelCache( 2, 1000 );
+        FileChannel ca = cache.acquire( a );
+        FileChannel cb = cache.acquire( b );
+
+        try
+        {
+            cache.acquire( c );
+            fail( "Open-file budget should be used up." );
+        }
+        catch ( ChannelCache.BudgetExhaustedException e )
+        {
+            // expected
+        }
+        assertThat( cache.getOpenCount(), equalTo( 2 ) );
+
+        cache.release( ca );
+        FileChannel cc = cache.acquire( c );
+        assertThat( cc, notNullValue() );
+        assertThat( ca.isOpen(), equalTo( false ) );
+        assertThat( cache.getEvictions(), equalTo( 1L ) );
+
+        cache.invalidate( b.getParentFile().getAbsolutePath() );
+        assertThat( cb.isOpen(), equalTo( true ) );
+        assertThat( cache.getOpenCount(), equalTo( 2 ) );
+
+        cache.release( cb );
+        assertThat( cb.isOpen(), equalTo( false ) );
+        assertThat( cache.getOpenCount(), equalTo( 1 ) );
+
+        cache.release( cc );
+        assertThat( cc.isOpen(), equalTo( false ) );
+        assertThat( cache.getOpenCount(), equalTo( 0 ) );
+    }
+
+    @Test
+    public void writersCountAgainstBudget()
+            throws Exception
+    {
+        File a = temp.newFile( "a.txt" );
+        File b = temp.newFile( "b.txt" );
+
+        ChannelCache cache = new ChannelCache( 2, 1000 );
+        FileChannel ca = cache.acquire( a );
+        cache.release( ca );
+
+        // the idle channel makes room for the writer
+        cache.reserve( b.getAbsolutePath() );
+        cache.reserve( b.getAbsolutePath() );
+        assertThat( ca.isOpen(), equalTo( false ) );
+        assertThat( cache.getOpenCount(), equalTo( 2 ) );
+
+        try
+        {
+            cache.acquire( a );
+            fail( "Open-file budget should be used up by writers." );
+        }
+        catch ( ChannelCache.BudgetExhaustedException e )
+        {
+            // expected
+        }
+
+        cache.unreserve();
+        FileChannel again = cache.acquire( a );
+        assertThat( cache.getOpenCount(), equalTo( 2 ) );
+        cache.release( again );
+        cache.unreserve();
+    }
+
+    @Test
+    public void readersWaitForBudget()
+            throws Exception
+    {
+        final File a = temp.newFile( "a.txt" );
+        final File b = temp.newFile( "b.txt" );
+        FileUtils.write( a, "a data" );
+        FileUtils.write( b, "b data" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableChannelCache( 1, 60000 );
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            InputStream in = manager.openInputStream( a );
+
+            // no room while the first file is open
+            try
+            {
+                executor.submit( () -> manager.openInputStream( b, 300 ) ).get();
+                fail( "Should time out waiting for the open-file budget." );
+            }
+            catch ( ExecutionException e )
+            {
+                assertThat( e.getCause() instanceof IOException, equalTo( true ) );
+            }
+
+            Future<String> waiting = executor.submit( () -> {
+                try (InputStream bin = manager.openInputStream( b, 5000 ))
+                {
+                    return IOUtils.toString( bin );
+                }
+            } );
+
+            Thread.sleep( 200 );
+            assertThat( IOUtils.toString( in ), equalTo( "a data" ) );
+            in.close();
+
+            assertThat( waiting.get(), equalTo( "b data" ) );
+            assertThat( manager.getChannelCache().getOpenCount(), equalTo( 1 ) );
+        }
+        finally
+        {
+            executor.shutdownNow();
+            manager.disableChannelCache();
+        }
+    }
+
+    @Test
+    public void reuseChannelUntilWritten()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        FileUtils.write( f, "test data" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableChannelCache( 10, 60000 );
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            try (InputStream in = manager.openInputStream( f ))
+            {
+                assertThat( IOUtils.toString( in ), equalTo( "test data" ) );
+            }
+        }
+
+        ChannelCache cache = manager.getChannelCache();
+        assertThat( cache.getMisses(), equalTo( 1L ) );
+        assertThat( cache.getHits(), equalTo( 2L ) );
+        assertThat( cache.getOpenCount(), equalTo( 1 ) );
+
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            // the cached channel is closed; the writer's own descriptor counts against the budget
+            assertThat( cache.getOpenCount(), equalTo( 1 ) );
+            IOUtils.write( "new data", out );
+        }
+
+        try (InputStream in = manager.openInputStream( f ))
+        {
+            assertThat( IOUtils.toString( in ), equalTo( "new data" ) );
+        }
+
+        manager.disableChannelCache();
+        assertThat( cache.getOpenCount(), equalTo( 0 ) );
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ContentCacheTest
+        extends AbstractJointedIOTest
+{
+    @Test
+    public void evictLeastRecentlyUsedOverBudget()
+    {
+        ContentCache cache = new ContentCache( 10, 20 );
+        cache.put( "/a", new byte[10] );
+        cache.put( "/b", new byte[10] );
+        cache.get( "/a" );
+        cache.put( "/c", new byte[10] );
+        cache.put( "/d", new byte[11] );
+
+        assertThat( cache.get( "/b" ), nullValue() );
+        assertThat( cache.get( "/d" ), nullValue() );
+        assertThat( cache.get( "/a" ).length, equalTo( 10 ) );
+        assertThat( cache.getEvictions(), equalTo( 1L ) );
+        assertThat( cache.getBytes(), equalTo( 20L ) );
+
+        cache.invalidate( "/a" );
+        assertThat( cache.getSize(), equalTo( 1 ) );
+        assertThat( cache.getBytes(), equalTo( 10L ) );
+    }
+
+    @Test
+    public void readFromCacheUntilWritten()
+            throws Exception
+    {
+        final File f = temp.newFile( "maven-metadata.xml" );
+        FileUtils.write( f, "test data" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableContentCache( 1024, 1024 * 1024 );
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            try (InputStream in = manager.openInputStream( f ))
+            {
+                assertThat( IOUtils.toString( in ), equalTo( "test data" ) );
+            }
+        }
+
+        ContentCache cache = manager.getContentCache();
+        assertThat( cache.getMisses(), equalTo( 1L ) );
+        assertThat( cache.getHits(), equalTo( 2L ) );
+        assertThat( manager.isWriteLocked( f ), equalTo( false ) );
+
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            IOUtils.write( "new data", out );
+        }
+
+        try (InputStream in = manager.openInputStream( f ))
+        {
+            assertThat( IOUtils.toString( in ), equalTo( "new data" ) );
+        }
+
+        assertThat( cache.getMisses(), equalTo( 2L ) );
+    }
+}
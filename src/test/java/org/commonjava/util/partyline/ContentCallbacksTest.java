@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.commonjava.util.partyline.callback.AbstractStreamCallbacks;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class ContentCallbacksTest
+        extends AbstractJointedIOTest
+{
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    @Test
+    public void flushedRangesCarryTheWrittenContent()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        final byte[] data = new byte[2 * BUFFER_SIZE + 12345];
+        for ( int i = 0; i < data.length; i++ )
+        {
+            data[i] = (byte) ( i % 251 );
+        }
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        final List<Long> offsets = new ArrayList<>();
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        final List<Integer> readByOthers = new ArrayList<>();
+
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try
+        {
+            try (OutputStream out = manager.openOutputStream( f, -1, 1000, new AbstractStreamCallbacks()
+            {
+                @Override
+                public void beforeClose()
+                {
+                }
+
+                @Override
+                public void flushed( final long offset, final ByteBuffer content )
+                {
+                    offsets.add( offset );
+                    byte[] bytes = new byte[content.remaining()];
+                    content.get( bytes );
+                    copy.write( bytes, 0, bytes.length );
+
+                    if ( offset + bytes.length == data.length )
+                    {
+                        // the last flush happens on close; other threads can still operate on the file meanwhile.
+                        try
+                        {
+                            readByOthers.add( other.submit( () -> {
+                                try (InputStream in = manager.openInputStream( f, 1000 ))
+                                {
+                                    return in.read();
+                                }
+                            } ).get( 5, TimeUnit.SECONDS ) );
+                        }
+                        catch ( Exception e )
+                        {
+                            throw new IllegalStateException( "Callback blocked other operations on: " + f, e );
+                        }
+                    }
+                }
+            } ))
+            {
+                out.write( data );
+            }
+        }
+        finally
+        {
+            other.shutdownNow();
+        }
+
+        assertThat( offsets, equalTo( Arrays.asList( 0L, (long) BUFFER_SIZE, 2L * BUFFER_SIZE ) ) );
+        assertThat( Arrays.equals( copy.toByteArray(), data ), equalTo( true ) );
+        assertThat( readByOthers, equalTo( Arrays.asList( 0 ) ) );
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class ContentionProfilerTest
+        extends AbstractJointedIOTest
+{
+    @Test
+    public void keepsPathsWithMostWaitTime()
+    {
+        final ContentionProfiler profiler = new ContentionProfiler( 2 );
+        for ( int i = 0; i < 3; i++ )
+        {
+            profiler.record( "/a", LockLevel.write, TimeUnit.MILLISECONDS.toNanos( 10 ) );
+        }
+
+        profiler.record( "/b", LockLevel.read, TimeUnit.MILLISECONDS.toNanos( 50 ) );
+        profiler.record( "/c", null, TimeUnit.MILLISECONDS.toNanos( 1 ) );
+
+        List<ContendedPath> top = profiler.getTopContended();
+        assertThat( top.size(), equalTo( 2 ) );
+        assertThat( top.get( 0 ).getPath(), equalTo( "/b" ) );
+        assertThat( top.get( 0 ).getBlockingLevel(), equalTo( LockLevel.read ) );
+        assertThat( top.get( 1 ).getPath(), equalTo( "/a" ) );
+        assertThat( top.get( 1 ).getWaits(), equalTo( 3L ) );
+        assertThat( top.get( 1 ).getWaitMillis(), equalTo( 30L ) );
+
+        // /c takes over from /a, keeping the wait it had before
+        profiler.record( "/c", null, TimeUnit.MILLISECONDS.toNanos( 100 ) );
+
+        top = profiler.getTopContended();
+        assertThat( top.get( 0 ).getPath(), equalTo( "/c" ) );
+        assertThat( top.get( 0 ).getWaits(), equalTo( 2L ) );
+        assertThat( top.get( 0 ).getWaitMillis(), equalTo( 101L ) );
+        assertThat( top.get( 0 ).getBlockingLevel(), equalTo( null ) );
+        assertThat( top.get( 1 ).getPath(), equalTo( "/b" ) );
+    }
+
+    @Test
+    public void lockWaitsAreProfiled()
+            throws Exception
+    {
+        final File f = temp.newFile( "contended.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableContentionProfiler( 20 );
+
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        assertThat( manager.lock( f, 200, LockLevel.write ), equalTo( true ) );
+        try
+        {
+            assertThat( other.submit( () -> manager.lock( f, 300, LockLevel.write ) ).get(), equalTo( false ) );
+        }
+        finally
+        {
+            manager.unlock( f );
+            other.shutdownNow();
+        }
+
+        // uncontended
+        assertThat( manager.lock( f, 200, LockLevel.write ), equalTo( true ) );
+        manager.unlock( f );
+
+        List<ContendedPath> top = manager.getContentionProfiler().getTopContended();
+        assertThat( top.size(), equalTo( 1 ) );
+        assertThat( top.get( 0 ).getPath(), equalTo( f.getAbsolutePath() ) );
+        assertThat( top.get( 0 ).getWaits(), equalTo( 1L ) );
+        assertThat( top.get( 0 ).getBlockingLevel(), equalTo( LockLevel.write ) );
+        assertThat( top.get( 0 ).getWaitMillis() >= 200, equalTo( true ) );
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class DeadlockDetectionTest
+        extends AbstractJointedIOTest
+{
+    private static final long TIMEOUT = 20000;
+
+    @Test
+    public void crossedLocksFailYoungestWaiter()
+            throws Exception
+    {
+        final File first = temp.newFile( "first.txt" );
+        final File second = temp.newFile( "second.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableDeadlockDetection();
+
+        final CountDownLatch locked = new CountDownLatch( 2 );
+        ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            Future<Boolean> older = executor.submit( () -> {
+                assertThat( manager.lock( first, TIMEOUT, LockLevel.write ), equalTo( true ) );
+                locked.countDown();
+                locked.await();
+                try
+                {
+                    return manager.lock( second, TIMEOUT, LockLevel.write );
+                }
+                finally
+                {
+                    manager.unlock( second );
+                    manager.unlock( first );
+                }
+            } );
+
+            Future<Boolean> younger = executor.submit( () -> {
+                assertThat( manager.lock( second, TIMEOUT, LockLevel.write ), equalTo( true ) );
+                locked.countDown();
+                locked.await();
+
+                // let the other thread start waiting first
+                Thread.sleep( 500 );
+                try
+                {
+                    return manager.lock( first, TIMEOUT, LockLevel.write );
+                }
+                finally
+                {
+                    manager.unlock( second );
+                }
+            } );
+
+            long start = System.currentTimeMillis();
+            assertThat( younger.get(), equalTo( false ) );
+            assertThat( older.get(), equalTo( true ) );
+            assertThat( System.currentTimeMillis() - start < TIMEOUT, equalTo( true ) );
+            assertThat( manager.getDeadlockCount(), equalTo( 1L ) );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void upgradeWaitsAreDetected()
+            throws Exception
+    {
+        final File shared = temp.newFile( "shared.txt" );
+        final File written = temp.newFile( "written.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableDeadlockDetection();
+
+        final CountDownLatch locked = new CountDownLatch( 2 );
+        final CountDownLatch waiting = new CountDownLatch( 1 );
+        ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            Future<Boolean> writer = executor.submit( () -> {
+                assertThat( manager.lock( shared, TIMEOUT, LockLevel.read ), equalTo( true ) );
+                assertThat( manager.lock( written, TIMEOUT, LockLevel.write ), equalTo( true ) );
+                locked.countDown();
+                waiting.await();
+                try
+                {
+                    manager.upgrade( shared, TIMEOUT );
+                    fail( "Upgrade should have failed, to break the deadlock." );
+                    return false;
+                }
+                catch ( LockDeadlockException e )
+                {
+                    return true;
+                }
+                finally
+                {
+                    manager.unlock( written );
+                    manager.unlock( shared );
+                }
+            } );
+
+            Future<Boolean> reader = executor.submit( () -> {
+                assertThat( manager.lock( shared, TIMEOUT, LockLevel.read ), equalTo( true ) );
+                locked.countDown();
+                locked.await();
+                try
+                {
+                    waiting.countDown();
+                    return manager.lock( written, TIMEOUT, LockLevel.write );
+                }
+                finally
+                {
+                    manager.unlock( written );
+                    manager.unlock( shared );
+                }
+            } );
+
+            assertThat( writer.get( TIMEOUT, TimeUnit.MILLISECONDS ), equalTo( true ) );
+            assertThat( reader.get( TIMEOUT, TimeUnit.MILLISECONDS ), equalTo( true ) );
+            assertThat( manager.getDeadlockCount(), equalTo( 1L ) );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedWaiterIsWokenByTheOwnerThatFoundTheDeadlock()
+            throws Exception
+    {
+        final WaitForGraph graph = new WaitForGraph();
+        final AtomicReference<LockOwner> first = new AtomicReference<>();
+        final AtomicReference<LockOwner> second = new AtomicReference<>();
+        final CountDownLatch olderWaiting = new CountDownLatch( 1 );
+        final CountDownLatch youngerWaiting = new CountDownLatch( 1 );
+        ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            Future<Boolean> older = executor.submit( () -> {
+                first.set( new LockOwner( "first", name.getMethodName(), LockLevel.write ) );
+                FileOperationLock opLock = new FileOperationLock();
+
+                // first waiting for a lock held elsewhere (no edge), so the younger waiter doesn't see a cycle yet
+                WaitForGraph.Waiter waiter = graph.await( null, "remote", LockLevel.write, null, opLock );
+                olderWaiting.countDown();
+                youngerWaiting.await();
+                Thread.sleep( 500 );
+
+                waiter = graph.await( waiter, "second", LockLevel.write, second.get(), opLock );
+                graph.done( waiter );
+                return true;
+            } );
+
+            Future<Long> younger = executor.submit( () -> {
+                second.set( new LockOwner( "second", name.getMethodName(), LockLevel.write ) );
+                olderWaiting.await();
+
+                FileOperationLock opLock = new FileOperationLock();
+                opLock.lock();
+                try
+                {
+                    WaitForGraph.Waiter waiter = graph.await( null, "first", LockLevel.write, first.get(), opLock );
+                    youngerWaiting.countDown();
+
+                    long start = System.currentTimeMillis();
+                    opLock.await( TIMEOUT );
+                    long waited = System.currentTimeMillis() - start;
+                    try
+                    {
+                        graph.await( waiter, "first", LockLevel.write, first.get(), opLock );
+                        fail( "The younger waiter should have been failed, to break the deadlock." );
+                    }
+                    catch ( LockDeadlockException e )
+                    {
+                        // expected
+                    }
+
+                    return waited;
+                }
+                finally
+                {
+                    opLock.unlock();
+                }
+            } );
+
+            assertThat( older.get( TIMEOUT, TimeUnit.MILLISECONDS ), equalTo( true ) );
+            assertThat( younger.get( TIMEOUT, TimeUnit.MILLISECONDS ) < TIMEOUT / 2, equalTo( true ) );
+            assertThat( graph.getDeadlockCount(), equalTo( 1L ) );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.commonjava.util.partyline.callback.DeleteCallbacks;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class DeleteTreeTest
+        extends AbstractJointedIOTest
+{
+    @Test
+    public void deleteTreeSkippingLockedFile()
+            throws Exception
+    {
+        File root = temp.newFolder();
+        File locked = null;
+        for ( int i = 0; i < 4; i++ )
+        {
+            for ( int j = 0; j < 25; j++ )
+            {
+                File f = new File( root, "dir-" + i + "/sub/file-" + j + ".txt" );
+                FileUtils.write( f, "test data" );
+                if ( i == 2 && j == 3 )
+                {
+                    locked = f;
+                }
+            }
+        }
+
+        AtomicInteger deleted = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        DeleteCallbacks callbacks = new DeleteCallbacks()
+        {
+            @Override
+            public void deleted( final File file )
+            {
+                deleted.incrementAndGet();
+            }
+
+            @Override
+            public void skipped( final File file )
+            {
+                skipped.incrementAndGet();
+            }
+        };
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        try (InputStream in = manager.openInputStream( locked ))
+        {
+            boolean result = manager.tryDeleteTree( root, DeletePolicy.skip, 1000, callbacks );
+            assertThat( result, equalTo( false ) );
+        }
+
+        // locked file, plus sub, dir-2 and root
+        assertThat( skipped.get(), equalTo( 4 ) );
+        assertThat( deleted.get(), equalTo( 99 + 6 ) );
+        assertThat( locked.exists(), equalTo( true ) );
+        assertThat( new File( root, "dir-1" ).exists(), equalTo( false ) );
+
+        boolean result = manager.tryDeleteTree( root, DeletePolicy.await, 1000, null );
+        assertThat( result, equalTo( true ) );
+        assertThat( root.exists(), equalTo( false ) );
+    }
+
+    @Test
+    public void noNewFilesInDirectoryBeingEmptied()
+            throws Exception
+    {
+        File root = temp.newFolder();
+        File locked = new File( root, "a/locked.txt" );
+        FileUtils.write( locked, "test data" );
+        File other = new File( root, "a/sub/other.txt" );
+        FileUtils.write( other, "test data" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<Boolean> delete;
+            try (InputStream in = manager.openInputStream( locked ))
+            {
+                delete = executor.submit( () -> manager.tryDeleteTree( root, DeletePolicy.await, 10000, null ) );
+
+                // the rest of the tree goes (so the walk has reached a/), while the delete waits for the locked file
+                long end = System.currentTimeMillis() + 5000;
+                while ( other.exists() && System.currentTimeMillis() < end )
+                {
+                    Thread.sleep( 10 );
+                }
+                assertThat( other.exists(), equalTo( false ) );
+
+                File created = new File( root, "a/new.txt" );
+                try (OutputStream out = manager.openOutputStream( created, 300 ))
+                {
+                    fail( "Created a file in a directory being deleted: " + created );
+                }
+                catch ( IOException e )
+                {
+                    // expected
+                }
+            }
+
+            assertThat( delete.get( 5, TimeUnit.SECONDS ), equalTo( true ) );
+            assertThat( root.exists(), equalTo( false ) );
+
+            // once the delete is done, the directory may be created again
+            try (OutputStream out = manager.openOutputStream( new File( root, "a/new.txt" ), 300 ))
+            {
+                out.write( 1 );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DigestOnWriteTest
+        extends AbstractJointedIOTest
+{
+    /**
+     * Write a file larger than the output buffer with MD5 and SHA-1 digests enabled, then verify that the digests
+     * passed to the callback and available from the manager match the content, and that they're dropped when the
+     * file is rewritten or deleted.
+     */
+    @Test
+    public void run()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.setDigestAlgorithms( "MD5", "SHA-1" );
+
+        AtomicReference<Map<String, String>> notified = new AtomicReference<>();
+        manager.setDigestCallbacks( ( file, digests ) -> notified.set( digests ) );
+
+        byte[] data = new byte[3 * 1024 * 1024 + 17];
+        for ( int i = 0; i < data.length; i++ )
+        {
+            data[i] = (byte) ( i % 251 );
+        }
+
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            IOUtils.write( data, out );
+        }
+
+        Map<String, String> digests = manager.getDigests( f );
+        assertThat( digests.get( "MD5" ), equalTo( digest( "MD5", data ) ) );
+        assertThat( digests.get( "SHA-1" ), equalTo( digest( "SHA-1", data ) ) );
+        assertThat( notified.get(), equalTo( digests ) );
+
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            assertThat( manager.getDigests( f ), nullValue() );
+            IOUtils.write( "test data", out );
+        }
+
+        assertThat( manager.getDigests( f ).get( "MD5" ), equalTo( digest( "MD5", "test data".getBytes() ) ) );
+
+        manager.tryDelete( f );
+        assertThat( manager.getDigests( f ), nullValue() );
+    }
+
+    @Test
+    public void oldestDigestsAreEvicted()
+            throws Exception
+    {
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.setDigestAlgorithms( "MD5" );
+        manager.setDigestCacheSize( 2 );
+
+        File[] files = new File[3];
+        for ( int i = 0; i < files.length; i++ )
+        {
+            files[i] = temp.newFile( "file-" + i + ".txt" );
+            try (OutputStream out = manager.openOutputStream( files[i] ))
+            {
+                IOUtils.write( "content " + i, out );
+            }
+        }
+
+        assertThat( manager.getDigests( files[0] ), nullValue() );
+        assertThat( manager.getDigests( files[1] ).get( "MD5" ), equalTo( digest( "MD5", "content 1".getBytes() ) ) );
+        assertThat( manager.getDigests( files[2] ).get( "MD5" ), equalTo( digest( "MD5", "content 2".getBytes() ) ) );
+    }
+
+    private String digest( String algorithm, byte[] data )
+            throws Exception
+    {
+        byte[] digest = MessageDigest.getInstance( algorithm ).digest( data );
+        return String.format( "%0" + ( digest.length * 2 ) + "x", new BigInteger( 1, digest ) );
+    }
+}
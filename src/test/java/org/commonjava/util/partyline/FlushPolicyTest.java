@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class FlushPolicyTest
+        extends AbstractJointedIOTest
+{
+    @Test
+    public void trickledContentIsFlushedAfterMaxDelay()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.setFlushPolicy( new FlushPolicy( 0, 100, false ) );
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            InputStream in = manager.openInputStream( f );
+            Future<Integer> first = exec.submit( () -> in.read() );
+
+            out.write( "abc".getBytes() );
+
+            // the writer never flushes; without the policy, the reader would wait for close.
+            assertThat( first.get( 10, TimeUnit.SECONDS ), equalTo( (int) 'a' ) );
+            in.close();
+        }
+        finally
+        {
+            exec.shutdownNow();
+            manager.setFlushPolicy( null );
+        }
+
+        assertThat( manager.getTimeToFirstByte().getCount(), equalTo( 1L ) );
+    }
+
+    @Test
+    public void waitingReaderTriggersFlush()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.setFlushPolicy( new FlushPolicy( 0, 0, true ) );
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            out.write( "abc".getBytes() );
+
+            InputStream in = manager.openInputStream( f );
+            Future<String> read = exec.submit( () -> {
+                byte[] data = new byte[3];
+                for ( int i = 0; i < data.length; i++ )
+                {
+                    data[i] = (byte) in.read();
+                }
+                return new String( data );
+            } );
+
+            assertThat( read.get( 10, TimeUnit.SECONDS ), equalTo( "abc" ) );
+            in.close();
+        }
+        finally
+        {
+            exec.shutdownNow();
+            manager.setFlushPolicy( null );
+        }
+    }
+
+    @Test
+    public void contentIsFlushedAfterMaxBytes()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.setFlushPolicy( new FlushPolicy( 4, 0, false ) );
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            InputStream in = manager.openInputStream( f );
+            Future<String> read = exec.submit( () -> {
+                byte[] data = new byte[4];
+                for ( int i = 0; i < data.length; i++ )
+                {
+                    data[i] = (byte) in.read();
+                }
+                return new String( data );
+            } );
+
+            // the first four bytes are flushed when the fifth is written
+            out.write( "abcde".getBytes() );
+
+            assertThat( read.get( 10, TimeUnit.SECONDS ), equalTo( "abcd" ) );
+            in.close();
+        }
+        finally
+        {
+            exec.shutdownNow();
+            manager.setFlushPolicy( null );
+        }
+
+        assertThat( f.length(), equalTo( 5L ) );
+    }
+}
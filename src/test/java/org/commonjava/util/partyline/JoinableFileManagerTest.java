@@ -555,4 +555,29 @@ public class JoinableFileManagerTest
         ThreadContext.clearContext();
     }
 
+
+    @Test
+    public void outputClosedByAnotherThreadReleasesWriteLockWhileReadersRemain()
+            throws Exception
+    {
+        File f = temp.newFile();
+        ExecutorService other = Executors.newSingleThreadExecutor();
+
+        OutputStream out = mgr.openOutputStream( f );
+        out.write( "content".getBytes() );
+
+        InputStream in = other.submit( () -> mgr.openInputStream( f ) ).get();
+        other.submit( () -> {
+            out.close();
+            return null;
+        } ).get();
+
+        assertThat( mgr.getContextLockCount( f ), equalTo( 0 ) );
+
+        other.submit( () -> {
+            in.close();
+            return null;
+        } ).get();
+        other.shutdown();
+    }
 }
@@ -56,4 +56,18 @@ public class LockOwnerTest
         boolean locked = owner.lock( "relocking", LockLevel.delete );
         assertThat( locked, equalTo( true ) );
     }
+
+    @Test
+    public void clearStreamLocksKeepsManualLocksWhateverTheirLabels()
+    {
+        String manual = JoinableFile.labelFor( false, "manual" );
+        LockOwner owner = new LockOwner( "/path/to/nowhere", manual, LockLevel.read );
+        owner.lock( JoinableFile.labelFor( false, "reader" ), LockLevel.read, true );
+
+        assertThat( owner.clearStreamLocks(), equalTo( false ) );
+        assertThat( owner.getContextLockCount(), equalTo( 1 ) );
+
+        assertThat( owner.unlock( manual ), equalTo( true ) );
+        assertThat( owner.isLocked(), equalTo( false ) );
+    }
 }
@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.partyline.lockserver.LockServer;
+import org.commonjava.util.partyline.lockserver.LockServerCoordinator;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Coordinate two managers (standing in for two nodes) sharing the same files through a {@link LockServer}.
+ */
+public class LockServerCoordinatorTest
+        extends AbstractJointedIOTest
+{
+    private LockServer server;
+
+    private LockServerCoordinator coordinatorA;
+
+    private LockServerCoordinator coordinatorB;
+
+    @After
+    public void shutdown()
+            throws IOException
+    {
+        IOUtils.closeQuietly( coordinatorA );
+        IOUtils.closeQuietly( coordinatorB );
+        IOUtils.closeQuietly( server );
+    }
+
+    @Test
+    public void writeOnOneNodeBlocksOtherNode()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        start( 60000, LockServerCoordinator.DEFAULT_RELEASE_DELAY );
+
+        final JoinableFileManager managerA = new JoinableFileManager( coordinatorA );
+        final JoinableFileManager managerB = new JoinableFileManager( coordinatorB );
+
+        try (OutputStream out = managerA.openOutputStream( f, 1000 ))
+        {
+            out.write( "node A".getBytes() );
+
+            assertCannotWrite( managerB, f );
+            assertThat( managerB.tryDelete( f, 300 ), equalTo( false ) );
+        }
+
+        try (OutputStream out = managerB.openOutputStream( f, 5000 ))
+        {
+            out.write( "node B".getBytes() );
+        }
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "node B" ) );
+    }
+
+    @Test
+    public void readsAreSharedBetweenNodes()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        FileUtils.write( f, "test data" );
+        start( 60000, LockServerCoordinator.DEFAULT_RELEASE_DELAY );
+
+        final JoinableFileManager managerA = new JoinableFileManager( coordinatorA );
+        final JoinableFileManager managerB = new JoinableFileManager( coordinatorB );
+
+        try (InputStream inA = managerA.openInputStream( f, 1000 );
+             InputStream inB = managerB.openInputStream( f, 1000 ))
+        {
+            assertThat( IOUtils.toString( inA ), equalTo( "test data" ) );
+            assertThat( IOUtils.toString( inB ), equalTo( "test data" ) );
+
+            assertCannotWrite( managerB, f );
+        }
+
+        assertThat( managerB.tryDelete( f, 5000 ), equalTo( true ) );
+    }
+
+    @Test
+    public void repeatedReadsSkipRoundTrips()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        FileUtils.write( f, "test data" );
+        start( 60000, 60000 );
+
+        final JoinableFileManager manager = new JoinableFileManager( coordinatorA );
+        for ( int i = 0; i < 10; i++ )
+        {
+            try (InputStream in = manager.openInputStream( f, 1000 ))
+            {
+                IOUtils.toString( in );
+            }
+        }
+
+        assertThat( coordinatorA.getAcquireRequests(), equalTo( 1L ) );
+        assertThat( server.getLockedPaths(), equalTo( 1 ) );
+    }
+
+    @Test
+    public void leaseIsRenewedWhileNodeIsAlive()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        start( 300, LockServerCoordinator.DEFAULT_RELEASE_DELAY );
+
+        final JoinableFileManager managerA = new JoinableFileManager( coordinatorA );
+        final JoinableFileManager managerB = new JoinableFileManager( coordinatorB );
+
+        try (OutputStream out = managerA.openOutputStream( f, 1000 ))
+        {
+            Thread.sleep( 1000 );
+            assertCannotWrite( managerB, f );
+        }
+    }
+
+    @Test
+    public void locksOfDisconnectedNodeAreDropped()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        start( 60000, LockServerCoordinator.DEFAULT_RELEASE_DELAY );
+
+        final JoinableFileManager managerA = new JoinableFileManager( coordinatorA );
+        final JoinableFileManager managerB = new JoinableFileManager( coordinatorB );
+
+        OutputStream abandoned = managerA.openOutputStream( f, 1000 );
+        assertCannotWrite( managerB, f );
+
+        coordinatorA.close();
+
+        try (OutputStream out = managerB.openOutputStream( f, 5000 ))
+        {
+            out.write( "node B".getBytes() );
+        }
+
+        abandoned.close();
+    }
+
+    @Test
+    public void directoryLocksCoverFilesBelowThemOnOtherNodes()
+            throws Exception
+    {
+        final File dir = temp.newFolder( "dir" );
+        final File f = new File( dir, "child.txt" );
+        start( 60000, LockServerCoordinator.DEFAULT_RELEASE_DELAY );
+
+        final JoinableFileManager managerA = new JoinableFileManager( coordinatorA );
+        final JoinableFileManager managerB = new JoinableFileManager( coordinatorB );
+
+        try (OutputStream out = managerA.openOutputStream( f, 1000 ))
+        {
+            out.write( "node A".getBytes() );
+            assertThat( managerB.tryDelete( dir, 300 ), equalTo( false ) );
+        }
+
+        assertThat( f.exists(), equalTo( true ) );
+
+        assertThat( managerA.lock( dir, 1000, LockLevel.write ), equalTo( true ) );
+        assertCannotWrite( managerB, new File( dir, "other.txt" ) );
+        managerA.unlock( dir );
+
+        try (OutputStream out = managerB.openOutputStream( new File( dir, "other.txt" ), 5000 ))
+        {
+            out.write( "node B".getBytes() );
+        }
+    }
+
+    @Test
+    public void unansweredRequestsFail()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        try (ServerSocket silent = new ServerSocket( 0, 50, InetAddress.getLoopbackAddress() ))
+        {
+            Thread acceptor = new Thread( () -> {
+                try (Socket socket = silent.accept())
+                {
+                    // accept the node, then never answer its requests
+                    DataOutputStream out = new DataOutputStream( socket.getOutputStream() );
+                    new DataInputStream( socket.getInputStream() ).readUTF();
+                    out.writeLong( 60000 );
+                    out.flush();
+                    Thread.sleep( 10000 );
+                }
+                catch ( IOException | InterruptedException e )
+                {
+                    // done
+                }
+            } );
+            acceptor.setDaemon( true );
+            acceptor.start();
+
+            coordinatorA = new LockServerCoordinator( "localhost", silent.getLocalPort(), "node-a",
+                                                      LockServerCoordinator.DEFAULT_RELEASE_DELAY, 300 );
+
+            final JoinableFileManager manager = new JoinableFileManager( coordinatorA );
+            long start = System.currentTimeMillis();
+            assertCannotWrite( manager, f, 5000 );
+            assertThat( System.currentTimeMillis() - start < 4000, equalTo( true ) );
+
+            acceptor.interrupt();
+        }
+    }
+
+    private void start( long leaseTime, long releaseDelay )
+            throws IOException
+    {
+        server = new LockServer( 0, leaseTime );
+        coordinatorA = new LockServerCoordinator( "localhost", server.getPort(), "node-a", releaseDelay );
+        coordinatorB = new LockServerCoordinator( "localhost", server.getPort(), "node-b", releaseDelay );
+    }
+
+    private void assertCannotWrite( JoinableFileManager manager, File f )
+            throws Exception
+    {
+        assertCannotWrite( manager, f, 300 );
+    }
+
+    private void assertCannotWrite( JoinableFileManager manager, File f, long timeout )
+            throws Exception
+    {
+        try (OutputStream out = manager.openOutputStream( f, timeout ))
+        {
+            fail( "Should not be able to write a file locked by another node" );
+        }
+        catch ( IOException e )
+        {
+            // expected
+        }
+    }
+}
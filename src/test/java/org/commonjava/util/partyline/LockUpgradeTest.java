@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class LockUpgradeTest
+        extends AbstractJointedIOTest
+{
+    @Test
+    public void upgradeWaitsForOtherReaders()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+
+        // each executor is a separate lock owner
+        ExecutorService upgrader = Executors.newSingleThreadExecutor();
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try
+        {
+            assertThat( upgrader.submit( () -> manager.lock( f, 1000, LockLevel.read ) ).get(), equalTo( true ) );
+            assertThat( reader.submit( () -> manager.lock( f, 1000, LockLevel.read ) ).get(), equalTo( true ) );
+
+            Future<Boolean> upgraded = upgrader.submit( () -> manager.upgrade( f, 10000 ) );
+            Thread.sleep( 500 );
+            assertThat( upgraded.isDone(), equalTo( false ) );
+
+            // new readers are turned away while the upgrade waits
+            assertThat( manager.lock( f, 200, LockLevel.read ), equalTo( false ) );
+
+            assertThat( reader.submit( () -> manager.unlock( f ) ).get(), equalTo( true ) );
+            assertThat( upgraded.get( 10, TimeUnit.SECONDS ), equalTo( true ) );
+
+            // only a write lock lets the upgrader open the file for writing
+            upgrader.submit( () -> {
+                try (OutputStream out = manager.openOutputStream( f, 1000 ))
+                {
+                    out.write( "upgraded".getBytes() );
+                }
+                return null;
+            } ).get();
+        }
+        finally
+        {
+            upgrader.shutdownNow();
+            reader.shutdownNow();
+        }
+
+        assertThat( manager.getActiveLocks().isEmpty(), equalTo( true ) );
+    }
+
+    @Test
+    public void secondConcurrentUpgradeFails()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+
+        ExecutorService first = Executors.newSingleThreadExecutor();
+        ExecutorService second = Executors.newSingleThreadExecutor();
+        try
+        {
+            assertThat( first.submit( () -> manager.lock( f, 1000, LockLevel.read ) ).get(), equalTo( true ) );
+            assertThat( second.submit( () -> manager.lock( f, 1000, LockLevel.read ) ).get(), equalTo( true ) );
+
+            Future<Boolean> upgraded = first.submit( () -> manager.upgrade( f, 10000 ) );
+            Thread.sleep( 500 );
+
+            second.submit( () -> {
+                try
+                {
+                    manager.upgrade( f, 10000 );
+                    fail( "Second upgrade should fail" );
+                }
+                catch ( LockUpgradeDeadlockException e )
+                {
+                    // back out, letting the first upgrade proceed
+                    manager.unlock( f );
+                }
+                return null;
+            } ).get( 10, TimeUnit.SECONDS );
+
+            assertThat( upgraded.get( 10, TimeUnit.SECONDS ), equalTo( true ) );
+            first.submit( () -> manager.unlock( f ) ).get();
+        }
+        finally
+        {
+            first.shutdownNow();
+            second.shutdownNow();
+        }
+    }
+
+    @Test
+    public void writerDowngradesToReading()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try
+        {
+            assertThat( manager.lock( f, 1000, LockLevel.write ), equalTo( true ) );
+            assertThat( manager.downgrade( f ), equalTo( true ) );
+
+            assertThat( manager.downgrade( f ), equalTo( false ) );
+
+            assertThat( other.submit( () -> manager.lock( f, 1000, LockLevel.read ) ).get(), equalTo( true ) );
+
+            // other writers are still kept out until we unlock
+            assertThat( other.submit( () -> manager.upgrade( f, 200 ) ).get(), equalTo( false ) );
+
+            assertThat( manager.unlock( f ), equalTo( true ) );
+            assertThat( other.submit( () -> manager.upgrade( f, 1000 ) ).get(), equalTo( true ) );
+            assertThat( other.submit( () -> manager.unlock( f ) ).get(), equalTo( true ) );
+        }
+        finally
+        {
+            other.shutdownNow();
+        }
+    }
+
+    @Test
+    public void cannotDowngradeWhileWriting()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+
+        assertThat( manager.lock( f, 1000, LockLevel.write ), equalTo( true ) );
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            out.write( "written".getBytes() );
+            assertThat( manager.downgrade( f ), equalTo( false ) );
+        }
+    }
+}
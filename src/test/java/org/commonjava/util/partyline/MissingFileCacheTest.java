@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class MissingFileCacheTest
+        extends AbstractJointedIOTest
+{
+    @Test
+    public void evictOldestOverCapacity()
+            throws Exception
+    {
+        MissingFileCache cache = new MissingFileCache( 2, 60000 );
+        cache.markMissing( "/a" );
+        cache.markMissing( "/b" );
+        cache.markMissing( "/c" );
+
+        assertThat( cache.getSize(), equalTo( 2 ) );
+        assertThat( cache.getEvictions(), equalTo( 1L ) );
+        assertThat( cache.isMissing( "/a" ), equalTo( false ) );
+        assertThat( cache.isMissing( "/c" ), equalTo( true ) );
+
+        // oldest by insertion, not by path; marking a path again makes it the newest
+        cache = new MissingFileCache( 2, 60000 );
+        cache.markMissing( "/z" );
+        cache.markMissing( "/a" );
+        cache.markMissing( "/z" );
+        cache.markMissing( "/m" );
+
+        assertThat( cache.getSize(), equalTo( 2 ) );
+        assertThat( cache.isMissing( "/a" ), equalTo( false ) );
+        assertThat( cache.isMissing( "/z" ), equalTo( true ) );
+        assertThat( cache.isMissing( "/m" ), equalTo( true ) );
+
+        cache = new MissingFileCache( 2, 1 );
+        cache.markMissing( "/a" );
+        Thread.sleep( 10 );
+        assertThat( cache.isMissing( "/a" ), equalTo( false ) );
+        assertThat( cache.getSize(), equalTo( 0 ) );
+    }
+
+    @Test
+    public void rememberMissingFileUntilWritten()
+            throws Exception
+    {
+        final File f = new File( temp.newFolder(), "child.txt" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableMissingFileCache( 100, 60000 );
+        MissingFileCache cache = manager.getMissingFileCache();
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            try (InputStream in = manager.openInputStream( f ))
+            {
+                fail( "Should not be able to read missing file" );
+            }
+            catch ( IOException e )
+            {
+                // expected
+            }
+        }
+
+        assertThat( cache.getSize(), equalTo( 1 ) );
+        assertThat( cache.getHits(), equalTo( 2L ) );
+
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            assertThat( cache.getSize(), equalTo( 0 ) );
+            IOUtils.write( "test data", out );
+        }
+
+        try (InputStream in = manager.openInputStream( f ))
+        {
+            assertThat( IOUtils.toString( in ), equalTo( "test data" ) );
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class OpenOrProduceTest
+        extends AbstractJointedIOTest
+{
+    @Test
+    public void concurrentCallersProduceOnce()
+            throws Exception
+    {
+        final File f = new File( temp.newFolder(), "child.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+        final AtomicInteger produced = new AtomicInteger();
+        final int callers = 8;
+
+        ExecutorService exec = Executors.newFixedThreadPool( callers );
+        try
+        {
+            CountDownLatch start = new CountDownLatch( 1 );
+            List<Future<String>> reads = new ArrayList<>();
+            for ( int i = 0; i < callers; i++ )
+            {
+                reads.add( exec.submit( () -> {
+                    start.await();
+                    try (InputStream in = manager.openInputStreamOrProduce( f, ( out ) -> {
+                        produced.incrementAndGet();
+                        out.write( "first half, ".getBytes() );
+                        out.flush();
+                        sleep( 500 );
+                        out.write( "second half".getBytes() );
+                    }, 10000 ))
+                    {
+                        return IOUtils.toString( in );
+                    }
+                } ) );
+            }
+
+            start.countDown();
+            for ( Future<String> read : reads )
+            {
+                assertThat( read.get( 30, TimeUnit.SECONDS ), equalTo( "first half, second half" ) );
+            }
+        }
+        finally
+        {
+            exec.shutdownNow();
+        }
+
+        assertThat( produced.get(), equalTo( 1 ) );
+    }
+
+    @Test
+    public void existingFileIsNotProduced()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        FileUtils.write( f, "existing" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        try (InputStream in = manager.openInputStreamOrProduce( f, ( out ) -> fail( "Producer called" ), 1000 ))
+        {
+            assertThat( IOUtils.toString( in ), equalTo( "existing" ) );
+        }
+    }
+
+    @Test
+    public void producerFailureFailsJoinedReaders()
+            throws Exception
+    {
+        final File f = new File( temp.newFolder(), "child.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+
+        final CountDownLatch producing = new CountDownLatch( 1 );
+        final CountDownLatch joined = new CountDownLatch( 1 );
+
+        ExecutorService exec = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            Future<?> producer = exec.submit( () -> manager.openInputStreamOrProduce( f, ( out ) -> {
+                out.write( "partial".getBytes() );
+                out.flush();
+                producing.countDown();
+                try
+                {
+                    joined.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new IOException( e );
+                }
+                throw new IOException( "Upstream went away" );
+            }, 10000 ) );
+
+            producing.await( 10, TimeUnit.SECONDS );
+
+            Future<?> reader = exec.submit( () -> {
+                try (InputStream in = manager.openInputStreamOrProduce( f, ( out ) -> fail( "Producer called" ),
+                                                                        10000 ))
+                {
+                    joined.countDown();
+                    IOUtils.toString( in );
+                    fail( "Joined reader saw EOF" );
+                }
+                catch ( IOException e )
+                {
+                    assertThat( e.getMessage(), containsString( "incomplete" ) );
+                }
+                return null;
+            } );
+
+            reader.get( 10, TimeUnit.SECONDS );
+
+            try
+            {
+                producer.get( 10, TimeUnit.SECONDS );
+                fail( "Producer failure was not thrown" );
+            }
+            catch ( ExecutionException e )
+            {
+                assertThat( e.getCause().getMessage(), equalTo( "Upstream went away" ) );
+            }
+        }
+        finally
+        {
+            exec.shutdownNow();
+        }
+
+        assertThat( f.exists(), equalTo( false ) );
+        assertThat( manager.getActiveLocks().isEmpty(), equalTo( true ) );
+    }
+
+    private static void sleep( long millis )
+            throws IOException
+    {
+        try
+        {
+            Thread.sleep( millis );
+        }
+        catch ( InterruptedException e )
+        {
+            throw new IOException( e );
+        }
+    }
+}
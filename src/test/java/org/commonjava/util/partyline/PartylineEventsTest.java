@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class PartylineEventsTest
+        extends AbstractJointedIOTest
+{
+    private static final String LOCK = "org.commonjava.partyline.Lock";
+
+    private static final String JOIN = "org.commonjava.partyline.Join";
+
+    private static final String FLUSH = "org.commonjava.partyline.Flush";
+
+    private static final String CLOSE = "org.commonjava.partyline.Close";
+
+    private static final String READER_WAIT = "org.commonjava.partyline.ReaderWait";
+
+    @Test
+    public void onlySlowLocksAreRecorded()
+            throws Exception
+    {
+        assumeTrue( PartylineEvents.isAvailable() );
+
+        final File quick = temp.newFile( "quick.txt" );
+        final File contended = temp.newFile( "contended.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording())
+        {
+            // default threshold
+            recording.enable( LOCK );
+
+            // warm up, so class loading doesn't make the first quick lock slow
+            assertThat( manager.lock( quick, 200, LockLevel.write ), equalTo( true ) );
+            manager.unlock( quick );
+
+            recording.start();
+
+            assertThat( manager.lock( quick, 200, LockLevel.write ), equalTo( true ) );
+            manager.unlock( quick );
+
+            ExecutorService other = Executors.newSingleThreadExecutor();
+            assertThat( manager.lock( contended, 200, LockLevel.write ), equalTo( true ) );
+            try
+            {
+                assertThat( other.submit( () -> manager.lock( contended, 300, LockLevel.write ) ).get(),
+                            equalTo( false ) );
+            }
+            finally
+            {
+                manager.unlock( contended );
+                other.shutdownNow();
+            }
+
+            recording.stop();
+            events = readEvents( recording, LOCK );
+        }
+
+        assertThat( events.size(), equalTo( 1 ) );
+        assertThat( events.get( 0 ).getString( "path" ), equalTo( contended.getAbsolutePath() ) );
+        assertThat( events.get( 0 ).getString( "level" ), equalTo( LockLevel.write.name() ) );
+        assertThat( events.get( 0 ).getString( "outcome" ), equalTo( "timeout" ) );
+    }
+
+    @Test
+    public void streamOperationsAreRecorded()
+            throws Exception
+    {
+        assumeTrue( PartylineEvents.isAvailable() );
+
+        final File f = temp.newFile( "written.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+        final byte[] content = "This is a test".getBytes();
+
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording())
+        {
+            for ( String event : new String[] { JOIN, FLUSH, CLOSE, READER_WAIT } )
+            {
+                recording.enable( event ).withThreshold( Duration.ZERO );
+            }
+            recording.start();
+
+            ExecutorService reader = Executors.newSingleThreadExecutor();
+            try
+            {
+                Future<byte[]> read;
+                try (OutputStream out = manager.openOutputStream( f ))
+                {
+                    read = reader.submit( () -> {
+                        try (InputStream in = manager.openInputStream( f ))
+                        {
+                            return toByteArray( in );
+                        }
+                    } );
+
+                    // give the reader time to join and wait at the flushed frontier
+                    Thread.sleep( 200 );
+                    out.write( content );
+                }
+
+                assertThat( read.get(), equalTo( content ) );
+            }
+            finally
+            {
+                reader.shutdownNow();
+            }
+
+            recording.stop();
+            events = readEvents( recording, JOIN, FLUSH, CLOSE, READER_WAIT );
+        }
+
+        String path = f.getAbsolutePath();
+        for ( String name : new String[] { JOIN, FLUSH, CLOSE, READER_WAIT } )
+        {
+            long count = events.stream()
+                               .filter( e -> e.getEventType().getName().equals( name ) )
+                               .filter( e -> path.equals( e.getString( "path" ) ) )
+                               .count();
+            assertThat( name + " events", count > 0, equalTo( true ) );
+        }
+
+        long flushed = events.stream()
+                             .filter( e -> e.getEventType().getName().equals( FLUSH ) )
+                             .mapToLong( e -> e.getLong( "bytes" ) )
+                             .sum();
+        assertThat( flushed, equalTo( (long) content.length ) );
+
+        RecordedEvent close = events.stream()
+                                    .filter( e -> e.getEventType().getName().equals( CLOSE ) )
+                                    .filter( e -> e.getBoolean( "output" ) )
+                                    .findFirst()
+                                    .orElse( null );
+        assertThat( close == null, equalTo( false ) );
+        assertThat( close.getLong( "length" ), equalTo( (long) content.length ) );
+    }
+
+    private List<RecordedEvent> readEvents( Recording recording, String... names )
+            throws Exception
+    {
+        Path dump = temp.newFile( name.getMethodName() + ".jfr" ).toPath();
+        recording.dump( dump );
+
+        List<String> wanted = Arrays.asList( names );
+        return RecordingFile.readAllEvents( dump )
+                            .stream()
+                            .filter( e -> wanted.contains( e.getEventType().getName() ) )
+                            .collect( Collectors.toList() );
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.jboss.byteman.contrib.bmunit.BMRule;
+import org.jboss.byteman.contrib.bmunit.BMUnitConfig;
+import org.jboss.byteman.contrib.bmunit.BMUnitRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith( BMUnitRunner.class )
+public class PreallocationJoinTest
+        extends AbstractBytemanTest
+{
+    /**
+     * GIVEN:
+     * <ol>
+     *     <li>Preallocation is enabled</li>
+     *     <li>A writer opens a file with a known length, and filling the space in takes a while</li>
+     * </ol>
+     * <br/>
+     * WHEN:
+     * <ol>
+     *     <li>A reader opens the same file while the space is being filled in</li>
+     * </ol>
+     * <br/>
+     * THEN:
+     * <ol>
+     *     <li>The reader joins the file right away, rather than waiting for the fill to finish</li>
+     * </ol>
+     */
+    /*@formatter:off*/
+    @BMRule( name = "slow preallocation", targetClass = "JoinableFile", targetMethod = "preallocate",
+             targetLocation = "ENTRY",
+             action = "debug(\"Delaying preallocation.\"); Thread.sleep(3000); debug(\"Resuming preallocation.\");" )
+    /*@formatter:on*/
+    @BMUnitConfig( debug = true )
+    @Test
+    public void readerJoinsWhileSpaceIsFilledIn()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enablePreallocation();
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<?> writer = exec.submit( () -> {
+                try (OutputStream out = manager.openOutputStream( f, 4096, 1000 ))
+                {
+                    out.write( "test data".getBytes() );
+                }
+                return null;
+            } );
+
+            // let the writer get into preallocation
+            Thread.sleep( 500 );
+
+            long start = System.currentTimeMillis();
+            try (InputStream in = manager.openInputStream( f, 1000 ))
+            {
+                long elapsed = System.currentTimeMillis() - start;
+                assertThat( "Reader waited " + elapsed + "ms to join", elapsed < 2000, equalTo( true ) );
+            }
+
+            writer.get( 10, TimeUnit.SECONDS );
+        }
+        finally
+        {
+            exec.shutdownNow();
+        }
+    }
+}
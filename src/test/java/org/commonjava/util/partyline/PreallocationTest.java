@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Preallocate space for writes with a known length (by writing zeros). The benchmark only runs with -Dpartyline.benchmark=true (the file
+ * size can be set with -Dpartyline.benchmark.size, in bytes); it logs write throughput, the number of extents of the
+ * written file (via filefrag, if available), and read-back throughput, with and without preallocation.
+ */
+public class PreallocationTest
+        extends AbstractJointedIOTest
+{
+    private static final int BENCHMARK_CHUNK = 64 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    @Test
+    public void preallocateThenTrimToWrittenLength()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enablePreallocation();
+
+        try (OutputStream out = manager.openOutputStream( f, 4096, 1000 ))
+        {
+            assertThat( f.length(), equalTo( 4096L ) );
+            assertThat( FileUtils.readFileToByteArray( f ), equalTo( new byte[4096] ) );
+
+            out.write( "test data".getBytes() );
+            out.flush();
+
+            // joined readers only see what's been written, not the preallocated space.
+            try (InputStream in = manager.openInputStream( f ))
+            {
+                byte[] data = new byte[9];
+                IOUtils.readFully( in, data );
+                assertThat( new String( data ), equalTo( "test data" ) );
+            }
+        }
+
+        assertThat( f.length(), equalTo( 9L ) );
+        assertThat( FileUtils.readFileToString( f ), equalTo( "test data" ) );
+    }
+
+    @Test
+    public void noPreallocationUnlessEnabled()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+
+        try (OutputStream out = manager.openOutputStream( f, 4096, 1000 ))
+        {
+            assertThat( f.length(), equalTo( 0L ) );
+            out.write( "test data".getBytes() );
+        }
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "test data" ) );
+    }
+
+    @Test
+    public void trimLongerExistingFile()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        FileUtils.write( f, "some much longer old content" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        try (OutputStream out = manager.openOutputStream( f, 9, 1000 ))
+        {
+            out.write( "test data".getBytes() );
+        }
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "test data" ) );
+    }
+
+    @Test
+    public void benchmark()
+            throws Exception
+    {
+        assumeTrue( "Benchmark is disabled", Boolean.getBoolean( "partyline.benchmark" ) );
+        long size = Long.getLong( "partyline.benchmark.size", 2L * 1024 * 1024 * 1024 );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        for ( boolean preallocate : new boolean[] { false, true } )
+        {
+            if ( preallocate )
+            {
+                manager.enablePreallocation();
+            }
+
+            final File f = new File( temp.newFolder(), "benchmark.bin" );
+            byte[] chunk = new byte[BENCHMARK_CHUNK];
+
+            long start = System.nanoTime();
+            try (OutputStream out = preallocate ?
+                    manager.openOutputStream( f, size, 10000 ) :
+                    manager.openOutputStream( f, 10000 ))
+            {
+                for ( long written = 0; written < size; written += chunk.length )
+                {
+                    out.write( chunk, 0, (int) Math.min( chunk.length, size - written ) );
+                }
+            }
+            long writeNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            try (FileChannel channel = FileChannel.open( f.toPath(), StandardOpenOption.READ ))
+            {
+                ByteBuffer buf = ByteBuffer.allocateDirect( BENCHMARK_CHUNK );
+                while ( channel.read( buf ) > 0 )
+                {
+                    buf.clear();
+                }
+            }
+            long readNanos = System.nanoTime() - start;
+
+            assertThat( f.length(), equalTo( size ) );
+            logger.info( "BENCHMARK: preallocate={} size={} write={} MB/s extents={} read-back={} MB/s", preallocate,
+                         size, mbPerSecond( size, writeNanos ), countExtents( f ), mbPerSecond( size, readNanos ) );
+
+            FileUtils.forceDelete( f );
+        }
+    }
+
+    private long mbPerSecond( long bytes, long nanos )
+    {
+        return ( bytes * 1000000000L / Math.max( nanos, 1 ) ) / ( 1024 * 1024 );
+    }
+
+    private String countExtents( File f )
+    {
+        try
+        {
+            Process process = new ProcessBuilder( "filefrag", f.getPath() ).redirectErrorStream( true ).start();
+            String output = IOUtils.toString( process.getInputStream() ).trim();
+            process.waitFor();
+            return output.substring( output.lastIndexOf( ':' ) + 1 ).trim();
+        }
+        catch ( Exception e )
+        {
+            return "n/a (" + e.getMessage() + ")";
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.partyline.fixture.ForkedFileLockHolder;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Coordinate with another JVM process (forked from this test) using OS-level file locks.
+ */
+public class ProcessLocksTest
+        extends AbstractJointedIOTest
+{
+    private Process forked;
+
+    @After
+    public void stopForked()
+    {
+        if ( forked != null )
+        {
+            forked.destroy();
+        }
+    }
+
+    @Test
+    public void forkedWriterBlocksWriteAndReadUntilClosed()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        FileUtils.write( f, "test data" );
+
+        forkLockHolder( "write", f );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableProcessLocks();
+
+        assertCannotWrite( manager, f );
+        assertCannotRead( manager, f );
+        assertThat( manager.tryDelete( f, 500 ), equalTo( false ) );
+        assertThat( f.exists(), equalTo( true ) );
+
+        releaseForked();
+
+        try (OutputStream out = manager.openOutputStream( f, 10000 ))
+        {
+            out.write( "new data".getBytes() );
+        }
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "new data" ) );
+    }
+
+    @Test
+    public void forkedReaderSharesReadButBlocksWrite()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        FileUtils.write( f, "test data" );
+
+        forkLockHolder( "read", f );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableProcessLocks();
+
+        try (InputStream in = manager.openInputStream( f, 1000 ))
+        {
+            assertThat( IOUtils.toString( in ), equalTo( "test data" ) );
+        }
+
+        assertCannotWrite( manager, f );
+
+        releaseForked();
+
+        assertThat( manager.tryDelete( f, 10000 ), equalTo( true ) );
+        assertThat( f.exists(), equalTo( false ) );
+    }
+
+    @Test
+    public void forkedWriterBlocksCachedRead()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        FileUtils.write( f, "test data" );
+
+        forked = ForkedFileLockHolder.start( "write", f, "forked data" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableProcessLocks();
+        manager.enableContentCache( 1024, 4096 );
+
+        assertCannotRead( manager, f );
+
+        releaseForked();
+
+        try (InputStream in = manager.openInputStream( f, 10000 ))
+        {
+            assertThat( IOUtils.toString( in ), equalTo( "forked data" ) );
+        }
+    }
+
+    @Test
+    public void ignoreForkedLocksWhenDisabled()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        FileUtils.write( f, "test data" );
+
+        forkLockHolder( "write", f );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        try (InputStream in = manager.openInputStream( f, 1000 ))
+        {
+            IOUtils.toString( in );
+        }
+    }
+
+    private void assertCannotWrite( JoinableFileManager manager, File f )
+            throws Exception
+    {
+        try (OutputStream out = manager.openOutputStream( f, 500 ))
+        {
+            fail( "Should not be able to write a file locked by another process" );
+        }
+        catch ( IOException e )
+        {
+            // expected
+        }
+    }
+
+    private void assertCannotRead( JoinableFileManager manager, File f )
+            throws Exception
+    {
+        try (InputStream in = manager.openInputStream( f, 500 ))
+        {
+            fail( "Should not be able to read a file write-locked by another process" );
+        }
+        catch ( IOException e )
+        {
+            // expected
+        }
+    }
+
+    private void forkLockHolder( String mode, File f )
+            throws Exception
+    {
+        forked = ForkedFileLockHolder.start( mode, f );
+    }
+
+    private void releaseForked()
+            throws Exception
+    {
+        ForkedFileLockHolder.release( forked );
+        forked = null;
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.partyline.fixture.ForkedFileLockHolder;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Join a write in progress in another JVM process (forked from this test), following the progress it publishes.
+ */
+public class ProgressFileTest
+        extends AbstractJointedIOTest
+{
+    private Process forked;
+
+    @After
+    public void stopForked()
+    {
+        if ( forked != null )
+        {
+            forked.destroyForcibly();
+        }
+    }
+
+    @Test
+    public void joinWriteInAnotherProcess()
+            throws Exception
+    {
+        final File f = new File( temp.newFolder(), "child.txt" );
+
+        forked = ForkedFileLockHolder.start( "write", f, "first ", "second" );
+        assertThat( ProgressFile.sidecarFor( f ).exists(), equalTo( true ) );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableProcessLocks();
+        manager.enableProgressFiles();
+
+        try (InputStream in = manager.openInputStream( f, 5000 ))
+        {
+            assertThat( new String( readBytes( in, 6 ) ), equalTo( "first " ) );
+
+            ForkedFileLockHolder.release( forked );
+            forked = null;
+
+            assertThat( IOUtils.toString( in ), equalTo( "second" ) );
+        }
+
+        assertThat( ProgressFile.sidecarFor( f ).exists(), equalTo( false ) );
+    }
+
+    @Test
+    public void failReadWhenWriterProcessDies()
+            throws Exception
+    {
+        final File f = new File( temp.newFolder(), "child.txt" );
+
+        forked = ForkedFileLockHolder.start( "write", f, "first ", "second" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableProgressFiles();
+
+        try (InputStream in = manager.openInputStream( f, 5000 ))
+        {
+            assertThat( new String( readBytes( in, 6 ) ), equalTo( "first " ) );
+
+            forked.destroyForcibly();
+            assertThat( forked.waitFor( 60, TimeUnit.SECONDS ), equalTo( true ) );
+            forked = null;
+
+            in.read();
+            fail( "Should not be able to read past the content of a dead writer" );
+        }
+        catch ( IOException e )
+        {
+            assertThat( e.getMessage(), containsString( "incomplete" ) );
+        }
+
+        // a stale sidecar is ignored
+        try (InputStream in = manager.openInputStream( f, 5000 ))
+        {
+            assertThat( IOUtils.toString( in ), equalTo( "first " ) );
+        }
+    }
+
+    private byte[] readBytes( InputStream in, int count )
+            throws IOException
+    {
+        byte[] result = new byte[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            int b = in.read();
+            if ( b < 0 )
+            {
+                fail( "Unexpected EOF after " + i + " bytes" );
+            }
+            result[i] = (byte) b;
+        }
+
+        return result;
+    }
+}
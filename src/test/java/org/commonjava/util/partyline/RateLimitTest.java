@@ -0,0 +1,254 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class RateLimitTest
+        extends AbstractJointedIOTest
+{
+    @Test
+    public void streamLimitThrottlesBulkReads()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.bin" );
+        final byte[] data = content( 300 * 1024 );
+        FileUtils.writeByteArrayToFile( f, data );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        final RateLimit limit = new RateLimit( 1024 * 1024, 64 * 1024 );
+
+        long start = System.nanoTime();
+        try (InputStream in = manager.openInputStream( f, 1000, limit ))
+        {
+            assertThat( Arrays.equals( IOUtils.toByteArray( in ), data ), equalTo( true ) );
+        }
+        long elapsed = ( System.nanoTime() - start ) / 1000000;
+
+        // (300k - 64k burst) at 1mb/s
+        assertThat( "Read took only: " + elapsed + "ms", elapsed >= 200, equalTo( true ) );
+        assertThat( limit.getBytes(), equalTo( (long) data.length ) );
+        assertThat( limit.getThrottledCount() > 0, equalTo( true ) );
+
+        // other streams aren't limited.
+        try (InputStream in = manager.openInputStream( f ))
+        {
+            assertThat( Arrays.equals( IOUtils.toByteArray( in ), data ), equalTo( true ) );
+        }
+
+        assertThat( limit.getBytes(), equalTo( (long) data.length ) );
+    }
+
+    @Test
+    public void pathLimitThrottlesFlushes()
+            throws Exception
+    {
+        final File dir = temp.newFolder( "background" );
+        final File f = new File( dir, "org/foo/child.bin" );
+        final File other = temp.newFile( "other.bin" );
+        final byte[] data = content( 1536 * 1024 );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        final RateLimit limit = new RateLimit( 2 * 1024 * 1024, 256 * 1024 );
+        manager.setRateLimit( dir, limit );
+
+        long start = System.nanoTime();
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            out.write( data );
+        }
+        long elapsed = ( System.nanoTime() - start ) / 1000000;
+
+        try (OutputStream out = manager.openOutputStream( other ))
+        {
+            out.write( data );
+        }
+
+        // (1.5mb - 256k burst) at 2mb/s
+        assertThat( "Write took only: " + elapsed + "ms", elapsed >= 500, equalTo( true ) );
+        assertThat( limit.getBytes(), equalTo( (long) data.length ) );
+        assertThat( manager.getRateLimits().get( dir.getAbsolutePath() ), equalTo( limit ) );
+        assertThat( Arrays.equals( FileUtils.readFileToByteArray( f ), data ), equalTo( true ) );
+    }
+
+    @Test
+    public void throttledWritesDontHoldUpBackgroundFlushes()
+            throws Exception
+    {
+        final File dir = temp.newFolder( "background" );
+        final File f = new File( dir, "child.bin" );
+        final File other = temp.newFile( "other.bin" );
+        final byte[] data = content( 2 * 1024 * 1024 );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableBackgroundFlush( 1, 4 );
+        manager.setRateLimit( dir, new RateLimit( 1024 * 1024, 1 ) );
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<?> throttled = exec.submit( () -> {
+                try (OutputStream out = manager.openOutputStream( f ))
+                {
+                    out.write( data );
+                }
+
+                return null;
+            } );
+
+            Thread.sleep( 200 );
+
+            long start = System.nanoTime();
+            try (OutputStream out = manager.openOutputStream( other ))
+            {
+                out.write( data );
+            }
+            long elapsed = ( System.nanoTime() - start ) / 1000000;
+
+            // the only flush thread is free while the throttled writer sleeps.
+            assertThat( "Unthrottled write took: " + elapsed + "ms", elapsed < 1000, equalTo( true ) );
+
+            throttled.get( 10, TimeUnit.SECONDS );
+        }
+        finally
+        {
+            exec.shutdownNow();
+            manager.disableBackgroundFlush();
+        }
+
+        assertThat( Arrays.equals( FileUtils.readFileToByteArray( f ), data ), equalTo( true ) );
+    }
+
+    @Test
+    public void singleByteReadsAreChargedInBatches()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.bin" );
+        final byte[] data = content( 300 * 1024 );
+        FileUtils.writeByteArrayToFile( f, data );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        final RateLimit limit = new RateLimit( 1024 * 1024, 64 * 1024 );
+
+        final byte[] read = new byte[data.length];
+        try (InputStream in = manager.openInputStream( f, 1000, limit ))
+        {
+            for ( int i = 0; i < read.length; i++ )
+            {
+                read[i] = (byte) in.read();
+            }
+        }
+
+        assertThat( Arrays.equals( read, data ), equalTo( true ) );
+        assertThat( limit.getBytes(), equalTo( (long) data.length ) );
+        assertThat( "Throttled: " + limit.getThrottledCount() + " times", limit.getThrottledCount() < 10,
+                    equalTo( true ) );
+    }
+
+    @Test
+    public void closeDoesNotSleepOffLastBatchOfSingleByteCharges()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.bin" );
+        FileUtils.writeByteArrayToFile( f, content( 1024 ) );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        final RateLimit limit = new RateLimit( 1, 1 );
+        final File out = new File( f.getParentFile(), "written.bin" );
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<?> io = executor.submit( () -> {
+                try (InputStream in = manager.openInputStream( f, 1000, limit ))
+                {
+                    for ( int i = 0; i < 100; i++ )
+                    {
+                        in.read();
+                    }
+                }
+
+                try (OutputStream o = manager.openOutputStream( out, 1000, limit ))
+                {
+                    for ( int i = 0; i < 100; i++ )
+                    {
+                        o.write( i );
+                    }
+                }
+
+                return null;
+            } );
+
+            // an interrupt while closing must not leave the files locked
+            Thread.sleep( 500 );
+            executor.shutdownNow();
+            io.get( 5, TimeUnit.SECONDS );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertThat( manager.isReadLocked( f ), equalTo( false ) );
+        assertThat( manager.isWriteLocked( out ), equalTo( false ) );
+        assertThat( FileUtils.readFileToByteArray( out ).length, equalTo( 100 ) );
+        assertThat( limit.getBytes(), equalTo( 200L ) );
+    }
+
+    @Test
+    public void streamLimitsAreReported()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.bin" );
+        FileUtils.writeByteArrayToFile( f, content( 1024 ) );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        final RateLimit limit = new RateLimit( 1024 * 1024, 64 * 1024 );
+
+        try (InputStream in = manager.openInputStream( f, 1000, limit ))
+        {
+            assertThat( manager.getStreamRateLimits().get( f ), equalTo( Collections.singletonList( limit ) ) );
+        }
+
+        assertThat( manager.getStreamRateLimits().isEmpty(), equalTo( true ) );
+    }
+
+    private byte[] content( final int length )
+    {
+        byte[] data = new byte[length];
+        for ( int i = 0; i < data.length; i++ )
+        {
+            data[i] = (byte) ( i % 251 );
+        }
+
+        return data;
+    }
+}
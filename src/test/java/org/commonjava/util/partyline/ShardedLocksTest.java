@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import ch.qos.logback.classic.Level;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Lock state partitioned into shards by repository directory. The benchmark only runs with
+ * -Dpartyline.benchmark=true; it logs lock / unlock throughput for 1 to 64 threads, each working in its own repository,
+ * with and without sharding.
+ */
+public class ShardedLocksTest
+        extends AbstractJointedIOTest
+{
+    private static final int BENCHMARK_MILLIS = 2000;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    @Test
+    public void directoryLockSeesChildrenInOtherShards()
+            throws Exception
+    {
+        final File root = temp.newFolder( "repos" );
+        final File repoA = new File( root, "a" );
+        final File repoB = new File( root, "b" );
+        repoA.mkdirs();
+        repoB.mkdirs();
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.setLockShards( 16, root.toPath().getNameCount() + 1 );
+
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try (OutputStream out = manager.openOutputStream( new File( repoA, "child.txt" ) ))
+        {
+            out.write( "test".getBytes() );
+
+            // the root spans all the shards; the repository has the child in its own shard
+            assertThat( other.submit( () -> manager.lock( root, 200, LockLevel.delete ) ).get(), equalTo( false ) );
+            assertThat( other.submit( () -> manager.lock( repoA, 200, LockLevel.delete ) ).get(), equalTo( false ) );
+
+            assertThat( other.submit( () -> manager.lock( repoB, 200, LockLevel.write ) ).get(), equalTo( true ) );
+            assertThat( other.submit( () -> manager.unlock( repoB ) ).get(), equalTo( true ) );
+        }
+        finally
+        {
+            other.shutdownNow();
+        }
+
+        assertThat( manager.lock( root, 200, LockLevel.write ), equalTo( true ) );
+        assertThat( manager.unlock( root ), equalTo( true ) );
+    }
+
+    @Test
+    public void cannotShardWhileLocked()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+
+        assertThat( manager.lock( f, 200, LockLevel.write ), equalTo( true ) );
+        try
+        {
+            manager.setLockShards( 4, 2 );
+            fail( "Sharding changed while a file was locked" );
+        }
+        catch ( IllegalStateException e )
+        {
+            assertThat( manager.getLockShardCount(), equalTo( 1 ) );
+        }
+        finally
+        {
+            manager.unlock( f );
+        }
+    }
+
+    @Test
+    public void benchmark()
+            throws Exception
+    {
+        assumeTrue( "Benchmark is disabled", Boolean.getBoolean( "partyline.benchmark" ) );
+
+        // trace logging would dominate the timings
+        ch.qos.logback.classic.Logger partyline =
+                (ch.qos.logback.classic.Logger) LoggerFactory.getLogger( "org.commonjava.util.partyline" );
+        Level level = partyline.getLevel();
+        partyline.setLevel( Level.INFO );
+        try
+        {
+            final File root = temp.newFolder( "repos" );
+            for ( int shards : new int[] { 1, 64 } )
+            {
+                for ( int threads = 1; threads <= 64; threads *= 2 )
+                {
+                    final JoinableFileManager manager = new JoinableFileManager();
+                    manager.setLockShards( shards, root.toPath().getNameCount() + 1 );
+
+                    long ops = run( manager, root, threads );
+                    logger.info( "BENCHMARK: shards={} threads={} cpus={} lock+unlock={}/s", shards, threads,
+                                 Runtime.getRuntime().availableProcessors(), ops * 1000 / BENCHMARK_MILLIS );
+                }
+            }
+        }
+        finally
+        {
+            partyline.setLevel( level );
+        }
+    }
+
+    private long run( final JoinableFileManager manager, final File root, final int threads )
+            throws Exception
+    {
+        ExecutorService exec = Executors.newFixedThreadPool( threads );
+        try
+        {
+            CountDownLatch start = new CountDownLatch( 1 );
+            List<Future<Long>> counts = new ArrayList<>();
+            for ( int t = 0; t < threads; t++ )
+            {
+                // disjoint repositories, one per thread
+                File repo = new File( root, "repo-" + t );
+                repo.mkdirs();
+
+                counts.add( exec.submit( () -> {
+                    start.await();
+                    long end = System.currentTimeMillis() + BENCHMARK_MILLIS;
+                    long count = 0;
+                    while ( System.currentTimeMillis() < end )
+                    {
+                        File f = new File( repo, "path/to/file-" + ( count % 100 ) );
+                        if ( !manager.lock( f, 10000, LockLevel.write ) )
+                        {
+                            throw new IllegalStateException( "Failed to lock: " + f );
+                        }
+
+                        manager.unlock( f );
+                        count++;
+                    }
+
+                    return count;
+                } ) );
+            }
+
+            start.countDown();
+
+            long total = 0;
+            for ( Future<Long> count : counts )
+            {
+                total += count.get( BENCHMARK_MILLIS * 10, TimeUnit.MILLISECONDS );
+            }
+
+            return total;
+        }
+        finally
+        {
+            exec.shutdownNow();
+        }
+    }
+}
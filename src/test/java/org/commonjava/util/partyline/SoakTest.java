@@ -0,0 +1,449 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import ch.qos.logback.classic.Level;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Randomized soak of the manager: worker threads run a random mix of reads, writes, manual file and directory locks
+ * and deletes over a shared set of paths, checking as they go that readers only ever see complete content that was
+ * actually written, and that no two threads hold a write lock on the same file. At the end, no locks may be left.
+ * Ops/sec and latency percentiles per operation are logged.
+ * <br/>
+ * By default this runs briefly as part of the build. For a real soak, set -Dpartyline.soak.millis, -threads, -paths
+ * and -seed; the seed of a failed run is in the failure message, to replay its operation mix (though not its thread
+ * interleaving).
+ */
+public class SoakTest
+        extends AbstractJointedIOTest
+{
+    private static final long LOCK_TIMEOUT = 5000;
+
+    private static final int MAX_CONTENT = 16 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private enum Op
+    {
+        read( 40 ), write( 20 ), lock( 15 ), dirLock( 5 ), delete( 20 );
+
+        private final int weight;
+
+        Op( final int weight )
+        {
+            this.weight = weight;
+        }
+    }
+
+    private final JoinableFileManager manager = new JoinableFileManager();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    // sequence numbers written to each path, so readers can tell real content from garbage
+    private final Map<String, Set<Long>> written = new ConcurrentHashMap<>();
+
+    // write locks each path is held under by the workers, which must never exceed one
+    private final Map<String, AtomicInteger> writers = new ConcurrentHashMap<>();
+
+    private final Queue<String> violations = new ConcurrentLinkedQueue<>();
+
+    @Test
+    public void run()
+            throws Exception
+    {
+        final long seed = Long.getLong( "partyline.soak.seed", System.nanoTime() );
+        final int threads = Integer.getInteger( "partyline.soak.threads", 16 );
+        final int paths = Integer.getInteger( "partyline.soak.paths", 32 );
+        final long millis = Long.getLong( "partyline.soak.millis", 2000 );
+
+        // trace logging would dominate the timings
+        ch.qos.logback.classic.Logger partyline =
+                (ch.qos.logback.classic.Logger) LoggerFactory.getLogger( "org.commonjava.util.partyline" );
+        Level level = partyline.getLevel();
+        partyline.setLevel( Level.INFO );
+        try
+        {
+            soak( seed, threads, paths, millis );
+        }
+        finally
+        {
+            partyline.setLevel( level );
+        }
+    }
+
+    private void soak( final long seed, final int threads, final int paths, final long millis )
+            throws Exception
+    {
+        final String run = String.format( "seed=%d threads=%d paths=%d millis=%d", seed, threads, paths, millis );
+        logger.info( "SOAK: starting with {}", run );
+
+        final File root = temp.newFolder( "soak" );
+        final File[] dirs = new File[Math.max( 1, paths / 8 )];
+        for ( int i = 0; i < dirs.length; i++ )
+        {
+            dirs[i] = new File( root, "dir-" + i );
+            dirs[i].mkdirs();
+        }
+
+        final File[] files = new File[paths];
+        for ( int i = 0; i < paths; i++ )
+        {
+            files[i] = new File( dirs[i % dirs.length], "file-" + i );
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool( threads );
+        List<Future<Latencies[]>> results = new ArrayList<>();
+        long start;
+        try
+        {
+            CountDownLatch go = new CountDownLatch( 1 );
+            for ( int t = 0; t < threads; t++ )
+            {
+                final Random random = new Random( seed + t );
+                results.add( exec.submit( () -> {
+                    go.await();
+                    return work( random, files, dirs, System.currentTimeMillis() + millis );
+                } ) );
+            }
+
+            start = System.currentTimeMillis();
+            go.countDown();
+
+            Latencies[] total = Latencies.forOps();
+            for ( Future<Latencies[]> result : results )
+            {
+                Latencies[] latencies = result.get( millis + LOCK_TIMEOUT * 10, TimeUnit.MILLISECONDS );
+                for ( Op op : Op.values() )
+                {
+                    total[op.ordinal()].addAll( latencies[op.ordinal()] );
+                }
+            }
+
+            report( total, System.currentTimeMillis() - start );
+        }
+        catch ( Exception e )
+        {
+            throw new AssertionError( "Soak failed (" + run + "): " + e, e );
+        }
+        finally
+        {
+            exec.shutdownNow();
+        }
+
+        if ( !violations.isEmpty() )
+        {
+            violations.forEach( v -> logger.error( "SOAK: {}", v ) );
+            fail( "Soak found " + violations.size() + " violations (" + run + "), first: " + violations.peek() );
+        }
+
+        assertThat( "Locks left after soak (" + run + ")", manager.getActiveLocks().isEmpty(), equalTo( true ) );
+    }
+
+    private Latencies[] work( final Random random, final File[] files, final File[] dirs, final long end )
+            throws Exception
+    {
+        int weights = Arrays.stream( Op.values() ).mapToInt( op -> op.weight ).sum();
+        Latencies[] latencies = Latencies.forOps();
+        while ( System.currentTimeMillis() < end )
+        {
+            int pick = random.nextInt( weights );
+            Op op = Op.values()[0];
+            for ( Op o : Op.values() )
+            {
+                op = o;
+                pick -= o.weight;
+                if ( pick < 0 )
+                {
+                    break;
+                }
+            }
+
+            File file = files[random.nextInt( files.length )];
+            long begin = System.nanoTime();
+            boolean done = true;
+            try
+            {
+                switch ( op )
+                {
+                    case read:
+                        read( file );
+                        break;
+                    case write:
+                        write( file, random.nextInt( MAX_CONTENT ) );
+                        break;
+                    case lock:
+                        done = lock( file, random.nextBoolean() ? LockLevel.write : LockLevel.read, random );
+                        break;
+                    case dirLock:
+                        done = lock( dirs[random.nextInt( dirs.length )], LockLevel.write, random );
+                        break;
+                    case delete:
+                        done = manager.tryDelete( file, LOCK_TIMEOUT );
+                        break;
+                }
+            }
+            catch ( IOException e )
+            {
+                // missing files and lock timeouts are part of the mix
+                done = false;
+                String message = String.valueOf( e.getMessage() );
+                if ( !( e instanceof FileNotFoundException ) && !message.contains( "does not exist" )
+                        && !message.contains( "Could not open" ) )
+                {
+                    violations.add( op + " " + file + ": " + e );
+                }
+            }
+            catch ( RuntimeException e )
+            {
+                violations.add( op + " " + file + ": " + e );
+            }
+
+            latencies[op.ordinal()].add( System.nanoTime() - begin, done );
+        }
+
+        return latencies;
+    }
+
+    private void read( final File file )
+            throws IOException, InterruptedException
+    {
+        byte[] content;
+        try (InputStream in = manager.openInputStream( file, LOCK_TIMEOUT ))
+        {
+            content = IOUtils.toByteArray( in );
+        }
+
+        // <seq>:<length>\n<length bytes, all the same>
+        String text = new String( content, 0, Math.min( content.length, 40 ) );
+        int colon = text.indexOf( ':' );
+        int newline = text.indexOf( '\n' );
+        if ( colon < 1 || newline < colon )
+        {
+            violations.add( "read " + file + ": bad header in " + content.length + " bytes" );
+            return;
+        }
+
+        long seq = Long.parseLong( text.substring( 0, colon ) );
+        int length = Integer.parseInt( text.substring( colon + 1, newline ) );
+        Set<Long> seqs = written.get( file.getPath() );
+        if ( seqs == null || !seqs.contains( seq ) )
+        {
+            violations.add( "read " + file + ": content " + seq + " was never written there" );
+            return;
+        }
+
+        if ( content.length != newline + 1 + length )
+        {
+            violations.add( "read " + file + ": content " + seq + " has " + ( content.length - newline - 1 )
+                                    + " bytes, not " + length );
+            return;
+        }
+
+        for ( int i = newline + 1; i < content.length; i++ )
+        {
+            if ( content[i] != fill( seq ) )
+            {
+                violations.add( "read " + file + ": content " + seq + " is corrupt at " + i );
+                return;
+            }
+        }
+    }
+
+    private void write( final File file, final int length )
+            throws IOException, InterruptedException
+    {
+        long seq = sequence.incrementAndGet();
+        written.computeIfAbsent( file.getPath(), k -> ConcurrentHashMap.newKeySet() ).add( seq );
+
+        byte[] content = new byte[length];
+        Arrays.fill( content, fill( seq ) );
+
+        try (OutputStream out = manager.openOutputStream( file, LOCK_TIMEOUT ))
+        {
+            holdWrite( file );
+            try
+            {
+                out.write( ( seq + ":" + length + "\n" ).getBytes() );
+                out.write( content );
+            }
+            finally
+            {
+                releaseWrite( file );
+            }
+        }
+    }
+
+    private boolean lock( final File file, final LockLevel level, final Random random )
+            throws InterruptedException
+    {
+        if ( !manager.lock( file, LOCK_TIMEOUT, level ) )
+        {
+            return false;
+        }
+
+        try
+        {
+            if ( level == LockLevel.write )
+            {
+                holdWrite( file );
+                if ( !manager.isWriteLocked( file ) )
+                {
+                    violations.add( "lock " + file + ": not write-locked while held" );
+                }
+            }
+
+            Thread.sleep( random.nextInt( 3 ) );
+        }
+        finally
+        {
+            if ( level == LockLevel.write )
+            {
+                releaseWrite( file );
+            }
+
+            manager.unlock( file );
+        }
+
+        return true;
+    }
+
+    private void holdWrite( final File file )
+    {
+        int holders = writers.computeIfAbsent( file.getPath(), k -> new AtomicInteger() ).incrementAndGet();
+        if ( holders > 1 )
+        {
+            violations.add( "write " + file + ": " + holders + " threads hold a write lock" );
+        }
+    }
+
+    private void releaseWrite( final File file )
+    {
+        writers.get( file.getPath() ).decrementAndGet();
+    }
+
+    private static byte fill( final long seq )
+    {
+        return (byte) ( 'a' + seq % 26 );
+    }
+
+    private void report( final Latencies[] latencies, final long elapsed )
+    {
+        long ops = 0;
+        for ( Op op : Op.values() )
+        {
+            Latencies l = latencies[op.ordinal()];
+            ops += l.size;
+            logger.info( "SOAK: {} count={} refused={} p50={}us p90={}us p99={}us max={}us", op, l.size, l.refused,
+                         l.percentile( 0.5 ), l.percentile( 0.9 ), l.percentile( 0.99 ), l.percentile( 1 ) );
+        }
+
+        logger.info( "SOAK: {} ops in {}ms ({}/s), cpus={}", ops, elapsed, ops * 1000 / Math.max( 1, elapsed ),
+                     Runtime.getRuntime().availableProcessors() );
+    }
+
+    /**
+     * Latencies of one operation, in nanoseconds, and how many times it was refused (lock timeout, missing file, or
+     * nothing deleted); each worker keeps its own, so recording doesn't add contention.
+     */
+    private static final class Latencies
+    {
+        private long[] nanos = new long[1024];
+
+        private int size;
+
+        private int refused;
+
+        static Latencies[] forOps()
+        {
+            Latencies[] result = new Latencies[Op.values().length];
+            for ( int i = 0; i < result.length; i++ )
+            {
+                result[i] = new Latencies();
+            }
+
+            return result;
+        }
+
+        void add( final long value, final boolean done )
+        {
+            if ( !done )
+            {
+                refused++;
+            }
+
+            if ( size == nanos.length )
+            {
+                nanos = Arrays.copyOf( nanos, size * 2 );
+            }
+
+            nanos[size++] = value;
+        }
+
+        void addAll( final Latencies other )
+        {
+            for ( int i = 0; i < other.size; i++ )
+            {
+                add( other.nanos[i], true );
+            }
+
+            refused += other.refused;
+        }
+
+        long percentile( final double p )
+        {
+            if ( size == 0 )
+            {
+                return 0;
+            }
+
+            long[] sorted = Arrays.copyOf( nanos, size );
+            Arrays.sort( sorted );
+
+            int index = (int) Math.ceil( p * size ) - 1;
+            return sorted[Math.max( 0, index )] / 1000;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class StorageTiersTest
+        extends AbstractJointedIOTest
+{
+    @Test
+    public void readsResolveThroughTiersAndHotFilesArePromoted()
+            throws Exception
+    {
+        final File hot = temp.newFolder( "hot" );
+        final File cold = temp.newFolder( "cold" );
+        final File coldFile = new File( cold, "org/foo/child.txt" );
+        FileUtils.write( coldFile, "cold content" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        StorageTiers tiers = manager.setStorageTiers( Arrays.asList( hot, cold ), 2, 1024 * 1024, 1000 );
+
+        final File f = new File( hot, "org/foo/child.txt" );
+        for ( int i = 0; i < 2; i++ )
+        {
+            try (InputStream in = manager.openInputStream( f ))
+            {
+                assertThat( IOUtils.toString( in ), equalTo( "cold content" ) );
+            }
+        }
+
+        awaitCount( tiers::getPromotionCount, 1 );
+        manager.clearStorageTiers();
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "cold content" ) );
+        assertThat( coldFile.exists(), equalTo( false ) );
+        assertThat( tiers.getHotBytes(), equalTo( (long) "cold content".length() ) );
+    }
+
+    @Test
+    public void leastRecentlyUsedFilesAreDemotedOverBudget()
+            throws Exception
+    {
+        final File hot = temp.newFolder( "hot" );
+        final File cold = temp.newFolder( "cold" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        StorageTiers tiers = manager.setStorageTiers( Arrays.asList( hot, cold ), 2, 250, 1000 );
+
+        final File first = new File( hot, "first.bin" );
+        final File second = new File( hot, "second.bin" );
+        final File third = new File( hot, "third.bin" );
+        write( manager, first );
+        write( manager, second );
+
+        // makes the second file the least recently used.
+        try (InputStream in = manager.openInputStream( first ))
+        {
+            assertThat( IOUtils.toByteArray( in ).length, equalTo( 100 ) );
+        }
+
+        write( manager, third );
+
+        awaitCount( tiers::getDemotionCount, 1 );
+
+        assertThat( first.exists(), equalTo( true ) );
+        assertThat( second.exists(), equalTo( false ) );
+        assertThat( third.exists(), equalTo( true ) );
+        assertThat( new File( cold, "second.bin" ).exists(), equalTo( true ) );
+        assertThat( tiers.getHotBytes(), equalTo( 200L ) );
+
+        try (InputStream in = manager.openInputStream( second ))
+        {
+            assertThat( IOUtils.toByteArray( in ).length, equalTo( 100 ) );
+        }
+
+        manager.clearStorageTiers();
+    }
+
+    @Test
+    public void filesInUseAreNotDemoted()
+            throws Exception
+    {
+        final File hot = temp.newFolder( "hot" );
+        final File cold = temp.newFolder( "cold" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        StorageTiers tiers = manager.setStorageTiers( Arrays.asList( hot, cold ), 2, 150, 1000 );
+
+        final File first = new File( hot, "first.bin" );
+        final File second = new File( hot, "second.bin" );
+        write( manager, first );
+
+        try (InputStream in = manager.openInputStream( first ))
+        {
+            write( manager, second );
+            awaitCount( tiers::getDemotionCount, 1 );
+
+            assertThat( first.exists(), equalTo( true ) );
+            assertThat( second.exists(), equalTo( false ) );
+            assertThat( IOUtils.toByteArray( in ).length, equalTo( 100 ) );
+        }
+
+        manager.clearStorageTiers();
+    }
+
+    @Test
+    public void deletesApplyToEveryTier()
+            throws Exception
+    {
+        final File hot = temp.newFolder( "hot" );
+        final File cold = temp.newFolder( "cold" );
+        final File coldOnly = new File( cold, "cold-only.txt" );
+        final File shadowed = new File( cold, "shadowed.txt" );
+        FileUtils.write( coldOnly, "cold content" );
+        FileUtils.write( shadowed, "stale content" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.setStorageTiers( Arrays.asList( hot, cold ), 2, 1024 * 1024, 1000 );
+
+        final File f = new File( hot, "shadowed.txt" );
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            out.write( "hot content".getBytes() );
+        }
+
+        assertThat( manager.tryDelete( new File( hot, "cold-only.txt" ), 1000 ), equalTo( true ) );
+        assertThat( coldOnly.exists(), equalTo( false ) );
+
+        assertThat( manager.tryDelete( f, 1000 ), equalTo( true ) );
+        assertThat( f.exists(), equalTo( false ) );
+        assertThat( shadowed.exists(), equalTo( false ) );
+
+        manager.clearStorageTiers();
+    }
+
+    @Test
+    public void manualLocksCoverEveryTier()
+            throws Exception
+    {
+        final File hot = temp.newFolder( "hot" );
+        final File cold = temp.newFolder( "cold" );
+        final File coldFile = new File( cold, "child.txt" );
+        FileUtils.write( coldFile, "cold content" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.setStorageTiers( Arrays.asList( hot, cold ), 100, 1024 * 1024, 1000 );
+
+        final File f = new File( hot, "child.txt" );
+        final ExecutorService other = Executors.newSingleThreadExecutor();
+
+        assertThat( manager.lock( f, 1000, LockLevel.write ), equalTo( true ) );
+        try
+        {
+            assertThat( other.submit( () -> manager.lock( coldFile, 200, LockLevel.write ) ).get(),
+                        equalTo( false ) );
+        }
+        finally
+        {
+            manager.unlock( f );
+        }
+
+        assertThat( other.submit( () -> manager.lock( coldFile, 200, LockLevel.write ) ).get(), equalTo( true ) );
+        assertThat( other.submit( () -> manager.unlock( coldFile ) ).get(), equalTo( true ) );
+
+        other.shutdown();
+        manager.clearStorageTiers();
+    }
+
+    private void write( final JoinableFileManager manager, final File f )
+            throws Exception
+    {
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            out.write( new byte[100] );
+        }
+    }
+
+    private void awaitCount( final LongSupplier count, final long expected )
+            throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + 10000;
+        while ( count.getAsLong() < expected && System.currentTimeMillis() < end )
+        {
+            Thread.sleep( 10 );
+        }
+
+        assertThat( count.getAsLong(), equalTo( expected ) );
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class StreamLockReleaseTest
+        extends AbstractJointedIOTest
+{
+    @Test
+    public void writerCloseReleasesWriteLockWhileReadersJoined()
+            throws Exception
+    {
+        final File f = temp.newFile( "written.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try
+        {
+            OutputStream out = manager.openOutputStream( f );
+            out.write( "content".getBytes() );
+            out.flush();
+
+            InputStream in = reader.submit( () -> manager.openInputStream( f ) ).get();
+
+            out.close();
+
+            // the reader is still joined; the writer's lock must be gone, or it could write again under the reader.
+            assertThat( manager.lock( f, 200, LockLevel.write ), equalTo( false ) );
+
+            assertThat( new String( IOUtils.toByteArray( in ) ), equalTo( "content" ) );
+            reader.submit( () -> {
+                in.close();
+                return null;
+            } ).get();
+        }
+        finally
+        {
+            reader.shutdownNow();
+        }
+
+        assertThat( manager.getActiveLocks().isEmpty(), equalTo( true ) );
+    }
+
+    @Test
+    public void manualUnlockLeavesFileOpenForOtherReaders()
+            throws Exception
+    {
+        final File f = temp.newFile( "read.txt" );
+        FileUtils.write( f, "content" );
+        final JoinableFileManager manager = new JoinableFileManager();
+
+        ExecutorService first = Executors.newSingleThreadExecutor();
+        ExecutorService second = Executors.newSingleThreadExecutor();
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try
+        {
+            InputStream in = first.submit( () -> manager.openInputStream( f ) ).get();
+
+            assertThat( manager.lock( f, 1000, LockLevel.read ), equalTo( true ) );
+            manager.unlock( f );
+
+            // both readers have to share the open file, so closing the first doesn't release the second one's lock.
+            InputStream in2 = second.submit( () -> manager.openInputStream( f ) ).get();
+            first.submit( () -> {
+                in.close();
+                return null;
+            } ).get();
+
+            assertThat( other.submit( () -> manager.lock( f, 200, LockLevel.write ) ).get(), equalTo( false ) );
+
+            assertThat( new String( IOUtils.toByteArray( in2 ) ), equalTo( "content" ) );
+            second.submit( () -> {
+                in2.close();
+                return null;
+            } ).get();
+        }
+        finally
+        {
+            first.shutdownNow();
+            second.shutdownNow();
+            other.shutdownNow();
+        }
+
+        assertThat( manager.getActiveLocks().isEmpty(), equalTo( true ) );
+    }
+
+    @Test
+    public void closingFileKeepsManualLocksOfOtherOwners()
+            throws Exception
+    {
+        final File f = temp.newFile( "locked.txt" );
+        FileUtils.write( f, "content" );
+        final JoinableFileManager manager = new JoinableFileManager();
+
+        assertThat( manager.lock( f, 1000, LockLevel.write ), equalTo( true ) );
+
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try
+        {
+            String read = reader.submit( () -> {
+                try (InputStream in = manager.openInputStream( f ))
+                {
+                    return new String( IOUtils.toByteArray( in ) );
+                }
+            } ).get();
+            assertThat( read, equalTo( "content" ) );
+        }
+        finally
+        {
+            reader.shutdownNow();
+        }
+
+        // the file closed with the reader, but the manual lock is still held.
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try
+        {
+            assertThat( other.submit( () -> manager.lock( f, 200, LockLevel.write ) ).get(), equalTo( false ) );
+        }
+        finally
+        {
+            other.shutdownNow();
+        }
+
+        assertThat( manager.unlock( f ), equalTo( true ) );
+        assertThat( manager.getActiveLocks().isEmpty(), equalTo( true ) );
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TenantSchedulerTest
+        extends AbstractJointedIOTest
+{
+    @Test
+    public void waitingFlushesAreGrantedByWeight()
+            throws Exception
+    {
+        final File light = temp.newFolder( "light" );
+        final File heavy = temp.newFolder( "heavy" );
+        final TenantScheduler scheduler =
+                new TenantScheduler( 1, 1 ).addTenant( "light", 1, light ).addTenant( "heavy", 3, heavy );
+
+        // occupy the only I/O slot while the others queue up.
+        TenantScheduler.Turn busy = scheduler.awaitIoTurn( temp.getRoot().getPath() + "/other", 100 );
+
+        final List<String> granted = Collections.synchronizedList( new ArrayList<>() );
+        final List<Thread> threads = new ArrayList<>();
+        for ( int i = 0; i < 8; i++ )
+        {
+            final String tenant = i < 4 ? "light" : "heavy";
+            final File dir = i < 4 ? light : heavy;
+            Thread t = new Thread( () -> {
+                try
+                {
+                    TenantScheduler.Turn turn = scheduler.awaitIoTurn( new File( dir, "file" ).getPath(), 100 );
+                    granted.add( tenant );
+                    turn.done();
+                }
+                catch ( Exception e )
+                {
+                    granted.add( "failed: " + e );
+                }
+            } );
+
+            t.start();
+            while ( t.getState() != Thread.State.WAITING )
+            {
+                Thread.sleep( 1 );
+            }
+
+            threads.add( t );
+        }
+
+        busy.done();
+        for ( Thread t : threads )
+        {
+            t.join( 5000 );
+        }
+
+        // the heavy tenant gets three turns for every one of the light tenant's.
+        assertThat( granted.size(), equalTo( 8 ) );
+        assertThat( granted.subList( 0, 6 ).stream().filter( "heavy"::equals ).count(), equalTo( 4L ) );
+        assertThat( granted.subList( 6, 8 ), equalTo( Arrays.asList( "light", "light" ) ) );
+
+        Map<String, TenantStats> stats = scheduler.getStats();
+        assertThat( stats.get( "heavy" ).getFlushes(), equalTo( 4L ) );
+        assertThat( stats.get( "light" ).getBytesWritten(), equalTo( 400L ) );
+        assertThat( stats.get( TenantScheduler.DEFAULT_TENANT ).getFlushes(), equalTo( 1L ) );
+    }
+
+    @Test
+    public void locksAndFlushesAreAccountedToTenants()
+            throws Exception
+    {
+        final File repoA = temp.newFolder( "a" );
+        final File repoB = temp.newFolder( "b" );
+        final JoinableFileManager manager = new JoinableFileManager();
+        final TenantScheduler scheduler =
+                new TenantScheduler( 2, 4 ).addTenant( "a", 2, repoA ).addTenant( "b", 1, repoB );
+        manager.setTenantScheduler( scheduler );
+
+        try (OutputStream out = manager.openOutputStream( new File( repoA, "org/foo/child.txt" ) ))
+        {
+            out.write( new byte[1000] );
+        }
+
+        try (OutputStream out = manager.openOutputStream( new File( repoB, "child.txt" ) ))
+        {
+            out.write( new byte[10] );
+        }
+
+        assertThat( scheduler.getTenant( new File( repoA, "x" ) ), equalTo( "a" ) );
+        assertThat( scheduler.getTenant( new File( temp.getRoot(), "ab" ) ),
+                    equalTo( TenantScheduler.DEFAULT_TENANT ) );
+
+        Map<String, TenantStats> stats = scheduler.getStats();
+        assertThat( stats.get( "a" ).getBytesWritten(), equalTo( 1000L ) );
+        assertThat( stats.get( "b" ).getBytesWritten(), equalTo( 10L ) );
+        assertThat( stats.get( "a" ).getLockGrants() > 0, equalTo( true ) );
+        assertThat( stats.get( "b" ).getLockGrants() > 0, equalTo( true ) );
+    }
+
+    @Test
+    public void waitingLocksTakeTurnPerAttempt()
+            throws Exception
+    {
+        final File repo = temp.newFolder( "a" );
+        final File f = new File( repo, "child.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+        final TenantScheduler scheduler = new TenantScheduler( 1, 1 ).addTenant( "a", 1, repo );
+        manager.setTenantScheduler( scheduler );
+
+        assertThat( manager.lock( f, 1000, LockLevel.write ), equalTo( true ) );
+
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try
+        {
+            assertThat( other.submit( () -> manager.lock( f, 500, LockLevel.write ) ).get(), equalTo( false ) );
+
+            // while the other thread waited, the only lock slot was free for anyone else.
+            TenantScheduler.Turn turn = scheduler.awaitLockTurn( f.getAbsolutePath() );
+            turn.done();
+        }
+        finally
+        {
+            other.shutdown();
+            manager.unlock( f );
+        }
+
+        // one turn for the first lock, then one per attempt of the other thread (it retries every 100ms).
+        assertThat( scheduler.getStats().get( "a" ).getLockGrants() > 4, equalTo( true ) );
+    }
+}
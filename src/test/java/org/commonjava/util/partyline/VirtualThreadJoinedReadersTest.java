@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs many joined readers tailing a single in-progress write on virtual threads, and verifies (via the JFR
+ * jdk.VirtualThreadPinned event) that partyline never blocks while pinning a carrier thread. This only runs on a JVM
+ * with virtual threads (JDK 21+); elsewhere it's skipped.
+ */
+public class VirtualThreadJoinedReadersTest
+        extends AbstractJointedIOTest
+{
+    private static final int READERS = 1000;
+
+    private static final int CHUNKS = 8;
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    @Rule
+    public TestRule timeout = timeoutRule( 2, TimeUnit.MINUTES );
+
+    @Test
+    public void run()
+            throws Exception
+    {
+        ThreadFactory factory = virtualThreadFactory();
+        assumeTrue( "Virtual threads are not available in this JVM", factory != null );
+
+        final File f = temp.newFile( "child.txt" );
+        final JoinableFileManager manager = new JoinableFileManager();
+
+        byte[] data = new byte[CHUNKS * CHUNK_SIZE];
+        for ( int i = 0; i < data.length; i++ )
+        {
+            data[i] = (byte) ( i % 251 );
+        }
+
+        Path recordingFile = temp.newFile( "pinning.jfr" ).toPath();
+        List<RecordedEvent> pinned;
+        long start = System.currentTimeMillis();
+        try (Recording recording = new Recording())
+        {
+            recording.enable( "jdk.VirtualThreadPinned" ).withThreshold( Duration.ZERO ).withStackTrace();
+            recording.start();
+
+            ExecutorService readers = Executors.newFixedThreadPool( READERS, factory );
+            CountDownLatch joined = new CountDownLatch( READERS );
+            List<Future<byte[]>> results = new ArrayList<>();
+
+            try (OutputStream out = manager.openOutputStream( f ))
+            {
+                out.write( data, 0, CHUNK_SIZE );
+                out.flush();
+
+                for ( int i = 0; i < READERS; i++ )
+                {
+                    results.add( readers.submit( () -> {
+                        try (InputStream in = manager.openInputStream( f ))
+                        {
+                            joined.countDown();
+                            return IOUtils.toByteArray( in );
+                        }
+                    } ) );
+                }
+
+                joined.await();
+                for ( int i = 1; i < CHUNKS; i++ )
+                {
+                    out.write( data, i * CHUNK_SIZE, CHUNK_SIZE );
+                    out.flush();
+                    Thread.sleep( 20 );
+                }
+            }
+
+            for ( Future<byte[]> result : results )
+            {
+                assertThat( result.get(), equalTo( data ) );
+            }
+
+            readers.shutdown();
+            recording.stop();
+            recording.dump( recordingFile );
+        }
+
+        logger.info( "{} virtual-thread readers finished in {}ms", READERS, System.currentTimeMillis() - start );
+
+        pinned = RecordingFile.readAllEvents( recordingFile )
+                              .stream()
+                              .filter( this::pinnedInPartyline )
+                              .collect( Collectors.toList() );
+
+        pinned.forEach( e -> logger.error( "Pinned carrier thread:\n{}", e ) );
+        assertThat( pinned.size(), equalTo( 0 ) );
+    }
+
+    private boolean pinnedInPartyline( RecordedEvent event )
+    {
+        return event.getEventType().getName().equals( "jdk.VirtualThreadPinned" ) && event.getStackTrace() != null
+                && event.getStackTrace()
+                        .getFrames()
+                        .stream()
+                        .map( RecordedFrame::getMethod )
+                        .anyMatch( m -> m.getType().getName().startsWith( getClass().getPackage().getName() )
+                                && !m.getType().getName().contains( "Test" ) );
+    }
+
+    private ThreadFactory virtualThreadFactory()
+    {
+        try
+        {
+            Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+            Class<?> builderType = Class.forName( "java.lang.Thread$Builder" );
+            builder = builderType.getMethod( "name", String.class, long.class ).invoke( builder, "vreader-", 0L );
+            return (ThreadFactory) builderType.getMethod( "factory" ).invoke( builder );
+        }
+        catch ( ReflectiveOperationException e )
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.partyline.callback.AbstractStreamCallbacks;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class WriteAdmissionTest
+        extends AbstractJointedIOTest
+{
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    @Test
+    public void writersQueueForSlotsAndTimeOut()
+            throws Exception
+    {
+        final File first = temp.newFile( "first.txt" );
+        final File second = temp.newFile( "second.txt" );
+        final File third = temp.newFile( "third.txt" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        WriteAdmission admission = manager.setWriteAdmission( 1, 0, 0, 300 );
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try
+        {
+            OutputStream out = manager.openOutputStream( first );
+            Future<OutputStream> queued = exec.submit( () -> manager.openOutputStream( second ) );
+
+            await( admission::getQueuedWriters, 1 );
+            assertThat( admission.getActiveWriters(), equalTo( 1 ) );
+
+            out.close();
+            OutputStream out2 = queued.get( 5, TimeUnit.SECONDS );
+
+            try
+            {
+                manager.openOutputStream( third );
+                fail( "Writer should not have been admitted" );
+            }
+            catch ( IOException e )
+            {
+                assertThat( admission.getRejectedCount(), equalTo( 1L ) );
+            }
+
+            out2.close();
+        }
+        finally
+        {
+            exec.shutdownNow();
+        }
+
+        assertThat( admission.getActiveWriters(), equalTo( 0 ) );
+        assertThat( admission.getMaxQueuedWriters(), equalTo( 1 ) );
+    }
+
+    @Test
+    public void bufferedBytesWaitForFlushes()
+            throws Exception
+    {
+        final File first = temp.newFile( "first.txt" );
+        final File second = temp.newFile( "second.txt" );
+        final byte[] data = new byte[BUFFER_SIZE * 6 / 10];
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        WriteAdmission admission = manager.setWriteAdmission( 0, BUFFER_SIZE, 1, 5000 );
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try
+        {
+            OutputStream out = manager.openOutputStream( first );
+            out.write( data );
+
+            // the rest of the buffer is reserved along with the first write.
+            assertThat( admission.getInFlightBytes(), equalTo( (long) BUFFER_SIZE ) );
+
+            Future<?> other = exec.submit( () -> {
+                try (OutputStream out2 = manager.openOutputStream( second ))
+                {
+                    out2.write( data );
+                }
+
+                return null;
+            } );
+
+            await( admission::getQueuedForBytes, 1 );
+
+            out.flush();
+            other.get( 5, TimeUnit.SECONDS );
+            out.close();
+        }
+        finally
+        {
+            exec.shutdownNow();
+        }
+
+        assertThat( admission.getInFlightBytes(), equalTo( 0L ) );
+        assertThat( admission.getActiveSyncs(), equalTo( 0 ) );
+        assertThat( FileUtils.readFileToByteArray( first ).length, equalTo( data.length ) );
+        assertThat( FileUtils.readFileToByteArray( second ).length, equalTo( data.length ) );
+    }
+
+    @Test
+    public void singleByteWritesDontFlushWhileOthersQueue()
+            throws Exception
+    {
+        final File first = temp.newFile( "first.txt" );
+        final File second = temp.newFile( "second.txt" );
+        final byte[] data = new byte[BUFFER_SIZE * 6 / 10];
+        final AtomicInteger flushes = new AtomicInteger();
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        WriteAdmission admission = manager.setWriteAdmission( 0, BUFFER_SIZE, 0, 5000 );
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try
+        {
+            OutputStream out = manager.openOutputStream( first, -1, -1, new AbstractStreamCallbacks()
+            {
+                @Override
+                public void flushed()
+                {
+                    flushes.incrementAndGet();
+                }
+
+                @Override
+                public void beforeClose()
+                {
+                }
+            } );
+            out.write( data );
+
+            Future<?> other = exec.submit( () -> {
+                try (OutputStream out2 = manager.openOutputStream( second ))
+                {
+                    out2.write( data );
+                }
+
+                return null;
+            } );
+
+            await( admission::getQueuedForBytes, 1 );
+
+            for ( int i = 0; i < 1000; i++ )
+            {
+                out.write( i );
+            }
+
+            assertThat( flushes.get(), equalTo( 0 ) );
+
+            out.close();
+            other.get( 5, TimeUnit.SECONDS );
+        }
+        finally
+        {
+            exec.shutdownNow();
+        }
+
+        assertThat( admission.getInFlightBytes(), equalTo( 0L ) );
+        assertThat( FileUtils.readFileToByteArray( first ).length, equalTo( data.length + 1000 ) );
+    }
+
+    @Test
+    public void closeDoesNotWaitForeverForSyncTurn()
+            throws Exception
+    {
+        final File f = temp.newFile( "child.txt" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        WriteAdmission admission = manager.setWriteAdmission( 0, 0, 1, 200 );
+
+        // hold the only sync turn.
+        assertThat( admission.beginSync( "elsewhere" ), equalTo( true ) );
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<?> write = exec.submit( () -> {
+                try (OutputStream out = manager.openOutputStream( f ))
+                {
+                    out.write( "some content".getBytes() );
+                }
+
+                return null;
+            } );
+
+            write.get( 5, TimeUnit.SECONDS );
+        }
+        finally
+        {
+            exec.shutdownNow();
+            admission.endSync();
+        }
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "some content" ) );
+        assertThat( admission.getOverdueSyncCount() > 0, equalTo( true ) );
+        assertThat( admission.getActiveSyncs(), equalTo( 0 ) );
+    }
+
+    @Test
+    public void writerWaitingForBytesDoesNotHoldUpTimedFlushes()
+            throws Exception
+    {
+        final File first = temp.newFile( "first.txt" );
+        final File second = temp.newFile( "second.txt" );
+        final File third = temp.newFile( "third.txt" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.setFlushPolicy( new FlushPolicy( 0, 300, false ) );
+        WriteAdmission admission = manager.setWriteAdmission( 0, BUFFER_SIZE + 1000, 0, 10000 );
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try
+        {
+            // reserves a whole buffer, leaving 1000 bytes for the others
+            OutputStream out = manager.openOutputStream( first );
+            out.write( new byte[10] );
+
+            // buffers a few bytes (so its timed flush is pending), then waits for more than are left
+            OutputStream out2 = manager.openOutputStream( second );
+            out2.write( new byte[10] );
+            Future<?> waiting = exec.submit( () -> {
+                out2.write( new byte[2000] );
+                return null;
+            } );
+            await( admission::getQueuedForBytes, 1 );
+
+            OutputStream out3 = manager.openOutputStream( third );
+            out3.write( new byte[10] );
+
+            // the third file's timed flush comes due while the second writer still waits
+            long end = System.currentTimeMillis() + 3000;
+            while ( third.length() < 10 && System.currentTimeMillis() < end )
+            {
+                Thread.sleep( 10 );
+            }
+
+            assertThat( third.length(), equalTo( 10L ) );
+            assertThat( admission.getQueuedForBytes(), equalTo( 1 ) );
+
+            out.close();
+            waiting.get( 5, TimeUnit.SECONDS );
+            out2.close();
+            out3.close();
+        }
+        finally
+        {
+            exec.shutdownNow();
+            manager.setFlushPolicy( null );
+        }
+
+        assertThat( FileUtils.readFileToByteArray( second ).length, equalTo( 2010 ) );
+        assertThat( admission.getInFlightBytes(), equalTo( 0L ) );
+    }
+
+    @Test
+    public void producersWaitForWriterSlots()
+            throws Exception
+    {
+        final File first = temp.newFile( "first.txt" );
+        final File produced = new File( temp.newFolder(), "produced.txt" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        WriteAdmission admission = manager.setWriteAdmission( 1, 0, 0, 5000 );
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try
+        {
+            OutputStream out = manager.openOutputStream( first );
+            Future<String> producer = exec.submit( () -> {
+                try (InputStream in = manager.openInputStreamOrProduce( produced, ( o ) -> o.write(
+                        "produced".getBytes() ), 10000 ))
+                {
+                    return IOUtils.toString( in );
+                }
+            } );
+
+            await( admission::getQueuedWriters, 1 );
+            assertThat( admission.getActiveWriters(), equalTo( 1 ) );
+
+            out.close();
+            assertThat( producer.get( 5, TimeUnit.SECONDS ), equalTo( "produced" ) );
+        }
+        finally
+        {
+            exec.shutdownNow();
+        }
+
+        await( admission::getActiveWriters, 0 );
+    }
+
+    @Test
+    public void mirrorCopiesDontWaitForWriterSlots()
+            throws Exception
+    {
+        final File primary = temp.newFolder( "primary" );
+        final File secondary = temp.newFolder( "mirror" );
+        final File f = new File( primary, "child.bin" );
+        final byte[] data = new byte[BUFFER_SIZE + 12345];
+        Arrays.fill( data, (byte) 7 );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        WriteAdmission admission = manager.setWriteAdmission( 2, 0, 0, 300 );
+        manager.enableMirror( primary, secondary, 4, MirrorOverflow.block, 10000 );
+
+        // with this writer and the one below, every slot is taken while the mirror copies.
+        try (OutputStream busy = manager.openOutputStream( temp.newFile( "busy.txt" ) ))
+        {
+            final File mirrored = new File( secondary, "child.bin" );
+            try (OutputStream out = manager.openOutputStream( f ))
+            {
+                out.write( data );
+                out.flush();
+
+                long end = System.currentTimeMillis() + 3000;
+                while ( !mirrored.exists() && System.currentTimeMillis() < end )
+                {
+                    Thread.sleep( 10 );
+                }
+
+                assertThat( mirrored.exists(), equalTo( true ) );
+            }
+
+            manager.disableMirror();
+        }
+
+        assertThat( Arrays.equals( FileUtils.readFileToByteArray( new File( secondary, "child.bin" ) ), data ),
+                    equalTo( true ) );
+        assertThat( admission.getRejectedCount(), equalTo( 0L ) );
+        assertThat( admission.getActiveWriters(), equalTo( 0 ) );
+    }
+
+    private void await( final IntSupplier value, final int expected )
+            throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + 5000;
+        while ( value.getAsInt() != expected && System.currentTimeMillis() < end )
+        {
+            Thread.sleep( 10 );
+        }
+
+        assertThat( value.getAsInt(), equalTo( expected ) );
+    }
+}
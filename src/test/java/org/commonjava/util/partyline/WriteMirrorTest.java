@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class WriteMirrorTest
+        extends AbstractJointedIOTest
+{
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    @Test
+    public void mirrorsFilesWrittenUnderPrimaryRoot()
+            throws Exception
+    {
+        final File primary = temp.newFolder( "primary" );
+        final File secondary = temp.newFolder( "mirror" );
+        final File f = new File( primary, "org/foo/child.bin" );
+        final File outside = temp.newFile( "outside.txt" );
+        final byte[] data = content( 2 * BUFFER_SIZE + 12345 );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        WriteMirror mirror = manager.enableMirror( primary, secondary, 4, MirrorOverflow.block, 1000 );
+
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            out.write( data );
+        }
+
+        try (OutputStream out = manager.openOutputStream( outside ))
+        {
+            out.write( data, 0, 10 );
+        }
+
+        manager.disableMirror();
+
+        File mirrored = new File( secondary, "org/foo/child.bin" );
+        assertThat( Arrays.equals( FileUtils.readFileToByteArray( mirrored ), data ), equalTo( true ) );
+        assertThat( new File( secondary, "outside.txt" ).exists(), equalTo( false ) );
+        assertThat( mirror.getMirroredCount(), equalTo( 1L ) );
+        assertThat( mirror.getResyncCount(), equalTo( 0L ) );
+        assertThat( mirror.getLagMillis(), equalTo( 0L ) );
+        assertThat( manager.getActiveLocks().isEmpty(), equalTo( true ) );
+    }
+
+    @Test
+    public void resyncsFileWhenQueueOverflows()
+            throws Exception
+    {
+        final File primary = temp.newFolder( "primary" );
+        final File secondary = temp.newFolder( "mirror" );
+        final File f = new File( primary, "child.bin" );
+        final File mirrored = new File( secondary, "child.bin" );
+        final byte[] data = content( 3 * BUFFER_SIZE + 789 );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        WriteMirror mirror = manager.enableMirror( primary, secondary, 1, MirrorOverflow.resync, 10000 );
+
+        // slow down the mirror, so the flushes following the first don't fit in the queue.
+        manager.setRateLimit( secondary, new RateLimit( 4 * BUFFER_SIZE, 1 ) );
+
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            out.write( data );
+        }
+
+        Thread.sleep( 100 );
+        assertThat( mirror.getLagMillis() >= 100, equalTo( true ) );
+
+        manager.disableMirror();
+
+        assertThat( Arrays.equals( FileUtils.readFileToByteArray( mirrored ), data ), equalTo( true ) );
+        assertThat( mirror.getOverflowCount() > 0, equalTo( true ) );
+        assertThat( mirror.getResyncCount(), equalTo( 1L ) );
+        assertThat( mirror.getMirroredCount(), equalTo( 1L ) );
+        assertThat( mirror.getFailureCount(), equalTo( 0L ) );
+    }
+
+    @Test
+    public void sharedFlushThreadsDontWaitForMirror()
+            throws Exception
+    {
+        final File primary = temp.newFolder( "primary" );
+        final File secondary = temp.newFolder( "mirror" );
+        final File f = new File( primary, "child.bin" );
+        final File mirrored = new File( secondary, "child.bin" );
+        final byte[] data = content( 3 * BUFFER_SIZE + 789 );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        manager.enableBackgroundFlush( 1, 4 );
+        WriteMirror mirror = manager.enableMirror( primary, secondary, 1, MirrorOverflow.block, 10000 );
+        manager.setRateLimit( secondary, new RateLimit( 4 * BUFFER_SIZE, 1 ) );
+
+        try (OutputStream out = manager.openOutputStream( f ))
+        {
+            out.write( data );
+        }
+
+        manager.disableMirror();
+        manager.disableBackgroundFlush();
+
+        // the flush thread couldn't wait for room in the queue, so the file was copied instead.
+        assertThat( Arrays.equals( FileUtils.readFileToByteArray( mirrored ), data ), equalTo( true ) );
+        assertThat( mirror.getOverflowCount() > 0, equalTo( true ) );
+        assertThat( mirror.getResyncCount(), equalTo( 1L ) );
+    }
+
+    @Test
+    public void filesInUseOnMirrorDontHoldUpOthers()
+            throws Exception
+    {
+        final File primary = temp.newFolder( "primary" );
+        final File secondary = temp.newFolder( "mirror" );
+        final File busy = new File( primary, "busy.bin" );
+        final File other = new File( primary, "other.bin" );
+        final File busyMirror = new File( secondary, "busy.bin" );
+        final byte[] data = content( BUFFER_SIZE + 10 );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        WriteMirror mirror = manager.enableMirror( primary, secondary, 4, MirrorOverflow.block, 10000 );
+
+        assertThat( manager.lock( busyMirror, 1000, LockLevel.write ), equalTo( true ) );
+        try
+        {
+            for ( File f : new File[] { busy, other } )
+            {
+                try (OutputStream out = manager.openOutputStream( f ))
+                {
+                    out.write( data );
+                }
+            }
+
+            long end = System.currentTimeMillis() + 5000;
+            while ( mirror.getMirroredCount() < 1 && System.currentTimeMillis() < end )
+            {
+                Thread.sleep( 10 );
+            }
+
+            assertThat( mirror.getMirroredCount(), equalTo( 1L ) );
+            assertThat( new File( secondary, "other.bin" ).exists(), equalTo( true ) );
+            assertThat( mirror.getDeferredCount(), equalTo( 1 ) );
+        }
+        finally
+        {
+            manager.unlock( busyMirror );
+        }
+
+        manager.disableMirror();
+
+        assertThat( Arrays.equals( FileUtils.readFileToByteArray( busyMirror ), data ), equalTo( true ) );
+        assertThat( mirror.getMirroredCount(), equalTo( 2L ) );
+        assertThat( mirror.getDeferredCount(), equalTo( 0 ) );
+        assertThat( mirror.getFailureCount(), equalTo( 0L ) );
+    }
+
+    @Test
+    public void deletesAreMirrored()
+            throws Exception
+    {
+        final File primary = temp.newFolder( "primary" );
+        final File secondary = temp.newFolder( "mirror" );
+        final File f = new File( primary, "org/foo/child.bin" );
+        final File g = new File( primary, "org/bar/child.bin" );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        WriteMirror mirror = manager.enableMirror( primary, secondary, 4, MirrorOverflow.block, 1000 );
+
+        for ( File file : new File[] { f, g } )
+        {
+            try (OutputStream out = manager.openOutputStream( file ))
+            {
+                out.write( content( 10 ) );
+            }
+        }
+
+        assertThat( manager.tryDelete( f ), equalTo( true ) );
+        assertThat( manager.tryDelete( new File( primary, "org/bar" ) ), equalTo( true ) );
+
+        manager.disableMirror();
+
+        assertThat( new File( secondary, "org/foo/child.bin" ).exists(), equalTo( false ) );
+        assertThat( new File( secondary, "org/foo" ).exists(), equalTo( true ) );
+        assertThat( new File( secondary, "org/bar" ).exists(), equalTo( false ) );
+        assertThat( mirror.getDeleteCount(), equalTo( 2L ) );
+    }
+
+    @Test
+    public void failedWriteIsRemovedFromMirror()
+            throws Exception
+    {
+        final File primary = temp.newFolder( "primary" );
+        final File secondary = temp.newFolder( "mirror" );
+        final File f = new File( primary, "child.bin" );
+        final byte[] data = content( BUFFER_SIZE + 10 );
+
+        final JoinableFileManager manager = new JoinableFileManager();
+        WriteMirror mirror = manager.enableMirror( primary, secondary, 4, MirrorOverflow.block, 1000 );
+
+        try
+        {
+            manager.openInputStreamOrProduce( f, ( out ) -> {
+                out.write( data );
+                throw new IOException( "Upstream went away" );
+            }, 1000 ).close();
+            fail( "Producer failure should have been thrown" );
+        }
+        catch ( IOException e )
+        {
+            assertThat( e.getMessage(), equalTo( "Upstream went away" ) );
+        }
+
+        manager.disableMirror();
+
+        assertThat( f.exists(), equalTo( false ) );
+        assertThat( new File( secondary, "child.bin" ).exists(), equalTo( false ) );
+        assertThat( mirror.getMirroredCount(), equalTo( 0L ) );
+    }
+
+    private byte[] content( final int length )
+    {
+        byte[] data = new byte[length];
+        for ( int i = 0; i < data.length; i++ )
+        {
+            data[i] = (byte) ( i % 251 );
+        }
+
+        return data;
+    }
+}
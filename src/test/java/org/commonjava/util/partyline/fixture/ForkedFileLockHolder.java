@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.fixture;
+
+import org.commonjava.util.partyline.JoinableFileManager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Entry point for a forked JVM that opens a file through partyline with process locks and progress files enabled,
+ * prints {@link #LOCKED}, then holds the file open until it reads a line (or EOF) from stdin.
+ * <br/>
+ * When writing, the optional first content is written (and flushed) before printing {@link #LOCKED}, and the optional
+ * second content is written after stdin is released.
+ * <br/>
+ * Usage: ForkedFileLockHolder (read|write) &lt;file&gt; [first content] [second content]
+ */
+public final class ForkedFileLockHolder
+{
+    public static final String LOCKED = "FORKED-LOCKED";
+
+    /**
+     * Fork a JVM running this class with the given arguments, and wait for it to lock the file.
+     */
+    public static Process start( String mode, File file, String... content )
+            throws Exception
+    {
+        List<String> command = new ArrayList<>();
+        command.add( new File( System.getProperty( "java.home" ), "bin/java" ).getPath() );
+        command.add( "-cp" );
+        command.add( System.getProperty( "java.class.path" ) );
+        command.add( ForkedFileLockHolder.class.getName() );
+        command.add( mode );
+        command.add( file.getPath() );
+        command.addAll( Arrays.asList( content ) );
+
+        Process process = new ProcessBuilder( command ).redirectErrorStream( true ).start();
+
+        CountDownLatch locked = new CountDownLatch( 1 );
+        Thread drain = new Thread( () -> {
+            try (BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream() ) ))
+            {
+                String line;
+                while ( ( line = reader.readLine() ) != null )
+                {
+                    if ( LOCKED.equals( line ) )
+                    {
+                        locked.countDown();
+                    }
+                }
+            }
+            catch ( IOException e )
+            {
+                // forked process is gone
+            }
+        }, "forked-output" );
+        drain.setDaemon( true );
+        drain.start();
+
+        if ( !locked.await( 60, TimeUnit.SECONDS ) )
+        {
+            process.destroy();
+            throw new IllegalStateException( "Forked process did not lock: " + file );
+        }
+
+        return process;
+    }
+
+    /**
+     * Let the forked JVM finish, and wait for it to exit.
+     */
+    public static void release( Process process )
+            throws Exception
+    {
+        process.getOutputStream().close();
+        if ( !process.waitFor( 60, TimeUnit.SECONDS ) )
+        {
+            throw new IllegalStateException( "Forked process did not exit." );
+        }
+    }
+
+    public static void main( String[] args )
+            throws Exception
+    {
+        boolean write = "write".equals( args[0] );
+        File file = new File( args[1] );
+
+        JoinableFileManager manager = new JoinableFileManager();
+        manager.enableProcessLocks();
+        manager.enableProgressFiles();
+
+        if ( write )
+        {
+            try (OutputStream out = manager.openOutputStream( file, 10000 ))
+            {
+                if ( args.length > 2 )
+                {
+                    out.write( args[2].getBytes() );
+                    out.flush();
+                }
+
+                awaitRelease();
+
+                if ( args.length > 3 )
+                {
+                    out.write( args[3].getBytes() );
+                }
+            }
+        }
+        else
+        {
+            try (InputStream in = manager.openInputStream( file, 10000 ))
+            {
+                awaitRelease();
+            }
+        }
+
+        System.exit( 0 );
+    }
+
+    private static void awaitRelease()
+            throws IOException
+    {
+        System.out.println( LOCKED );
+        System.out.flush();
+
+        new BufferedReader( new InputStreamReader( System.in ) ).readLine();
+    }
+}